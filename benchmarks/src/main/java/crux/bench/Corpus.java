@@ -0,0 +1,95 @@
+package crux.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The programs a benchmark compiles or runs, by name:
+ * <ul>
+ * <li>"stages", every distinct program under src/test/resources/crux/stages, which is looked for
+ * in the working directory and its parent unless the crux.stages property names it;</li>
+ * <li>"synthetic-n", one program of n functions from a {@link ProgramGenerator} with its default
+ * settings and seed.</li>
+ * </ul>
+ * Some stage programs have syntax or type errors on purpose; each stage benchmark only keeps the
+ * programs that reach it.
+ */
+final class Corpus {
+  private Corpus() {}
+
+  static final class Source {
+    final String name;
+    final String text;
+    final byte[] input;
+    /**
+     * Whether the program is meant to be run: the stages that run programs have its expected
+     * output.
+     */
+    final boolean runnable;
+
+    Source(String name, String text, byte[] input, boolean runnable) {
+      this.name = name;
+      this.text = text;
+      this.input = input;
+      this.runnable = runnable;
+    }
+  }
+
+  static List<Source> load(String name) {
+    if (name.equals("stages"))
+      return loadStages(findStages());
+    if (name.startsWith("synthetic-")) {
+      var generator = new ProgramGenerator();
+      generator.setFunctions(Integer.parseInt(name.substring("synthetic-".length())));
+      return List.of(new Source(name, generator.generate(), new byte[0], true));
+    }
+    throw new IllegalArgumentException("unknown corpus " + name);
+  }
+
+  private static Path findStages() {
+    var property = System.getProperty("crux.stages");
+    if (property != null)
+      return Path.of(property);
+    for (var root : List.of(Path.of(""), Path.of(".."))) {
+      var stages = root.resolve("src/test/resources/crux/stages");
+      if (Files.isDirectory(stages))
+        return stages;
+    }
+    throw new IllegalStateException(
+        "cannot find src/test/resources/crux/stages; set -Dcrux.stages=<dir>");
+  }
+
+  private static List<Source> loadStages(Path stages) {
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(stages)) {
+      files = paths.filter(path -> path.toString().endsWith(".crx")).sorted()
+          .collect(Collectors.toList());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    // The stages share many programs; keep the first of each, but run it if any stage does.
+    Map<String, Source> sources = new LinkedHashMap<>();
+    for (var file : files) {
+      try {
+        var text = Files.readString(file);
+        var base = file.toString().substring(0, file.toString().length() - ".crx".length());
+        var in = Path.of(base + ".in");
+        var input = Files.exists(in) ? Files.readAllBytes(in) : new byte[0];
+        var stage = file.getParent().getFileName().toString();
+        boolean runnable = stage.equals("ir") || stage.equals("codegen");
+        var name = stage + "/" + file.getFileName();
+        var old = sources.get(text);
+        if (old == null || runnable && !old.runnable)
+          sources.put(text, new Source(old == null ? name : old.name, text, input, runnable));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return new ArrayList<>(sources.values());
+  }
+}
@@ -0,0 +1,72 @@
+package crux.bench;
+
+import crux.backend.jvm.Jit;
+import crux.ir.Emulator;
+import crux.ir.Program;
+import crux.ir.ThreadedEmulator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time to run the programs of a corpus on each execution engine: the original visitor
+ * Emulator, the ThreadedEmulator that --emulator uses and the Jit. A run includes setting the engine
+ * up for the program, as in the compiler.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EngineBenchmark {
+  @Param({"stages", "synthetic-100"})
+  public String corpus;
+
+  @Param({"emulator", "threaded", "jit"})
+  public String engine;
+
+  private final List<Program> programs = new ArrayList<>();
+  private final List<byte[]> inputs = new ArrayList<>();
+
+  @Setup
+  public void setup() {
+    for (var source : Corpus.load(corpus)) {
+      if (!source.runnable)
+        continue;
+      var parseTree = Stages.parse(source.text);
+      var ast = parseTree == null ? null : Stages.lowerParseTree(parseTree);
+      var typedAst = ast == null ? null : Stages.typeCheck(ast);
+      if (typedAst == null)
+        continue;
+      programs.add(Stages.lowerAST(typedAst));
+      inputs.add(source.input);
+    }
+  }
+
+  @Benchmark
+  public void run() {
+    for (int i = 0; i < programs.size(); i++) {
+      var program = programs.get(i);
+      var input = new ByteArrayInputStream(inputs.get(i));
+      var output = OutputStream.nullOutputStream();
+      switch (engine) {
+        case "emulator":
+          new Emulator(program, input, output).run();
+          break;
+        case "threaded":
+          new ThreadedEmulator(program, input, output).run();
+          break;
+        case "jit":
+          new Jit(program, input, output).run();
+          break;
+        default:
+          throw new IllegalArgumentException("unknown engine " + engine);
+      }
+    }
+  }
+}
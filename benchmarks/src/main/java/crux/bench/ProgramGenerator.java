@@ -0,0 +1,434 @@
+package crux.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates valid, type-correct Crux programs whose size is set along several dimensions, for
+ * scaling tests of the compiler. The same seed and settings give the same program.
+ * <p>
+ * The programs also run and stop in time linear in their size: loops have constant bounds of at
+ * most 8 and are nested at most 3 deep, array indices are constants or loop counters below every
+ * array size, division is only by nonzero constants, and calls only go to the leaf functions, the
+ * first tenth of the functions, which neither call nor loop. Every variable is assigned before it
+ * is read. Main calls every function once and prints a checksum of the results.
+ */
+final class ProgramGenerator {
+  private static final int MIN_ARRAY_SIZE = 16;
+  private static final int MAX_LOOP_BOUND = 8;
+  private static final int MAX_LOOP_DEPTH = 3;
+  private static final int LOCALS = 6;
+
+  private long seed = 1;
+  private int functions = 100;
+  private int globals = 8;
+  private int arrays = 4;
+  private int statements = 8;
+  private int depth = 3;
+  private int expressionSize = 8;
+
+  private Random random;
+  private StringBuilder text;
+  private final List<Boolean> globalIsInt = new ArrayList<>();
+  private final List<Integer> arraySizes = new ArrayList<>();
+  private final List<String> returnTypes = new ArrayList<>();
+  private final List<List<Boolean>> parameters = new ArrayList<>();
+  // Of the function being generated.
+  private List<Boolean> currentParameters;
+  private boolean loops;
+  private int loopDepth;
+
+  void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  void setFunctions(int functions) {
+    this.functions = functions;
+  }
+
+  void setGlobals(int globals) {
+    this.globals = globals;
+  }
+
+  void setArrays(int arrays) {
+    this.arrays = arrays;
+  }
+
+  /**
+   * Sets the number of statements in a function body, besides the ones that assign the locals.
+   */
+  void setStatements(int statements) {
+    this.statements = statements;
+  }
+
+  /**
+   * Sets how deep if and for statements are nested; loops stop at 3 levels and ifs go deeper.
+   */
+  void setDepth(int depth) {
+    this.depth = depth;
+  }
+
+  /**
+   * Sets the number of operands in an expression.
+   */
+  void setExpressionSize(int expressionSize) {
+    this.expressionSize = expressionSize;
+  }
+
+  String generate() {
+    random = new Random(seed);
+    text = new StringBuilder();
+    globalIsInt.clear();
+    arraySizes.clear();
+    returnTypes.clear();
+    parameters.clear();
+
+    for (int g = 0; g < globals; g++) {
+      globalIsInt.add(random.nextInt(4) != 0);
+      text.append(globalIsInt.get(g) ? "int" : "bool").append(" g").append(g).append(";\n");
+    }
+    // The type checker takes the elements of every array for ints, so only int arrays type check.
+    for (int a = 0; a < arrays; a++) {
+      arraySizes.add(MIN_ARRAY_SIZE + random.nextInt(49));
+      text.append("int a").append(a).append('[').append(arraySizes.get(a)).append("];\n");
+    }
+    for (int f = 0; f < functions; f++) {
+      var types = List.of("int", "bool", "void");
+      returnTypes.add(types.get(random.nextInt(types.size())));
+      List<Boolean> parameterTypes = new ArrayList<>();
+      for (int n = random.nextInt(4); n > 0; n--) {
+        parameterTypes.add(random.nextInt(3) != 0);
+      }
+      parameters.add(parameterTypes);
+    }
+    for (int f = 0; f < functions; f++) {
+      generateFunction(f);
+    }
+    generateMain();
+    return text.toString();
+  }
+
+  private int leaves() {
+    return Math.max(1, functions / 10);
+  }
+
+  private void generateFunction(int f) {
+    currentParameters = parameters.get(f);
+    text.append(returnTypes.get(f)).append(" f").append(f).append('(');
+    for (int p = 0; p < currentParameters.size(); p++) {
+      if (p > 0)
+        text.append(", ");
+      text.append(currentParameters.get(p) ? "int" : "bool").append(" p").append(p);
+    }
+    text.append(") {\n");
+    declareLocals();
+    // Only the leaves are called, and they neither call nor loop.
+    boolean calls = f >= leaves();
+    loops = calls;
+    for (int s = 0; s < statements; s++) {
+      statement(1, depth, calls);
+    }
+    if (!returnTypes.get(f).equals("void")) {
+      indent(1);
+      text.append("return ")
+          .append(returnTypes.get(f).equals("int") ? intExpression(expressionSize, calls)
+              : boolExpression(expressionSize, calls))
+          .append(";\n");
+    }
+    text.append("}\n");
+    currentParameters = null;
+  }
+
+  /**
+   * Declares and assigns the locals: v0, v1, ... are ints, b0, b1, ... bools, and i0, i1, ... the
+   * loop counters.
+   */
+  private void declareLocals() {
+    for (int v = 0; v < LOCALS; v++) {
+      text.append("  int v").append(v).append(";\n");
+      text.append("  bool b").append(v).append(";\n");
+    }
+    for (int i = 0; i < MAX_LOOP_DEPTH; i++) {
+      text.append("  int i").append(i).append(";\n");
+    }
+    for (int v = 0; v < LOCALS; v++) {
+      text.append("  v").append(v).append(" = ").append(random.nextInt(100)).append(";\n");
+      text.append("  b").append(v).append(" = ").append(random.nextBoolean()).append(";\n");
+    }
+  }
+
+  private void generateMain() {
+    text.append("void main() {\n");
+    declareLocals();
+    loops = true;
+    for (int g = 0; g < globals; g++) {
+      indent(1);
+      text.append('g').append(g).append(" = ").append(globalIsInt.get(g) ? random.nextInt(100)
+          : random.nextBoolean()).append(";\n");
+    }
+    for (int a = 0; a < arrays; a++) {
+      text.append("  for (i0 = 0; i0 < ").append(arraySizes.get(a)).append("; i0 = i0 + 1) {\n");
+      text.append("    a").append(a).append("[i0] = i0 * 3;\n");
+      text.append("  }\n");
+    }
+    currentParameters = List.of();
+    for (int f = 0; f < functions; f++) {
+      indent(1);
+      var call = call(f);
+      switch (returnTypes.get(f)) {
+        case "int":
+          text.append("v0 = v0 / 2 + ").append(call).append(";\n");
+          break;
+        case "bool":
+          text.append("b0 = b0 || ").append(call).append(";\n");
+          break;
+        default:
+          text.append(call).append(";\n");
+      }
+    }
+    for (int g = 0; g < globals; g++) {
+      if (globalIsInt.get(g))
+        text.append("  v0 = v0 / 2 + g").append(g).append(";\n");
+    }
+    text.append("  printInt(v0);\n");
+    text.append("  printBool(b0);\n");
+    text.append("  println();\n");
+    text.append("}\n");
+    currentParameters = null;
+  }
+
+  private void indent(int level) {
+    text.append("  ".repeat(level));
+  }
+
+  private void statement(int level, int depthLeft, boolean calls) {
+    int kind = random.nextInt(depthLeft > 0 ? 5 : 3);
+    indent(level);
+    switch (kind) {
+      case 0:
+      case 1: {
+        // An assignment to a local, global or array element.
+        int target = random.nextInt(3);
+        if (target == 0 || globals == 0 && arrays == 0 || target == 1 && globals == 0) {
+          int v = random.nextInt(LOCALS);
+          if (random.nextBoolean())
+            text.append('v').append(v).append(" = ").append(intExpression(expressionSize, calls));
+          else
+            text.append('b').append(v).append(" = ").append(boolExpression(expressionSize, calls));
+        } else if (target == 1 || arrays == 0) {
+          int g = random.nextInt(globals);
+          text.append('g').append(g).append(" = ").append(globalIsInt.get(g)
+              ? intExpression(expressionSize, calls) : boolExpression(expressionSize, calls));
+        } else {
+          int a = random.nextInt(arrays);
+          text.append('a').append(a).append('[').append(index(a)).append("] = ")
+              .append(intExpression(expressionSize, calls));
+        }
+        text.append(";\n");
+        break;
+      }
+      case 2:
+        if (calls) {
+          text.append(call(random.nextInt(leaves()))).append(";\n");
+        } else {
+          text.append("v0 = v0 + 1;\n");
+        }
+        break;
+      case 3: {
+        text.append("if ").append(boolExpression(expressionSize, calls)).append(" {\n");
+        block(level, depthLeft, calls);
+        if (random.nextBoolean()) {
+          indent(level);
+          text.append("} else {\n");
+          block(level, depthLeft, calls);
+        }
+        indent(level);
+        text.append("}\n");
+        break;
+      }
+      default: {
+        if (!loops || loopDepth == MAX_LOOP_DEPTH) {
+          text.append("v1 = v1 - 1;\n");
+          break;
+        }
+        var counter = "i" + loopDepth;
+        text.append("for (").append(counter).append(" = 0; ").append(counter).append(" < ")
+            .append(1 + random.nextInt(MAX_LOOP_BOUND)).append("; ").append(counter)
+            .append(" = ").append(counter).append(" + 1) {\n");
+        loopDepth++;
+        block(level, depthLeft, calls);
+        loopDepth--;
+        indent(level);
+        text.append("}\n");
+      }
+    }
+  }
+
+  private void block(int level, int depthLeft, boolean calls) {
+    for (int n = 1 + random.nextInt(3); n > 0; n--) {
+      statement(level + 1, depthLeft - 1, calls);
+    }
+  }
+
+  /**
+   * An index of array a: a constant, or a loop counter, which stays below every array size.
+   */
+  private String index(int a) {
+    if (loopDepth > 0 && random.nextBoolean())
+      return "i" + random.nextInt(loopDepth);
+    return String.valueOf(random.nextInt(arraySizes.get(a)));
+  }
+
+  private String call(int f) {
+    var call = new StringBuilder("f").append(f).append('(');
+    var parameterTypes = parameters.get(f);
+    int size = Math.max(1, expressionSize / Math.max(1, parameterTypes.size()) / 2);
+    for (int p = 0; p < parameterTypes.size(); p++) {
+      if (p > 0)
+        call.append(", ");
+      // The arguments call nothing, so that a call costs the same in every context.
+      call.append(parameterTypes.get(p) ? intExpression(size, false) : boolExpression(size, false));
+    }
+    return call.append(')').toString();
+  }
+
+  /**
+   * A leaf that returns type, or -1 if there is none.
+   */
+  private int leafReturning(String type) {
+    int start = random.nextInt(leaves());
+    for (int k = 0; k < leaves(); k++) {
+      int f = (start + k) % leaves();
+      if (returnTypes.get(f).equals(type))
+        return f;
+    }
+    return -1;
+  }
+
+  private String intExpression(int size, boolean calls) {
+    if (size <= 1)
+      return intAtom(calls);
+    int left = 1 + random.nextInt(size - 1);
+    switch (random.nextInt(4)) {
+      case 0:
+        return "(" + intExpression(left, calls) + " + " + intExpression(size - left, calls) + ")";
+      case 1:
+        return "(" + intExpression(left, calls) + " - " + intExpression(size - left, calls) + ")";
+      case 2:
+        return "(" + intExpression(left, calls) + " * " + intExpression(size - left, calls) + ")";
+      default:
+        return "(" + intExpression(size - 1, calls) + " / " + (1 + random.nextInt(9)) + ")";
+    }
+  }
+
+  private String intAtom(boolean calls) {
+    switch (random.nextInt(calls ? 6 : 5)) {
+      case 0:
+        return String.valueOf(random.nextInt(1000));
+      case 1:
+        return "v" + random.nextInt(LOCALS);
+      case 2: {
+        int p = pick(true);
+        if (p >= 0)
+          return "p" + p;
+        return "v" + random.nextInt(LOCALS);
+      }
+      case 3: {
+        int g = pickGlobal(true);
+        if (g >= 0)
+          return "g" + g;
+        return String.valueOf(random.nextInt(1000));
+      }
+      case 4:
+        if (arrays > 0) {
+          int a = random.nextInt(arrays);
+          return "a" + a + "[" + index(a) + "]";
+        }
+        return "v" + random.nextInt(LOCALS);
+      default: {
+        int f = leafReturning("int");
+        if (f >= 0)
+          return call(f);
+        return String.valueOf(random.nextInt(1000));
+      }
+    }
+  }
+
+  private String boolExpression(int size, boolean calls) {
+    if (size <= 1)
+      return boolAtom(calls);
+    int left = 1 + random.nextInt(size - 1);
+    switch (random.nextInt(4)) {
+      case 0:
+        return "(" + boolExpression(left, calls) + " && " + boolExpression(size - left, calls)
+            + ")";
+      case 1:
+        return "(" + boolExpression(left, calls) + " || " + boolExpression(size - left, calls)
+            + ")";
+      case 2:
+        return "!" + boolExpression(size - 1, calls);
+      default: {
+        var operators = List.of("<", "<=", ">", ">=", "==", "!=");
+        return "(" + intExpression(left, calls) + " " + operators.get(random.nextInt(6)) + " "
+            + intExpression(size - left, calls) + ")";
+      }
+    }
+  }
+
+  private String boolAtom(boolean calls) {
+    switch (random.nextInt(calls ? 6 : 5)) {
+      case 0:
+        return String.valueOf(random.nextBoolean());
+      case 1:
+        return "b" + random.nextInt(LOCALS);
+      case 2: {
+        int p = pick(false);
+        if (p >= 0)
+          return "p" + p;
+        return "b" + random.nextInt(LOCALS);
+      }
+      case 3: {
+        int g = pickGlobal(false);
+        if (g >= 0)
+          return "g" + g;
+        return String.valueOf(random.nextBoolean());
+      }
+      case 4:
+        if (arrays > 0) {
+          int a = random.nextInt(arrays);
+          return "(a" + a + "[" + index(a) + "] > " + random.nextInt(100) + ")";
+        }
+        return "b" + random.nextInt(LOCALS);
+      default: {
+        int f = leafReturning("bool");
+        if (f >= 0)
+          return call(f);
+        return String.valueOf(random.nextBoolean());
+      }
+    }
+  }
+
+  /**
+   * A parameter of the current function with the type, or -1.
+   */
+  private int pick(boolean isInt) {
+    return pick(currentParameters, isInt);
+  }
+
+  private int pickGlobal(boolean isInt) {
+    return pick(globalIsInt, isInt);
+  }
+
+  private int pick(List<Boolean> types, boolean isInt) {
+    if (types.isEmpty())
+      return -1;
+    int start = random.nextInt(types.size());
+    for (int k = 0; k < types.size(); k++) {
+      int i = (start + k) % types.size();
+      if (types.get(i) == isInt)
+        return i;
+    }
+    return -1;
+  }
+}
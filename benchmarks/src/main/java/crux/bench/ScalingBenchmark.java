@@ -0,0 +1,183 @@
+package crux.bench;
+
+import crux.ast.DeclarationList;
+import crux.backend.CodeGen;
+import crux.ir.Program;
+import crux.pt.CruxParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Reports how the time and the allocated bytes of every stage grow with the size of generated
+ * programs, along one dimension of the {@link ProgramGenerator} at a time. Next to each measurement
+ * is the exponent k of the growth from the size before, which is near 1 for a linear stage;
+ * clearly more than 1 marks a superlinear hot spot.
+ * <p>
+ * Usage: {@code java -cp benchmarks.jar crux.bench.ScalingBenchmark [dimension [size...]]}, with
+ * dimension one of functions, statements, depth, expression, globals or arrays. Without arguments
+ * every dimension is measured at default sizes.
+ */
+public final class ScalingBenchmark {
+  private static final int RUNS = 5;
+
+  private static final Map<String, int[]> DEFAULT_SIZES = new LinkedHashMap<>();
+
+  static {
+    DEFAULT_SIZES.put("functions", new int[] {250, 500, 1000, 2000, 4000});
+    DEFAULT_SIZES.put("statements", new int[] {25, 50, 100, 200, 400});
+    DEFAULT_SIZES.put("depth", new int[] {4, 8, 16, 32, 64});
+    DEFAULT_SIZES.put("expression", new int[] {16, 64, 256, 1024, 4096});
+    DEFAULT_SIZES.put("globals", new int[] {500, 1000, 2000, 4000, 8000});
+    DEFAULT_SIZES.put("arrays", new int[] {500, 1000, 2000, 4000, 8000});
+  }
+
+  private static final String[] STAGES =
+      {"parse", "lowerParseTree", "typeCheck", "lowerAST", "assignLabels", "genCode"};
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  /**
+   * The best time of the runs of a stage, and the bytes the stage allocated.
+   */
+  private static final class Measurement {
+    long nanos = Long.MAX_VALUE;
+    long bytes;
+  }
+
+  public static void main(String[] args) throws IOException {
+    Map<String, int[]> dimensions = new LinkedHashMap<>();
+    if (args.length == 0) {
+      dimensions.putAll(DEFAULT_SIZES);
+    } else if (!DEFAULT_SIZES.containsKey(args[0])) {
+      System.err.println("unknown dimension " + args[0] + "; use one of " + DEFAULT_SIZES.keySet());
+      System.exit(1);
+    } else if (args.length == 1) {
+      dimensions.put(args[0], DEFAULT_SIZES.get(args[0]));
+    } else {
+      dimensions.put(args[0],
+          Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray());
+    }
+    var asm = File.createTempFile("crux-scaling", ".s");
+    asm.deleteOnExit();
+
+    for (var dimension : dimensions.entrySet()) {
+      System.out.printf("%s%n", dimension.getKey());
+      System.out.printf("%8s %8s", "size", "lines");
+      for (var stage : STAGES) {
+        System.out.printf(" | %-25s", stage + " ms, MB, k");
+      }
+      System.out.println();
+
+      Map<String, Measurement> previous = null;
+      int previousSize = 0;
+      boolean warm = false;
+      for (int size : dimension.getValue()) {
+        var generator = new ProgramGenerator();
+        set(generator, dimension.getKey(), size);
+        var text = generator.generate();
+        if (!warm) {
+          // Compiles the first size an extra time, so that it is not measured cold.
+          measure(text, asm.getPath());
+          warm = true;
+        }
+        var measurements = measure(text, asm.getPath());
+        System.out.printf("%8d %8d", size, text.lines().count());
+        for (var stage : STAGES) {
+          var m = measurements.get(stage);
+          var growth = "";
+          if (previous != null) {
+            var before = previous.get(stage);
+            double ratio = Math.log((double) size / previousSize);
+            growth = String.format("%.2f", Math.log((double) m.nanos / before.nanos) / ratio);
+          }
+          System.out.printf(" | %9.2f %8.1f %5s", m.nanos / 1e6, m.bytes / 1e6, growth);
+        }
+        System.out.println();
+        previous = measurements;
+        previousSize = size;
+      }
+      System.out.println();
+    }
+  }
+
+  private static void set(ProgramGenerator generator, String dimension, int size) {
+    switch (dimension) {
+      case "functions":
+        generator.setFunctions(size);
+        break;
+      case "statements":
+        generator.setStatements(size);
+        break;
+      case "depth":
+        generator.setDepth(size);
+        break;
+      case "expression":
+        generator.setExpressionSize(size);
+        break;
+      case "globals":
+        generator.setGlobals(size);
+        break;
+      case "arrays":
+        generator.setArrays(size);
+        break;
+      default:
+        throw new IllegalArgumentException(dimension);
+    }
+  }
+
+  private static Map<String, Measurement> measure(String text, String asmFile) {
+    Map<String, Measurement> measurements = new LinkedHashMap<>();
+    for (var stage : STAGES) {
+      measurements.put(stage, new Measurement());
+    }
+    for (int run = 0; run < RUNS; run++) {
+      CruxParser.ProgramContext parseTree = time(measurements, "parse", () -> Stages.parse(text));
+      DeclarationList ast = time(measurements, "lowerParseTree",
+          () -> Stages.lowerParseTree(parseTree));
+      DeclarationList typedAst = time(measurements, "typeCheck", () -> Stages.typeCheck(ast));
+      if (typedAst == null)
+        throw new IllegalStateException("the generated program does not type check");
+      Program program = time(measurements, "lowerAST", () -> Stages.lowerAST(typedAst));
+      time(measurements, "assignLabels", () -> {
+        var count = new int[1];
+        List<Object> labels = new ArrayList<>();
+        for (var it = program.getFunctions(); it.hasNext();) {
+          labels.add(it.next().assignLabels(count));
+        }
+        return labels;
+      });
+      time(measurements, "genCode", () -> {
+        new CodeGen(program, true, true, asmFile).genCode();
+        return null;
+      });
+    }
+    return measurements;
+  }
+
+  /**
+   * Runs stage and keeps its time if it is the best so far, with the bytes it allocated.
+   */
+  private static <T> T time(Map<String, Measurement> measurements, String stage,
+      Supplier<T> body) {
+    long bytes = THREADS.getCurrentThreadAllocatedBytes();
+    long start = System.nanoTime();
+    var result = body.get();
+    long nanos = System.nanoTime() - start;
+    bytes = THREADS.getCurrentThreadAllocatedBytes() - bytes;
+    var m = measurements.get(stage);
+    if (nanos < m.nanos) {
+      m.nanos = nanos;
+      m.bytes = bytes;
+    }
+    return result;
+  }
+}
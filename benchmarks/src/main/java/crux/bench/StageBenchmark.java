@@ -0,0 +1,103 @@
+package crux.bench;
+
+import crux.ast.DeclarationList;
+import crux.backend.CodeGen;
+import crux.ir.Program;
+import crux.pt.CruxParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time of each compiler stage over a corpus. The input of every stage is made in the setup, so
+ * a benchmark only measures its own stage, on the programs that reach it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StageBenchmark {
+  @Param({"stages", "synthetic-100", "synthetic-1000"})
+  public String corpus;
+
+  private List<String> texts;
+  private List<CruxParser.ProgramContext> parseTrees;
+  private List<DeclarationList> asts;
+  private List<DeclarationList> typedAsts;
+  private List<Program> programs;
+  private String asmFile;
+
+  @Setup
+  public void setup() throws IOException {
+    texts = new ArrayList<>();
+    parseTrees = new ArrayList<>();
+    asts = new ArrayList<>();
+    typedAsts = new ArrayList<>();
+    programs = new ArrayList<>();
+    for (var source : Corpus.load(corpus)) {
+      texts.add(source.text);
+      var parseTree = Stages.parse(source.text);
+      if (parseTree == null)
+        continue;
+      parseTrees.add(parseTree);
+      var ast = Stages.lowerParseTree(parseTree);
+      if (ast == null)
+        continue;
+      asts.add(ast);
+      // Lowered again, so that the benchmark of the type checker starts from untyped trees.
+      var typedAst = Stages.typeCheck(Stages.lowerParseTree(parseTree));
+      if (typedAst == null)
+        continue;
+      typedAsts.add(typedAst);
+      programs.add(Stages.lowerAST(typedAst));
+    }
+    var file = File.createTempFile("crux-bench", ".s");
+    file.deleteOnExit();
+    asmFile = file.getPath();
+  }
+
+  @Benchmark
+  public void parse(Blackhole bh) {
+    for (var text : texts) {
+      bh.consume(Stages.parse(text));
+    }
+  }
+
+  @Benchmark
+  public void lowerParseTree(Blackhole bh) {
+    for (var parseTree : parseTrees) {
+      bh.consume(Stages.lowerParseTree(parseTree));
+    }
+  }
+
+  @Benchmark
+  public void typeCheck(Blackhole bh) {
+    for (var ast : asts) {
+      bh.consume(Stages.typeCheck(ast));
+    }
+  }
+
+  @Benchmark
+  public void lowerAST(Blackhole bh) {
+    for (var ast : typedAsts) {
+      bh.consume(Stages.lowerAST(ast));
+    }
+  }
+
+  /**
+   * Includes writing the assembly, which the compiler cannot skip either.
+   */
+  @Benchmark
+  public void genCode() {
+    for (var program : programs) {
+      new CodeGen(program, true, true, asmFile).genCode();
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package crux.bench;
+
+import crux.ast.ANTLRErrorRecorder;
+import crux.ast.DeclarationList;
+import crux.ast.ParseTreeLower;
+import crux.ast.types.TypeChecker;
+import crux.ir.ASTLower;
+import crux.ir.Program;
+import crux.pt.CruxLexer;
+import crux.pt.CruxParser;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Runs one stage of the compiler the way the Driver does, returning null where the Driver stops
+ * with an error.
+ */
+final class Stages {
+  private Stages() {}
+
+  static final PrintStream NULL = new PrintStream(OutputStream.nullOutputStream());
+
+  static CruxParser.ProgramContext parse(String text) {
+    var lexer = new CruxLexer(CharStreams.fromString(text));
+    lexer.removeErrorListeners();
+    var parser = new CruxParser(new CommonTokenStream(lexer));
+    parser.removeErrorListeners();
+    var errors = new ANTLRErrorRecorder();
+    lexer.addErrorListener(errors);
+    parser.addErrorListener(errors);
+    var parseTree = parser.program();
+    return errors.getErrorMessages().isEmpty() ? parseTree : null;
+  }
+
+  static DeclarationList lowerParseTree(CruxParser.ProgramContext parseTree) {
+    var lower = new ParseTreeLower(NULL);
+    var ast = lower.lower(parseTree);
+    return lower.hasEncounteredError() ? null : ast;
+  }
+
+  /**
+   * Type checks ast, which is annotated with the types, and returns it.
+   */
+  static DeclarationList typeCheck(DeclarationList ast) {
+    var checker = new TypeChecker();
+    checker.check(ast);
+    return checker.getErrors().isEmpty() ? ast : null;
+  }
+
+  static Program lowerAST(DeclarationList ast) {
+    return new ASTLower().lower(ast);
+  }
+}
@@ -0,0 +1,273 @@
+package crux;
+
+import crux.format.BinaryWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An on-disk cache of compilation results, shared by all runs that use the same directory.
+ * <p>
+ * An entry is a directory named by the SHA-256 of the source and of the options that change the
+ * output. It holds the artifacts the runs with that key have produced: the type-checked AST, the
+ * optimized IR and the assembly. Artifacts are written to a temporary file and moved into place, so
+ * a reader never sees half of one.
+ * <p>
+ * Reading an entry marks it as used. Once the entries take more than the size limit, the ones used
+ * least recently are removed. Hits, misses and evictions are counted in a statistics file next to
+ * the entries, which is locked while it is updated. The file lock only keeps other processes out,
+ * so the runs of one process, such as the requests of a {@link CompilerServer}, also take a lock
+ * of the directory in the process first.
+ */
+final class CompileCache {
+  static final String TYPED_AST = "typedast.bin";
+  static final String IR = "ir.bin";
+  static final String ASM = "a.s";
+
+  static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+  private static final String STATISTICS = "statistics";
+
+  /**
+   * The lock of each cache directory in this process, by its real path.
+   */
+  private static final Map<Path, Object> LOCKS = new ConcurrentHashMap<>();
+
+  private final Path mDirectory;
+  private final long mMaxBytes;
+  private int mHits;
+  private int mMisses;
+  private int mEvictions;
+
+  CompileCache(Path directory, long maxBytes) {
+    mDirectory = directory;
+    mMaxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the key of a compilation of source with options, which must name everything besides
+   * the source that changes the artifacts.
+   */
+  static String getKey(byte[] source, String options) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    var header =
+        String.format("crux %d %s %s%n", BinaryWriter.VERSION, getCompilerStamp(), options);
+    digest.update(header.getBytes(StandardCharsets.UTF_8));
+    digest.update(source);
+    var key = new StringBuilder();
+    for (var b : digest.digest()) {
+      key.append(String.format("%02x", b));
+    }
+    return key.toString();
+  }
+
+  /**
+   * Identifies the jar the compiler runs from, so a new build does not reuse the results of an old
+   * one. Classes run from a directory are not identified; clear the cache after changing them.
+   */
+  private static String getCompilerStamp() {
+    try {
+      var source = CompileCache.class.getProtectionDomain().getCodeSource();
+      var path = Path.of(source.getLocation().toURI());
+      if (Files.isRegularFile(path))
+        return Files.size(path) + "@" + Files.getLastModifiedTime(path).toMillis();
+    } catch (Exception e) {
+      // Fall through: no stamp.
+    }
+    return "-";
+  }
+
+  /**
+   * Returns the artifact of the entry key, or null if it has not been stored.
+   */
+  Path find(String key, String artifact) {
+    var path = mDirectory.resolve(key).resolve(artifact);
+    if (!Files.isRegularFile(path))
+      return null;
+    try {
+      Files.setLastModifiedTime(path.getParent(), FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      // The entry was just evicted; the artifact can still be read if it is open already.
+    }
+    return path;
+  }
+
+  interface Writer {
+    void write(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Stores the artifact that writer writes in the entry key.
+   */
+  void store(String key, String artifact, Writer writer) throws IOException {
+    var entry = Files.createDirectories(mDirectory.resolve(key));
+    var temp = Files.createTempFile(entry, artifact, ".tmp");
+    try {
+      try (var out = Files.newOutputStream(temp)) {
+        writer.write(out);
+      }
+      Files.move(temp, entry.resolve(artifact), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  void recordHit() {
+    mHits++;
+  }
+
+  void recordMiss() {
+    mMisses++;
+  }
+
+  private List<Path> getEntries() throws IOException {
+    if (!Files.isDirectory(mDirectory))
+      return List.of();
+    try (Stream<Path> paths = Files.list(mDirectory)) {
+      return paths.filter(Files::isDirectory).collect(Collectors.toList());
+    }
+  }
+
+  private static long getSize(Path entry) {
+    try (Stream<Path> files = Files.list(entry)) {
+      return files.mapToLong(file -> {
+        try {
+          return Files.size(file);
+        } catch (IOException e) {
+          return 0;
+        }
+      }).sum();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static long getLastUse(Path entry) {
+    try {
+      return Files.getLastModifiedTime(entry).toMillis();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Removes the entries used least recently until the rest fit in the size limit.
+   */
+  void evict() throws IOException {
+    var entries = new ArrayList<>(getEntries());
+    Map<Path, Long> lastUse = new HashMap<>();
+    long total = 0;
+    for (var entry : entries) {
+      lastUse.put(entry, getLastUse(entry));
+      total += getSize(entry);
+    }
+    entries.sort(Comparator.comparing(lastUse::get));
+    for (var entry : entries) {
+      if (total <= mMaxBytes)
+        break;
+      total -= getSize(entry);
+      try (Stream<Path> files = Files.list(entry)) {
+        for (var file : (Iterable<Path>) files::iterator) {
+          Files.deleteIfExists(file);
+        }
+        Files.deleteIfExists(entry);
+        mEvictions++;
+      } catch (NoSuchFileException | DirectoryNotEmptyException e) {
+        // Another run evicted or refilled it at the same time.
+      }
+    }
+  }
+
+  /**
+   * Adds the counts of this run to the statistics file and prints the totals and the size of the
+   * cache to out.
+   */
+  void printStatistics(PrintStream out) throws IOException {
+    int hits = mHits;
+    int misses = mMisses;
+    var totals = updateStatistics();
+    var entries = getEntries();
+    long size = 0;
+    for (var entry : entries) {
+      size += getSize(entry);
+    }
+    out.printf("cache: %d hits, %d misses this run%n", hits, misses);
+    out.printf("cache: %d hits, %d misses, %d evictions in total%n", totals.get("hits"),
+        totals.get("misses"), totals.get("evictions"));
+    out.printf("cache: %d entries, %d of %d KiB in %s%n", entries.size(), size >> 10,
+        mMaxBytes >> 10, mDirectory);
+  }
+
+  /**
+   * Adds the counts of this run to the statistics file and returns the new totals.
+   */
+  Map<String, Long> updateStatistics() throws IOException {
+    Map<String, Long> totals = new LinkedHashMap<>();
+    totals.put("hits", (long) mHits);
+    totals.put("misses", (long) mMisses);
+    totals.put("evictions", (long) mEvictions);
+    Files.createDirectories(mDirectory);
+    // A second file lock on the same file in this process would throw
+    // OverlappingFileLockException rather than wait.
+    synchronized (LOCKS.computeIfAbsent(mDirectory.toRealPath(), path -> new Object())) {
+      updateStatistics(totals);
+    }
+    mHits = 0;
+    mMisses = 0;
+    mEvictions = 0;
+    return totals;
+  }
+
+  /**
+   * Adds the totals in the statistics file to totals and writes them back, under the file lock.
+   */
+  private void updateStatistics(Map<String, Long> totals) throws IOException {
+    try (var channel = FileChannel.open(mDirectory.resolve(STATISTICS), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      var lock = channel.lock();
+      try {
+        var bytes = ByteBuffer.allocate((int) channel.size());
+        while (bytes.hasRemaining()) {
+          if (channel.read(bytes) < 0)
+            break;
+        }
+        for (var line : new String(bytes.array(), StandardCharsets.UTF_8).split("\n")) {
+          var fields = line.trim().split(" ");
+          if (fields.length == 2 && totals.containsKey(fields[0])) {
+            try {
+              totals.merge(fields[0], Long.parseLong(fields[1]), Long::sum);
+            } catch (NumberFormatException e) {
+              // A damaged file starts over.
+            }
+          }
+        }
+        var text = new StringBuilder();
+        for (var total : totals.entrySet()) {
+          text.append(total.getKey()).append(' ').append(total.getValue()).append('\n');
+        }
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)), 0);
+      } finally {
+        lock.release();
+      }
+    }
+  }
+}
@@ -1,42 +1,81 @@
 package crux;
 
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
 
 /**
  * This Class is the Entry point for the project, it contains the main function.
  * 
  */
 public final class Compiler {
-  private static Driver driver = new Driver();
-
   public static void main(String[] args) {
+    if (args.length == 2 && args[0].equals("--server")) {
+      try {
+        CompilerServer.serve(Path.of(args[1]));
+      } catch (IOException e) {
+        System.err.println("error: cannot serve on " + args[1] + ": " + e.getMessage());
+        System.exit(-1);
+      }
+      return;
+    }
+    if (args.length >= 2 && args[0].equals("--client")) {
+      System.exit(CompilerClient.run(Path.of(args[1]), Arrays.copyOfRange(args, 2, args.length)));
+    }
+    int status = compile(args, Path.of(""), System.in, System.out, System.err, Path.of(""));
+    if (status != 0)
+      System.exit(status);
+  }
+
+  /**
+   * Runs one compilation with its own Driver and returns the exit status. File names in args are
+   * relative to directory; a.s and the serialized representations are written to outputDirectory.
+   */
+  static int compile(String[] args, Path directory, InputStream in, PrintStream out,
+      PrintStream err, Path outputDirectory) {
+    var driver = new Driver(in, out, err);
+    driver.setOutputDirectory(outputDirectory);
     try {
-      if (!handleArgs(args)) {
-        return;
+      if (!handleArgs(driver, args, directory, out)) {
+        return 0;
       }
 
       var result = driver.run();
       if (result == State.Error)
-        System.exit(-1);
+        return -1;
+    } catch (FileNotFoundException e) {
+      e.printStackTrace(err);
+      return -1;
+    } catch (UncheckedIOException e) {
+      // Such as a.s that cannot be written.
+      err.println("error: " + e.getMessage());
+      return -1;
     } catch (Exception e) {
-      System.err.println("error: " + e.getMessage());
-      e.printStackTrace();
+      err.println("error: " + e.getMessage());
+      e.printStackTrace(err);
     }
+    return 0;
   }
 
   /**
    * This method handle parsing the command line args and enable the compiler's stage flag based on
    * the parsed input
    */
-  private static boolean handleArgs(String[] args) {
+  private static boolean handleArgs(Driver driver, String[] args, Path directory, PrintStream out)
+      throws FileNotFoundException {
     for (var i = 0; i < args.length; ++i) {
       var arg = args[i];
       switch (arg) {
         case "--help":
-          displayHelp();
+          displayHelp(out);
           return false;
         case "--authors":
-          displayAuthors();
+          displayAuthors(out);
           return false;
         case "--check-types":
           driver.enableTypeCheck();
@@ -59,90 +98,195 @@ public final class Compiler {
         case "--emulator":
           driver.enableEmulator();
           break;
+        case "--jit":
+          driver.enableJit();
+          break;
+        case "--visitor-emulator":
+          driver.enableVisitorEmulator();
+          break;
         case "--debug-emulator":
           driver.enableDebugEmulator();
           break;
+        case "--profile-emulator":
+          driver.enableProfileEmulator();
+          break;
+        case "--profile-out":
+          driver.setProfileOutput(resolve(directory, args[++i]));
+          break;
+        case "--profile-use":
+          driver.setProfileInput(resolve(directory, args[++i]));
+          break;
+        case "--inline":
+          driver.enableInline();
+          break;
+        case "--inline-budget":
+          driver.setInlineBudget(Integer.parseInt(args[++i]));
+          break;
+        case "--ssa":
+          driver.enableSSA();
+          break;
+        case "--sccp":
+          driver.enableSCCP();
+          break;
+        case "--dce":
+          driver.enableDCE();
+          break;
+        case "--gvn":
+          driver.enableGVN();
+          break;
+        case "--licm":
+          driver.enableLICM();
+          break;
+        case "--strength-reduce":
+          driver.enableStrengthReduction();
+          break;
+        case "-O0":
+        case "-O1":
+        case "-O2":
+          driver.setOptimizationLevel(arg.charAt(2) - '0');
+          break;
+        case "--verify-ir":
+          driver.enableVerifyIR();
+          break;
+        case "--time-passes":
+          driver.enableTimePasses();
+          break;
+        case "--pass-stats":
+          driver.enablePassStatistics();
+          break;
+        case "--time-report":
+        case "--time-report=table":
+          driver.enableTimeReport(false);
+          break;
+        case "--time-report=json":
+          driver.enableTimeReport(true);
+          break;
+        case "--jobs":
+          driver.setJobs(Integer.parseInt(args[++i]));
+          break;
+        case "--cache-dir":
+          driver.setCacheDirectory(resolve(directory, args[++i]));
+          break;
+        case "--cache-size":
+          driver.setCacheSize(Long.parseLong(args[++i]) << 20);
+          break;
+        case "--cache-stats":
+          driver.enableCacheStats();
+          break;
+        case "--no-regalloc":
+          driver.disableRegisterAllocation();
+          break;
+        case "--no-peephole":
+          driver.disablePeephole();
+          break;
         case "--read-ast":
-          try {
-            driver.readAST(new FileInputStream(args[i + 1]));
-          } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(-1);
-          }
+          driver.readAST(new FileInputStream(resolve(directory, args[i + 1])));
           i++;
           break;
         case "--read-type":
-          try {
-            driver.readASTTYPE(new FileInputStream(args[i + 1]));
-          } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(-1);
-          }
+          driver.readASTTYPE(new FileInputStream(resolve(directory, args[i + 1])));
           i++;
           break;
         case "--read-ir":
-          try {
-            driver.readIR(new FileInputStream(args[i + 1]));
-          } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(-1);
-          }
+          driver.mapIR(resolve(directory, args[i + 1]));
           i++;
           break;
         case "--emulator-input": {
           if (driver.hasEmulatorInputFile())
             throw new RuntimeException("multiple input files");
           var inputFile = args[++i];
-          driver.setEmulatorInputFile(inputFile);
+          driver.setEmulatorInputFile(resolve(directory, inputFile));
           break;
         }
         default:
+          if (arg.startsWith("--passes=")) {
+            driver.setPasses(arg.substring("--passes=".length()));
+            break;
+          }
           if (arg.startsWith("-"))
             throw new RuntimeException(String.format("unrecognized command line option '%s'", arg));
           if (driver.hasInputFile())
             throw new RuntimeException(
                 String.format("multiple input files: '%s' and '%s'", driver.getInputFile(), arg));
-          driver.setInputFile(arg);
+          driver.setInputFile(resolve(directory, arg));
           break;
       }
     }
 
     if (!driver.hasInputFile()) {
-      displayHelp();
+      displayHelp(out);
       throw new RuntimeException("no input file.");
     }
 
     return true;
   }
 
-  private static void displayHelp() {
-    System.out.println("usage: <crux> [options] [file]");
-    System.out.println("options:");
-    System.out.println("--help\t\t\t\tDisplay this information.");
-    System.out.println("--authors\t\t\tDisplay the list of authors.");
-    System.out.println("--check-types\t\t\tPerform a type check for the input program.");
-    System.out
-        .println("--include-types\t\t\tInclude type information in printed ast (see --print-ast).");
-    System.out.println("--print-pt\t\t\tPrint the parse tree to stdout.");
-    System.out.println("--print-ast\t\t\tPrint the abstract syntax tree to stdout.");
-    System.out.println(
+  private static String resolve(Path directory, String file) {
+    return directory.resolve(file).toString();
+  }
+
+  private static void displayHelp(PrintStream out) {
+    out.println("usage: <crux> [options] [file]");
+    out.println("options:");
+    out.println("--help\t\t\t\tDisplay this information.");
+    out.println("--authors\t\t\tDisplay the list of authors.");
+    out.println("--check-types\t\t\tPerform a type check for the input program.");
+    out.println("--include-types\t\t\tInclude type information in printed ast (see --print-ast).");
+    out.println("--print-pt\t\t\tPrint the parse tree to stdout.");
+    out.println("--print-ast\t\t\tPrint the abstract syntax tree to stdout.");
+    out.println(
         "--serialize\t\t\tDump serialized versions of compiler represenatations out to files.");
-    System.out.println("--print-ir\t\t\tDump dot compatible representation of IR.");
-    System.out.println("--emulator\t\t\tRun Emulator on IR.");
-    System.out.println("--debug-emulator\t\tRun Emulator on IR with debugging turned on.");
-    System.out.println("--emulator-input <input file>\tInput File for the emulator");
-    System.out.println("--read-ast <input file>\t\tRead serialized version of AST in,");
-    System.out.println("--read-type <input file>\tRead serialized version of type-checked AST in,");
-    System.out.println("--read-ir <input file>\t\tRead serialized version of IR/CFG in,");
+    out.println("--print-ir\t\t\tDump dot compatible representation of IR.");
+    out.println("--emulator\t\t\tRun Emulator on IR; an array index out of bounds stops the run.");
+    out.println("--jit\t\t\t\tRun IR compiled to JVM bytecode, like --emulator.");
+    out.println("--visitor-emulator\t\tRun the original, slower Emulator on IR.");
+    out.println("--debug-emulator\t\tRun Emulator on IR with debugging turned on.");
+    out.println("--profile-emulator\t\tRun Emulator on IR, print hot spots, write profile.dot.");
+    out.println("--profile-out <file>\t\tRun Emulator on unoptimized IR, save its profile.");
+    out.println("--profile-use <file>\t\tLay out, inline and allocate registers by a profile.");
+    out.println("--emulator-input <input file>\tInput File for the emulator");
+    out.println("--inline\t\t\tInline calls to small, non-recursive functions.");
+    out.println(
+        "--inline-budget <n>\t\tInline callees of up to n instructions (implies --inline).");
+    out.println("--ssa\t\t\t\tConvert the IR to SSA form before printing or emitting it.");
+    out.println("--sccp\t\t\t\tFold constants and branches on constants (implies --ssa).");
+    out.println("--gvn\t\t\t\tRemove recomputed expressions and loads (implies --ssa).");
+    out.println("--licm\t\t\t\tHoist loop-invariant code out of loops (implies --ssa).");
+    out.println("--strength-reduce\t\tTurn products of induction variables into additions "
+        + "(implies --ssa).");
+    out.println("--dce\t\t\t\tRemove dead instructions and stores.");
+    out.println("-O0, -O1, -O2\t\t\tNo optimization, sccp and dce, or every pass.");
+    out.println(
+        "--passes=<a,b,...>\t\tRun exactly these passes in order, e.g. --passes=sccp,gvn,dce.");
+    out.println("--verify-ir\t\t\tCheck the IR after lowering and after every pass.");
+    out.println("--pass-stats\t\t\tReport what each pass removed, folded or hoisted.");
+    out.println("--time-passes\t\t\tReport time and instruction changes per pass.");
+    out.println(
+        "--time-report[=json]\t\tReport time, CPU time, allocations and output size per stage.");
+    out.println(
+        "--jobs <n>\t\t\tCompile n functions at a time, 0 for one per processor; same output.");
+    out.println(
+        "--cache-dir <dir>\t\tReuse the AST, IR and assembly of earlier identical compilations.");
+    out.println(
+        "--cache-size <MiB>\t\tEvict the least recently used cache entries beyond this size.");
+    out.println("--cache-stats\t\t\tPrint the cache hits, misses, evictions and size.");
+    out.println("--no-regalloc\t\t\tGive every variable a stack slot instead of a register.");
+    out.println("--no-peephole\t\t\tWrite the assembly without the peephole optimizer.");
+    out.println("--read-ast <input file>\t\tRead serialized version of AST in,");
+    out.println("--read-type <input file>\tRead serialized version of type-checked AST in,");
+    out.println("--read-ir <input file>\t\tRead serialized version of IR/CFG in,");
+    out.println("--server <socket>\t\tKeep compiling the requests of clients on a Unix socket.");
+    out.println(
+        "--client <socket> [options]\tCompile on the server at socket, or here if none listens.");
   }
 
-  private static void displayAuthors() {
+  private static void displayAuthors(PrintStream out) {
     var separator = "";
     for (var author : Authors.all) {
-      System.out.print(separator);
-      System.out.printf("name: %s%n", author.name);
-      System.out.printf("student id: %s%n", author.studentId);
-      System.out.printf("UCINetID: %s%n", author.uciNetId);
+      out.print(separator);
+      out.printf("name: %s%n", author.name);
+      out.printf("student id: %s%n", author.studentId);
+      out.printf("UCINetID: %s%n", author.uciNetId);
       separator = System.lineSeparator();
     }
   }
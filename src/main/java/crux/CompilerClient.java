@@ -0,0 +1,92 @@
+package crux;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Sends a compilation to a {@link CompilerServer} and acts like it ran here: the output of the
+ * compiler is printed, the files it wrote are written to the working directory and its status is
+ * returned. Without a server on the socket the compilation runs in this process instead.
+ */
+final class CompilerClient {
+  private CompilerClient() {}
+
+  static int run(Path socket, String[] args) {
+    SocketChannel channel;
+    try {
+      channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+      channel.connect(UnixDomainSocketAddress.of(socket));
+    } catch (IOException e) {
+      return Compiler.compile(args, Path.of(""), System.in, System.out, System.err, Path.of(""));
+    }
+    try (channel) {
+      var frames = new CompilerServer.FrameOutput(channel);
+      var request = new ByteArrayOutputStream();
+      var data = new DataOutputStream(request);
+      data.writeUTF(Path.of("").toAbsolutePath().toString());
+      data.writeInt(args.length);
+      for (var arg : args) {
+        data.writeUTF(arg);
+      }
+      frames.write(CompilerServer.REQUEST, request.toByteArray());
+
+      var in = new DataInputStream(new BufferedInputStream(CompilerServer.input(channel)));
+      var tag = new int[1];
+      while (true) {
+        var bytes = CompilerServer.readFrame(in, tag);
+        switch (tag[0]) {
+          case CompilerServer.STDOUT:
+            System.out.write(bytes);
+            System.out.flush();
+            break;
+          case CompilerServer.STDERR:
+            System.err.write(bytes);
+            System.err.flush();
+            break;
+          case CompilerServer.FILE: {
+            var file = new DataInputStream(new ByteArrayInputStream(bytes));
+            var name = new String(file.readNBytes(file.readUnsignedShort()), StandardCharsets.UTF_8);
+            // Only a plain name; the server cannot write elsewhere.
+            Files.write(Path.of(name).getFileName(), file.readAllBytes());
+            break;
+          }
+          case CompilerServer.STDIN: {
+            var forwarder = new Thread(() -> forwardInput(frames), "crux-stdin");
+            forwarder.setDaemon(true);
+            forwarder.start();
+            break;
+          }
+          case CompilerServer.EXIT:
+            return ByteBuffer.wrap(bytes).getInt();
+          default:
+            throw new IOException("unexpected frame " + tag[0]);
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("error: lost the compiler server: " + e.getMessage());
+      return -1;
+    }
+  }
+
+  /**
+   * Sends standard input to the server, and an empty frame at its end.
+   */
+  private static void forwardInput(CompilerServer.FrameOutput frames) {
+    var buffer = new byte[8192];
+    try {
+      int n;
+      while ((n = System.in.read(buffer)) > 0) {
+        frames.write(CompilerServer.STDIN, buffer, 0, n);
+      }
+      frames.write(CompilerServer.STDIN, new byte[0]);
+    } catch (IOException e) {
+      // The request is over.
+    }
+  }
+}
@@ -0,0 +1,270 @@
+package crux;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiles the requests of {@link CompilerClient}s in one JVM, so that they do not each pay for
+ * starting it and for loading and warming up the compiler.
+ * <p>
+ * The server listens on a Unix domain socket and compiles every connection on a thread of its own
+ * with a new {@link Driver}. A connection carries frames: a tag byte, a length and that many bytes.
+ * The client sends a REQUEST with its working directory and arguments. The server answers with
+ * STDOUT and STDERR frames as the compiler prints, a FILE frame for each file the compiler wrote,
+ * such as a.s, and the EXIT status. The first time the compiler reads its standard input, the
+ * server sends an empty STDIN frame; the client then sends its standard input as STDIN frames, the
+ * last one empty. A client whose compilation does not read input leaves it alone.
+ */
+final class CompilerServer {
+  static final int REQUEST = 1;
+  static final int STDIN = 2;
+  static final int STDOUT = 3;
+  static final int STDERR = 4;
+  static final int FILE = 5;
+  static final int EXIT = 6;
+
+  private CompilerServer() {}
+
+  /**
+   * Serves requests on socket until the process is stopped.
+   */
+  static void serve(Path socket) throws IOException {
+    var address = UnixDomainSocketAddress.of(socket);
+    try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      removeStaleSocket(address);
+      server.bind(address);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          Files.deleteIfExists(socket);
+        } catch (IOException e) {
+          // Nothing left to do.
+        }
+      }));
+      System.err.println("crux server listening on " + socket);
+      ExecutorService requests = Executors.newCachedThreadPool(runnable -> {
+        var thread = new Thread(runnable, "crux-request");
+        thread.setDaemon(true);
+        return thread;
+      });
+      while (true) {
+        var channel = server.accept();
+        requests.execute(() -> handle(channel));
+      }
+    }
+  }
+
+  /**
+   * Removes the socket file of a server that did not shut down; the socket of a live server is
+   * kept.
+   */
+  private static void removeStaleSocket(UnixDomainSocketAddress address) throws IOException {
+    if (!Files.exists(address.getPath()))
+      return;
+    SocketChannel channel = null;
+    try {
+      channel = SocketChannel.open(address);
+    } catch (IOException e) {
+      // Nobody accepts connections on it.
+    }
+    boolean live = channel != null;
+    if (live) {
+      channel.close();
+      throw new IOException("a server is already listening on " + address.getPath());
+    }
+    Files.delete(address.getPath());
+  }
+
+  /**
+   * Reads from channel. Unlike Channels.newInputStream, a blocked read does not keep another
+   * thread from writing to the channel.
+   */
+  static InputStream input(SocketChannel channel) {
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        var b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0)
+          return 0;
+        return channel.read(ByteBuffer.wrap(bytes, offset, length));
+      }
+    };
+  }
+
+  /**
+   * Writes frames to a channel, from any number of threads.
+   */
+  static final class FrameOutput {
+    private final SocketChannel mChannel;
+
+    FrameOutput(SocketChannel channel) {
+      mChannel = channel;
+    }
+
+    synchronized void write(int tag, byte[] bytes, int offset, int length) throws IOException {
+      var header = ByteBuffer.allocate(5).put((byte) tag).putInt(length).flip();
+      var body = ByteBuffer.wrap(bytes, offset, length);
+      while (header.hasRemaining() || body.hasRemaining()) {
+        mChannel.write(new ByteBuffer[] {header, body});
+      }
+    }
+
+    void write(int tag, byte[] bytes) throws IOException {
+      write(tag, bytes, 0, bytes.length);
+    }
+
+    /**
+     * A stream whose writes become frames of tag.
+     */
+    OutputStream stream(int tag) {
+      return new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+          if (length > 0)
+            FrameOutput.this.write(tag, bytes, offset, length);
+        }
+      };
+    }
+  }
+
+  /**
+   * Reads the next frame into tag[0] and the returned bytes.
+   */
+  static byte[] readFrame(DataInputStream in, int[] tag) throws IOException {
+    tag[0] = in.readUnsignedByte();
+    var bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static void handle(SocketChannel channel) {
+    Path outputDirectory = null;
+    try (channel) {
+      var in = new DataInputStream(new BufferedInputStream(input(channel)));
+      var frames = new FrameOutput(channel);
+      var tag = new int[1];
+      var request = new DataInputStream(new ByteArrayInputStream(readFrame(in, tag)));
+      if (tag[0] != REQUEST)
+        throw new IOException("expected a request, found frame " + tag[0]);
+      var directory = Path.of(request.readUTF());
+      var args = new String[request.readInt()];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = request.readUTF();
+      }
+
+      // Standard output is buffered, and flushed before the compiler waits for input.
+      var stdout = new PrintStream(new BufferedOutputStream(frames.stream(STDOUT)), false);
+      var stderr = new PrintStream(frames.stream(STDERR), true);
+      var stdin = new PipedInputStream(1 << 16) {
+        private boolean mRequested;
+
+        private void request() throws IOException {
+          stdout.flush();
+          if (!mRequested) {
+            mRequested = true;
+            frames.write(STDIN, new byte[0]);
+          }
+        }
+
+        @Override
+        public int read() throws IOException {
+          request();
+          return super.read();
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+          request();
+          return super.read(bytes, offset, length);
+        }
+      };
+      var stdinWriter = new PipedOutputStream(stdin);
+      var forwarder = new Thread(() -> forwardInput(in, stdinWriter), "crux-stdin");
+      forwarder.setDaemon(true);
+      forwarder.start();
+
+      outputDirectory = Files.createTempDirectory("crux-request");
+      int status;
+      try {
+        status = Compiler.compile(args, directory, stdin, stdout, stderr, outputDirectory);
+      } catch (Throwable t) {
+        // Such as a StackOverflowError; the server goes on with the other requests.
+        stderr.println("error: " + t);
+        status = -1;
+      }
+      // Stops a forwarder that waits for the compiler to read more.
+      stdin.close();
+      stdout.flush();
+      for (var file : list(outputDirectory)) {
+        var name = file.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+        var bytes = new ByteArrayOutputStream();
+        var data = new DataOutputStream(bytes);
+        data.writeShort(name.length);
+        data.write(name);
+        Files.copy(file, data);
+        frames.write(FILE, bytes.toByteArray());
+      }
+      frames.write(EXIT, ByteBuffer.allocate(4).putInt(status).array());
+    } catch (IOException e) {
+      // The client went away; its results are dropped.
+    } finally {
+      if (outputDirectory != null)
+        deleteDirectory(outputDirectory);
+    }
+  }
+
+  /**
+   * Copies the STDIN frames of the client to stdin until the empty one.
+   */
+  private static void forwardInput(DataInputStream in, PipedOutputStream stdin) {
+    var tag = new int[1];
+    try (stdin) {
+      while (true) {
+        var bytes = readFrame(in, tag);
+        if (tag[0] != STDIN || bytes.length == 0)
+          break;
+        stdin.write(bytes);
+      }
+    } catch (IOException e) {
+      // The client closed its end, or the compiler stopped reading; either ends the input.
+    }
+  }
+
+  private static List<Path> list(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.sorted().collect(Collectors.toList());
+    }
+  }
+
+  private static void deleteDirectory(Path directory) {
+    try {
+      for (var file : list(directory)) {
+        Files.deleteIfExists(file);
+      }
+      Files.deleteIfExists(directory);
+    } catch (IOException e) {
+      // Left to the cleanup of the temporary directory.
+    }
+  }
+}
@@ -3,6 +3,7 @@ package crux;
 import crux.ast.ANTLRErrorRecorder;
 import crux.ast.ParseTreeLower;
 import crux.ast.DeclarationList;
+import crux.ast.Node;
 import crux.pt.CruxLexer;
 import crux.pt.CruxParser;
 import crux.ast.types.TypeChecker;
@@ -10,14 +11,35 @@ import crux.ir.ASTLower;
 import crux.printing.IRPrinter;
 import crux.ir.Program;
 import crux.ir.Emulator;
+import crux.ir.ExecutionProfile;
+import crux.ir.ThreadedEmulator;
+import crux.ir.opt.Inliner;
+import crux.ir.opt.PassManager;
+import crux.ir.opt.SSADestruction;
 import crux.backend.CodeGen;
+import crux.backend.jvm.Jit;
+import crux.format.ASTFormat;
+import crux.format.BinaryReader;
+import crux.format.IRFormat;
+import crux.format.ProfileFormat;
 import crux.printing.ASTPrinter;
 import crux.printing.ParseTreePrinter;
+import crux.printing.ProfilePrinter;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Supplier;
 
 enum State {
@@ -46,7 +68,32 @@ public final class Driver {
   private boolean typeCheck = false;
   private boolean printIR = false;
   private boolean runEmulator = false;
+  private boolean debugEmulator = false;
+  private boolean profileEmulator = false;
+  private String profileOutputFile = null;
+  private String profileInputFile = null;
+  private boolean visitorEmulator = false;
+  private boolean jit = false;
   private boolean serialize = false;
+  private boolean allocateRegisters = true;
+  private boolean peephole = true;
+  private int inlineBudget = Inliner.DEFAULT_MAX_CALLEE_SIZE;
+  private int optLevel = 0;
+  private final Set<String> enabledPasses = new HashSet<>();
+  private List<String> passList = null;
+  private boolean verifyIR = false;
+  private boolean timePasses = false;
+  private boolean passStatistics = false;
+  private TimeReport timeReport = null;
+  private boolean timeReportJson = false;
+  private int jobs = 1;
+  private ForkJoinPool pool;
+  private String cacheDirectory = null;
+  private long cacheSize = CompileCache.DEFAULT_MAX_BYTES;
+  private boolean cacheStats = false;
+  private CompileCache cache;
+  private String cacheKey;
+  private Path outputDirectory = Path.of("");
 
   // Set this flag to false if earlier stages in your compiler do not work.
   private final boolean supportsEndToEnd = true;
@@ -109,9 +156,181 @@ public final class Driver {
     runEmulator = true;
   }
 
+  /**
+   * Runs the original HashMap-backed Emulator instead of the ThreadedEmulator.
+   */
+  public void enableVisitorEmulator() {
+    runEmulator = true;
+    visitorEmulator = true;
+  }
+
+  /**
+   * Runs the program by compiling it to JVM bytecode instead of emulating it.
+   */
+  public void enableJit() {
+    runEmulator = true;
+    jit = true;
+  }
+
+  public void disableRegisterAllocation() {
+    allocateRegisters = false;
+  }
+
+  public void disablePeephole() {
+    peephole = false;
+  }
+
+  public void enableInline() {
+    enabledPasses.add("inline");
+  }
+
+  /**
+   * Sets the largest callee, in instructions, that the inliner copies into its callers.
+   */
+  public void setInlineBudget(int budget) {
+    enabledPasses.add("inline");
+    inlineBudget = budget;
+  }
+
+  public void enableSSA() {
+    enabledPasses.add("ssa");
+  }
+
+  public void enableSCCP() {
+    enabledPasses.add("sccp");
+  }
+
+  public void enableDCE() {
+    enabledPasses.add("dce");
+  }
+
+  public void enableGVN() {
+    enabledPasses.add("gvn");
+  }
+
+  public void enableLICM() {
+    enabledPasses.add("licm");
+  }
+
+  public void enableStrengthReduction() {
+    enabledPasses.add("strength-reduce");
+  }
+
+  /**
+   * Runs the passes of PassManager.getPipeline(level) besides the ones enabled one by one.
+   */
+  public void setOptimizationLevel(int level) {
+    optLevel = level;
+  }
+
+  /**
+   * Runs exactly the given comma separated passes, in order, instead of the level and the single
+   * pass flags.
+   */
+  public void setPasses(String spec) {
+    passList = PassManager.parsePipeline(spec);
+  }
+
+  public void enableVerifyIR() {
+    verifyIR = true;
+  }
+
+  public void enableTimePasses() {
+    timePasses = true;
+  }
+
+  /**
+   * Prints what each pass did, e.g. "dce: removed 12", on err. --time-passes prints it as well.
+   */
+  public void enablePassStatistics() {
+    passStatistics = true;
+  }
+
+  /**
+   * Reports the time and memory of every stage and the sizes of their results on err when the run
+   * ends, as a table or as JSON.
+   */
+  public void enableTimeReport(boolean json) {
+    timeReport = new TimeReport();
+    timeReportJson = json;
+  }
+
+  /**
+   * Optimizes and generates code for up to jobs functions at the same time; 0 means one per
+   * processor. The output does not depend on it.
+   */
+  public void setJobs(int jobs) {
+    this.jobs = jobs > 0 ? jobs : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * The pool functions are compiled on, or null when compiling one function at a time.
+   */
+  private ForkJoinPool getPool() {
+    if (pool == null && jobs > 1)
+      pool = new ForkJoinPool(jobs);
+    return pool;
+  }
+
+  /**
+   * Keeps the typed AST, IR and assembly of every compilation in directory, so that compiling the
+   * same source with the same options again skips the stages whose results are there.
+   */
+  public void setCacheDirectory(String directory) {
+    cacheDirectory = directory;
+  }
+
+  /**
+   * Bounds the cache; the entries used least recently are removed beyond bytes.
+   */
+  public void setCacheSize(long bytes) {
+    cacheSize = bytes;
+  }
+
+  public void enableCacheStats() {
+    cacheStats = true;
+  }
+
   public void enableDebugEmulator() {
     runEmulator = true;
-    Emulator.DEBUG = true;
+    debugEmulator = true;
+  }
+
+  /**
+   * Runs the program on the ThreadedEmulator counting what it executes, then prints the hot spots
+   * on err and writes the IR, colored by how often it ran, to profile.dot.
+   */
+  public void enableProfileEmulator() {
+    runEmulator = true;
+    profileEmulator = true;
+  }
+
+  /**
+   * Runs the program on the ThreadedEmulator before any pass and saves how often each instruction,
+   * function and jump ran to file, for a later compilation with {@link #setProfileInput}.
+   */
+  public void setProfileOutput(String file) {
+    runEmulator = true;
+    profileOutputFile = file;
+  }
+
+  /**
+   * Attaches the profile saved by an earlier run with {@link #setProfileOutput} to the lowered IR,
+   * so the inliner, the block layout and the register allocator favor what ran most.
+   */
+  public void setProfileInput(String file) {
+    profileInputFile = file;
+  }
+
+  /**
+   * Writes a.s and the serialized representations to directory instead of the working directory.
+   */
+  public void setOutputDirectory(Path directory) {
+    outputDirectory = directory;
+  }
+
+  private String getOutputFile(String name) {
+    return outputDirectory.resolve(name).toString();
   }
 
   public boolean hasInputFile() {
@@ -147,71 +366,267 @@ public final class Driver {
   }
 
   public State run() {
-    State state = State.Continue;
-    switch (startStage) {
-      case PARSE:
-        state = parse();
-        if (state != State.Continue)
-          break;
-      case AST:
-        state = makeAST();
-        if (state != State.Continue)
-          break;
-      case TYPECHECK:
-        state = typeCheck();
-        if (state != State.Continue)
-          break;
-      case IR:
-        state = emitIR();
-        if (state != State.Continue)
-          break;
-        state = emulator();
-        if (state != State.Continue)
-          break;
-      case CODEGEN:
-        state = emitASM();
+    if (cacheDirectory != null)
+      cache = new CompileCache(Path.of(cacheDirectory), cacheSize);
+    State state = isCacheable() ? timed("cache", this::lookupCache) : State.Continue;
+    if (state == State.Continue) {
+      switch (startStage) {
+        case PARSE:
+          state = timed("parse", this::parse);
+          if (state != State.Continue)
+            break;
+        case AST:
+          state = timed("ast", this::makeAST);
+          if (state != State.Continue)
+            break;
+        case TYPECHECK:
+          state = timed("typecheck", this::typeCheck);
+          if (state != State.Continue)
+            break;
+        case IR:
+          state = timed("ir", this::emitIR);
+          if (state != State.Continue)
+            break;
+          state = runEmulator ? timed("emulator", this::emulator) : emulator();
+          if (state != State.Continue)
+            break;
+        case CODEGEN:
+          state = timed("codegen", this::emitASM);
+      }
+    }
+    if (pool != null)
+      pool.shutdown();
+    if (cache != null)
+      closeCache();
+    if (timeReport != null) {
+      if (timeReportJson)
+        timeReport.printJson(err);
+      else
+        timeReport.print(err);
     }
     if (state != State.Finished)
       state = State.Error;
     return state;
   }
 
+  /**
+   * Runs stage, measured for the time report if there is one. The results are counted after the
+   * measurement, so counting does not add to the stage.
+   */
+  private State timed(String name, Supplier<State> stage) {
+    if (timeReport == null)
+      return stage.get();
+    var state = timeReport.measure(name, stage);
+    switch (name) {
+      case "parse":
+        // The stop token is the last one before EOF, and token indexes start at 0.
+        if (parseTree != null && parseTree.getStop() != null)
+          timeReport.count("tokens", parseTree.getStop().getTokenIndex() + 1);
+        break;
+      case "ast":
+        if (ast != null)
+          timeReport.count("ast-nodes", countNodes(ast));
+        break;
+      case "ir":
+        if (irProgram != null)
+          timeReport.count("ir-instructions", countInstructions(irProgram));
+        break;
+      case "codegen":
+        try (var lines = Files.lines(Path.of(getOutputFile("a.s")))) {
+          timeReport.count("asm-lines", lines.count());
+        } catch (IOException | UncheckedIOException e) {
+          // Code generation failed before writing the file.
+        }
+        break;
+    }
+    return state;
+  }
+
+  private static long countNodes(Node root) {
+    long count = 0;
+    Deque<Node> work = new ArrayDeque<>();
+    work.push(root);
+    while (!work.isEmpty()) {
+      var node = work.pop();
+      count++;
+      node.getChildren().forEach(work::push);
+    }
+    return count;
+  }
+
+  private static long countInstructions(Program program) {
+    long count = 0;
+    for (var it = program.getFunctions(); it.hasNext();) {
+      var f = it.next();
+      if (f.getStart() != null)
+        count += f.getCFG().getInstructionCount();
+    }
+    return count;
+  }
+
+  /**
+   * Whether the run compiles a source file without printing an intermediate stage, so that its
+   * results can come from the cache. Profiles are not part of the cached IR, so runs that take or
+   * use one are left out.
+   */
+  private boolean isCacheable() {
+    return cache != null && startStage == Stage.PARSE && !printPt && !printAst && !typeCheck
+        && !printIR && !serialize && profileOutputFile == null && profileInputFile == null;
+  }
+
+  /**
+   * The options that change the results of a compilation, for the cache key.
+   */
+  private String getCacheOptions() {
+    return String.format("passes=%s inline-budget=%d regalloc=%b peephole=%b", getPassNames(),
+        inlineBudget, allocateRegisters, peephole);
+  }
+
+  /**
+   * Looks the input up in the cache and skips the stages whose results are there: the assembly is
+   * copied, the IR goes to the emulator or code generation, the typed AST to lowering. Returns
+   * Finished if nothing is left to do.
+   */
+  private State lookupCache() {
+    byte[] source;
+    try {
+      source = inputStream != null ? inputStream.readAllBytes()
+          : Files.readAllBytes(Path.of(inputFile));
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("cannot read file '%s'", inputFile), e);
+    }
+    inputStream = new ByteArrayInputStream(source);
+    cacheKey = CompileCache.getKey(source, getCacheOptions());
+    try {
+      var asm = runEmulator ? null : cache.find(cacheKey, CompileCache.ASM);
+      if (asm != null) {
+        Files.copy(asm, Path.of(getOutputFile("a.s")), StandardCopyOption.REPLACE_EXISTING);
+        cache.recordHit();
+        return State.Finished;
+      }
+      var ir = cache.find(cacheKey, CompileCache.IR);
+      if (ir != null) {
+        // Read every function, not only the reachable ones, so a.s is the same as on a miss.
+        try (var is = new BufferedInputStream(Files.newInputStream(ir))) {
+          irProgram = IRFormat.read(is);
+        }
+        cache.recordHit();
+        if (runEmulator)
+          return emulator();
+        setStartStage(Stage.CODEGEN);
+        return State.Continue;
+      }
+      var typedAst = cache.find(cacheKey, CompileCache.TYPED_AST);
+      if (typedAst != null) {
+        try (var is = new BufferedInputStream(Files.newInputStream(typedAst))) {
+          ast = ASTFormat.read(is);
+        }
+        cache.recordHit();
+        setStartStage(Stage.IR);
+        return State.Continue;
+      }
+    } catch (IOException e) {
+      // The entry is compiled again and overwritten.
+      err.println("cache: cannot read entry: " + e.getMessage());
+    }
+    cache.recordMiss();
+    return State.Continue;
+  }
+
+  private void storeInCache(String artifact, CompileCache.Writer writer) {
+    if (cacheKey == null)
+      return;
+    try {
+      cache.store(cacheKey, artifact, writer);
+    } catch (IOException e) {
+      err.println("cache: cannot store " + artifact + ": " + e.getMessage());
+    }
+  }
+
+  private void closeCache() {
+    try {
+      cache.evict();
+      if (cacheStats)
+        cache.printStatistics(err);
+      else
+        cache.updateStatistics();
+    } catch (IOException e) {
+      err.println("cache: " + e.getMessage());
+    }
+  }
+
   public void readASTTYPE(InputStream is) {
     try {
-      ObjectInputStream ois = new ObjectInputStream(is);
-      ast = (DeclarationList) ois.readObject();
-      ois.close();
+      ast = readDeclarations(is);
       setStartStage(Stage.IR);
     } catch (Exception e) {
-      e.printStackTrace();
-      System.out.println("Failure to deserialize AST");
+      e.printStackTrace(err);
+      out.println("Failure to deserialize AST");
     }
   }
 
   public void readAST(InputStream is) {
     try {
-      ObjectInputStream ois = new ObjectInputStream(is);
-      ast = (DeclarationList) ois.readObject();
-      ois.close();
+      ast = readDeclarations(is);
       setStartStage(Stage.TYPECHECK);
     } catch (Exception e) {
-      e.printStackTrace();
-      System.out.println("Failure to deserialize AST");
+      e.printStackTrace(err);
+      out.println("Failure to deserialize AST");
     }
   }
 
   public void readIR(InputStream is) {
     try {
-      ObjectInputStream ois = new ObjectInputStream(is);
-      irProgram = (Program) ois.readObject();
-      ois.close();
+      var bis = new BufferedInputStream(is);
+      irProgram = BinaryReader.hasMagic(bis) ? IRFormat.read(bis) : readObject(bis, Program.class);
+      bis.close();
       setStartStage(Stage.CODEGEN);
     } catch (Exception e) {
-      e.printStackTrace();
-      System.out.println("Failure to deserialize IR");
+      e.printStackTrace(err);
+      out.println("Failure to deserialize IR");
     }
   }
 
+  /**
+   * Reads the IR from a file like readIR, but maps a file in the binary format into memory and only
+   * decodes the functions code generation needs.
+   */
+  public void mapIR(String file) {
+    try {
+      boolean binary;
+      try (var bis = new BufferedInputStream(new FileInputStream(file))) {
+        binary = BinaryReader.hasMagic(bis);
+      }
+      if (!binary) {
+        readIR(new FileInputStream(file));
+        return;
+      }
+      irProgram = IRFormat.map(Path.of(file));
+      setStartStage(Stage.CODEGEN);
+    } catch (Exception e) {
+      e.printStackTrace(err);
+      out.println("Failure to deserialize IR");
+    }
+  }
+
+  private static DeclarationList readDeclarations(InputStream is)
+      throws IOException, ClassNotFoundException {
+    var bis = new BufferedInputStream(is);
+    var result = BinaryReader.hasMagic(bis) ? ASTFormat.read(bis)
+        : readObject(bis, DeclarationList.class);
+    bis.close();
+    return result;
+  }
+
+  /**
+   * Reads a file written with Java serialization by an older version of the compiler.
+   */
+  private static <T> T readObject(InputStream is, Class<T> type)
+      throws IOException, ClassNotFoundException {
+    ObjectInputStream ois = new ObjectInputStream(is);
+    return type.cast(ois.readObject());
+  }
+
   private State parse() {
     var input = openInput();
     var lexer = new CruxLexer(input);
@@ -258,11 +673,11 @@ public final class Driver {
     }
     if (serialize) {
       try {
-        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("ast.ser"));
-        oos.writeObject(ast);
-        oos.close();
+        try (var os = new BufferedOutputStream(new FileOutputStream(getOutputFile("ast.ser")))) {
+          ASTFormat.write(ast, os);
+        }
       } catch (Exception e) {
-        System.out.println("Failed to serialize AST");
+        out.println("Failed to serialize AST");
       }
     }
 
@@ -293,22 +708,56 @@ public final class Driver {
       return State.Error;
     }
 
+    storeInCache(CompileCache.TYPED_AST, os -> ASTFormat.write(ast, os));
     if (serialize) {
       try {
-        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("typedast.ser"));
-        oos.writeObject(ast);
-        oos.close();
+        var file = getOutputFile("typedast.ser");
+        try (var os = new BufferedOutputStream(new FileOutputStream(file))) {
+          ASTFormat.write(ast, os);
+        }
       } catch (Exception e) {
-        System.out.println("Failed to serialize Typed AST");
+        out.println("Failed to serialize Typed AST");
       }
     }
 
     return typeCheck ? State.Finished : State.Continue;
   }
 
+  private List<String> getPassNames() {
+    // The profile is taken on the IR as lowered, so it fits any later compilation.
+    if (profileOutputFile != null)
+      return List.of();
+    if (passList != null)
+      return passList;
+    var levelPasses = PassManager.getPipeline(optLevel);
+    List<String> names = new ArrayList<>();
+    for (var name : PassManager.PASSES.keySet()) {
+      if (enabledPasses.contains(name) || levelPasses.contains(name))
+        names.add(name);
+    }
+    return names;
+  }
+
   private State emitIR() {
     var astLower = new ASTLower();
     irProgram = astLower.lower(ast);
+    if (profileInputFile != null)
+      readProfile();
+    var passes = new PassManager();
+    for (var name : getPassNames()) {
+      if (name.equals("inline"))
+        passes.add(name, () -> new Inliner(inlineBudget, Inliner.DEFAULT_MAX_FUNCTION_SIZE));
+      else
+        passes.add(name);
+    }
+    passes.setVerify(verifyIR);
+    passes.setPool(getPool());
+    passes.run(irProgram);
+    if (passStatistics || timePasses)
+      passes.printStatistics(err);
+    if (timePasses)
+      passes.printTimings(err);
+    storeInCache(CompileCache.IR, os -> IRFormat.write(irProgram, os));
 
     if (printIR) {
       var printer = new IRPrinter(out);
@@ -318,11 +767,11 @@ public final class Driver {
 
     if (serialize) {
       try {
-        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("ir.ser"));
-        oos.writeObject(irProgram);
-        oos.close();
+        try (var os = new BufferedOutputStream(new FileOutputStream(getOutputFile("ir.ser")))) {
+          IRFormat.write(irProgram, os);
+        }
       } catch (Exception e) {
-        System.out.println("Failed to serialize IR");
+        out.println("Failed to serialize IR");
       }
     }
 
@@ -330,8 +779,15 @@ public final class Driver {
   }
 
   private State emitASM() {
-    var codegen = new CodeGen(irProgram);
+    var destruction = new PassManager();
+    destruction.add("ssa-destruction", SSADestruction::new);
+    destruction.setPool(getPool());
+    destruction.run(irProgram, irProgram.getFunctionsToCompile());
+    var asmFile = getOutputFile("a.s");
+    var codegen = new CodeGen(irProgram, allocateRegisters, peephole, asmFile);
+    codegen.setPool(getPool());
     codegen.genCode();
+    storeInCache(CompileCache.ASM, os -> Files.copy(Path.of(asmFile), os));
 
     return State.Finished;
   }
@@ -339,14 +795,57 @@ public final class Driver {
   private State emulator() {
     if (runEmulator) {
       var emulatorInput = openEmulatorInput();
-      var emulator = new Emulator(irProgram, emulatorInput, out);
-      emulator.run();
+      if (profileEmulator || profileOutputFile != null) {
+        var profile = new ExecutionProfile();
+        new ThreadedEmulator(irProgram, emulatorInput, out, profile).run();
+        if (profileEmulator)
+          writeProfile(profile);
+        if (profileOutputFile != null)
+          saveProfile(profile);
+      } else if (visitorEmulator || debugEmulator || Emulator.DEBUG) {
+        var emulator = new Emulator(irProgram, emulatorInput, out);
+        if (debugEmulator)
+          emulator.setDebug(true);
+        emulator.run();
+      } else if (jit) {
+        new Jit(irProgram, emulatorInput, out).run();
+      } else {
+        new ThreadedEmulator(irProgram, emulatorInput, out).run();
+      }
       return State.Finished;
     }
 
     return State.Continue;
   }
 
+  private void writeProfile(ExecutionProfile profile) {
+    out.flush();
+    new ProfilePrinter(err).print(profile);
+    try (var dot = new PrintStream(new FileOutputStream(getOutputFile("profile.dot")))) {
+      new IRPrinter(dot).print(irProgram, profile);
+    } catch (IOException e) {
+      err.println("cannot write profile.dot: " + e.getMessage());
+    }
+  }
+
+  private void saveProfile(ExecutionProfile profile) {
+    try (var os = new FileOutputStream(profileOutputFile)) {
+      ProfileFormat.write(irProgram, profile, os);
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("cannot write file '%s'", profileOutputFile), e);
+    }
+  }
+
+  private void readProfile() {
+    try (var is = new FileInputStream(profileInputFile)) {
+      for (var name : ProfileFormat.read(irProgram, is)) {
+        err.printf("warning: the profile of %s does not match its code and is ignored%n", name);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("cannot read profile '%s'", profileInputFile), e);
+    }
+  }
+
   private CharStream openInput() {
     if (inputStream == null) {
       try {
@@ -373,7 +872,7 @@ public final class Driver {
     } else if (emulatorInputStream != null) {
       return emulatorInputStream;
     } else {
-      return System.in;
+      return in;
     }
   }
 }
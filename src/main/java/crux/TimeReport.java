@@ -0,0 +1,135 @@
+package crux;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The wall time, CPU time and allocated bytes of each stage of a compilation, with the sizes of
+ * what the stages produced: tokens, AST nodes, IR instructions and assembly lines.
+ * <p>
+ * CPU time and allocations are those of the thread that runs the driver. With more than one job,
+ * the functions optimized and compiled on the pool only show up in the wall time. A JVM that cannot
+ * measure a quantity reports -1 for it.
+ */
+final class TimeReport {
+  /**
+   * One run of a stage.
+   */
+  private static final class Row {
+    final String mStage;
+    final long mWallNanos;
+    final long mCpuNanos;
+    final long mBytes;
+
+    Row(String stage, long wallNanos, long cpuNanos, long bytes) {
+      mStage = stage;
+      mWallNanos = wallNanos;
+      mCpuNanos = cpuNanos;
+      mBytes = bytes;
+    }
+  }
+
+  private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+  private final boolean mCpuTime;
+  private final boolean mAllocations;
+  private final List<Row> mRows = new ArrayList<>();
+  private final Map<String, Long> mCounts = new LinkedHashMap<>();
+
+  TimeReport() {
+    mCpuTime = mThreads.isCurrentThreadCpuTimeSupported();
+    if (mCpuTime && !mThreads.isThreadCpuTimeEnabled())
+      mThreads.setThreadCpuTimeEnabled(true);
+    mAllocations = mThreads instanceof com.sun.management.ThreadMXBean
+        && ((com.sun.management.ThreadMXBean) mThreads).isThreadAllocatedMemorySupported();
+    if (mAllocations)
+      ((com.sun.management.ThreadMXBean) mThreads).setThreadAllocatedMemoryEnabled(true);
+  }
+
+  /**
+   * Runs stage and records what it took under name.
+   */
+  <T> T measure(String name, Supplier<T> stage) {
+    long bytes = getAllocatedBytes();
+    long cpu = getCpuTime();
+    long start = System.nanoTime();
+    try {
+      return stage.get();
+    } finally {
+      long wall = System.nanoTime() - start;
+      cpu = mCpuTime ? getCpuTime() - cpu : -1;
+      bytes = mAllocations ? getAllocatedBytes() - bytes : -1;
+      mRows.add(new Row(name, wall, cpu, bytes));
+    }
+  }
+
+  /**
+   * Records the size of a result, e.g. count("tokens", 1234).
+   */
+  void count(String name, long count) {
+    mCounts.put(name, count);
+  }
+
+  private long getCpuTime() {
+    return mCpuTime ? mThreads.getCurrentThreadCpuTime() : 0;
+  }
+
+  private long getAllocatedBytes() {
+    if (!mAllocations)
+      return 0;
+    return ((com.sun.management.ThreadMXBean) mThreads).getCurrentThreadAllocatedBytes();
+  }
+
+  void print(PrintStream out) {
+    out.printf("%-12s %10s %10s %12s%n", "stage", "wall ms", "cpu ms", "alloc KiB");
+    long wall = 0;
+    long cpu = 0;
+    long bytes = 0;
+    for (var row : mRows) {
+      out.printf("%-12s %10.3f %10s %12s%n", row.mStage, row.mWallNanos / 1e6,
+          formatMillis(row.mCpuNanos), formatKiB(row.mBytes));
+      wall += row.mWallNanos;
+      cpu += row.mCpuNanos;
+      bytes += row.mBytes;
+    }
+    out.printf("%-12s %10.3f %10s %12s%n", "total", wall / 1e6, formatMillis(mCpuTime ? cpu : -1),
+        formatKiB(mAllocations ? bytes : -1));
+    for (var count : mCounts.entrySet()) {
+      out.printf("%-23s %12d%n", count.getKey(), count.getValue());
+    }
+  }
+
+  private static String formatMillis(long nanos) {
+    return nanos < 0 ? "-" : String.format("%.3f", nanos / 1e6);
+  }
+
+  private static String formatKiB(long bytes) {
+    return bytes < 0 ? "-" : Long.toString(bytes >> 10);
+  }
+
+  /**
+   * Prints the report as one JSON object, with times in nanoseconds.
+   */
+  void printJson(PrintStream out) {
+    var json = new StringBuilder("{\"stages\": [");
+    for (int i = 0; i < mRows.size(); i++) {
+      var row = mRows.get(i);
+      json.append(i == 0 ? "" : ", ")
+          .append(String.format("{\"stage\": \"%s\", \"wallNanos\": %d, \"cpuNanos\": %d, "
+              + "\"allocatedBytes\": %d}", row.mStage, row.mWallNanos, row.mCpuNanos, row.mBytes));
+    }
+    json.append("], \"counts\": {");
+    boolean first = true;
+    for (var count : mCounts.entrySet()) {
+      json.append(first ? "" : ", ")
+          .append(String.format("\"%s\": %d", count.getKey(), count.getValue()));
+      first = false;
+    }
+    out.println(json.append("}}"));
+  }
+}
@@ -59,6 +59,13 @@ public final class SymbolTable {
       this.error = null;
     }*/
 
+    /**
+     * Recreates a symbol that was written out with the rest of a program, see {@link crux.format}.
+     */
+    public static Symbol restore(String name, Type type, String error) {
+      return error != null ? new Symbol(name, error) : new Symbol(name, type);
+    }
+
     /**
      *
      * @return String the name
@@ -75,6 +82,13 @@ public final class SymbolTable {
       return type;
     }
 
+    /**
+     * Returns why the symbol could not be resolved, or null if it was.
+     */
+    public String getError() {
+      return error;
+    }
+
     @Override
     public String toString() {
       if (error != null) {
@@ -7,6 +7,9 @@ import crux.ir.insts.*;
 import crux.printing.IRValueFormatter;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Convert the CFG into Assembly Instructions
@@ -19,6 +22,28 @@ public final class CodeGen extends InstVisitor {
   private HashMap<Variable, Integer> varIndexMap = new HashMap<>();
   private int numslots = 0;
   private HashMap<Instruction, String> myLableMap;
+  private final boolean allocateRegisters;
+  private final boolean peephole;
+  private List<MachineInst> insts = new ArrayList<>();
+  private RegisterAllocator allocator;
+  private List<String> savedRegisters = List.of();
+  /** Jumps that branch on the flags of the compare right before them, which is not materialized. */
+  private HashMap<JumpInst, CompareInst> fusedBranches = new HashMap<>();
+  /** The compares of fusedBranches, for a constant-time check when they are visited. */
+  private HashSet<CompareInst> fusedCompares = new HashSet<>();
+  /** Loads and stores that address memory through the AddressAt right before them. */
+  private HashMap<Instruction, AddressAt> fusedAddresses = new HashMap<>();
+  /** The AddressAts of fusedAddresses, for a constant-time check when they are visited. */
+  private HashSet<AddressAt> fusedAddressAts = new HashSet<>();
+  /** Variables that hold the same integer constant wherever they are read. */
+  private HashMap<Variable, Long> constants = new HashMap<>();
+  private final Set<String> functionNames;
+  private Function currentFunction;
+  private int labelCount = 0;
+  private ForkJoinPool pool;
+  /** Where a tail call of the function to itself jumps to, right before the arguments are moved. */
+  private String tailCallEntry;
+  private BasicBlock nextBlock;
 
   private int getPositionRBP(Variable v){
     int output = 0;
@@ -34,18 +59,118 @@ public final class CodeGen extends InstVisitor {
     return output;
   }
 
+  /**
+   * Where v lives: the register picked by the allocator, or its stack slot.
+   */
+  private String loc(Variable v){
+    if(allocator != null){
+      String register = allocator.getRegister(v);
+      if(register != null){
+        return register;
+      }
+    }
+    return getPositionRBP(v) + "(%rbp)";
+  }
+
+  private void emit(String opcode, String... operands){
+    insts.add(MachineInst.of(opcode, operands));
+  }
+
+  private static boolean isRegister(String operand){
+    return operand.startsWith("%");
+  }
+
+  /**
+   * Copy src to dst, going through %r10 when both are in memory.
+   */
+  private void emitMove(String src, String dst){
+    if(src.equals(dst)){
+      return;
+    }
+    if(isRegister(src) || isRegister(dst)){
+      emit("movq", src, dst);
+    }
+    else{
+      emit("movq", src, "%r10");
+      emit("movq", "%r10", dst);
+    }
+  }
+
+  /**
+   * Returns a register holding the value at location, loading it into scratch if needed.
+   */
+  private String inRegister(String location, String scratch){
+    if(isRegister(location)){
+      return location;
+    }
+    emit("movq", location, scratch);
+    return scratch;
+  }
+
+  /**
+   * Restores the callee-saved registers and the caller's frame.
+   */
+  private void emitLeave(){
+    for(int k = 0; k < savedRegisters.size(); k++){
+      emit("movq", (k + 1) * -8 + "(%rbp)", savedRegisters.get(k));
+    }
+    emit("leave");
+  }
+
+  private void emitEpilogue(){
+    emitLeave();
+    emit("ret");
+  }
+
   private final IRValueFormatter irFormat = new IRValueFormatter();
   private void printInstructionInfor(Instruction i){
     var info = String.format("/* %s */", i.format(irFormat));
-    out.bufferCode(info);
-    out.printBuffer();
+    insts.add(MachineInst.comment(info));
   }
 
   public CodeGen(Program p) {
-    this.p = p;
+    this(p, true, true);
+  }
+
+  /**
+   * With allocateRegisters set to false every variable gets its own stack slot, which is how the
+   * code was generated before the register allocator existed. With peephole set to false the
+   * instructions are written exactly as they are selected.
+   */
+  public CodeGen(Program p, boolean allocateRegisters, boolean peephole) {
     // Do not change the file name that is outputted or it will
     // break the grader!
-    out = new CodePrinter("a.s");
+    this(p, allocateRegisters, peephole, "a.s");
+  }
+
+  /**
+   * Writes the code to fileName instead of a.s.
+   */
+  public CodeGen(Program p, boolean allocateRegisters, boolean peephole, String fileName) {
+    this.p = p;
+    this.allocateRegisters = allocateRegisters;
+    this.peephole = peephole;
+    functionNames = new HashSet<>();
+    out = new CodePrinter(fileName);
+  }
+
+  /**
+   * Generates the code of a single function into memory, with the settings of parent.
+   */
+  private CodeGen(CodeGen parent) {
+    this.p = parent.p;
+    this.allocateRegisters = parent.allocateRegisters;
+    this.peephole = parent.peephole;
+    functionNames = parent.functionNames;
+    out = new CodePrinter();
+  }
+
+  /**
+   * Generates the functions on pool, at the same time. The code of each function only depends on
+   * that function, so the output is the same as without a pool.
+   */
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
   }
 
   /**
@@ -59,221 +184,584 @@ public final class CodeGen extends InstVisitor {
       out.printCode(".comm " + name + ", " + size + ", 8");
     }
 
-    int count[] = new int[1];
-    for(Iterator<Function> func_it = p.getFunctions(); func_it.hasNext(); ){
-      Function f = func_it.next();
-      genCode(f, count);
+    List<Callable<String>> tasks = new ArrayList<>();
+    // A mapped program only builds, and so only compiles, the functions main can reach.
+    for(Function f : p.getFunctionsToCompile()){
+      functionNames.add(f.getName());
+      tasks.add(() -> new CodeGen(this).genFunction(f));
+    }
+    for(String code : run(tasks)){
+      out.printText(code);
     }
     out.close();
   }
 
+  /**
+   * Runs tasks on the pool, if there is one, and returns their results in order.
+   */
+  private List<String> run(List<Callable<String>> tasks){
+    List<String> results = new ArrayList<>();
+    try{
+      if(pool == null){
+        for(Callable<String> task : tasks){
+          results.add(task.call());
+        }
+        return results;
+      }
+      for(var future : pool.invokeAll(tasks)){
+        results.add(future.get());
+      }
+      return results;
+    }
+    catch(ExecutionException e){
+      if(e.getCause() instanceof RuntimeException){
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+    catch(InterruptedException e){
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+    catch(RuntimeException e){
+      throw e;
+    }
+    catch(Exception e){
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private String genFunction(Function f){
+    genCode(f);
+    return out.getText();
+  }
+
+  /**
+   * Labels are local to their function, so functions can be generated independently.
+   */
+  private String newLabel(){
+    return ".L" + currentFunction.getName() + "." + (++labelCount);
+  }
+
   private String getSymbol(Symbol var){
     return var.toString();
   }
 
-  private void genCode(Function f, int count[]){
+  private void genCode(Function f){
     //TODO
     /**
      * Generate Body
      **/
     varIndexMap = new HashMap<>();
     numLocalVar = 1;
-    numslots = f.getNumTempVars() + f.getNumTempAddressVars();
+    currentFunction = f;
+    List<BasicBlock> layout = layoutBlocks(f.getCFG(), f.isProfiled());
+    if(allocateRegisters){
+      allocator = new RegisterAllocator(f, layout);
+      savedRegisters = allocator.getUsedCalleeSaved();
+      // The first slots hold the callee-saved registers, spilled variables come after them.
+      numLocalVar = savedRegisters.size() + 1;
+      numslots = savedRegisters.size() + allocator.getNumSpilled();
+    }
+    else{
+      allocator = null;
+      savedRegisters = List.of();
+      numslots = f.getNumTempVars() + f.getNumTempAddressVars();
+    }
     if(numslots % 2 != 0){
       numslots++;           //if uneven
     }
     out.printCode(".globl " + f.getName());
     out.printLabel(f.getName() + ":");
-    out.printCode("enter $(8 * " + numslots + "), $0");
+    insts = new ArrayList<>();
+    emit("enter", "$(8 * " + numslots + ")", "$0");
+    for(int k = 0; k < savedRegisters.size(); k++){
+      emit("movq", savedRegisters.get(k), (k + 1) * -8 + "(%rbp)");
+    }
 
-    myLableMap = f.assignLabels(count);
+    myLableMap = assignLabels(layout);
+    HashMap<Variable, Integer> uses = countUses(layout);
+    fusedBranches = findFusedBranches(layout, uses);
+    fusedCompares = new HashSet<>(fusedBranches.values());
+    fusedAddresses = findFusedAddresses(layout, uses);
+    fusedAddressAts = new HashSet<>(fusedAddresses.values());
+    constants = findConstants(f, layout);
+    tailCallEntry = null;
+    for(BasicBlock block : layout){
+      for(Instruction inst : block.getInstructions()){
+        if(inst instanceof CallInst && isSelfTailCall((CallInst) inst) && tailCallEntry == null){
+          tailCallEntry = newLabel();
+          insts.add(MachineInst.label(tailCallEntry));
+        }
+      }
+    }
     List<LocalVar> myArgs = f.getArguments();
 
+    String[] argRegisters = {"%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"};
     int argIndex = 1;
     for (var myLocalVar : myArgs) {
-      int n = getPositionRBP(myLocalVar);
-      if (argIndex == 1) {
-        out.printCode("movq %rdi, " + n + "(%rbp)");
-      } else if (argIndex == 2) {
-        out.printCode("movq %rsi, " + n + "(%rbp)");
-      } else if (argIndex == 3) {
-        out.printCode("movq %rdx, " + n + "(%rbp)");
-      } else if (argIndex == 4) {
-        out.printCode("movq %rcx, " + n + "(%rbp)");
-      } else if (argIndex == 5) {
-        out.printCode("movq %r8, " + n + "(%rbp)");
-      } else if (argIndex == 6) {
-        out.printCode("movq %r9, " + n + "(%rbp)");
+      if (argIndex <= 6) {
+        emitMove(argRegisters[argIndex - 1], loc(myLocalVar));
       } else {
         int overflow = (argIndex - 7 + 2) * (8);
-        out.printCode("movq " + overflow + "(%rbp), %r10");
-        out.printCode("movq %r10, " + argIndex * (-8) + "(%rbp)");
+        emitMove(overflow + "(%rbp)", loc(myLocalVar));
       }
       argIndex++;
     }
 
-    Stack<Instruction> tovisited = new Stack<>();
-    HashSet<Instruction> discovered = new HashSet<>();
-    tovisited.push(f.getStart());
-    while(!tovisited.isEmpty()){
-      Instruction inst = tovisited.pop();
-      if(myLableMap.containsKey(inst)){
-        out.printLabel(myLableMap.get(inst) + ":");
-      }
-      inst.accept(this);    //still need to visit
-      Instruction first = inst.getNext(0);
-      Instruction second = inst.getNext(1);
-      if (second != null && !discovered.contains(second)){
-        tovisited.push(second);
-        discovered.add(second);
-      }
-      if (first != null) {
-        if(!discovered.contains(first)){
-          tovisited.push(first);
-          discovered.add(first);
+    for(int b = 0; b < layout.size(); b++){
+      BasicBlock block = layout.get(b);
+      BasicBlock nextInLayout = b + 1 < layout.size() ? layout.get(b + 1) : null;
+      nextBlock = nextInLayout;
+      if(myLableMap.containsKey(block.getFirst())){
+        insts.add(MachineInst.label(myLableMap.get(block.getFirst())));
+      }
+      for(Instruction inst : block.getInstructions()){
+        inst.accept(this);
+      }
+      BasicBlock[] succs = block.getSuccessors();
+      if(block.getLast() instanceof ReturnInst){
+        continue;
+      }
+      if(succs.length == 0){
+        emitEpilogue();
+      }
+      else if(succs[0] != nextInLayout && !fallsThroughTrue(succs, nextInLayout)){
+        emit("jmp", myLableMap.get(succs[0].getFirst()));
+      }
+    }
+
+    if(peephole){
+      insts = Peephole.optimize(insts);
+    }
+    for(MachineInst inst : insts){
+      out.print(inst);
+    }
+  }
+
+  /**
+   * Orders the blocks depth first, placing the false branch of a jump right after it so the jump
+   * can fall through. With a profile the more frequent side of a jump comes next instead, and the
+   * blocks that never ran go last.
+   */
+  private static List<BasicBlock> layoutBlocks(ControlFlowGraph cfg, boolean profiled){
+    List<BasicBlock> layout = new ArrayList<>();
+    if(cfg.getEntry() == null){
+      return layout;
+    }
+    List<BasicBlock> cold = new ArrayList<>();
+    Stack<BasicBlock> tovisit = new Stack<>();
+    boolean[] discovered = new boolean[cfg.getBlocks().size()];
+    tovisit.push(cfg.getEntry());
+    discovered[cfg.getEntry().getId()] = true;
+    while(!tovisit.isEmpty()){
+      BasicBlock block = tovisit.pop();
+      if(profiled && block != cfg.getEntry() && block.getCount() == 0){
+        cold.add(block);
+      }
+      else{
+        layout.add(block);
+      }
+      BasicBlock[] succs = block.getSuccessors().clone();
+      Instruction last = block.getLast();
+      if(profiled && succs.length == 2 && last.getEdgeCount(1) > last.getEdgeCount(0)){
+        Collections.reverse(Arrays.asList(succs));
+      }
+      for(int i = succs.length - 1; i >= 0; i--){
+        if(!discovered[succs[i].getId()]){
+          discovered[succs[i].getId()] = true;
+          tovisit.push(succs[i]);
         }
-        if((tovisited.isEmpty() || first != tovisited.peek())){
-          out.printCode("jmp " + myLableMap.get(first));
+      }
+    }
+    layout.addAll(cold);
+    return layout;
+  }
+
+  /**
+   * Whether a jump with succs falls through to its true branch, which is next, and jumps to the
+   * false branch on the inverted condition.
+   */
+  private static boolean fallsThroughTrue(BasicBlock[] succs, BasicBlock next){
+    return succs.length == 2 && succs[1] == next && succs[0] != next;
+  }
+
+  /**
+   * Labels the blocks that are reached by a jump rather than by falling through.
+   */
+  private HashMap<Instruction, String> assignLabels(List<BasicBlock> layout){
+    HashSet<BasicBlock> targets = new HashSet<>();
+    for(int b = 0; b < layout.size(); b++){
+      BasicBlock nextInLayout = b + 1 < layout.size() ? layout.get(b + 1) : null;
+      BasicBlock[] succs = layout.get(b).getSuccessors();
+      if(fallsThroughTrue(succs, nextInLayout)){
+        targets.add(succs[0]);
+        continue;
+      }
+      if(succs.length == 2){
+        targets.add(succs[1]);
+      }
+      if(succs.length > 0 && succs[0] != nextInLayout){
+        targets.add(succs[0]);
+      }
+    }
+    HashMap<Instruction, String> labelMap = new HashMap<>();
+    for(BasicBlock block : layout){
+      if(targets.contains(block)){
+        labelMap.put(block.getFirst(), newLabel());
+      }
+    }
+    return labelMap;
+  }
+
+  private static HashMap<Variable, Integer> countUses(List<BasicBlock> layout){
+    HashMap<Variable, Integer> uses = new HashMap<>();
+    for(BasicBlock block : layout){
+      for(Instruction inst : block.getInstructions()){
+        for(Value operand : inst.getOperands()){
+          if(operand instanceof Variable){
+            uses.merge((Variable) operand, 1, Integer::sum);
+          }
         }
       }
-      else{
-        out.printCode("leave");
-        out.printCode("ret");
+    }
+    return uses;
+  }
+
+  /**
+   * Finds the blocks ending in a compare and a jump on its result where the result is used nowhere
+   * else, so the jump can test the flags the compare sets instead of a 0 or 1 in a variable.
+   */
+  private static HashMap<JumpInst, CompareInst> findFusedBranches(List<BasicBlock> layout,
+      HashMap<Variable, Integer> uses){
+    HashMap<JumpInst, CompareInst> fused = new HashMap<>();
+    for(BasicBlock block : layout){
+      List<Instruction> insts = block.getInstructions();
+      int n = insts.size();
+      if(n < 2 || !(insts.get(n - 1) instanceof JumpInst) || !(insts.get(n - 2) instanceof CompareInst)){
+        continue;
+      }
+      JumpInst jump = (JumpInst) insts.get(n - 1);
+      CompareInst cmp = (CompareInst) insts.get(n - 2);
+      if(jump.getPredicate() == cmp.getDst() && uses.get(cmp.getDst()) == 1){
+        fused.put(jump, cmp);
       }
     }
+    return fused;
   }
 
-  public void visit(AddressAt i) {
-    printInstructionInfor(i);
-    Symbol src = i.getBase();
-    int dst = getPositionRBP(i.getDst());
-    int offset = getPositionRBP(i.getOffset());
-    if(i.getOffset() == null){
-      out.printCode("movq " + src.getName() + "@GOTPCREL(%rip), %r11"); //
-      out.printCode("movq %r11, " + dst + "(%rbp)");
+  /**
+   * Finds the loads and stores right after the AddressAt computing their address, where nothing
+   * else uses that address. They address memory directly, with the index scaled by the CPU.
+   */
+  private static HashMap<Instruction, AddressAt> findFusedAddresses(List<BasicBlock> layout,
+      HashMap<Variable, Integer> uses){
+    HashMap<Instruction, AddressAt> fused = new HashMap<>();
+    for(BasicBlock block : layout){
+      List<Instruction> insts = block.getInstructions();
+      for(int k = 1; k < insts.size(); k++){
+        if(!(insts.get(k - 1) instanceof AddressAt)){
+          continue;
+        }
+        AddressAt at = (AddressAt) insts.get(k - 1);
+        Instruction next = insts.get(k);
+        Variable address = next instanceof LoadInst ? ((LoadInst) next).getSrcAddress()
+            : next instanceof StoreInst ? ((StoreInst) next).getDestAddress() : null;
+        if(address == at.getDst() && uses.get(address) == 1){
+          fused.put(next, at);
+        }
+      }
     }
-    else{
-      out.printCode("movq " + offset + "(%rbp), %r11");
-      out.printCode("imulq $8, %r11");
-      out.printCode("movq " + src.getName() + "@GOTPCREL(%rip), %r10"); //
-      out.printCode("addq %r10, %r11");
-      out.printCode("movq %r11, " + dst + "(%rbp)");
+    return fused;
+  }
+
+  /**
+   * Finds the variables whose only definition is a copy of an integer constant that dominates all
+   * their uses, so they can be used as immediates.
+   */
+  private static HashMap<Variable, Long> findConstants(Function f, List<BasicBlock> layout){
+    HashMap<Variable, Integer> defs = new HashMap<>();
+    HashMap<Variable, CopyInst> copies = new HashMap<>();
+    HashMap<Instruction, BasicBlock> blockOf = new HashMap<>();
+    HashMap<Instruction, Integer> indexOf = new HashMap<>();
+    for(BasicBlock block : layout){
+      List<Instruction> insts = block.getInstructions();
+      for(int k = 0; k < insts.size(); k++){
+        Instruction inst = insts.get(k);
+        blockOf.put(inst, block);
+        indexOf.put(inst, k);
+        if(inst.getDestVar() == null){
+          continue;
+        }
+        defs.merge(inst.getDestVar(), 1, Integer::sum);
+        if(inst instanceof CopyInst && ((CopyInst) inst).getSrcValue() instanceof IntegerConstant){
+          copies.put(inst.getDestVar(), (CopyInst) inst);
+        }
+      }
+    }
+    for(LocalVar arg : f.getArguments()){
+      defs.merge(arg, 1, Integer::sum);
+    }
+    HashMap<Variable, Long> result = new HashMap<>();
+    for(var entry : copies.entrySet()){
+      if(defs.get(entry.getKey()) == 1){
+        result.put(entry.getKey(), ((IntegerConstant) entry.getValue().getSrcValue()).getValue());
+      }
+    }
+    for(BasicBlock block : layout){
+      for(Instruction inst : block.getInstructions()){
+        for(Value operand : inst.getOperands()){
+          CopyInst def = copies.get(operand);
+          if(def == null || !result.containsKey(operand)){
+            continue;
+          }
+          BasicBlock defBlock = blockOf.get(def);
+          boolean dominated = defBlock == block ? indexOf.get(def) < indexOf.get(inst)
+              : defBlock.dominates(block);
+          if(!dominated){
+            result.remove(operand);
+          }
+        }
+      }
     }
+    return result;
   }
 
+  private static boolean fitsImmediate(Long value){
+    return value != null && value == (int) (long) value;
+  }
+
+  private static boolean isPowerOfTwo(Long value){
+    return value != null && value > 0 && (value & (value - 1)) == 0;
+  }
+
+  /**
+   * The operand to read v with: an immediate if it is a small constant, else its location.
+   */
+  private String operand(Variable v){
+    Long value = constants.get(v);
+    return fitsImmediate(value) ? "$" + value : loc(v);
+  }
+
+  /**
+   * The condition code suffix for cmov, set and j that holds after cmp right, left.
+   */
+  private static String conditionCode(CompareInst.Predicate predicate){
+    switch(predicate){
+      case GE:
+        return "ge";
+      case GT:
+        return "g";
+      case LE:
+        return "le";
+      case LT:
+        return "l";
+      case EQ:
+        return "e";
+      default:
+        return "ne";
+    }
+  }
+
+  private static String inverseConditionCode(CompareInst.Predicate predicate){
+    switch(predicate){
+      case GE:
+        return "l";
+      case GT:
+        return "le";
+      case LE:
+        return "g";
+      case LT:
+        return "ge";
+      case EQ:
+        return "ne";
+      default:
+        return "e";
+    }
+  }
+
+  private void emitCompare(CompareInst i){
+    String right = operand(i.getRightOperand());
+    String left = inRegister(loc(i.getLeftOperand()), "%r11");
+    emit("cmp", right, left);
+  }
+
+  /**
+   * Returns the memory operand for the address i computes. Globals are addressed relative to %rip
+   * and an index is scaled by the addressing mode; %r10 and %r11 may be used on the way.
+   */
+  private String emitAddress(AddressAt i){
+    String symbol = i.getBase().getName();
+    if(i.getOffset() == null){
+      return symbol + "(%rip)";
+    }
+    Long offset = constants.get(i.getOffset());
+    if(offset != null && fitsImmediate(offset * 8)){
+      long bytes = offset * 8;
+      return symbol + (bytes > 0 ? "+" + bytes : bytes < 0 ? String.valueOf(bytes) : "") + "(%rip)";
+    }
+    String index = inRegister(loc(i.getOffset()), "%r11");
+    emit("leaq", symbol + "(%rip)", "%r10");
+    return "(%r10," + index + ",8)";
+  }
 
+  public void visit(AddressAt i) {
+    printInstructionInfor(i);
+    if(fusedAddressAts.contains(i)){
+      // Folded into the load or store that follows.
+      return;
+    }
+    String dst = loc(i.getDst());
+    String target = isRegister(dst) ? dst : "%r11";
+    emit("leaq", emitAddress(i), target);
+    emitMove(target, dst);
+  }
 
   public void visit(BinaryOperator i) {
     //printInstructionInfor(i);
     String op = i.getOperator().toString();
     if(op.equals("Add") || op.equals("Sub") || op.equals("Mul") || op.equals("Div")){
-      out.printCode("/* BinaryOperator: "+ op + " */");
+      insts.add(MachineInst.comment("/* BinaryOperator: "+ op + " */"));
     }
     else{
       op = "No such operator"; //safe checker, should not reach here
-      out.printCode(op);
+      insts.add(MachineInst.comment(op));
     }
-    int left = getPositionRBP(i.getLeftOperand());
-    int right = getPositionRBP(i.getRightOperand());
-    int dst = getPositionRBP(i.getDst());
+    Long leftValue = constants.get(i.getLeftOperand());
+    Long rightValue = constants.get(i.getRightOperand());
+    String dst = loc(i.getDst());
+    if((op.equals("Add") || op.equals("Mul")) && leftValue != null && rightValue == null){
+      // Put the constant on the right, where it can be an immediate.
+      emitArithmetic(op, loc(i.getRightOperand()), i.getLeftOperand(), leftValue, dst);
+    }
+    else{
+      emitArithmetic(op, loc(i.getLeftOperand()), i.getRightOperand(), rightValue, dst);
+    }
+  }
 
-    if(op.equals("Add") || op.equals("Sub") || op.equals("Mul") || op.equals("Div")){
-      if(op.equals("Add")){
-        out.printCode("movq "+ left + "(%rbp), %r10");
-        out.printCode("addq "+ right + "(%rbp), %r10");
-        out.printCode("movq %r10, "+ dst + "(%rbp)");
-      }
-      else if(op.equals("Sub")){
-        out.printCode("movq "+ left + "(%rbp), %r10");
-        out.printCode("subq "+ right + "(%rbp), %r10");
-        out.printCode("movq %r10, "+ dst + "(%rbp)");
+  private void emitArithmetic(String op, String left, Variable rightVar, Long rightValue, String dst){
+    String right = fitsImmediate(rightValue) ? "$" + rightValue : loc(rightVar);
+    if(op.equals("Mul") && isPowerOfTwo(rightValue)){
+      emitInPlace("salq", "$" + Long.numberOfTrailingZeros(rightValue), left, dst);
+    }
+    else if(op.equals("Div") && isPowerOfTwo(rightValue)){
+      // Shifting rounds down, so negative dividends are biased by 2^k - 1 to round toward zero.
+      int k = Long.numberOfTrailingZeros(rightValue);
+      emit("movq", left, "%rax");
+      if(k > 0){
+        emit("cqto");
+        emit("shrq", "$" + (64 - k), "%rdx");
+        emit("addq", "%rdx", "%rax");
+        emit("sarq", "$" + k, "%rax");
       }
-      else if(op.equals("Mul")){
-        out.printCode("movq "+ left + "(%rbp), %r10");
-        out.printCode("imulq "+ right + "(%rbp), %r10");
-        out.printCode("movq %r10, "+ dst + "(%rbp)");
+      emit("movq", "%rax", dst);
+    }
+    else if(op.equals("Add") || op.equals("Sub") || op.equals("Mul")){
+      String insn = op.equals("Add") ? "addq" : op.equals("Sub") ? "subq" : "imulq";
+      if(isRegister(dst) && !dst.equals(right)){
+        emitMove(left, dst);
+        emit(insn, right, dst);
       }
       else{
-        out.printCode("movq " + left + "(%rbp), %rax");
-        out.printCode("cqto");
-        out.printCode("idivq " + right + "(%rbp)");
-        out.printCode("movq %rax, " + dst + "(%rbp)");
+        emit("movq", left, "%r10");
+        emit(insn, right, "%r10");
+        emit("movq", "%r10", dst);
       }
     }
+    else if(op.equals("Div")){
+      emit("movq", left, "%rax");
+      emit("cqto");
+      emit("idivq", loc(rightVar));
+      emit("movq", "%rax", dst);
+    }
   }
 
-  public void visit(CompareInst i) {
-    //printInstructionInfor(i);
-    out.printCode("/* CompareInst */ ");
-    int left = getPositionRBP(i.getLeftOperand());
-    int right = getPositionRBP(i.getRightOperand());
-    out.printCode("movq $0, %rax");
-    out.printCode("movq $1, %r10");
-    out.printCode("movq " + left + "(%rbp), %r11");
-    out.printCode("cmp " + right + "(%rbp), %r11");
-
-    if(i.getPredicate() == CompareInst.Predicate.GE){
-      out.printCode("cmovge %r10, %rax");
-    }
-    else if(i.getPredicate() == CompareInst.Predicate.LE){
-      out.printCode("cmovle %r10, %rax");
-    }
-    else if(i.getPredicate() == CompareInst.Predicate.GT){
-      out.printCode("cmovg %r10, %rax");
-    }
-    else if(i.getPredicate() == CompareInst.Predicate.LT){
-      out.printCode("cmovl %r10, %rax");
+  /**
+   * dst = left op amount, for a two-operand instruction that updates its destination.
+   */
+  private void emitInPlace(String insn, String amount, String left, String dst){
+    if(isRegister(dst)){
+      emitMove(left, dst);
+      emit(insn, amount, dst);
     }
-    else if(i.getPredicate() == CompareInst.Predicate.EQ){
-      out.printCode("cmove %r10, %rax");
+    else{
+      emit("movq", left, "%r10");
+      emit(insn, amount, "%r10");
+      emit("movq", "%r10", dst);
     }
-    else if(i.getPredicate() == CompareInst.Predicate.NE){
-      out.printCode("cmovne %r10, %rax");
+  }
+
+  public void visit(CompareInst i) {
+    //printInstructionInfor(i);
+    insts.add(MachineInst.comment("/* CompareInst */"));
+    if(fusedCompares.contains(i)){
+      // Emitted together with the jump that uses it.
+      return;
     }
-    int dst = getPositionRBP(i.getDst());
-    out.printCode("movq %rax, " + dst + "(%rbp)");
+    emit("movq", "$0", "%rax");
+    emit("movq", "$1", "%r10");
+    emitCompare(i);
+    emit("cmov" + conditionCode(i.getPredicate()), "%r10", "%rax");
+    emit("movq", "%rax", loc(i.getDst()));
   }
 
   public void visit(CopyInst i) {
     printInstructionInfor(i);
     var srcval = i.getSrcValue();
-    int dst = getPositionRBP(i.getDstVar());
+    String dst = loc(i.getDstVar());
 
     if(srcval instanceof IntegerConstant){
-      out.printCode("movq " + "$" + ((IntegerConstant)srcval).getValue() + ", " + "%r10");
-      out.printCode("movq %r10, " + dst + "(%rbp)");
+      long value = ((IntegerConstant)srcval).getValue();
+      if(isRegister(dst) || value == (int) value){
+        emit("movq", "$" + value, dst);
+      }
+      else{
+        emit("movq", "$" + value, "%r10");
+        emit("movq", "%r10", dst);
+      }
     }
     else if(srcval instanceof BooleanConstant){
       if(((BooleanConstant) srcval).getValue()){
-        out.printCode("movq " + "$1" + ", " + dst + "(%rbp)");
+        emit("movq", "$1", dst);
       }
       else{
-        out.printCode("movq " + "$0" + ", " + dst + "(%rbp)");
+        emit("movq", "$0", dst);
       }
     }
     else if(srcval instanceof LocalVar){
-      var myLocalvar = ((LocalVar) srcval);
-      int src = getPositionRBP(myLocalvar);
-      out.printCode("movq " + src + "(%rbp), %r10");
-      out.printCode("movq " + "%r10" + ", " + dst + "(%rbp)");
+      emitMove(loc((LocalVar) srcval), dst);
     }
   }
 
   public void visit(JumpInst i) {
     printInstructionInfor(i);
-    int myPredicatePos = getPositionRBP(i.getPredicate());
-    out.printCode("movq " + myPredicatePos + "(%rbp), %r10");
-    out.printCode("cmp $1, %r10");
-    out.printCode("je " + myLableMap.get(i.getNext(1)));
+    CompareInst cmp = fusedBranches.get(i);
+    BasicBlock[] succs = currentFunction.getCFG().getBlock(i).getSuccessors();
+    boolean inverted = fallsThroughTrue(succs, nextBlock);
+    String target = myLableMap.get(i.getNext(inverted ? 0 : 1));
+    if(cmp != null){
+      emitCompare(cmp);
+      String condition = inverted ? inverseConditionCode(cmp.getPredicate())
+          : conditionCode(cmp.getPredicate());
+      emit("j" + condition, target);
+      return;
+    }
+    emit("cmpq", "$1", loc(i.getPredicate()));
+    emit(inverted ? "jne" : "je", target);
   }
 
   public void visit(LoadInst i) {
     printInstructionInfor(i);
-    int src = getPositionRBP(i.getSrcAddress());
-    int dst = getPositionRBP(i.getDst());
-    out.printCode("movq " + src + "(%rbp), %r10");
-    out.printCode("movq (%r10), %r11");
-    out.printCode("movq %r11, " + dst + "(%rbp)");
+    AddressAt at = fusedAddresses.get(i);
+    String src = at != null ? emitAddress(at) : "(" + inRegister(loc(i.getSrcAddress()), "%r10") + ")";
+    String dst = loc(i.getDst());
+    if(isRegister(dst)){
+      emit("movq", src, dst);
+    }
+    else{
+      emit("movq", src, "%r11");
+      emit("movq", "%r11", dst);
+    }
   }
 
   public void visit(NopInst i) {
@@ -282,76 +770,100 @@ public final class CodeGen extends InstVisitor {
 
   public void visit(StoreInst i) {
     printInstructionInfor(i);
-    int src = getPositionRBP(i.getSrcValue());
-    int dst = getPositionRBP(i.getDestAddress());
-    out.printCode("movq " + dst + "(%rbp), %r10");
-    out.printCode("movq " + src + "(%rbp), %r11");
-    out.printCode("movq %r11, (%r10)");
+    AddressAt at = fusedAddresses.get(i);
+    String dst = at != null ? emitAddress(at) : "(" + inRegister(loc(i.getDestAddress()), "%r10") + ")";
+    String src = inRegister(operand(i.getSrcValue()), "%rax");
+    emit("movq", src, dst);
   }
 
   public void visit(ReturnInst i) {
     printInstructionInfor(i);
-    int ret = getPositionRBP(i.getReturnValue());
-    out.printCode("movq " + ret + "(%rbp), %rax");
-    out.printCode("leave");
-    out.printCode("ret");
+    emit("movq", loc(i.getReturnValue()), "%rax");
+    emitEpilogue();
+  }
+
+  private boolean isSelfTailCall(CallInst i){
+    return i.isTailCall() && i.getCallee().getName().equals(currentFunction.getName());
+  }
+
+  /**
+   * A call in tail position does not need a frame of its own. A call of the function itself moves
+   * the arguments where the prologue expects them and jumps back to it; a call of another function
+   * with its arguments in registers tears down this frame and jumps there, so the callee returns
+   * straight to our caller.
+   */
+  private boolean emitTailCall(CallInst i){
+    String[] argRegisters = {"%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"};
+    var params = i.getParams();
+    boolean self = isSelfTailCall(i);
+    if(!self && (!i.isTailCall() || !functionNames.contains(i.getCallee().getName()) || params.size() > 6)){
+      return false;
+    }
+    for(int j=0; j<params.size() && j<6; j++){
+      emit("movq", loc(params.get(j)), argRegisters[j]);
+    }
+    for(int j = 6; j < params.size(); j++){
+      emitMove(loc(params.get(j)), (j - 6 + 2) * 8 + "(%rbp)");
+    }
+    if(self){
+      emit("jmp", tailCallEntry);
+    }
+    else{
+      emitLeave();
+      emit("jmp", i.getCallee().getName());
+    }
+    return true;
   }
 
   public void visit(CallInst i) {
     printInstructionInfor(i);
-    for(int j=0; j<i.getParams().size(); j++){
-      if(j < 6){
-        var param = i.getParams().get(j);
-        int pos = getPositionRBP(param);
-        if(j==0){
-          out.printCode("movq " + pos + "(%rbp), %rdi");
-        }
-        else if(j==1){
-          out.printCode("movq " + pos + "(%rbp), %rsi");
-        }
-        else if(j==2){
-          out.printCode("movq " + pos + "(%rbp), %rdx");
-        }
-        else if(j==3){
-          out.printCode("movq " + pos + "(%rbp), %rcx");
-        }
-        else if(j==4){
-          out.printCode("movq " + pos + "(%rbp), %r8");
-        }
-        else{
-          out.printCode("movq " + pos + "(%rbp), %r9");
-        }
-      }
+    if(emitTailCall(i)){
+      return;
+    }
+    String[] argRegisters = {"%rdi", "%rsi", "%rdx", "%rcx", "%r8", "%r9"};
+    var params = i.getParams();
+    for(int j=0; j<params.size() && j<6; j++){
+      emit("movq", loc(params.get(j)), argRegisters[j]);
     }
     int counter = 0;
-    if(i.getParams().size() >= 6){
-      for (int index = i.getParams().size()-1; index >= 6; index--, counter++){
-        var par = i.getParams().get(index);
-        int stackPos = getPositionRBP(par);
-        out.printCode("subq $8, %rsp");
-        out.printCode("movq " + stackPos + "(%rbp), %r10");
-        //out.printCode("movq %r10, "+ (counter)*(8)+ "(%rbp)");
-        out.printCode("movq %r10, 0(%rsp)");
+    if(params.size() > 6){
+      // Keep %rsp 16-byte aligned at the call.
+      if((params.size() - 6) % 2 != 0){
+        emit("subq", "$8", "%rsp");
+        counter++;
+      }
+      for (int index = params.size()-1; index >= 6; index--, counter++){
+        emit("pushq", loc(params.get(index)));
       }
     }
 
-    out.printCode("call " + i.getCallee().getName());
+    emit("call", i.getCallee().getName());
     if(counter != 0){
-      out.printCode("addq $" + counter * 8 + ", %rsp");
+      emit("addq", "$" + counter * 8, "%rsp");
     }
     if(i.getDst() != null){
-      int dst = getPositionRBP(i.getDst());
-      out.printCode("movq %rax, " + dst + "(%rbp)");
+      emit("movq", "%rax", loc(i.getDst()));
     }
   }
 
   public void visit(UnaryNotInst i) {
     printInstructionInfor(i);
-    int dst = getPositionRBP(i.getDst());
-    int inner = getPositionRBP(i.getInner());
+    String dst = loc(i.getDst());
+    String inner = loc(i.getInner());
+
+    // Booleans are 0 or 1, so flip the low bit rather than every bit.
+    if(isRegister(dst)){
+      emitMove(inner, dst);
+      emit("xorq", "$1", dst);
+    }
+    else{
+      emit("movq", inner, "%r10");
+      emit("xorq", "$1", "%r10");
+      emit("movq", "%r10", dst);
+    }
+  }
 
-    out.printCode("movq " + inner + "(%rbp), %r10");
-    out.printCode("not %r10");
-    out.printCode("movq %r10, " + dst + "(%rbp)");
+  public void visit(PhiInst i) {
+    throw new IllegalStateException("phis must be removed by SSADestruction before codegen");
   }
 }
@@ -6,6 +6,7 @@ import crux.printing.IRValueFormatter;
 
 public class CodePrinter {
   PrintStream out;
+  private ByteArrayOutputStream memory;
   public StringBuffer myStringBuffer = new StringBuffer();
 
   public void bufferCode(String s){
@@ -17,15 +18,39 @@ public class CodePrinter {
     myStringBuffer = new StringBuffer();//init it each time after print
   }
 
+  /**
+   * Writes the code to the file name. Throws an UncheckedIOException if it cannot be opened, which
+   * fails the compilation rather than the process, which may be a server.
+   */
   public CodePrinter(String name) {
     try {
       out = new PrintStream(name);
-    } catch (Exception e) {
-      e.printStackTrace();
-      System.exit(-1);
+    } catch (FileNotFoundException e) {
+      throw new UncheckedIOException(String.format("cannot write %s: %s", name, e.getMessage()),
+          e);
     }
   }
 
+  /**
+   * Keeps the code in memory until {@link #getText()} is called.
+   */
+  public CodePrinter() {
+    memory = new ByteArrayOutputStream();
+    out = new PrintStream(memory);
+  }
+
+  public String getText() {
+    out.flush();
+    return memory.toString();
+  }
+
+  /**
+   * Copies code that is already formatted, e.g. the text of another CodePrinter.
+   */
+  public void printText(String s) {
+    out.print(s);
+  }
+
   public void printLabel(String s) {
     out.println(s);
   }
@@ -34,6 +59,10 @@ public class CodePrinter {
     out.println("    " + s);
   }
 
+  public void print(MachineInst inst) {
+    out.println(inst);
+  }
+
   public void close() {
     out.close();
   }
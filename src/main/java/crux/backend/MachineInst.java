@@ -0,0 +1,104 @@
+package crux.backend;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One line of the assembly CodeGen produces: an instruction with its operands, a label or a
+ * comment. CodeGen collects these per function so {@link Peephole} can rewrite them before
+ * {@link CodePrinter} writes them out.
+ */
+public final class MachineInst {
+  public enum Kind {
+    INSTRUCTION, LABEL, COMMENT
+  }
+
+  private final Kind mKind;
+  private final String mOpcode;
+  private final List<Operand> mOperands;
+
+  private MachineInst(Kind kind, String opcode, List<Operand> operands) {
+    mKind = kind;
+    mOpcode = opcode;
+    mOperands = operands;
+  }
+
+  public static MachineInst of(String opcode, String... operands) {
+    List<Operand> list = new ArrayList<>(operands.length);
+    for (String operand : operands) {
+      list.add(Operand.of(operand));
+    }
+    return new MachineInst(Kind.INSTRUCTION, opcode, List.copyOf(list));
+  }
+
+  public static MachineInst of(String opcode, List<Operand> operands) {
+    return new MachineInst(Kind.INSTRUCTION, opcode, List.copyOf(operands));
+  }
+
+  public static MachineInst label(String name) {
+    return new MachineInst(Kind.LABEL, name, List.of());
+  }
+
+  public static MachineInst comment(String text) {
+    return new MachineInst(Kind.COMMENT, text, List.of());
+  }
+
+  public Kind getKind() {
+    return mKind;
+  }
+
+  public boolean isInstruction() {
+    return mKind == Kind.INSTRUCTION;
+  }
+
+  public boolean isLabel() {
+    return mKind == Kind.LABEL;
+  }
+
+  /**
+   * The mnemonic of an instruction, the name of a label or the text of a comment.
+   */
+  public String getOpcode() {
+    return mOpcode;
+  }
+
+  public List<Operand> getOperands() {
+    return mOperands;
+  }
+
+  public Operand getOperand(int i) {
+    return mOperands.get(i);
+  }
+
+  /**
+   * Returns true for an instruction with the given mnemonic.
+   */
+  public boolean is(String opcode) {
+    return mKind == Kind.INSTRUCTION && mOpcode.equals(opcode);
+  }
+
+  /**
+   * Returns true for jumps, conditional or not.
+   */
+  public boolean isJump() {
+    return mKind == Kind.INSTRUCTION && mOpcode.startsWith("j");
+  }
+
+  @Override
+  public String toString() {
+    switch (mKind) {
+      case LABEL:
+        return mOpcode + ":";
+      case COMMENT:
+        return "    " + mOpcode;
+      default:
+        if (mOperands.isEmpty())
+          return "    " + mOpcode;
+        List<String> operands = new ArrayList<>();
+        for (Operand operand : mOperands) {
+          operands.add(operand.toString());
+        }
+        return "    " + mOpcode + " " + String.join(", ", operands);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package crux.backend;
+
+/**
+ * An operand of a {@link MachineInst} in AT&amp;T syntax: a register, an immediate, a memory
+ * reference or a label.
+ */
+public final class Operand {
+  public enum Kind {
+    REGISTER, IMMEDIATE, MEMORY, LABEL
+  }
+
+  private final Kind mKind;
+  private final String mText;
+
+  private Operand(Kind kind, String text) {
+    mKind = kind;
+    mText = text;
+  }
+
+  /**
+   * Classifies an operand written the way CodeGen writes it, e.g. {@code %rax}, {@code $8},
+   * {@code -16(%rbp)}, {@code g(%rip)} or {@code .Lmain.3}.
+   */
+  public static Operand of(String text) {
+    if (text.startsWith("%"))
+      return new Operand(Kind.REGISTER, text);
+    if (text.startsWith("$"))
+      return new Operand(Kind.IMMEDIATE, text);
+    if (text.endsWith(")"))
+      return new Operand(Kind.MEMORY, text);
+    return new Operand(Kind.LABEL, text);
+  }
+
+  public Kind getKind() {
+    return mKind;
+  }
+
+  public boolean isRegister() {
+    return mKind == Kind.REGISTER;
+  }
+
+  public boolean isMemory() {
+    return mKind == Kind.MEMORY;
+  }
+
+  /**
+   * Returns true if reading or writing this operand reads register, e.g. %rbp for -8(%rbp).
+   */
+  public boolean uses(String register) {
+    return mKind == Kind.REGISTER ? mText.equals(register)
+        : mKind == Kind.MEMORY && mText.contains(register);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof Operand && ((Operand) o).mText.equals(mText);
+  }
+
+  @Override
+  public int hashCode() {
+    return mText.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return mText;
+  }
+}
@@ -0,0 +1,243 @@
+package crux.backend;
+
+import java.util.*;
+
+/**
+ * Rewrites short windows of the instructions CodeGen selected for a function. The rules are
+ * applied until none of them matches any more:
+ * <ul>
+ * <li>{@code movq A, A} is dropped.</li>
+ * <li>A load right after a store reads the value that is still in the stored register or
+ * immediate, so it becomes a register move or disappears.</li>
+ * <li>A compare result that is materialized with {@code cmov} and then tested with
+ * {@code cmpq $1} is branched on with the compare's own flags.</li>
+ * <li>Jumps to a jump go straight to its target, jumps to the next label are dropped, and code
+ * after an unconditional jump or return is dropped up to the next label.</li>
+ * <li>A conditional jump over an unconditional one is turned around, so the other side falls
+ * through.</li>
+ * </ul>
+ */
+final class Peephole {
+  private Peephole() {}
+
+  static List<MachineInst> optimize(List<MachineInst> input) {
+    List<MachineInst> code = new ArrayList<>(input);
+    boolean changed = true;
+    while (changed) {
+      changed = removeSelfMoves(code);
+      changed |= forwardStores(code);
+      changed |= fuseCompareBranches(code);
+      changed |= threadJumps(code);
+      changed |= invertBranches(code);
+      changed |= removeUnreachable(code);
+      changed |= removeFallthroughJumps(code);
+      code.removeIf(Objects::isNull);
+    }
+    return code;
+  }
+
+  /**
+   * Returns the index of the next label or instruction after i, skipping comments and removed
+   * entries, or -1.
+   */
+  private static int next(List<MachineInst> code, int i) {
+    for (int j = i + 1; j < code.size(); j++) {
+      var inst = code.get(j);
+      if (inst != null && inst.getKind() != MachineInst.Kind.COMMENT)
+        return j;
+    }
+    return -1;
+  }
+
+  private static boolean isMove(MachineInst inst) {
+    return inst != null && inst.is("movq") && inst.getOperands().size() == 2;
+  }
+
+  private static boolean removeSelfMoves(List<MachineInst> code) {
+    boolean changed = false;
+    for (int i = 0; i < code.size(); i++) {
+      var inst = code.get(i);
+      if (isMove(inst) && inst.getOperand(0).equals(inst.getOperand(1))) {
+        code.set(i, null);
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * movq A, B followed by movq B, D.
+   */
+  private static boolean forwardStores(List<MachineInst> code) {
+    boolean changed = false;
+    for (int i = 0; i < code.size(); i++) {
+      var first = code.get(i);
+      if (!isMove(first))
+        continue;
+      int j = next(code, i);
+      if (j < 0 || !isMove(code.get(j)))
+        continue;
+      var second = code.get(j);
+      var a = first.getOperand(0);
+      var b = first.getOperand(1);
+      var d = second.getOperand(1);
+      if (!second.getOperand(0).equals(b))
+        continue;
+      // Writing B must not have changed the meaning of A.
+      if (b.isRegister() && a.uses(b.toString()))
+        continue;
+      if (d.equals(a)) {
+        code.set(j, null);
+        changed = true;
+      } else if (b.isMemory() && d.isRegister() && !a.isMemory()) {
+        code.set(j, MachineInst.of("movq", List.of(a, d)));
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * cmovCC %r10, %rax; movq %rax, D; cmpq $1, D; je T becomes cmovCC; movq; jCC T, since neither
+   * cmov nor mov changes the flags of the compare before them. A jne T becomes the inverse of jCC.
+   */
+  private static boolean fuseCompareBranches(List<MachineInst> code) {
+    boolean changed = false;
+    for (int i = 0; i < code.size(); i++) {
+      var cmov = code.get(i);
+      if (cmov == null || !cmov.isInstruction() || !cmov.getOpcode().startsWith("cmov"))
+        continue;
+      int j = next(code, i);
+      if (j < 0 || !isMove(code.get(j)) || !code.get(j).getOperand(0).equals(cmov.getOperand(1)))
+        continue;
+      var dst = code.get(j).getOperand(1);
+      int k = next(code, j);
+      if (k < 0 || !code.get(k).is("cmpq") || !code.get(k).getOperand(0).toString().equals("$1")
+          || !code.get(k).getOperand(1).equals(dst))
+        continue;
+      int l = next(code, k);
+      if (l < 0 || !(code.get(l).is("je") || code.get(l).is("jne")))
+        continue;
+      String branch = "j" + cmov.getOpcode().substring("cmov".length());
+      if (code.get(l).is("jne"))
+        branch = INVERSE.get(branch);
+      code.set(k, MachineInst.of(branch, List.of(code.get(l).getOperand(0))));
+      code.set(l, null);
+      changed = true;
+    }
+    return changed;
+  }
+
+  private static HashMap<String, Integer> labelIndex(List<MachineInst> code) {
+    HashMap<String, Integer> labels = new HashMap<>();
+    for (int i = 0; i < code.size(); i++) {
+      var inst = code.get(i);
+      if (inst != null && inst.isLabel())
+        labels.put(inst.getOpcode(), i);
+    }
+    return labels;
+  }
+
+  /**
+   * Returns the target of the jmp right after label, if there is one.
+   */
+  private static String jumpAfter(List<MachineInst> code, HashMap<String, Integer> labels,
+      String label) {
+    var index = labels.get(label);
+    if (index == null)
+      return null;
+    int j = next(code, index);
+    while (j >= 0 && code.get(j).isLabel()) {
+      j = next(code, j);
+    }
+    if (j >= 0 && code.get(j).is("jmp"))
+      return code.get(j).getOperand(0).toString();
+    return null;
+  }
+
+  private static boolean threadJumps(List<MachineInst> code) {
+    boolean changed = false;
+    var labels = labelIndex(code);
+    for (int i = 0; i < code.size(); i++) {
+      var inst = code.get(i);
+      if (inst == null || !inst.isJump())
+        continue;
+      String target = inst.getOperand(0).toString();
+      HashSet<String> seen = new HashSet<>();
+      seen.add(target);
+      String next = jumpAfter(code, labels, target);
+      while (next != null && seen.add(next)) {
+        target = next;
+        next = jumpAfter(code, labels, target);
+      }
+      // A cycle of jumps is an infinite loop; leave it alone.
+      if (next != null || target.equals(inst.getOperand(0).toString()))
+        continue;
+      code.set(i, MachineInst.of(inst.getOpcode(), target));
+      changed = true;
+    }
+    return changed;
+  }
+
+  private static final Map<String, String> INVERSE = Map.of("je", "jne", "jne", "je", "jl", "jge",
+      "jge", "jl", "jg", "jle", "jle", "jg");
+
+  /**
+   * jCC A; jmp B; A: becomes jNCC B; A:.
+   */
+  private static boolean invertBranches(List<MachineInst> code) {
+    boolean changed = false;
+    for (int i = 0; i < code.size(); i++) {
+      var branch = code.get(i);
+      if (branch == null || !branch.isInstruction() || !INVERSE.containsKey(branch.getOpcode()))
+        continue;
+      int j = next(code, i);
+      if (j < 0 || !code.get(j).is("jmp"))
+        continue;
+      String target = branch.getOperand(0).toString();
+      for (int k = next(code, j); k >= 0 && code.get(k).isLabel(); k = next(code, k)) {
+        if (code.get(k).getOpcode().equals(target)) {
+          code.set(i, MachineInst.of(INVERSE.get(branch.getOpcode()), List.of(code.get(j).getOperand(0))));
+          code.set(j, null);
+          changed = true;
+          break;
+        }
+      }
+    }
+    return changed;
+  }
+
+  private static boolean removeUnreachable(List<MachineInst> code) {
+    boolean changed = false;
+    for (int i = 0; i < code.size(); i++) {
+      var inst = code.get(i);
+      if (inst == null || !(inst.is("jmp") || inst.is("ret")))
+        continue;
+      for (int j = i + 1; j < code.size() && (code.get(j) == null || !code.get(j).isLabel()); j++) {
+        if (code.get(j) != null && code.get(j).isInstruction()) {
+          code.set(j, null);
+          changed = true;
+        }
+      }
+    }
+    return changed;
+  }
+
+  private static boolean removeFallthroughJumps(List<MachineInst> code) {
+    boolean changed = false;
+    for (int i = 0; i < code.size(); i++) {
+      var inst = code.get(i);
+      if (inst == null || !inst.is("jmp"))
+        continue;
+      String target = inst.getOperand(0).toString();
+      for (int j = next(code, i); j >= 0 && code.get(j).isLabel(); j = next(code, j)) {
+        if (code.get(j).getOpcode().equals(target)) {
+          code.set(i, null);
+          changed = true;
+          break;
+        }
+      }
+    }
+    return changed;
+  }
+}
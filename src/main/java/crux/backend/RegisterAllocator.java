@@ -0,0 +1,210 @@
+package crux.backend;
+
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Linear-scan register allocation for a single Function.
+ * <p>
+ * Instructions are numbered in the order CodeGen lays out the basic blocks, a live interval is
+ * computed for every variable from {@link Liveness}, and the intervals are mapped to x86-64 general
+ * purpose registers. Intervals that contain a call are only given callee-saved registers, so
+ * nothing has to be saved around calls. When no register is free, the interval that ends furthest
+ * away is spilled to the stack. In a function with a profile the interval whose uses and definitions
+ * ran least is spilled instead, so the variables of hot loops keep their registers.
+ */
+final class RegisterAllocator {
+  /**
+   * Registers preserved across calls. Using one means saving it in the prologue.
+   */
+  static final List<String> CALLEE_SAVED = List.of("%rbx", "%r12", "%r13", "%r14", "%r15");
+
+  /**
+   * Registers clobbered by calls. %rax, %rdx, %r10 and %r11 are left out because CodeGen uses them
+   * as scratch registers.
+   */
+  static final List<String> CALLER_SAVED = List.of("%rcx", "%rsi", "%rdi", "%r8", "%r9");
+
+  private static final class Interval {
+    final Variable var;
+    int start = Integer.MAX_VALUE;
+    int end = Integer.MIN_VALUE;
+    boolean crossesCall = false;
+    long weight = 0;
+    String register;
+
+    Interval(Variable var) {
+      this.var = var;
+    }
+
+    void extend(int pos) {
+      start = Math.min(start, pos);
+      end = Math.max(end, pos);
+    }
+  }
+
+  private final LinkedHashMap<Variable, Interval> intervals = new LinkedHashMap<>();
+  private final List<String> usedCalleeSaved = new ArrayList<>();
+  private final boolean profiled;
+  private int numSpilled = 0;
+
+  /**
+   * Allocates registers for f, numbering instructions in the order of layout.
+   */
+  RegisterAllocator(Function f, List<BasicBlock> layout) {
+    profiled = f.isProfiled();
+    computeIntervals(f, layout);
+    allocate();
+  }
+
+  /**
+   * Returns the register assigned to v, or null if v lives in a stack slot.
+   */
+  String getRegister(Variable v) {
+    var interval = intervals.get(v);
+    return interval == null ? null : interval.register;
+  }
+
+  /**
+   * The callee-saved registers this function writes, in the order they should be saved.
+   */
+  List<String> getUsedCalleeSaved() {
+    return usedCalleeSaved;
+  }
+
+  int getNumSpilled() {
+    return numSpilled;
+  }
+
+  private Interval intervalOf(Variable v) {
+    return intervals.computeIfAbsent(v, Interval::new);
+  }
+
+  /**
+   * Intervals are the hull of the positions where a variable is live. Within a block that hull is
+   * spanned by the block boundaries it is live across and the positions that use or define it, so
+   * only those points are recorded.
+   */
+  private void computeIntervals(Function f, List<BasicBlock> layout) {
+    var liveness = new Liveness(f);
+    var vars = liveness.getVariables();
+
+    // Arguments are written by the prologue, before the first instruction.
+    for (var arg : f.getArguments()) {
+      intervalOf(arg).extend(-1);
+    }
+    List<Integer> calls = new ArrayList<>();
+    int pos = 0;
+    for (var block : layout) {
+      int first = pos;
+      long count = block.getCount();
+      for (var inst : block.getInstructions()) {
+        for (Value operand : inst.getOperands()) {
+          if (operand instanceof Variable) {
+            intervalOf((Variable) operand).extend(pos);
+            intervalOf((Variable) operand).weight += count;
+          }
+        }
+        if (inst.getDestVar() != null) {
+          intervalOf(inst.getDestVar()).extend(pos);
+          intervalOf(inst.getDestVar()).weight += count;
+        }
+        if (inst instanceof CallInst)
+          calls.add(pos);
+        pos++;
+      }
+      int last = pos - 1;
+      var liveIn = liveness.getLiveIn(block);
+      for (int v = liveIn.nextSetBit(0); v >= 0; v = liveIn.nextSetBit(v + 1)) {
+        intervalOf(vars.get(v)).extend(first);
+      }
+      var liveOut = liveness.getLiveOut(block);
+      for (int v = liveOut.nextSetBit(0); v >= 0; v = liveOut.nextSetBit(v + 1)) {
+        intervalOf(vars.get(v)).extend(last);
+      }
+    }
+
+    for (var interval : intervals.values()) {
+      for (int call : calls) {
+        if (interval.start <= call && call <= interval.end) {
+          interval.crossesCall = true;
+          break;
+        }
+      }
+    }
+  }
+
+  private void allocate() {
+    List<Interval> sorted = new ArrayList<>(intervals.values());
+    sorted.sort(Comparator.comparingInt((Interval i) -> i.start).thenComparingInt(i -> i.end));
+    List<Interval> active = new ArrayList<>();
+    List<String> free = new ArrayList<>(CALLER_SAVED);
+    free.addAll(CALLEE_SAVED);
+
+    for (var current : sorted) {
+      // Expire intervals that ended before this one starts.
+      for (var it = active.iterator(); it.hasNext();) {
+        var old = it.next();
+        if (old.end < current.start) {
+          free.add(old.register);
+          it.remove();
+        }
+      }
+
+      String register = null;
+      for (String candidate : free) {
+        if (isAllowed(current, candidate)) {
+          register = candidate;
+          break;
+        }
+      }
+      if (register != null) {
+        free.remove(register);
+        assign(current, register);
+        active.add(current);
+        continue;
+      }
+
+      // No register left: spill whichever usable interval lives longest, or is used least.
+      Interval victim = null;
+      for (var other : active) {
+        if (isAllowed(current, other.register) && (victim == null || spillsBefore(other, victim)))
+          victim = other;
+      }
+      if (victim != null && spillsBefore(victim, current)) {
+        assign(current, victim.register);
+        victim.register = null;
+        active.remove(victim);
+        active.add(current);
+        numSpilled++;
+      } else {
+        numSpilled++;
+      }
+    }
+  }
+
+  /**
+   * Whether a is a better interval to spill than b.
+   */
+  private boolean spillsBefore(Interval a, Interval b) {
+    if (profiled && a.weight != b.weight)
+      return a.weight < b.weight;
+    return a.end > b.end;
+  }
+
+  private static boolean isAllowed(Interval interval, String register) {
+    if (CALLEE_SAVED.contains(register))
+      return true;
+    // Caller-saved registers are clobbered by calls, and the incoming argument registers are still
+    // live while the prologue moves arguments to their homes.
+    return !interval.crossesCall && interval.start >= 0;
+  }
+
+  private void assign(Interval interval, String register) {
+    interval.register = register;
+    if (CALLEE_SAVED.contains(register) && !usedCalleeSaved.contains(register))
+      usedCalleeSaved.add(register);
+  }
+}
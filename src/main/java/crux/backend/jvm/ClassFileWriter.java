@@ -0,0 +1,169 @@
+package crux.backend.jvm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Writes a minimal class file: a constant pool, static fields and static methods with a Code
+ * attribute. The version is 49 so the JVM infers the stack map itself and none has to be written.
+ */
+final class ClassFileWriter {
+  private static final int VERSION = 49;
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_STATIC = 0x0008;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final HashMap<List<Object>, Integer> poolIndex = new HashMap<>();
+  private int poolSize = 1;
+
+  private final ByteArrayOutputStream members = new ByteArrayOutputStream();
+  private final DataOutputStream membersOut = new DataOutputStream(members);
+  private final List<byte[]> fields = new ArrayList<>();
+  private final List<byte[]> methods = new ArrayList<>();
+  private final String className;
+
+  ClassFileWriter(String className) {
+    this.className = className;
+  }
+
+  String getClassName() {
+    return className;
+  }
+
+  private int entry(List<Object> key, int slots, IOConsumer writer) {
+    var index = poolIndex.get(key);
+    if (index != null)
+      return index;
+    try {
+      writer.write(poolOut);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    index = poolSize;
+    poolSize += slots;
+    poolIndex.put(key, index);
+    return index;
+  }
+
+  private interface IOConsumer {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  int utf8(String s) {
+    return entry(List.of(1, s), 1, out -> {
+      out.writeByte(1);
+      out.writeUTF(s);
+    });
+  }
+
+  int classRef(String internalName) {
+    int name = utf8(internalName);
+    return entry(List.of(7, internalName), 1, out -> {
+      out.writeByte(7);
+      out.writeShort(name);
+    });
+  }
+
+  int longConstant(long value) {
+    return entry(List.of(5, value), 2, out -> {
+      out.writeByte(5);
+      out.writeLong(value);
+    });
+  }
+
+  private int nameAndType(String name, String descriptor) {
+    int n = utf8(name);
+    int d = utf8(descriptor);
+    return entry(List.of(12, name, descriptor), 1, out -> {
+      out.writeByte(12);
+      out.writeShort(n);
+      out.writeShort(d);
+    });
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(9, owner, name, descriptor);
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return memberRef(10, owner, name, descriptor);
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    int c = classRef(owner);
+    int nt = nameAndType(name, descriptor);
+    return entry(List.of(tag, owner, name, descriptor), 1, out -> {
+      out.writeByte(tag);
+      out.writeShort(c);
+      out.writeShort(nt);
+    });
+  }
+
+  void addField(int access, String name, String descriptor) {
+    fields.add(member(access, name, descriptor, null, 0, 0));
+  }
+
+  void addMethod(int access, String name, String descriptor, byte[] code, int maxStack,
+      int maxLocals) {
+    methods.add(member(access, name, descriptor, code, maxStack, maxLocals));
+  }
+
+  private byte[] member(int access, String name, String descriptor, byte[] code, int maxStack,
+      int maxLocals) {
+    members.reset();
+    try {
+      membersOut.writeShort(access);
+      membersOut.writeShort(utf8(name));
+      membersOut.writeShort(utf8(descriptor));
+      if (code == null) {
+        membersOut.writeShort(0);
+      } else {
+        membersOut.writeShort(1);
+        membersOut.writeShort(utf8("Code"));
+        membersOut.writeInt(12 + code.length);
+        membersOut.writeShort(maxStack);
+        membersOut.writeShort(maxLocals);
+        membersOut.writeInt(code.length);
+        membersOut.write(code);
+        membersOut.writeShort(0); // exception table
+        membersOut.writeShort(0); // attributes
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return members.toByteArray();
+  }
+
+  byte[] toByteArray() {
+    int thisClass = classRef(className);
+    int superClass = classRef("java/lang/Object");
+    var bytes = new ByteArrayOutputStream();
+    var out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(poolSize);
+      out.write(pool.toByteArray());
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0); // interfaces
+      out.writeShort(fields.size());
+      for (var field : fields) {
+        out.write(field);
+      }
+      out.writeShort(methods.size());
+      for (var method : methods) {
+        out.write(method);
+      }
+      out.writeShort(0); // attributes
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+}
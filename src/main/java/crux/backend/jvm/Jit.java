@@ -0,0 +1,96 @@
+package crux.backend.jvm;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ir.*;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.*;
+
+/**
+ * Runs a program by compiling it to JVM bytecode, so that HotSpot can optimize it.
+ * <p>
+ * Every Crux function becomes a static method of one hidden class, defined with
+ * {@link MethodHandles.Lookup#defineHiddenClass}. Builtins and global memory are provided by a
+ * {@link JitRuntime}, which the class reaches through its static field RT. If a function is too
+ * large for a JVM method, the program runs on the {@link ThreadedEmulator} instead.
+ */
+public final class Jit {
+  private static final String CLASS_NAME = "crux/backend/jvm/CruxProgram";
+  /** Crux recursion runs on the Java stack, so give it plenty. */
+  private static final long STACK_SIZE = 1L << 30;
+
+  private final Program program;
+  private final InputStream in;
+  private final PrintStream out;
+
+  public Jit(Program p, InputStream emulatorInput, OutputStream emulatorOutput) {
+    program = p;
+    in = emulatorInput;
+    out = new PrintStream(emulatorOutput);
+  }
+
+  /**
+   * Returns the class file for the program, with a method per function. Globals are known by their
+   * number in globals.
+   */
+  byte[] compile(Map<Symbol, Integer> globals) throws MethodTooLargeException {
+    var cw = new ClassFileWriter(CLASS_NAME);
+    cw.addField(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "RT",
+        "Lcrux/backend/jvm/JitRuntime;");
+    Set<String> names = new HashSet<>();
+    for (var it = program.getFunctions(); it.hasNext();) {
+      names.add(it.next().getName());
+    }
+    for (var it = program.getFunctions(); it.hasNext();) {
+      new MethodCompiler(cw, it.next(), globals, names).compile();
+    }
+    return cw.toByteArray();
+  }
+
+  public void run() {
+    HashMap<Symbol, Integer> globals = new HashMap<>();
+    List<GlobalDecl> decls = new ArrayList<>();
+    for (var it = program.getGlobals(); it.hasNext();) {
+      var g = it.next();
+      globals.put(g.getSymbol(), decls.size());
+      decls.add(g);
+    }
+
+    byte[] classFile;
+    try {
+      classFile = compile(globals);
+    } catch (MethodTooLargeException e) {
+      new ThreadedEmulator(program, in, out).run();
+      return;
+    }
+
+    Throwable[] failure = new Throwable[1];
+    var runtime = new JitRuntime(decls, in, out);
+    Runnable body = () -> {
+      try {
+        var lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+        lookup.findStaticSetter(lookup.lookupClass(), "RT", JitRuntime.class).invoke(runtime);
+        lookup.findStatic(lookup.lookupClass(), "main", MethodType.methodType(long.class))
+            .invoke();
+      } catch (Throwable t) {
+        failure[0] = t;
+      }
+    };
+    var thread = new Thread(null, body, "crux-jit", STACK_SIZE);
+    thread.start();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    out.flush();
+    if (failure[0] instanceof RuntimeException)
+      throw (RuntimeException) failure[0];
+    if (failure[0] instanceof Error)
+      throw (Error) failure[0];
+    if (failure[0] != null)
+      throw new RuntimeException(failure[0]);
+  }
+}
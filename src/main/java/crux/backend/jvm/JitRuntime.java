@@ -0,0 +1,106 @@
+package crux.backend.jvm;
+
+import crux.ir.GlobalDecl;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * State and builtins shared by the compiled functions of one program: the global memory and the
+ * input and output streams. The behavior matches {@link crux.ir.Emulator}, and indexes out of the
+ * bounds of a global are reported like in {@link crux.ir.ThreadedEmulator}.
+ */
+public final class JitRuntime {
+  private final BufferedReader br;
+  private final PrintStream out;
+  private final List<GlobalDecl> globals;
+  private final int[] globalOffsets;
+  private final int[] globalSizes;
+  private final long[] memory;
+  private final long[] initialized;
+
+  JitRuntime(List<GlobalDecl> globals, InputStream in, PrintStream out) {
+    br = new BufferedReader(new InputStreamReader(in));
+    this.out = out;
+    this.globals = globals;
+    globalOffsets = new int[globals.size()];
+    globalSizes = new int[globals.size()];
+    int size = 0;
+    for (int i = 0; i < globals.size(); i++) {
+      globalOffsets[i] = size;
+      globalSizes[i] = (int) globals.get(i).getNumElement().getValue();
+      size += globalSizes[i];
+    }
+    memory = new long[size];
+    initialized = new long[(size + 63) / 64];
+  }
+
+  /**
+   * Returns the address of element index of the global with the given number, or a negative
+   * address naming the global if index is out of its bounds.
+   */
+  public long address(long global, long index) {
+    int g = (int) global;
+    return index >= 0 && index < globalSizes[g] ? globalOffsets[g] + index : -1 - global;
+  }
+
+  private int checkAddress(long address) {
+    if (address < 0) {
+      int global = (int) (-1 - address);
+      throw new Error(String.format("Index out of bounds for %s of %d elements.",
+          globals.get(global).getSymbol().getName(), globalSizes[global]));
+    }
+    return (int) address;
+  }
+
+  public long load(long address) {
+    int a = checkAddress(address);
+    if ((initialized[a >>> 6] & (1L << a)) == 0) {
+      out.println("Reading from uninitialized memory");
+      return 0;
+    }
+    return memory[a];
+  }
+
+  public void store(long value, long address) {
+    int a = checkAddress(address);
+    memory[a] = value;
+    initialized[a >>> 6] |= 1L << a;
+  }
+
+  public void printInt(long value) {
+    out.print(value);
+  }
+
+  public void printBool(long value) {
+    out.print(value != 0);
+  }
+
+  public void printChar(long value) {
+    out.print((char) value);
+  }
+
+  public void println() {
+    out.println("");
+  }
+
+  public long readInt() {
+    try {
+      out.print("int?");
+      return Long.valueOf(br.readLine());
+    } catch (IOException e) {
+      throw new Error("Error in inputting Integer.");
+    }
+  }
+
+  public long readChar() {
+    try {
+      int value = br.read();
+      if (value == -1)
+        throw new Error("Reading past end of stream.");
+      return value;
+    } catch (IOException e) {
+      throw new Error("Error in inputting Integer.");
+    }
+  }
+}
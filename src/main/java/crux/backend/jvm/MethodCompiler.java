@@ -0,0 +1,399 @@
+package crux.backend.jvm;
+
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Turns one {@link Function} into the bytecode of a static method taking and returning longs.
+ * <p>
+ * Every variable gets a long local (booleans are 0 or 1). Instructions are laid out like in
+ * {@link crux.ir.ThreadedEmulator}: the false edge of a jump falls through, phis become copies on
+ * the edges into their block and nops are skipped. All locals are zeroed on entry so the verifier
+ * sees them assigned on every path.
+ */
+final class MethodCompiler {
+  /** The largest method where every branch offset is sure to fit in 16 bits. */
+  private static final int MAX_CODE_SIZE = 32767;
+
+  private static final int LCONST_0 = 0x09;
+  private static final int LCONST_1 = 0x0a;
+  private static final int LDC2_W = 0x14;
+  private static final int LLOAD = 0x16;
+  private static final int LSTORE = 0x37;
+  private static final int POP2 = 0x58;
+  private static final int LADD = 0x61;
+  private static final int LSUB = 0x65;
+  private static final int LMUL = 0x69;
+  private static final int LDIV = 0x6d;
+  private static final int LXOR = 0x83;
+  private static final int LCMP = 0x94;
+  private static final int IFEQ = 0x99;
+  private static final int IFNE = 0x9a;
+  private static final int IFLT = 0x9b;
+  private static final int IFGE = 0x9c;
+  private static final int IFGT = 0x9d;
+  private static final int IFLE = 0x9e;
+  private static final int GOTO = 0xa7;
+  private static final int LRETURN = 0xad;
+  private static final int GETSTATIC = 0xb2;
+  private static final int INVOKEVIRTUAL = 0xb6;
+  private static final int INVOKESTATIC = 0xb8;
+  private static final int WIDE = 0xc4;
+
+  private static final String RUNTIME = "crux/backend/jvm/JitRuntime";
+  private static final String RUNTIME_DESC = "L" + RUNTIME + ";";
+
+  private final ClassFileWriter cw;
+  private final Function f;
+  private final Map<crux.ast.SymbolTable.Symbol, Integer> globals;
+  private final Set<String> functionNames;
+
+  private byte[] code = new byte[256];
+  private int size = 0;
+  private int maxStack = 4;
+  private int numSlots = 0;
+  private final HashMap<Variable, Integer> slots = new HashMap<>();
+  private final HashMap<Instruction, Integer> positions = new HashMap<>();
+  /** True edges of jumps: the position of the branch, the jump and its target. */
+  private final Deque<Object[]> pendingEdges = new ArrayDeque<>();
+
+  MethodCompiler(ClassFileWriter cw, Function f,
+      Map<crux.ast.SymbolTable.Symbol, Integer> globals, Set<String> functionNames) {
+    this.cw = cw;
+    this.f = f;
+    this.globals = globals;
+    this.functionNames = functionNames;
+  }
+
+  static String descriptor(int numArgs) {
+    return "(" + "J".repeat(numArgs) + ")J";
+  }
+
+  /**
+   * Adds the method for the function to the class.
+   *
+   * @throws MethodTooLargeException if the function is too large for a JVM method.
+   */
+  void compile() throws MethodTooLargeException {
+    for (var arg : f.getArguments()) {
+      slot(arg);
+    }
+    int numArgs = numSlots;
+    // The zeroing prologue is patched in front once the number of locals is known.
+    emitChain(null, f.getStart());
+    while (!pendingEdges.isEmpty()) {
+      var edge = pendingEdges.pop();
+      int at = (int) edge[0];
+      var target = skipNops((Instruction) edge[2]);
+      if (target != null && !(target instanceof PhiInst) && positions.containsKey(target)) {
+        patch(at, positions.get(target));
+      } else {
+        patch(at, size);
+        emitChain((Instruction) edge[1], (Instruction) edge[2]);
+      }
+    }
+
+    var body = Arrays.copyOf(code, size);
+    // LCONST_0 and a wide LSTORE take at most 5 bytes per local.
+    code = new byte[5 * (numSlots - numArgs) + body.length];
+    size = 0;
+    for (int i = numArgs; i < numSlots; i++) {
+      emit(LCONST_0);
+      emitLocal(LSTORE, i);
+    }
+    // Branch offsets are relative, so the body can move as a whole.
+    System.arraycopy(body, 0, code, size, body.length);
+    size += body.length;
+    if (size > MAX_CODE_SIZE)
+      throw new MethodTooLargeException(f.getName());
+    cw.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, f.getName(),
+        descriptor(numArgs), Arrays.copyOf(code, size), maxStack, 2 * numSlots);
+  }
+
+  private int slot(Value v) {
+    return slots.computeIfAbsent((Variable) v, k -> numSlots++);
+  }
+
+  private void emit(int b) {
+    if (size == code.length)
+      code = Arrays.copyOf(code, code.length * 2);
+    code[size++] = (byte) b;
+  }
+
+  private void emitShort(int s) {
+    emit(s >> 8);
+    emit(s);
+  }
+
+  private void emitLocal(int opcode, int slot) {
+    int index = 2 * slot;
+    if (index < 256) {
+      emit(opcode);
+      emit(index);
+    } else {
+      emit(WIDE);
+      emit(opcode);
+      emitShort(index);
+    }
+  }
+
+  private void load(Value v) {
+    if (v instanceof IntegerConstant) {
+      loadConstant(((IntegerConstant) v).getValue());
+    } else if (v instanceof BooleanConstant) {
+      emit(((BooleanConstant) v).getValue() ? LCONST_1 : LCONST_0);
+    } else {
+      emitLocal(LLOAD, slot(v));
+    }
+  }
+
+  private void loadConstant(long value) {
+    if (value == 0) {
+      emit(LCONST_0);
+    } else if (value == 1) {
+      emit(LCONST_1);
+    } else {
+      emit(LDC2_W);
+      emitShort(cw.longConstant(value));
+    }
+  }
+
+  private void store(Variable v) {
+    emitLocal(LSTORE, slot(v));
+  }
+
+  /**
+   * Emits a branch and returns its position, to be patched with the target.
+   */
+  private int emitBranch(int opcode) {
+    int at = size;
+    emit(opcode);
+    emitShort(0);
+    return at;
+  }
+
+  private void emitGoto(int target) {
+    patch(emitBranch(GOTO), target);
+  }
+
+  private void patch(int at, int target) {
+    int offset = target - at;
+    code[at + 1] = (byte) (offset >> 8);
+    code[at + 2] = (byte) offset;
+  }
+
+  private void emitRuntimeCall(String name, String descriptor) {
+    emit(INVOKEVIRTUAL);
+    emitShort(cw.methodRef(RUNTIME, name, descriptor));
+  }
+
+  private void emitGetRuntime() {
+    emit(GETSTATIC);
+    emitShort(cw.fieldRef(cw.getClassName(), "RT", RUNTIME_DESC));
+  }
+
+  private Instruction skipNops(Instruction inst) {
+    HashSet<Instruction> seen = new HashSet<>();
+    while (inst instanceof NopInst && seen.add(inst)) {
+      inst = inst.getNext(0);
+    }
+    return inst;
+  }
+
+  private void emitPhiCopies(Instruction from, List<PhiInst> phis) {
+    if (phis.size() == 1) {
+      load(phis.get(0).getValueFrom(from));
+      store(phis.get(0).getDst());
+      return;
+    }
+    // All phis read before any of them writes, so the values wait on the operand stack.
+    for (var phi : phis) {
+      load(phi.getValueFrom(from));
+    }
+    maxStack = Math.max(maxStack, 2 * phis.size());
+    for (int i = phis.size() - 1; i >= 0; i--) {
+      store(phis.get(i).getDst());
+    }
+  }
+
+  private void emitChain(Instruction from, Instruction inst) {
+    HashSet<Instruction> nops = new HashSet<>();
+    while (true) {
+      if (inst instanceof NopInst) {
+        if (!nops.add(inst)) {
+          // A loop made only of nops.
+          emitGoto(size);
+          return;
+        }
+        from = inst;
+        inst = inst.getNext(0);
+        continue;
+      }
+      if (inst instanceof PhiInst) {
+        List<PhiInst> phis = new ArrayList<>();
+        for (; inst instanceof PhiInst; inst = inst.getNext(0)) {
+          phis.add((PhiInst) inst);
+        }
+        emitPhiCopies(from, phis);
+        from = phis.get(phis.size() - 1);
+        continue;
+      }
+      if (inst == null) {
+        emit(LCONST_0);
+        emit(LRETURN);
+        return;
+      }
+      if (positions.containsKey(inst)) {
+        emitGoto(positions.get(inst));
+        return;
+      }
+      positions.put(inst, size);
+      if (inst instanceof ReturnInst) {
+        var value = ((ReturnInst) inst).getReturnValue();
+        if (value == null)
+          emit(LCONST_0);
+        else
+          load(value);
+        emit(LRETURN);
+        return;
+      }
+      if (inst instanceof JumpInst) {
+        load(((JumpInst) inst).getPredicate());
+        emit(LCONST_0);
+        emit(LCMP);
+        pendingEdges.push(new Object[] {emitBranch(IFNE), inst, inst.getNext(1)});
+      } else {
+        emitInstruction(inst);
+      }
+      from = inst;
+      inst = inst.getNext(0);
+    }
+  }
+
+  private void emitInstruction(Instruction inst) {
+    if (inst instanceof CopyInst) {
+      var copy = (CopyInst) inst;
+      load(copy.getSrcValue());
+      store(copy.getDstVar());
+    } else if (inst instanceof BinaryOperator) {
+      var op = (BinaryOperator) inst;
+      load(op.getLeftOperand());
+      load(op.getRightOperand());
+      switch (op.getOperator()) {
+        case Add:
+          emit(LADD);
+          break;
+        case Sub:
+          emit(LSUB);
+          break;
+        case Mul:
+          emit(LMUL);
+          break;
+        case Div:
+          emit(LDIV);
+          break;
+      }
+      store(op.getDst());
+    } else if (inst instanceof CompareInst) {
+      emitCompare((CompareInst) inst);
+    } else if (inst instanceof UnaryNotInst) {
+      var not = (UnaryNotInst) inst;
+      load(not.getInner());
+      emit(LCONST_1);
+      emit(LXOR);
+      store(not.getDst());
+    } else if (inst instanceof AddressAt) {
+      var at = (AddressAt) inst;
+      emitGetRuntime();
+      loadConstant(globals.get(at.getBase()));
+      if (at.getOffset() != null)
+        load(at.getOffset());
+      else
+        emit(LCONST_0);
+      emitRuntimeCall("address", "(JJ)J");
+      store(at.getDst());
+      maxStack = Math.max(maxStack, 5);
+    } else if (inst instanceof LoadInst) {
+      var load = (LoadInst) inst;
+      emitGetRuntime();
+      load(load.getSrcAddress());
+      emitRuntimeCall("load", "(J)J");
+      store(load.getDst());
+    } else if (inst instanceof StoreInst) {
+      var store = (StoreInst) inst;
+      emitGetRuntime();
+      load(store.getSrcValue());
+      load(store.getDestAddress());
+      emitRuntimeCall("store", "(JJ)V");
+      maxStack = Math.max(maxStack, 5);
+    } else if (inst instanceof CallInst) {
+      emitCall((CallInst) inst);
+    } else {
+      throw new IllegalStateException("cannot compile " + inst.getClass().getSimpleName());
+    }
+  }
+
+  private void emitCompare(CompareInst cmp) {
+    load(cmp.getLeftOperand());
+    load(cmp.getRightOperand());
+    emit(LCMP);
+    int opcode = 0;
+    switch (cmp.getPredicate()) {
+      case GE:
+        opcode = IFGE;
+        break;
+      case GT:
+        opcode = IFGT;
+        break;
+      case LE:
+        opcode = IFLE;
+        break;
+      case LT:
+        opcode = IFLT;
+        break;
+      case EQ:
+        opcode = IFEQ;
+        break;
+      case NE:
+        opcode = IFNE;
+        break;
+    }
+    int toTrue = emitBranch(opcode);
+    emit(LCONST_0);
+    int toEnd = emitBranch(GOTO);
+    patch(toTrue, size);
+    emit(LCONST_1);
+    patch(toEnd, size);
+    store(cmp.getDst());
+  }
+
+  private void emitCall(CallInst call) {
+    var params = call.getParams();
+    String name = call.getCallee().getName();
+    boolean returnsValue = true;
+    if (functionNames.contains(name)) {
+      for (var param : params) {
+        load(param);
+      }
+      maxStack = Math.max(maxStack, 2 * params.size());
+      emit(INVOKESTATIC);
+      emitShort(cw.methodRef(cw.getClassName(), name, descriptor(params.size())));
+    } else {
+      emitGetRuntime();
+      for (var param : params) {
+        load(param);
+      }
+      maxStack = Math.max(maxStack, 1 + 2 * params.size());
+      returnsValue = name.startsWith("read");
+      emitRuntimeCall(name, "(" + "J".repeat(params.size()) + ")" + (returnsValue ? "J" : "V"));
+    }
+    if (!returnsValue)
+      return;
+    if (call.getDst() != null)
+      store(call.getDst());
+    else
+      emit(POP2);
+  }
+}
@@ -0,0 +1,13 @@
+package crux.backend.jvm;
+
+/**
+ * Thrown by {@link MethodCompiler} when the bytecode of a function does not fit in a JVM method, so
+ * that {@link Jit} runs the program on the {@link crux.ir.ThreadedEmulator} instead.
+ */
+final class MethodTooLargeException extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  MethodTooLargeException(String function) {
+    super(String.format("function %s is too large to compile", function));
+  }
+}
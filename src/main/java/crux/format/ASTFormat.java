@@ -0,0 +1,269 @@
+package crux.format;
+
+import crux.ast.*;
+import crux.ast.SymbolTable.Symbol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes and reads a {@link DeclarationList} in the binary format of {@link BinaryWriter}.
+ * <p>
+ * The body holds the nodes in postorder: each node is its tag, its line, its type (if the AST was
+ * type checked) and its own fields, and follows its children. A missing child is the NULL tag.
+ * Neither side recurses, so the depth of the tree is only bounded by the heap.
+ */
+public final class ASTFormat {
+  private ASTFormat() {}
+
+  private static final int NULL = 0;
+  private static final int DECLARATION_LIST = 1;
+  private static final int STATEMENT_LIST = 2;
+  private static final int FUNCTION_DEFINITION = 3;
+  private static final int VARIABLE_DECLARATION = 4;
+  private static final int ARRAY_DECLARATION = 5;
+  private static final int ASSIGNMENT = 6;
+  private static final int CALL = 7;
+  private static final int IF_ELSE_BRANCH = 8;
+  private static final int FOR = 9;
+  private static final int BREAK = 10;
+  private static final int RETURN = 11;
+  private static final int OP_EXPR = 12;
+  private static final int LITERAL_BOOL = 13;
+  private static final int LITERAL_INT = 14;
+  private static final int VAR_ACCESS = 15;
+  private static final int ARRAY_ACCESS = 16;
+
+  /**
+   * Marks a node whose children have been written.
+   */
+  private static final class Emit {
+    final Node node;
+
+    Emit(Node node) {
+      this.node = node;
+    }
+  }
+
+  public static void write(DeclarationList ast, OutputStream out) throws IOException {
+    var writer = new BinaryWriter();
+    List<Object> stack = new ArrayList<>();
+    stack.add(ast);
+    while (!stack.isEmpty()) {
+      var item = stack.remove(stack.size() - 1);
+      if (item == null) {
+        writer.writeVarint(NULL);
+      } else if (item instanceof Emit) {
+        writeNode(writer, ((Emit) item).node);
+      } else {
+        stack.add(new Emit((Node) item));
+        var children = getChildren((Node) item);
+        for (int i = children.size() - 1; i >= 0; i--) {
+          stack.add(children.get(i));
+        }
+      }
+    }
+    writer.writeTo(out, BinaryWriter.AST);
+  }
+
+  /**
+   * The children in the order they are written, including the missing ones.
+   */
+  private static List<Node> getChildren(Node node) {
+    if (node instanceof ListNode || node instanceof Call)
+      return node.getChildren();
+    if (node instanceof FunctionDefinition)
+      return Arrays.asList(((FunctionDefinition) node).getStatements());
+    if (node instanceof Assignment)
+      return Arrays.asList(((Assignment) node).getLocation(), ((Assignment) node).getValue());
+    if (node instanceof IfElseBranch) {
+      var branch = (IfElseBranch) node;
+      return Arrays.asList(branch.getCondition(), branch.getThenBlock(), branch.getElseBlock());
+    }
+    if (node instanceof For) {
+      var loop = (For) node;
+      return Arrays.asList(loop.getInit(), loop.getCond(), loop.getIncrement(), loop.getBody());
+    }
+    if (node instanceof Return)
+      return Arrays.asList(((Return) node).getValue());
+    if (node instanceof OpExpr)
+      return Arrays.asList(((OpExpr) node).getLeft(), ((OpExpr) node).getRight());
+    if (node instanceof ArrayAccess)
+      return Arrays.asList(((ArrayAccess) node).getIndex());
+    return List.of();
+  }
+
+  private static void writeNode(BinaryWriter writer, Node node) {
+    if (node instanceof DeclarationList) {
+      writeHeader(writer, DECLARATION_LIST, node);
+      writer.writeVarint(node.getChildren().size());
+    } else if (node instanceof StatementList) {
+      writeHeader(writer, STATEMENT_LIST, node);
+      writer.writeVarint(node.getChildren().size());
+    } else if (node instanceof FunctionDefinition) {
+      var function = (FunctionDefinition) node;
+      writeHeader(writer, FUNCTION_DEFINITION, node);
+      writer.writeSymbol(function.getSymbol());
+      writer.writeVarint(function.getParameters().size());
+      for (var parameter : function.getParameters()) {
+        writer.writeSymbol(parameter);
+      }
+    } else if (node instanceof VariableDeclaration) {
+      writeHeader(writer, VARIABLE_DECLARATION, node);
+      writer.writeSymbol(((VariableDeclaration) node).getSymbol());
+    } else if (node instanceof ArrayDeclaration) {
+      writeHeader(writer, ARRAY_DECLARATION, node);
+      writer.writeSymbol(((ArrayDeclaration) node).getSymbol());
+    } else if (node instanceof Assignment) {
+      writeHeader(writer, ASSIGNMENT, node);
+    } else if (node instanceof Call) {
+      writeHeader(writer, CALL, node);
+      writer.writeSymbol(((Call) node).getCallee());
+      writer.writeVarint(((Call) node).getArguments().size());
+    } else if (node instanceof IfElseBranch) {
+      writeHeader(writer, IF_ELSE_BRANCH, node);
+    } else if (node instanceof For) {
+      writeHeader(writer, FOR, node);
+    } else if (node instanceof Break) {
+      writeHeader(writer, BREAK, node);
+    } else if (node instanceof Return) {
+      writeHeader(writer, RETURN, node);
+    } else if (node instanceof OpExpr) {
+      writeHeader(writer, OP_EXPR, node);
+      writer.writeVarint(((OpExpr) node).getOp().ordinal());
+    } else if (node instanceof LiteralBool) {
+      writeHeader(writer, LITERAL_BOOL, node);
+      writer.writeBoolean(((LiteralBool) node).getValue());
+    } else if (node instanceof LiteralInt) {
+      writeHeader(writer, LITERAL_INT, node);
+      writer.writeSignedVarint(((LiteralInt) node).getValue());
+    } else if (node instanceof VarAccess) {
+      writeHeader(writer, VAR_ACCESS, node);
+      writer.writeSymbol(((VarAccess) node).getSymbol());
+    } else if (node instanceof ArrayAccess) {
+      writeHeader(writer, ARRAY_ACCESS, node);
+      writer.writeSymbol(((ArrayAccess) node).getBase());
+    } else {
+      throw new IllegalArgumentException("cannot write node " + node.getClass().getName());
+    }
+  }
+
+  private static void writeHeader(BinaryWriter writer, int tag, Node node) {
+    writer.writeVarint(tag);
+    var position = node.getPosition();
+    writer.writeVarint(position == null ? 0 : position.line + 1L);
+    writer.writeType(((BaseNode) node).getType());
+  }
+
+  public static DeclarationList read(InputStream in) throws IOException {
+    var reader = new BinaryReader(in, BinaryWriter.AST);
+    List<Object> stack = new ArrayList<>();
+    while (!reader.atEnd()) {
+      int tag = reader.readInt();
+      if (tag == NULL) {
+        stack.add(null);
+        continue;
+      }
+      long line = reader.readVarint();
+      var position = line == 0 ? null : new Position((int) (line - 1));
+      var type = reader.readType();
+      var node = readNode(reader, tag, position, stack);
+      node.setType(type);
+      stack.add(node);
+    }
+    if (stack.size() != 1 || !(stack.get(0) instanceof DeclarationList))
+      throw new IOException("malformed AST");
+    return (DeclarationList) stack.get(0);
+  }
+
+  private static BaseNode readNode(BinaryReader reader, int tag, Position position,
+      List<Object> stack) throws IOException {
+    switch (tag) {
+      case DECLARATION_LIST:
+        return new DeclarationList(position, pop(stack, reader.readInt(), Declaration.class));
+      case STATEMENT_LIST:
+        return new StatementList(position, pop(stack, reader.readInt(), Statement.class));
+      case FUNCTION_DEFINITION: {
+        var symbol = reader.readSymbol();
+        List<Symbol> parameters = new ArrayList<>();
+        for (int n = reader.readInt(); n > 0; n--) {
+          parameters.add(reader.readSymbol());
+        }
+        return new FunctionDefinition(position, symbol, parameters,
+            pop(stack, StatementList.class));
+      }
+      case VARIABLE_DECLARATION:
+        return new VariableDeclaration(position, reader.readSymbol());
+      case ARRAY_DECLARATION:
+        return new ArrayDeclaration(position, reader.readSymbol());
+      case ASSIGNMENT: {
+        var value = pop(stack, Expression.class);
+        return new Assignment(position, pop(stack, Expression.class), value);
+      }
+      case CALL: {
+        var callee = reader.readSymbol();
+        return new Call(position, callee, pop(stack, reader.readInt(), Expression.class));
+      }
+      case IF_ELSE_BRANCH: {
+        var elseBlock = pop(stack, StatementList.class);
+        var thenBlock = pop(stack, StatementList.class);
+        return new IfElseBranch(position, pop(stack, Expression.class), thenBlock, elseBlock);
+      }
+      case FOR: {
+        var body = pop(stack, StatementList.class);
+        var increment = pop(stack, Assignment.class);
+        var cond = pop(stack, Expression.class);
+        return new For(position, pop(stack, Assignment.class), cond, increment, body);
+      }
+      case BREAK:
+        return new Break(position);
+      case RETURN:
+        return new Return(position, pop(stack, Expression.class));
+      case OP_EXPR: {
+        var operations = OpExpr.Operation.values();
+        int op = reader.readInt();
+        if (op >= operations.length)
+          throw new IOException("unknown operation " + op);
+        var right = pop(stack, Expression.class);
+        return new OpExpr(position, operations[op], pop(stack, Expression.class), right);
+      }
+      case LITERAL_BOOL:
+        return new LiteralBool(position, reader.readBoolean());
+      case LITERAL_INT:
+        return new LiteralInt(position, reader.readSignedVarint());
+      case VAR_ACCESS:
+        return new VarAccess(position, reader.readSymbol());
+      case ARRAY_ACCESS:
+        return new ArrayAccess(position, reader.readSymbol(), pop(stack, Expression.class));
+      default:
+        throw new IOException("unknown node tag " + tag);
+    }
+  }
+
+  private static <T> T pop(List<Object> stack, Class<T> type) throws IOException {
+    if (stack.isEmpty())
+      throw new IOException("malformed AST: missing child");
+    var item = stack.remove(stack.size() - 1);
+    if (item != null && !type.isInstance(item))
+      throw new IOException(String.format("malformed AST: expected %s, found %s",
+          type.getSimpleName(), item.getClass().getSimpleName()));
+    return type.cast(item);
+  }
+
+  /**
+   * Pops the last n children, in the order they were written.
+   */
+  private static <T> List<T> pop(List<Object> stack, int n, Class<T> type) throws IOException {
+    List<T> items = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      items.add(pop(stack, type));
+    }
+    Collections.reverse(items);
+    return items;
+  }
+}
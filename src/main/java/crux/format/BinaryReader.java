@@ -0,0 +1,248 @@
+package crux.format;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ast.types.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads a file written by a {@link BinaryWriter}, from a stream or from a buffer such as a mapped
+ * file. The constructor checks the header and reads the pools; the body is then read as it is
+ * decoded. A reader on a buffer can start other readers at any position of the body, which share
+ * its pools.
+ * <p>
+ * A malformed file, or one of another kind or version, raises an IOException.
+ */
+public final class BinaryReader {
+  private final InputStream mIn;
+  private final byte[] mBuffer;
+  private int mPosition;
+  private int mLimit;
+  // Read instead of mIn if not null.
+  private final ByteBuffer mBytes;
+
+  private final String[] mStrings;
+  private final Type[] mTypes;
+  private final Symbol[] mSymbols;
+
+  public BinaryReader(InputStream in, int kind) throws IOException {
+    this(in, null, kind);
+  }
+
+  /**
+   * Reads from the position of bytes on; bytes itself is not modified.
+   */
+  public BinaryReader(ByteBuffer bytes, int kind) throws IOException {
+    this(null, bytes.duplicate(), kind);
+  }
+
+  private BinaryReader(BinaryReader pools, ByteBuffer bytes) {
+    mIn = null;
+    mBuffer = null;
+    mBytes = bytes;
+    mStrings = pools.mStrings;
+    mTypes = pools.mTypes;
+    mSymbols = pools.mSymbols;
+  }
+
+  private BinaryReader(InputStream in, ByteBuffer bytes, int kind) throws IOException {
+    mIn = in;
+    mBuffer = bytes == null ? new byte[8192] : null;
+    mBytes = bytes;
+    byte[] magic = new byte[BinaryWriter.MAGIC.length];
+    for (int i = 0; i < magic.length; i++) {
+      magic[i] = (byte) read();
+    }
+    if (!Arrays.equals(magic, BinaryWriter.MAGIC))
+      throw new IOException("not a binary crux file");
+    int fileKind = readInt();
+    if (fileKind != kind)
+      throw new IOException(String.format("expected a file of kind %d, found %d", kind, fileKind));
+    int version = readInt();
+    if (version != BinaryWriter.VERSION)
+      throw new IOException(String.format("unsupported format version %d, expected %d", version,
+          BinaryWriter.VERSION));
+
+    mStrings = new String[readInt()];
+    for (int i = 0; i < mStrings.length; i++) {
+      byte[] utf8 = new byte[readInt()];
+      for (int j = 0; j < utf8.length; j++) {
+        utf8[j] = (byte) read();
+      }
+      mStrings[i] = new String(utf8, StandardCharsets.UTF_8);
+    }
+    mTypes = new Type[readInt()];
+    for (int i = 0; i < mTypes.length; i++) {
+      mTypes[i] = readTypeEntry(i);
+    }
+    mSymbols = new Symbol[readInt()];
+    for (int i = 0; i < mSymbols.length; i++) {
+      mSymbols[i] = Symbol.restore(readString(), readType(), readString());
+    }
+  }
+
+  /**
+   * Whether in starts with the magic bytes of the binary format. The stream must support mark.
+   */
+  public static boolean hasMagic(InputStream in) throws IOException {
+    in.mark(BinaryWriter.MAGIC.length);
+    try {
+      for (var b : BinaryWriter.MAGIC) {
+        if (in.read() != b)
+          return false;
+      }
+      return true;
+    } finally {
+      in.reset();
+    }
+  }
+
+  private Type readTypeEntry(int index) throws IOException {
+    int tag = readInt();
+    switch (tag) {
+      case BinaryWriter.TYPE_INT:
+        return new IntType();
+      case BinaryWriter.TYPE_BOOL:
+        return new BoolType();
+      case BinaryWriter.TYPE_VOID:
+        return new VoidType();
+      case BinaryWriter.TYPE_ARRAY: {
+        long extent = readVarint();
+        return new ArrayType(extent, readType(index));
+      }
+      case BinaryWriter.TYPE_FUNC: {
+        var args = readType(index);
+        if (!(args instanceof TypeList))
+          throw new IOException("malformed function type");
+        return new FuncType((TypeList) args, readType(index));
+      }
+      case BinaryWriter.TYPE_LIST: {
+        List<Type> types = new ArrayList<>();
+        for (int n = readInt(); n > 0; n--) {
+          types.add(readType(index));
+        }
+        return new TypeList(types);
+      }
+      case BinaryWriter.TYPE_ERROR:
+        return new ErrorType(readString());
+      default:
+        throw new IOException("unknown type tag " + tag);
+    }
+  }
+
+  /**
+   * Returns a reader of the same buffer that starts at position; see {@link #getPosition()}.
+   */
+  public BinaryReader at(int position) {
+    if (mBytes == null)
+      throw new IllegalStateException("a stream cannot be read at another position");
+    return new BinaryReader(this, mBytes.duplicate().position(position));
+  }
+
+  /**
+   * The position in the buffer of the next byte to read.
+   */
+  public int getPosition() {
+    if (mBytes == null)
+      throw new IllegalStateException("a stream has no position");
+    return mBytes.position();
+  }
+
+  private int read() throws IOException {
+    if (mBytes != null) {
+      if (!mBytes.hasRemaining())
+        throw new EOFException("unexpected end of binary crux file");
+      return mBytes.get() & 0xFF;
+    }
+    if (mPosition == mLimit) {
+      mLimit = mIn.read(mBuffer, 0, mBuffer.length);
+      mPosition = 0;
+      if (mLimit <= 0) {
+        mLimit = 0;
+        throw new EOFException("unexpected end of binary crux file");
+      }
+    }
+    return mBuffer[mPosition++] & 0xFF;
+  }
+
+  /**
+   * Whether the whole body has been read.
+   */
+  public boolean atEnd() throws IOException {
+    if (mBytes != null)
+      return !mBytes.hasRemaining();
+    if (mPosition < mLimit)
+      return false;
+    mLimit = Math.max(mIn.read(mBuffer, 0, mBuffer.length), 0);
+    mPosition = 0;
+    return mLimit == 0;
+  }
+
+  public long readVarint() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = read();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new IOException("malformed varint");
+  }
+
+  public long readSignedVarint() throws IOException {
+    long value = readVarint();
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * Reads a varint that must fit in a non-negative int, such as a count or an index.
+   */
+  public int readInt() throws IOException {
+    long value = readVarint();
+    if (value < 0 || value > Integer.MAX_VALUE)
+      throw new IOException("value out of range: " + value);
+    return (int) value;
+  }
+
+  public boolean readBoolean() throws IOException {
+    int b = read();
+    if (b > 1)
+      throw new IOException("malformed boolean " + b);
+    return b == 1;
+  }
+
+  public String readString() throws IOException {
+    int id = readInt();
+    if (id > mStrings.length)
+      throw new IOException("string index out of range: " + id);
+    return id == 0 ? null : mStrings[id - 1];
+  }
+
+  public Type readType() throws IOException {
+    return readType(mTypes.length);
+  }
+
+  public Symbol readSymbol() throws IOException {
+    int id = readInt();
+    if (id > mSymbols.length)
+      throw new IOException("symbol index out of range: " + id);
+    return id == 0 ? null : mSymbols[id - 1];
+  }
+
+  /**
+   * Reads a reference to one of the first limit types.
+   */
+  private Type readType(int limit) throws IOException {
+    int id = readInt();
+    if (id > limit)
+      throw new IOException("type index out of range: " + id);
+    return id == 0 ? null : mTypes[id - 1];
+  }
+}
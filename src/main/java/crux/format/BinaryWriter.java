@@ -0,0 +1,234 @@
+package crux.format;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ast.types.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Builds a file in the binary format of {@link ASTFormat} and {@link IRFormat}.
+ * <p>
+ * A file is a header, the string, type and symbol pools, and a body. The header is the magic
+ * bytes, the kind of file and the format version. Integers are unsigned LEB128 varints, signed ones
+ * zigzag encoded first. The body refers to a string, type or symbol by its index in the pool plus
+ * one, and to null by 0; every pool entry only refers to entries before it, so a reader can build
+ * the pools in one pass before it streams the body.
+ * <p>
+ * The body is collected in memory, since the pools are only complete once it is written.
+ */
+public final class BinaryWriter {
+  static final byte[] MAGIC = {'C', 'R', 'X', 'B'};
+  /**
+   * Bumped whenever the encoding changes; a file of another version is rejected.
+   */
+  public static final int VERSION = 2;
+  public static final int AST = 1;
+  public static final int IR = 2;
+
+  static final int TYPE_INT = 0;
+  static final int TYPE_BOOL = 1;
+  static final int TYPE_VOID = 2;
+  static final int TYPE_ARRAY = 3;
+  static final int TYPE_FUNC = 4;
+  static final int TYPE_LIST = 5;
+  static final int TYPE_ERROR = 6;
+
+  /**
+   * A growable byte array.
+   */
+  private static final class Buffer {
+    private byte[] mBytes = new byte[4096];
+    private int mSize;
+
+    void write(int b) {
+      if (mSize == mBytes.length)
+        mBytes = Arrays.copyOf(mBytes, mSize * 2);
+      mBytes[mSize++] = (byte) b;
+    }
+
+    void write(byte[] bytes) {
+      if (mSize + bytes.length > mBytes.length)
+        mBytes = Arrays.copyOf(mBytes, Math.max(mSize * 2, mSize + bytes.length));
+      System.arraycopy(bytes, 0, mBytes, mSize, bytes.length);
+      mSize += bytes.length;
+    }
+
+    void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        write((int) (value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    byte[] cut(int start) {
+      var bytes = Arrays.copyOfRange(mBytes, start, mSize);
+      mSize = start;
+      return bytes;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      out.write(mBytes, 0, mSize);
+    }
+  }
+
+  private final Buffer mBody = new Buffer();
+  private final HashMap<String, Integer> mStringIds = new HashMap<>();
+  private final List<String> mStrings = new ArrayList<>();
+  private final IdentityHashMap<Type, Integer> mTypeIds = new IdentityHashMap<>();
+  // Equal types are written once; the key is the tag followed by the ids of the parts.
+  private final HashMap<List<Object>, Integer> mTypeKeys = new HashMap<>();
+  private final List<List<Object>> mTypes = new ArrayList<>();
+  private final IdentityHashMap<Symbol, Integer> mSymbolIds = new IdentityHashMap<>();
+  private final List<Symbol> mSymbols = new ArrayList<>();
+
+  public void writeVarint(long value) {
+    mBody.writeVarint(value);
+  }
+
+  public void writeSignedVarint(long value) {
+    mBody.writeVarint((value << 1) ^ (value >> 63));
+  }
+
+  public void writeBoolean(boolean value) {
+    mBody.write(value ? 1 : 0);
+  }
+
+  public void writeBytes(byte[] bytes) {
+    mBody.write(bytes);
+  }
+
+  /**
+   * The number of bytes written to the body so far.
+   */
+  public int size() {
+    return mBody.mSize;
+  }
+
+  /**
+   * Removes what was written to the body since it had start bytes and returns it, so that it can be
+   * written again after its length. The pools keep what it refers to.
+   */
+  public byte[] cut(int start) {
+    return mBody.cut(start);
+  }
+
+  public void writeString(String s) {
+    mBody.writeVarint(internString(s));
+  }
+
+  public void writeType(Type type) {
+    mBody.writeVarint(internType(type));
+  }
+
+  public void writeSymbol(Symbol symbol) {
+    mBody.writeVarint(internSymbol(symbol));
+  }
+
+  private int internString(String s) {
+    if (s == null)
+      return 0;
+    var id = mStringIds.get(s);
+    if (id == null) {
+      mStrings.add(s);
+      id = mStrings.size();
+      mStringIds.put(s, id);
+    }
+    return id;
+  }
+
+  private int internType(Type type) {
+    if (type == null)
+      return 0;
+    var id = mTypeIds.get(type);
+    if (id != null)
+      return id;
+    List<Object> key = new ArrayList<>();
+    if (type instanceof IntType) {
+      key.add(TYPE_INT);
+    } else if (type instanceof BoolType) {
+      key.add(TYPE_BOOL);
+    } else if (type instanceof VoidType) {
+      key.add(TYPE_VOID);
+    } else if (type instanceof ArrayType) {
+      key.addAll(List.of(TYPE_ARRAY, ((ArrayType) type).getExtent(),
+          internType(((ArrayType) type).getBase())));
+    } else if (type instanceof FuncType) {
+      key.addAll(List.of(TYPE_FUNC, internType(((FuncType) type).getArgs()),
+          internType(((FuncType) type).getRet())));
+    } else if (type instanceof TypeList) {
+      key.add(TYPE_LIST);
+      for (var t : (TypeList) type) {
+        key.add(internType(t));
+      }
+    } else if (type instanceof ErrorType) {
+      key.addAll(List.of(TYPE_ERROR, internString(((ErrorType) type).getMessage())));
+    } else {
+      throw new IllegalArgumentException("cannot write type " + type.getClass().getName());
+    }
+    id = mTypeKeys.get(key);
+    if (id == null) {
+      mTypes.add(key);
+      id = mTypes.size();
+      mTypeKeys.put(key, id);
+    }
+    mTypeIds.put(type, id);
+    return id;
+  }
+
+  private int internSymbol(Symbol symbol) {
+    if (symbol == null)
+      return 0;
+    var id = mSymbolIds.get(symbol);
+    if (id == null) {
+      // The parts first, so they precede the symbol in their pools.
+      internString(symbol.getName());
+      internType(symbol.getType());
+      internString(symbol.getError());
+      mSymbols.add(symbol);
+      id = mSymbols.size();
+      mSymbolIds.put(symbol, id);
+    }
+    return id;
+  }
+
+  /**
+   * Writes the header, the pools and the body written so far to out.
+   */
+  public void writeTo(OutputStream out, int kind) throws IOException {
+    var head = new Buffer();
+    head.write(MAGIC);
+    head.writeVarint(kind);
+    head.writeVarint(VERSION);
+
+    head.writeVarint(mStrings.size());
+    for (var s : mStrings) {
+      var bytes = s.getBytes(StandardCharsets.UTF_8);
+      head.writeVarint(bytes.length);
+      head.write(bytes);
+    }
+    head.writeVarint(mTypes.size());
+    for (var key : mTypes) {
+      int tag = (Integer) key.get(0);
+      head.writeVarint(tag);
+      if (tag == TYPE_LIST)
+        head.writeVarint(key.size() - 1);
+      for (int i = 1; i < key.size(); i++) {
+        head.writeVarint(((Number) key.get(i)).longValue());
+      }
+    }
+    head.writeVarint(mSymbols.size());
+    for (var symbol : mSymbols) {
+      head.writeVarint(internString(symbol.getName()));
+      head.writeVarint(internType(symbol.getType()));
+      head.writeVarint(internString(symbol.getError()));
+    }
+
+    head.writeTo(out);
+    mBody.writeTo(out);
+    out.flush();
+  }
+}
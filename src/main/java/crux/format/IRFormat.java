@@ -0,0 +1,495 @@
+package crux.format;
+
+import crux.ast.types.FuncType;
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Writes and reads a {@link Program} in the binary format of {@link BinaryWriter}.
+ * <p>
+ * The body holds the globals, an index with the name and size of each function, and then the
+ * functions, so that {@link #map} can find a function without decoding the ones before it. A
+ * function is its name, type, SSA flag, temp counters and arguments, followed by its instruction
+ * table: every instruction that can be reached from the start, the start first. An instruction is
+ * its tag, its fields and its successors, which like the incoming edges of a phi are indices into
+ * the table plus one, 0 for none.
+ * <p>
+ * Variables are numbered per function in the order they first appear; the first appearance also
+ * holds the kind, name and type. Constants are written by value and read back into the pools of the
+ * new program.
+ */
+public final class IRFormat {
+  private IRFormat() {}
+
+  private static final int ADDRESS_AT = 0;
+  private static final int BINARY_OPERATOR = 1;
+  private static final int CALL = 2;
+  private static final int COMPARE = 3;
+  private static final int COPY = 4;
+  private static final int JUMP = 5;
+  private static final int LOAD = 6;
+  private static final int NOP = 7;
+  private static final int PHI = 8;
+  private static final int RETURN = 9;
+  private static final int STORE = 10;
+  private static final int UNARY_NOT = 11;
+
+  private static final int VALUE_VARIABLE = 0;
+  private static final int VALUE_INT = 1;
+  private static final int VALUE_BOOL = 2;
+
+  private static final int LOCAL_VAR = 0;
+  private static final int ADDRESS_VAR = 1;
+
+  public static void write(Program program, OutputStream out) throws IOException {
+    var writer = new BinaryWriter();
+    List<GlobalDecl> globals = new ArrayList<>();
+    program.getGlobals().forEachRemaining(globals::add);
+    writer.writeVarint(globals.size());
+    for (var global : globals) {
+      writer.writeSymbol(global.getSymbol());
+      writer.writeSignedVarint(global.getNumElement().getValue());
+    }
+    List<Function> functions = new ArrayList<>();
+    program.getFunctions().forEachRemaining(functions::add);
+    List<byte[]> bodies = new ArrayList<>();
+    for (var f : functions) {
+      int start = writer.size();
+      new FunctionWriter(writer).write(f);
+      bodies.add(writer.cut(start));
+    }
+    writer.writeVarint(functions.size());
+    for (int i = 0; i < functions.size(); i++) {
+      writer.writeString(functions.get(i).getName());
+      writer.writeVarint(bodies.get(i).length);
+    }
+    for (var body : bodies) {
+      writer.writeBytes(body);
+    }
+    writer.writeTo(out, BinaryWriter.IR);
+  }
+
+  /**
+   * Returns the instructions that can be reached from the start of f, in the order they are
+   * written.
+   */
+  static List<Instruction> getInstructions(Function f) {
+    List<Instruction> instructions = new ArrayList<>();
+    if (f.getStart() == null)
+      return instructions;
+    HashSet<Instruction> seen = new HashSet<>();
+    Deque<Instruction> work = new ArrayDeque<>();
+    work.push(f.getStart());
+    while (!work.isEmpty()) {
+      var inst = work.pop();
+      if (!seen.add(inst))
+        continue;
+      instructions.add(inst);
+      List<Instruction> targets = new ArrayList<>();
+      for (int i = 0; i < inst.numNext(); i++) {
+        targets.add(inst.getNext(i));
+      }
+      if (inst instanceof PhiInst)
+        targets.addAll(((PhiInst) inst).getIncoming());
+      // The fall through edge is visited first, so straight-line code stays in order.
+      for (int i = targets.size() - 1; i >= 0; i--) {
+        if (targets.get(i) != null && !seen.contains(targets.get(i)))
+          work.push(targets.get(i));
+      }
+    }
+    return instructions;
+  }
+
+  private static final class FunctionWriter {
+    private final BinaryWriter mWriter;
+    private final IdentityHashMap<Variable, Integer> mVariables = new IdentityHashMap<>();
+    private final HashMap<Instruction, Integer> mIndices = new HashMap<>();
+
+    FunctionWriter(BinaryWriter writer) {
+      mWriter = writer;
+    }
+
+    void write(Function f) {
+      mWriter.writeString(f.getName());
+      mWriter.writeType(f.getFuncType());
+      mWriter.writeBoolean(f.isSSA());
+      mWriter.writeVarint(f.getNumTempVars());
+      mWriter.writeVarint(f.getNumTempAddressVars());
+      var args = f.getArguments();
+      mWriter.writeVarint(args.size());
+      for (var arg : args) {
+        writeVariable(arg);
+      }
+
+      var instructions = getInstructions(f);
+      for (var inst : instructions) {
+        mIndices.put(inst, mIndices.size());
+      }
+      mWriter.writeVarint(instructions.size());
+      for (var inst : instructions) {
+        writeInstruction(inst);
+        mWriter.writeVarint(inst.numNext());
+        for (int i = 0; i < inst.numNext(); i++) {
+          writeIndex(inst.getNext(i));
+        }
+      }
+    }
+
+    private void writeIndex(Instruction inst) {
+      mWriter.writeVarint(inst == null ? 0 : mIndices.get(inst) + 1);
+    }
+
+    private void writeVariable(Variable v) {
+      if (v == null) {
+        mWriter.writeVarint(0);
+        return;
+      }
+      var id = mVariables.get(v);
+      if (id != null) {
+        mWriter.writeVarint(id + 1);
+        return;
+      }
+      // The next unused id introduces a new variable.
+      id = mVariables.size();
+      mVariables.put(v, id);
+      mWriter.writeVarint(id + 1);
+      mWriter.writeVarint(v instanceof AddressVar ? ADDRESS_VAR : LOCAL_VAR);
+      // The name without the '$' or '%' the constructor adds.
+      mWriter.writeString(v.getName().isEmpty() ? "" : v.getName().substring(1));
+      mWriter.writeType(v.getType());
+    }
+
+    private void writeValue(Value value) {
+      if (value instanceof IntegerConstant) {
+        mWriter.writeVarint(VALUE_INT);
+        mWriter.writeSignedVarint(((IntegerConstant) value).getValue());
+      } else if (value instanceof BooleanConstant) {
+        mWriter.writeVarint(VALUE_BOOL);
+        mWriter.writeBoolean(((BooleanConstant) value).getValue());
+      } else {
+        mWriter.writeVarint(VALUE_VARIABLE);
+        writeVariable((Variable) value);
+      }
+    }
+
+    private void writeInstruction(Instruction inst) {
+      if (inst instanceof AddressAt) {
+        var at = (AddressAt) inst;
+        mWriter.writeVarint(ADDRESS_AT);
+        writeVariable(at.getDst());
+        mWriter.writeSymbol(at.getBase());
+        writeVariable(at.getOffset());
+      } else if (inst instanceof BinaryOperator) {
+        var op = (BinaryOperator) inst;
+        mWriter.writeVarint(BINARY_OPERATOR);
+        mWriter.writeVarint(op.getOperator().ordinal());
+        writeVariable(op.getDst());
+        writeVariable(op.getLeftOperand());
+        writeVariable(op.getRightOperand());
+      } else if (inst instanceof CallInst) {
+        var call = (CallInst) inst;
+        mWriter.writeVarint(CALL);
+        writeVariable(call.getDst());
+        mWriter.writeSymbol(call.getCallee());
+        mWriter.writeVarint(call.getParams().size());
+        for (var param : call.getParams()) {
+          writeVariable(param);
+        }
+      } else if (inst instanceof CompareInst) {
+        var cmp = (CompareInst) inst;
+        mWriter.writeVarint(COMPARE);
+        mWriter.writeVarint(cmp.getPredicate().ordinal());
+        writeVariable(cmp.getDst());
+        writeVariable(cmp.getLeftOperand());
+        writeVariable(cmp.getRightOperand());
+      } else if (inst instanceof CopyInst) {
+        mWriter.writeVarint(COPY);
+        writeVariable(((CopyInst) inst).getDstVar());
+        writeValue(((CopyInst) inst).getSrcValue());
+      } else if (inst instanceof JumpInst) {
+        mWriter.writeVarint(JUMP);
+        writeVariable(((JumpInst) inst).getPredicate());
+      } else if (inst instanceof LoadInst) {
+        mWriter.writeVarint(LOAD);
+        writeVariable(((LoadInst) inst).getDst());
+        writeVariable(((LoadInst) inst).getSrcAddress());
+      } else if (inst instanceof NopInst) {
+        mWriter.writeVarint(NOP);
+      } else if (inst instanceof PhiInst) {
+        var phi = (PhiInst) inst;
+        mWriter.writeVarint(PHI);
+        writeVariable(phi.getDst());
+        var incoming = phi.getIncoming();
+        mWriter.writeVarint(incoming.size());
+        for (int i = 0; i < incoming.size(); i++) {
+          writeIndex(incoming.get(i));
+          writeValue(phi.getOperands().get(i));
+        }
+      } else if (inst instanceof ReturnInst) {
+        mWriter.writeVarint(RETURN);
+        writeVariable(((ReturnInst) inst).getReturnValue());
+      } else if (inst instanceof StoreInst) {
+        mWriter.writeVarint(STORE);
+        writeVariable(((StoreInst) inst).getSrcValue());
+        writeVariable(((StoreInst) inst).getDestAddress());
+      } else if (inst instanceof UnaryNotInst) {
+        mWriter.writeVarint(UNARY_NOT);
+        writeVariable(((UnaryNotInst) inst).getDst());
+        writeVariable(((UnaryNotInst) inst).getInner());
+      } else {
+        throw new IllegalArgumentException("cannot write instruction " + inst.getClass().getName());
+      }
+    }
+  }
+
+  public static Program read(InputStream in) throws IOException {
+    var reader = new BinaryReader(in, BinaryWriter.IR);
+    var program = new Program();
+    readGlobals(reader, program);
+    // The functions follow each other, so the index is not needed.
+    int n = reader.readInt();
+    for (int i = 0; i < n; i++) {
+      reader.readString();
+      reader.readInt();
+    }
+    for (int i = 0; i < n; i++) {
+      program.addFunction(new FunctionReader(reader, program).read());
+    }
+    if (!reader.atEnd())
+      throw new IOException("malformed IR: data after the last function");
+    return program;
+  }
+
+  /**
+   * Maps the file at path into memory and returns its program, whose functions are only decoded when
+   * they are first needed. A function that turns out to be malformed then raises an
+   * UncheckedIOException.
+   */
+  public static Program map(Path path) throws IOException {
+    ByteBuffer bytes;
+    try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    var reader = new BinaryReader(bytes, BinaryWriter.IR);
+    var program = new Program();
+    readGlobals(reader, program);
+    int n = reader.readInt();
+    String[] names = new String[n];
+    int[] sizes = new int[n];
+    for (int i = 0; i < n; i++) {
+      names[i] = reader.readString();
+      sizes[i] = reader.readInt();
+    }
+    long position = reader.getPosition();
+    for (int i = 0; i < n; i++) {
+      var name = names[i];
+      var start = (int) position;
+      program.addFunction(name, () -> {
+        try {
+          return new FunctionReader(reader.at(start), program).read();
+        } catch (IOException e) {
+          throw new UncheckedIOException(String.format("cannot read function %s", name), e);
+        }
+      });
+      position += sizes[i];
+    }
+    if (position != bytes.limit())
+      throw new IOException("malformed IR: the functions do not match the index");
+    return program;
+  }
+
+  private static void readGlobals(BinaryReader reader, Program program) throws IOException {
+    for (int n = reader.readInt(); n > 0; n--) {
+      var symbol = reader.readSymbol();
+      program.addGlobalVar(
+          new GlobalDecl(symbol, IntegerConstant.get(program, reader.readSignedVarint())));
+    }
+  }
+
+  private static final class FunctionReader {
+    private final BinaryReader mReader;
+    private final Program mProgram;
+    private final List<Variable> mVariables = new ArrayList<>();
+    private Instruction[] mInstructions;
+    // The incoming edges of each phi, resolved once all instructions exist.
+    private final Map<PhiInst, int[]> mIncoming = new HashMap<>();
+    private final Map<PhiInst, Value[]> mValues = new HashMap<>();
+
+    FunctionReader(BinaryReader reader, Program program) {
+      mReader = reader;
+      mProgram = program;
+    }
+
+    Function read() throws IOException {
+      var name = mReader.readString();
+      var type = mReader.readType();
+      if (!(type instanceof FuncType))
+        throw new IOException("malformed IR: function without a function type");
+      var f = new Function(name, (FuncType) type);
+      f.setSSA(mReader.readBoolean());
+      f.setNumTemps(mReader.readInt(), mReader.readInt());
+      List<LocalVar> args = new ArrayList<>();
+      for (int n = mReader.readInt(); n > 0; n--) {
+        args.add(readVariable(LocalVar.class));
+      }
+      f.setArguments(args);
+
+      mInstructions = new Instruction[mReader.readInt()];
+      int[][] next = new int[mInstructions.length][];
+      for (int i = 0; i < mInstructions.length; i++) {
+        mInstructions[i] = readInstruction();
+        next[i] = new int[mReader.readInt()];
+        for (int j = 0; j < next[i].length; j++) {
+          next[i][j] = mReader.readInt();
+        }
+      }
+      for (int i = 0; i < mInstructions.length; i++) {
+        for (int j = 0; j < next[i].length; j++) {
+          mInstructions[i].setNext(j, getInstruction(next[i][j]));
+        }
+      }
+      for (var entry : mIncoming.entrySet()) {
+        var phi = entry.getKey();
+        var values = mValues.get(phi);
+        for (int i = 0; i < values.length; i++) {
+          phi.addIncoming(getInstruction(entry.getValue()[i]), values[i]);
+        }
+      }
+      if (mInstructions.length > 0)
+        f.setStart(mInstructions[0]);
+      return f;
+    }
+
+    private Instruction getInstruction(int index) throws IOException {
+      if (index > mInstructions.length)
+        throw new IOException("malformed IR: instruction index out of range: " + index);
+      return index == 0 ? null : mInstructions[index - 1];
+    }
+
+    private <T extends Variable> T readVariable(Class<T> kind) throws IOException {
+      int id = mReader.readInt();
+      if (id == 0)
+        return null;
+      Variable v;
+      if (id <= mVariables.size()) {
+        v = mVariables.get(id - 1);
+      } else if (id == mVariables.size() + 1) {
+        int varKind = mReader.readInt();
+        var name = mReader.readString();
+        var type = mReader.readType();
+        if (varKind == ADDRESS_VAR)
+          v = name.isEmpty() ? new AddressVar(type) : new AddressVar(type, name);
+        else
+          v = name.isEmpty() ? new LocalVar(type) : new LocalVar(type, name);
+        mVariables.add(v);
+      } else {
+        throw new IOException("malformed IR: variable index out of range: " + id);
+      }
+      if (!kind.isInstance(v))
+        throw new IOException(String.format("malformed IR: %s is not a %s", v.getName(),
+            kind.getSimpleName()));
+      return kind.cast(v);
+    }
+
+    private Value readValue() throws IOException {
+      int kind = mReader.readInt();
+      switch (kind) {
+        case VALUE_VARIABLE:
+          return readVariable(Variable.class);
+        case VALUE_INT:
+          return IntegerConstant.get(mProgram, mReader.readSignedVarint());
+        case VALUE_BOOL:
+          return BooleanConstant.get(mProgram, mReader.readBoolean());
+        default:
+          throw new IOException("malformed IR: unknown value kind " + kind);
+      }
+    }
+
+    private <E extends Enum<E>> E readEnum(E[] values) throws IOException {
+      int ordinal = mReader.readInt();
+      if (ordinal >= values.length)
+        throw new IOException("malformed IR: unknown operator " + ordinal);
+      return values[ordinal];
+    }
+
+    private Instruction readInstruction() throws IOException {
+      int tag = mReader.readInt();
+      switch (tag) {
+        case ADDRESS_AT: {
+          var dst = readVariable(AddressVar.class);
+          var base = mReader.readSymbol();
+          var offset = readVariable(LocalVar.class);
+          return offset == null ? new AddressAt(dst, base) : new AddressAt(dst, base, offset);
+        }
+        case BINARY_OPERATOR: {
+          var op = readEnum(BinaryOperator.Op.values());
+          var dst = readVariable(LocalVar.class);
+          var left = readVariable(LocalVar.class);
+          return new BinaryOperator(op, dst, left, readVariable(LocalVar.class));
+        }
+        case CALL: {
+          var dst = readVariable(LocalVar.class);
+          var callee = mReader.readSymbol();
+          List<LocalVar> params = new ArrayList<>();
+          for (int n = mReader.readInt(); n > 0; n--) {
+            params.add(readVariable(LocalVar.class));
+          }
+          return dst == null ? new CallInst(callee, params) : new CallInst(dst, callee, params);
+        }
+        case COMPARE: {
+          var predicate = readEnum(CompareInst.Predicate.values());
+          var dst = readVariable(LocalVar.class);
+          var left = readVariable(LocalVar.class);
+          return new CompareInst(dst, predicate, left, readVariable(LocalVar.class));
+        }
+        case COPY: {
+          var dst = readVariable(LocalVar.class);
+          return new CopyInst(dst, readValue());
+        }
+        case JUMP:
+          return new JumpInst(readVariable(LocalVar.class));
+        case LOAD: {
+          var dst = readVariable(LocalVar.class);
+          return new LoadInst(dst, readVariable(AddressVar.class));
+        }
+        case NOP:
+          return new NopInst();
+        case PHI: {
+          var phi = new PhiInst(readVariable(LocalVar.class), List.of(), List.of());
+          int n = mReader.readInt();
+          int[] incoming = new int[n];
+          Value[] values = new Value[n];
+          for (int i = 0; i < n; i++) {
+            incoming[i] = mReader.readInt();
+            values[i] = readValue();
+          }
+          mIncoming.put(phi, incoming);
+          mValues.put(phi, values);
+          return phi;
+        }
+        case RETURN:
+          return new ReturnInst(readVariable(LocalVar.class));
+        case STORE: {
+          var src = readVariable(LocalVar.class);
+          return new StoreInst(src, readVariable(AddressVar.class));
+        }
+        case UNARY_NOT: {
+          var dst = readVariable(LocalVar.class);
+          return new UnaryNotInst(dst, readVariable(LocalVar.class));
+        }
+        default:
+          throw new IOException("malformed IR: unknown instruction tag " + tag);
+      }
+    }
+  }
+}
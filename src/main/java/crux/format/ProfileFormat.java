@@ -0,0 +1,110 @@
+package crux.format;
+
+import crux.ir.ExecutionProfile;
+import crux.ir.Function;
+import crux.ir.Instruction;
+import crux.ir.Program;
+import crux.ir.insts.JumpInst;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the counts of an {@link ExecutionProfile} to a text file and attaches them to the
+ * instructions of a later compilation of the same program.
+ * <p>
+ * The profile is taken on the IR as it is lowered, before any pass, and read back into IR that was
+ * just lowered, so it does not depend on the options of either compilation. An instruction is
+ * named by its function and its position in the blocks of the function's CFG. After the header
+ * line each function has a line {@code function <name> <calls> <instructions>}, followed by
+ * {@code <position> <count>} for every instruction that ran; a jump adds how often it was taken. A
+ * function whose instruction count differs was changed since the profile was taken and is left
+ * without counts.
+ */
+public final class ProfileFormat {
+  private ProfileFormat() {}
+
+  private static final String HEADER = "crux profile 1";
+
+  public static void write(Program program, ExecutionProfile profile, OutputStream out) {
+    var writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out,
+        StandardCharsets.UTF_8)));
+    writer.println(HEADER);
+    for (var it = program.getFunctions(); it.hasNext();) {
+      var f = it.next();
+      if (f.getStart() == null)
+        continue;
+      var instructions = getInstructions(f);
+      writer.printf("function %s %d %d%n", f.getName(), profile.getEntryCount(f),
+          instructions.size());
+      for (int i = 0; i < instructions.size(); i++) {
+        var inst = instructions.get(i);
+        long count = profile.getCount(inst);
+        if (count == 0)
+          continue;
+        if (inst instanceof JumpInst)
+          writer.printf("%d %d %d%n", i, count, profile.getTakenCount((JumpInst) inst));
+        else
+          writer.printf("%d %d%n", i, count);
+      }
+    }
+    writer.flush();
+  }
+
+  /**
+   * Sets the counts of the profile in in on the functions of program, which must not have been
+   * transformed since lowering, and marks them profiled. Returns the names of the functions in the
+   * profile that do not match the program.
+   */
+  public static List<String> read(Program program, InputStream in) throws IOException {
+    var reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    if (!HEADER.equals(reader.readLine()))
+      throw new IOException("not a crux profile");
+    List<String> mismatched = new ArrayList<>();
+    List<Instruction> instructions = null;
+    String line;
+    int lineNumber = 1;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      var fields = line.trim().split(" ");
+      try {
+        if (fields[0].equals("function")) {
+          if (fields.length != 4)
+            throw new IOException(String.format("malformed profile: line %d", lineNumber));
+          var f = program.getFunction(fields[1]);
+          instructions = f == null || f.getStart() == null ? null : getInstructions(f);
+          if (instructions == null || instructions.size() != Integer.parseInt(fields[3])) {
+            mismatched.add(fields[1]);
+            instructions = null;
+            continue;
+          }
+          f.setEntryCount(Long.parseLong(fields[2]));
+          f.setProfiled(true);
+        } else if (instructions != null) {
+          if (fields.length < 2 || fields.length > 3)
+            throw new IOException(String.format("malformed profile: line %d", lineNumber));
+          int index = Integer.parseInt(fields[0]);
+          if (index < 0 || index >= instructions.size())
+            throw new IOException(String.format("malformed profile: line %d", lineNumber));
+          var inst = instructions.get(index);
+          inst.setCount(Long.parseLong(fields[1]));
+          if (fields.length == 3 && inst instanceof JumpInst)
+            ((JumpInst) inst).setTakenCount(Long.parseLong(fields[2]));
+        }
+      } catch (NumberFormatException e) {
+        throw new IOException(String.format("malformed profile: line %d", lineNumber), e);
+      }
+    }
+    return mismatched;
+  }
+
+  private static List<Instruction> getInstructions(Function f) {
+    List<Instruction> instructions = new ArrayList<>();
+    for (var block : f.getCFG().getBlocks()) {
+      instructions.addAll(block.getInstructions());
+    }
+    return instructions;
+  }
+}
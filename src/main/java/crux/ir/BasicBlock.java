@@ -0,0 +1,86 @@
+package crux.ir;
+
+import java.util.List;
+
+/**
+ * A maximal straight-line run of instructions in a {@link Function}. Control only enters at the
+ * first instruction and only leaves at the last one.
+ * <p>
+ * Blocks are created by {@link ControlFlowGraph} and are numbered in reverse postorder, so
+ * {@link #getId()} can be used to index arrays of per-block data. The successors keep the order of
+ * the last instruction's edges: for a {@link crux.ir.insts.JumpInst} successor 0 is the false
+ * branch and successor 1 the true branch.
+ */
+public final class BasicBlock {
+  private final int mId;
+  private final List<Instruction> mInstructions;
+  BasicBlock[] mPredecessors;
+  BasicBlock[] mSuccessors;
+  BasicBlock mIdom;
+
+  BasicBlock(int id, List<Instruction> instructions) {
+    mId = id;
+    mInstructions = List.copyOf(instructions);
+  }
+
+  public int getId() {
+    return mId;
+  }
+
+  public List<Instruction> getInstructions() {
+    return mInstructions;
+  }
+
+  public Instruction getFirst() {
+    return mInstructions.get(0);
+  }
+
+  public Instruction getLast() {
+    return mInstructions.get(mInstructions.size() - 1);
+  }
+
+  /**
+   * How often the block ran in the profile of its function: the largest count of its instructions,
+   * so an instruction a pass added without a count does not make the block look cold.
+   */
+  public long getCount() {
+    long count = 0;
+    for (var inst : mInstructions) {
+      count = Math.max(count, inst.getCount());
+    }
+    return count;
+  }
+
+  public BasicBlock[] getPredecessors() {
+    return mPredecessors;
+  }
+
+  public BasicBlock[] getSuccessors() {
+    return mSuccessors;
+  }
+
+  /**
+   * Returns the immediate dominator, or null for the entry block.
+   */
+  public BasicBlock getImmediateDominator() {
+    return mIdom;
+  }
+
+  /**
+   * Returns true if every path from the entry to other passes through this block. A block
+   * dominates itself.
+   */
+  public boolean dominates(BasicBlock other) {
+    // Dominators always come earlier in reverse postorder, so the walk up can stop early.
+    for (var b = other; b != null && b.mId >= mId; b = b.mIdom) {
+      if (b == this)
+        return true;
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return "B" + mId;
+  }
+}
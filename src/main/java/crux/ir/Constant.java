@@ -2,15 +2,20 @@ package crux.ir;
 
 import crux.ast.types.Type;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * A constant represents any kind of constant value. In our language that is integers and booleans.
  */
 public abstract class Constant extends Value {
-  protected static Map<Program, Map<Long, IntegerConstant>> mIntConstantPool = new HashMap<>();
-  protected static Map<Program, Map<Boolean, BooleanConstant>> mBoolConstantPool = new HashMap<>();
+  // Passes of different functions can create constants at the same time. The keys are weak so that
+  // a compiler that keeps running, such as the server, does not keep every program it compiled.
+  protected static Map<Program, Map<Long, IntegerConstant>> mIntConstantPool =
+      Collections.synchronizedMap(new WeakHashMap<>());
+  protected static Map<Program, Map<Boolean, BooleanConstant>> mBoolConstantPool =
+      Collections.synchronizedMap(new WeakHashMap<>());
 
   protected Constant(Type type) {
     super(type);
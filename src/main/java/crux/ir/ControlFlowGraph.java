@@ -0,0 +1,246 @@
+package crux.ir;
+
+import crux.ir.insts.ReturnInst;
+
+import java.util.*;
+
+/**
+ * The basic-block view of a {@link Function}'s instruction graph. It is built once per function
+ * (see {@link Function#getCFG()}) and holds the blocks in reverse postorder together with their
+ * predecessor and successor arrays and the dominator tree.
+ * <p>
+ * Only instructions reachable from the start of the function are part of the graph. Edges leaving
+ * a {@link ReturnInst} are ignored, since control never continues past a return.
+ * <p>
+ * The graph is a snapshot: a pass that relinks instructions must call
+ * {@link Function#invalidateCFG()} so the next user rebuilds it.
+ */
+public final class ControlFlowGraph {
+  private final List<BasicBlock> mBlocks;
+  private final HashMap<Instruction, BasicBlock> mBlockOf = new HashMap<>();
+  private List<List<BasicBlock>> mFrontiers;
+  private List<List<BasicBlock>> mDomChildren;
+
+  ControlFlowGraph(Function f) {
+    mBlocks = new ArrayList<>();
+    if (f.getStart() == null)
+      return;
+
+    // Count the predecessors of every reachable instruction.
+    HashMap<Instruction, Integer> predCount = new HashMap<>();
+    List<Instruction> reachable = new ArrayList<>();
+    Stack<Instruction> tovisit = new Stack<>();
+    tovisit.push(f.getStart());
+    predCount.put(f.getStart(), 0);
+    while (!tovisit.isEmpty()) {
+      Instruction inst = tovisit.pop();
+      reachable.add(inst);
+      for (Instruction next : successors(inst)) {
+        if (!predCount.containsKey(next)) {
+          predCount.put(next, 0);
+          tovisit.push(next);
+        }
+        predCount.put(next, predCount.get(next) + 1);
+      }
+    }
+
+    // A block starts at the entry, at merge points and at the targets of branches.
+    HashSet<Instruction> leaders = new HashSet<>();
+    leaders.add(f.getStart());
+    for (Instruction inst : reachable) {
+      var succs = successors(inst);
+      for (Instruction next : succs) {
+        if (succs.size() != 1 || predCount.get(next) != 1)
+          leaders.add(next);
+      }
+    }
+
+    // Collect the instructions of every block.
+    HashMap<Instruction, List<Instruction>> bodies = new HashMap<>();
+    for (Instruction leader : leaders) {
+      List<Instruction> body = new ArrayList<>();
+      Instruction inst = leader;
+      while (true) {
+        body.add(inst);
+        var succs = successors(inst);
+        if (succs.size() != 1 || leaders.contains(succs.get(0)))
+          break;
+        inst = succs.get(0);
+      }
+      bodies.put(leader, body);
+    }
+
+    // Number the blocks in reverse postorder.
+    List<Instruction> postorder = new ArrayList<>();
+    HashSet<Instruction> visited = new HashSet<>();
+    Stack<Instruction> blockStack = new Stack<>();
+    Stack<Integer> edgeStack = new Stack<>();
+    blockStack.push(f.getStart());
+    edgeStack.push(0);
+    visited.add(f.getStart());
+    while (!blockStack.isEmpty()) {
+      Instruction leader = blockStack.peek();
+      int edge = edgeStack.pop();
+      var body = bodies.get(leader);
+      var succs = successors(body.get(body.size() - 1));
+      if (edge < succs.size()) {
+        edgeStack.push(edge + 1);
+        Instruction next = succs.get(edge);
+        if (!visited.contains(next)) {
+          visited.add(next);
+          blockStack.push(next);
+          edgeStack.push(0);
+        }
+      } else {
+        blockStack.pop();
+        postorder.add(leader);
+      }
+    }
+    Collections.reverse(postorder);
+    HashMap<Instruction, BasicBlock> byLeader = new HashMap<>();
+    for (Instruction leader : postorder) {
+      var block = new BasicBlock(mBlocks.size(), bodies.get(leader));
+      mBlocks.add(block);
+      byLeader.put(leader, block);
+      for (Instruction inst : block.getInstructions()) {
+        mBlockOf.put(inst, block);
+      }
+    }
+
+    // Wire up the edges.
+    List<List<BasicBlock>> preds = new ArrayList<>();
+    for (int i = 0; i < mBlocks.size(); i++) {
+      preds.add(new ArrayList<>());
+    }
+    for (var block : mBlocks) {
+      var succs = successors(block.getLast());
+      block.mSuccessors = new BasicBlock[succs.size()];
+      for (int i = 0; i < succs.size(); i++) {
+        var succ = byLeader.get(succs.get(i));
+        block.mSuccessors[i] = succ;
+        preds.get(succ.getId()).add(block);
+      }
+    }
+    for (var block : mBlocks) {
+      block.mPredecessors = preds.get(block.getId()).toArray(new BasicBlock[0]);
+    }
+
+    computeDominators();
+  }
+
+  /**
+   * Returns the instructions control can continue with after inst, in edge order.
+   */
+  public static List<Instruction> successors(Instruction inst) {
+    if (inst instanceof ReturnInst)
+      return List.of();
+    List<Instruction> succs = new ArrayList<>(inst.numNext());
+    for (int i = 0; i < inst.numNext(); i++) {
+      if (inst.getNext(i) != null)
+        succs.add(inst.getNext(i));
+    }
+    return succs;
+  }
+
+  /**
+   * Cooper, Harvey and Kennedy's iterative algorithm over the reverse postorder.
+   */
+  private void computeDominators() {
+    if (mBlocks.isEmpty())
+      return;
+    var entry = getEntry();
+    entry.mIdom = entry;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 1; i < mBlocks.size(); i++) {
+        var block = mBlocks.get(i);
+        BasicBlock idom = null;
+        for (var pred : block.getPredecessors()) {
+          if (pred.mIdom == null)
+            continue;
+          idom = idom == null ? pred : intersect(pred, idom);
+        }
+        if (block.mIdom != idom) {
+          block.mIdom = idom;
+          changed = true;
+        }
+      }
+    }
+    entry.mIdom = null;
+  }
+
+  private static BasicBlock intersect(BasicBlock a, BasicBlock b) {
+    while (a != b) {
+      while (a.getId() > b.getId())
+        a = a.mIdom;
+      while (b.getId() > a.getId())
+        b = b.mIdom;
+    }
+    return a;
+  }
+
+  /**
+   * The blocks in reverse postorder; the entry block comes first.
+   */
+  public List<BasicBlock> getBlocks() {
+    return Collections.unmodifiableList(mBlocks);
+  }
+
+  public BasicBlock getEntry() {
+    return mBlocks.isEmpty() ? null : mBlocks.get(0);
+  }
+
+  /**
+   * Returns the block containing inst, or null if inst is unreachable.
+   */
+  public BasicBlock getBlock(Instruction inst) {
+    return mBlockOf.get(inst);
+  }
+
+  public int getInstructionCount() {
+    return mBlockOf.size();
+  }
+
+  /**
+   * Returns the blocks whose immediate dominator is block.
+   */
+  public List<BasicBlock> getDominatorTreeChildren(BasicBlock block) {
+    if (mDomChildren == null) {
+      mDomChildren = new ArrayList<>(mBlocks.size());
+      for (int i = 0; i < mBlocks.size(); i++) {
+        mDomChildren.add(new ArrayList<>());
+      }
+      for (var b : mBlocks) {
+        if (b.getImmediateDominator() != null)
+          mDomChildren.get(b.getImmediateDominator().getId()).add(b);
+      }
+    }
+    return mDomChildren.get(block.getId());
+  }
+
+  /**
+   * Returns the dominance frontier of block: the blocks where its dominance ends.
+   */
+  public List<BasicBlock> getDominanceFrontier(BasicBlock block) {
+    if (mFrontiers == null) {
+      mFrontiers = new ArrayList<>(mBlocks.size());
+      for (int i = 0; i < mBlocks.size(); i++) {
+        mFrontiers.add(new ArrayList<>());
+      }
+      for (var b : mBlocks) {
+        if (b.getPredecessors().length < 2)
+          continue;
+        for (var pred : b.getPredecessors()) {
+          for (var runner = pred; runner != null
+              && runner != b.getImmediateDominator(); runner = runner.getImmediateDominator()) {
+            var frontier = mFrontiers.get(runner.getId());
+            if (!frontier.contains(b))
+              frontier.add(b);
+          }
+        }
+      }
+    }
+    return mFrontiers.get(block.getId());
+  }
+}
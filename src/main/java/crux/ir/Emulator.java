@@ -15,6 +15,7 @@ public class Emulator {
   BufferedReader br;
   PrintStream out;
   public static boolean DEBUG = false;
+  private boolean debug = DEBUG;
 
   public Emulator(Program p, InputStream emulatorInput, OutputStream emulatorOutput) {
     br = new BufferedReader(new InputStreamReader(emulatorInput));
@@ -32,6 +33,13 @@ public class Emulator {
     }
   }
 
+  /**
+   * Traces this run only, unlike DEBUG, which traces every emulator created after it is set.
+   */
+  public void setDebug(boolean debug) {
+    this.debug = debug;
+  }
+
   public void run() {
     Function main = functions.get("main");
     CallContext mainc = new CallContext(main, null, null);
@@ -42,19 +50,24 @@ public class Emulator {
         // Handle implicit return from void function
         stack.pop();
       } else {
-        c.pc.accept(c);
+        Instruction inst = c.pc;
+        inst.accept(c);
+        // A group of phis records its own last instruction, see visit(PhiInst).
+        if (!(inst instanceof PhiInst))
+          c.prev = inst;
       }
     }
   }
 
   void debug(String msg) {
-    if (DEBUG)
+    if (debug)
       out.println(msg);
   }
 
   class CallContext extends InstVisitor {
     Function f;
     Instruction pc;
+    Instruction prev;
     HashMap<Variable, Object> localMap;
     LocalVar retval;
 
@@ -236,7 +249,7 @@ public class Emulator {
           int val = br.read();
           if (val == -1)
             throw new Error("Reading past end of stream.");
-          localMap.put(i.mDestVar, new Long(val));
+          localMap.put(i.mDestVar, Long.valueOf(val));
         } catch (IOException e) {
           throw new Error("Error in inputting Integer.");
         }
@@ -256,6 +269,31 @@ public class Emulator {
       pc = pc.getNext(0);
     }
 
+    public void visit(PhiInst i) {
+      // All phis at the head of a block read their operands before any of them is written.
+      List<PhiInst> group = new ArrayList<>();
+      for (Instruction inst = i; inst instanceof PhiInst; inst = inst.getNext(0)) {
+        group.add((PhiInst) inst);
+      }
+      Object[] vals = new Object[group.size()];
+      for (int j = 0; j < vals.length; j++) {
+        Value v = group.get(j).getValueFrom(prev);
+        if (v instanceof IntegerConstant) {
+          vals[j] = Long.valueOf(((IntegerConstant) v).getValue());
+        } else if (v instanceof BooleanConstant) {
+          vals[j] = ((BooleanConstant) v).getValue();
+        } else {
+          vals[j] = localMap.get(v);
+        }
+      }
+      for (int j = 0; j < vals.length; j++) {
+        debug("PhiInst: " + group.get(j).getDst() + "=" + vals[j]);
+        localMap.put(group.get(j).getDst(), vals[j]);
+      }
+      prev = group.get(group.size() - 1);
+      pc = prev.getNext(0);
+    }
+
     public void visit(UnaryNotInst i) {
       Object left = localMap.get(i.getInner());
       Object result = !((Boolean) left);
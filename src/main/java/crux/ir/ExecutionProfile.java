@@ -0,0 +1,143 @@
+package crux.ir;
+
+import crux.ir.insts.CallInst;
+import crux.ir.insts.JumpInst;
+
+import java.util.*;
+
+/**
+ * What a run of the {@link ThreadedEmulator} executed: how often each instruction ran, how often
+ * each function was entered and how often each jump took its true edge. Call edges are the counts
+ * of the call instructions, by caller and callee.
+ * <p>
+ * The emulator gives every instruction and function it lowers a counter here, and the run
+ * increments the counters in place.
+ */
+public final class ExecutionProfile {
+  private final HashMap<Instruction, Integer> mInstructionIndex = new HashMap<>();
+  private final HashMap<Function, Integer> mFunctionIndex = new HashMap<>();
+  private final List<Instruction> mInstructions = new ArrayList<>();
+  private final HashMap<Instruction, Function> mOwners = new HashMap<>();
+  private final List<Function> mFunctions = new ArrayList<>();
+  private int mNumCounters = 0;
+  private long[] mCounts = new long[0];
+  private long[] mTaken = new long[0];
+
+  /**
+   * The counter of inst, which belongs to f.
+   */
+  int getCounter(Function f, Instruction inst) {
+    return mInstructionIndex.computeIfAbsent(inst, k -> {
+      mInstructions.add(inst);
+      mOwners.put(inst, f);
+      return mNumCounters++;
+    });
+  }
+
+  /**
+   * The counter of the entries into f.
+   */
+  int getCounter(Function f) {
+    return mFunctionIndex.computeIfAbsent(f, k -> {
+      mFunctions.add(f);
+      return mNumCounters++;
+    });
+  }
+
+  /**
+   * The counts by counter, for the emulator to increment. Counters added since the last call start
+   * at zero.
+   */
+  long[] getCounts() {
+    if (mCounts.length < mNumCounters)
+      mCounts = Arrays.copyOf(mCounts, mNumCounters);
+    return mCounts;
+  }
+
+  /**
+   * The number of times the jump of each counter took its true edge.
+   */
+  long[] getTakenCounts() {
+    if (mTaken.length < mNumCounters)
+      mTaken = Arrays.copyOf(mTaken, mNumCounters);
+    return mTaken;
+  }
+
+  private long get(long[] counts, Integer counter) {
+    return counter == null || counter >= counts.length ? 0 : counts[counter];
+  }
+
+  /**
+   * The number of times inst ran.
+   */
+  public long getCount(Instruction inst) {
+    return get(mCounts, mInstructionIndex.get(inst));
+  }
+
+  /**
+   * The number of times jump went to its true successor.
+   */
+  public long getTakenCount(JumpInst jump) {
+    return get(mTaken, mInstructionIndex.get(jump));
+  }
+
+  /**
+   * The number of calls of f, tail calls included.
+   */
+  public long getEntryCount(Function f) {
+    return get(mCounts, mFunctionIndex.get(f));
+  }
+
+  /**
+   * The number of instructions run in the body of each function.
+   */
+  public Map<Function, Long> getInstructionCounts() {
+    Map<Function, Long> counts = new HashMap<>();
+    for (var inst : mInstructions) {
+      counts.merge(mOwners.get(inst), getCount(inst), Long::sum);
+    }
+    return counts;
+  }
+
+  /**
+   * The functions the run knew about, in the order they were lowered.
+   */
+  public List<Function> getFunctions() {
+    return Collections.unmodifiableList(mFunctions);
+  }
+
+  /**
+   * The instructions that ran at least once.
+   */
+  public List<Instruction> getExecutedInstructions() {
+    List<Instruction> executed = new ArrayList<>();
+    for (var inst : mInstructions) {
+      if (getCount(inst) > 0)
+        executed.add(inst);
+    }
+    return executed;
+  }
+
+  /**
+   * The function inst belongs to, or null if it has no counter.
+   */
+  public Function getFunction(Instruction inst) {
+    return mOwners.get(inst);
+  }
+
+  /**
+   * The calls made from each caller by callee name, built-in functions included. Only edges that
+   * were taken appear.
+   */
+  public Map<Function, Map<String, Long>> getCallCounts() {
+    Map<Function, Map<String, Long>> edges = new LinkedHashMap<>();
+    for (var inst : mInstructions) {
+      long count = getCount(inst);
+      if (!(inst instanceof CallInst) || count == 0)
+        continue;
+      edges.computeIfAbsent(mOwners.get(inst), f -> new TreeMap<>())
+          .merge(((CallInst) inst).getCallee().getName(), count, Long::sum);
+    }
+    return edges;
+  }
+}
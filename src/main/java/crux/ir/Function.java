@@ -21,6 +21,10 @@ public final class Function implements Formattable, java.io.Serializable {
   private static final int FUNC_FORMAT_INDENT = 2;
   private int mTempVarCounter, mTempAddressVarCounter;
   private Instruction startInstruction;
+  private transient ControlFlowGraph mCFG;
+  private boolean mIsSSA;
+  private boolean mIsProfiled;
+  private long mEntryCount;
 
   public Function(String name, FuncType funcType) {
     mFuncName = name;
@@ -68,12 +72,73 @@ public final class Function implements Formattable, java.io.Serializable {
     return mTempAddressVarCounter;
   }
 
+  /**
+   * Restores the temp counters of a function read back from a file, so new temps keep unique names.
+   */
+  public void setNumTemps(int numTempVars, int numTempAddressVars) {
+    mTempVarCounter = numTempVars;
+    mTempAddressVarCounter = numTempAddressVars;
+  }
+
   public Instruction getStart() {
     return startInstruction;
   }
 
   public void setStart(Instruction inst) {
     startInstruction = inst;
+    invalidateCFG();
+  }
+
+  /**
+   * Returns the basic-block view of this function, building it on first use.
+   */
+  public ControlFlowGraph getCFG() {
+    if (mCFG == null)
+      mCFG = new ControlFlowGraph(this);
+    return mCFG;
+  }
+
+  /**
+   * Drops the cached CFG. Passes that add, remove or relink instructions must call this.
+   */
+  public void invalidateCFG() {
+    mCFG = null;
+  }
+
+  /**
+   * True while every variable has exactly one definition and merges go through phis. See
+   * {@link crux.ir.opt.SSAConstruction} and {@link crux.ir.opt.SSADestruction}.
+   */
+  public boolean isSSA() {
+    return mIsSSA;
+  }
+
+  public void setSSA(boolean isSSA) {
+    mIsSSA = isSSA;
+  }
+
+  /**
+   * True once the counts of a profile were attached to the instructions, see
+   * {@link crux.format.ProfileFormat}. Passes that make new instructions give them the count of
+   * what they replace or of the edge they sit on.
+   */
+  public boolean isProfiled() {
+    return mIsProfiled;
+  }
+
+  public void setProfiled(boolean isProfiled) {
+    mIsProfiled = isProfiled;
+  }
+
+  /**
+   * How often the function was called in the profile, or zero without one.
+   */
+  public long getEntryCount() {
+    return mEntryCount;
+  }
+
+  public void setEntryCount(long count) {
+    mEntryCount = count;
   }
 
   /**
@@ -85,27 +150,14 @@ public final class Function implements Formattable, java.io.Serializable {
 
   public HashMap<Instruction, String> assignLabels(int count[]) {
     HashMap<Instruction, String> labelMap = new HashMap<>();
-    Stack<Instruction> tovisit = new Stack<>();
-    HashSet<Instruction> discovered = new HashSet<>();
-    if (getStart() != null)
-      tovisit.push(getStart());
-    while (!tovisit.isEmpty()) {
-      Instruction inst = tovisit.pop();
-
-      for (int childIdx = 0; childIdx < inst.numNext(); childIdx++) {
-        Instruction child = inst.getNext(childIdx);
-        if (discovered.contains(child)) {
-          // Found the node for a second time...need a label for merge points
-          if (!labelMap.containsKey(child)) {
-            labelMap.put(child, "L" + (++count[0]));
-          }
-        } else {
-          discovered.add(child);
-          tovisit.push(child);
-          // Need a label for jump targets also
-          if (childIdx == 1 && !labelMap.containsKey(child)) {
-            labelMap.put(child, "L" + (++count[0]));
-          }
+    for (var block : getCFG().getBlocks()) {
+      var succs = block.getSuccessors();
+      for (var succ : succs) {
+        // Merge points and jump targets need a label.
+        boolean isJumpTarget = succs.length == 2 && succs[1] == succ;
+        if ((succ.getPredecessors().length > 1 || isJumpTarget)
+            && !labelMap.containsKey(succ.getFirst())) {
+          labelMap.put(succ.getFirst(), "L" + (++count[0]));
         }
       }
     }
@@ -114,6 +166,15 @@ public final class Function implements Formattable, java.io.Serializable {
 
   @Override
   public String format(java.util.function.Function<Value, String> valueFormatter) {
+    return format(valueFormatter, inst -> null);
+  }
+
+  /**
+   * Formats the function like format(valueFormatter), adding the dot attributes nodeAttributes
+   * returns for an instruction, e.g. {@code fillcolor=red}, to its node. Null adds none.
+   */
+  public String format(java.util.function.Function<Value, String> valueFormatter,
+      java.util.function.Function<Instruction, String> nodeAttributes) {
     var funcName = getName();
     var funcDotBuilder = new StringBuilder();
     var indent = FUNC_FORMAT_INDENT;
@@ -131,41 +192,47 @@ public final class Function implements Formattable, java.io.Serializable {
     var funcHeader = String.format(funcType, getName(), argStr, getFuncType().getRet());
     funcDotBuilder.append(" ".repeat(indent)).append(String.format("label=\"%s\";\n", funcHeader));
 
-    // Print nodes
+    // Print nodes, one basic block after the other
     int nodeCounter = 0;
     final var nodePrefix = funcName + "_n";
     Map<Instruction, String> nodeIdMap = new HashMap<>();
-    // Only print edge labels for nodes that have multiple (out) edges
-    Instruction start = getStart();
-    Stack<Instruction> tovisit = new Stack<>();
-
-    tovisit.add(start);
-    nodeIdMap.put(start, nodePrefix + (nodeCounter++));
-
-    while (!tovisit.isEmpty()) {
-      Instruction inst = tovisit.pop();
-      String srcId = nodeIdMap.get(inst);
-
-      funcDotBuilder.append(" ".repeat(indent)).append(srcId).append(" [label=\"");
-      funcDotBuilder.append(inst.format(valueFormatter)).append("\"];\n");
+    var blocks = getCFG().getBlocks();
+    for (var block : blocks) {
+      for (var inst : block.getInstructions()) {
+        nodeIdMap.put(inst, nodePrefix + (nodeCounter++));
+      }
+    }
 
-      for (int i = 0; i < inst.numNext(); i++) {
-        Instruction dst = inst.getNext(i);
-        if (!nodeIdMap.containsKey(dst)) {
-          nodeIdMap.put(dst, nodePrefix + (nodeCounter++));
-          tovisit.push(dst);
-        }
-        String dstId = nodeIdMap.get(dst);
-        funcDotBuilder.append(" ".repeat(indent)).append(srcId).append(" -> ").append(dstId);
-        if (inst.numNext() == 2) {
-          funcDotBuilder.append(" [label=\"  ");
-          if (i == 0)
-            funcDotBuilder.append("False");
-          else
-            funcDotBuilder.append("True");
-          funcDotBuilder.append("  \"]");
+    for (var block : blocks) {
+      var insts = block.getInstructions();
+      for (int idx = 0; idx < insts.size(); idx++) {
+        Instruction inst = insts.get(idx);
+        String srcId = nodeIdMap.get(inst);
+
+        funcDotBuilder.append(" ".repeat(indent)).append(srcId).append(" [label=\"");
+        funcDotBuilder.append(inst.format(valueFormatter)).append("\"");
+        var attributes = nodeAttributes.apply(inst);
+        if (attributes != null)
+          funcDotBuilder.append(", ").append(attributes);
+        funcDotBuilder.append("];\n");
+
+        // Only print edge labels for nodes that have multiple (out) edges
+        List<Instruction> targets = idx + 1 < insts.size() ? List.of(insts.get(idx + 1))
+            : Arrays.stream(block.getSuccessors()).map(BasicBlock::getFirst)
+                .collect(Collectors.toList());
+        for (int i = 0; i < targets.size(); i++) {
+          String dstId = nodeIdMap.get(targets.get(i));
+          funcDotBuilder.append(" ".repeat(indent)).append(srcId).append(" -> ").append(dstId);
+          if (targets.size() == 2) {
+            funcDotBuilder.append(" [label=\"  ");
+            if (i == 0)
+              funcDotBuilder.append("False");
+            else
+              funcDotBuilder.append("True");
+            funcDotBuilder.append("  \"]");
+          }
+          funcDotBuilder.append(";\n");
         }
-        funcDotBuilder.append(";\n");
       }
     }
 
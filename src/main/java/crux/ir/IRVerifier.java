@@ -0,0 +1,179 @@
+package crux.ir;
+
+import crux.ast.types.BoolType;
+import crux.ast.types.FuncType;
+import crux.ast.types.Type;
+import crux.ir.insts.*;
+import crux.printing.IRValueFormatter;
+
+import java.util.*;
+
+/**
+ * Checks that a {@link Function} is well formed, so a pass that breaks the IR is caught right after
+ * it runs rather than by whatever reads the IR next.
+ * <ul>
+ * <li>Every jump has a true and a false successor and branches on a boolean variable; no other
+ * instruction has more than one successor.</li>
+ * <li>Phis only start blocks, only appear in SSA form, and have exactly one operand for each
+ * incoming edge.</li>
+ * <li>Constants only appear as the source of a copy or an operand of a phi.</li>
+ * <li>Every variable that is read is an argument or defined somewhere. In SSA form it is defined
+ * once, and that definition dominates the read.</li>
+ * </ul>
+ * Crux lets programs read locals before they are assigned, so variables of the function as
+ * lowered may be passed as known; they are not reported when they have no definition.
+ */
+public final class IRVerifier {
+  private IRVerifier() {}
+
+  /**
+   * Returns every variable that f defines or reads.
+   */
+  public static Set<Variable> getVariables(Function f) {
+    HashSet<Variable> variables = new HashSet<>(f.getArguments());
+    if (f.getStart() == null)
+      return variables;
+    for (var block : f.getCFG().getBlocks()) {
+      for (var inst : block.getInstructions()) {
+        if (inst.getDestVar() != null)
+          variables.add(inst.getDestVar());
+        for (var operand : inst.getOperands()) {
+          if (operand instanceof Variable)
+            variables.add((Variable) operand);
+        }
+      }
+    }
+    return variables;
+  }
+
+  /**
+   * Returns a description of each problem found in f; the list is empty if there is none. Reads of
+   * the variables in known need no definition.
+   */
+  public static List<String> verify(Function f, Set<Variable> known) {
+    List<String> errors = new ArrayList<>();
+    if (f.getStart() == null)
+      return errors;
+    var cfg = f.getCFG();
+    if (f.getStart() instanceof PhiInst)
+      errors.add("function starts with a phi");
+
+    HashMap<Variable, Instruction> definitions = new HashMap<>();
+    HashMap<Instruction, Integer> positions = new HashMap<>();
+    for (var arg : f.getArguments()) {
+      definitions.put(arg, null);
+    }
+    for (var block : cfg.getBlocks()) {
+      boolean phis = true;
+      for (var inst : block.getInstructions()) {
+        positions.put(inst, positions.size());
+        checkEdges(inst, errors);
+        checkOperands(inst, errors);
+        if (inst instanceof PhiInst) {
+          if (!f.isSSA())
+            errors.add(String.format("phi outside of SSA form: %s", describe(inst)));
+          else if (!phis)
+            errors.add(String.format("phi after the start of its block: %s", describe(inst)));
+          else
+            checkIncoming((PhiInst) inst, block, errors);
+        } else {
+          phis = false;
+        }
+        var dst = inst.getDestVar();
+        if (dst != null && definitions.containsKey(dst) && f.isSSA())
+          errors.add(String.format("%s is defined more than once: %s", dst, describe(inst)));
+        if (dst != null)
+          definitions.putIfAbsent(dst, inst);
+      }
+    }
+
+    for (var block : cfg.getBlocks()) {
+      for (var inst : block.getInstructions()) {
+        for (var operand : inst.getOperands()) {
+          if (!(operand instanceof Variable))
+            continue;
+          var v = (Variable) operand;
+          if (!definitions.containsKey(v)) {
+            if (!known.contains(v))
+              errors.add(String.format("%s is read but never defined: %s", v, describe(inst)));
+            continue;
+          }
+          var def = definitions.get(v);
+          if (!f.isSSA() || def == null)
+            continue;
+          if (inst instanceof PhiInst) {
+            for (var from : ((PhiInst) inst).getIncoming()) {
+              var pred = cfg.getBlock(from);
+              if (((PhiInst) inst).getValueFrom(from) == v && pred != null
+                  && !dominates(cfg, positions, def, pred.getLast(), true))
+                errors.add(String.format("%s does not reach the edge of %s", v, describe(inst)));
+            }
+          } else if (!dominates(cfg, positions, def, inst, false)) {
+            errors.add(String.format("%s is not defined on every path to %s", v, describe(inst)));
+          }
+        }
+      }
+    }
+    return errors;
+  }
+
+  private static String describe(Instruction inst) {
+    return inst.format(new IRValueFormatter());
+  }
+
+  private static void checkEdges(Instruction inst, List<String> errors) {
+    if (inst instanceof JumpInst) {
+      if (inst.numNext() != 2 || inst.getNext(0) == null || inst.getNext(1) == null)
+        errors.add(String.format("jump without two successors: %s", describe(inst)));
+      var predicate = inst.getOperands().get(0);
+      if (!(predicate instanceof LocalVar) || !isBool(predicate.getType()))
+        errors.add(String.format("jump on a non-boolean value: %s", describe(inst)));
+      return;
+    }
+    for (int i = 1; i < inst.numNext(); i++) {
+      if (inst.getNext(i) != null && !(inst instanceof ReturnInst))
+        errors.add(String.format("%d successors: %s", inst.numNext(), describe(inst)));
+    }
+  }
+
+  /**
+   * Lowering types the result of a call with the callee's function type.
+   */
+  private static boolean isBool(Type type) {
+    if (type instanceof FuncType)
+      return ((FuncType) type).getRet() instanceof BoolType;
+    return type instanceof BoolType;
+  }
+
+  private static void checkOperands(Instruction inst, List<String> errors) {
+    if (inst instanceof CopyInst || inst instanceof PhiInst)
+      return;
+    for (var operand : inst.getOperands()) {
+      if (operand instanceof Constant)
+        errors.add(String.format("constant operand: %s", describe(inst)));
+    }
+  }
+
+  private static void checkIncoming(PhiInst phi, BasicBlock block, List<String> errors) {
+    HashSet<Instruction> sources = new HashSet<>();
+    for (var pred : block.getPredecessors()) {
+      sources.add(pred.getLast());
+    }
+    HashSet<Instruction> incoming = new HashSet<>(phi.getIncoming());
+    if (!incoming.equals(sources) || incoming.size() != phi.getIncoming().size())
+      errors.add(String.format("phi does not match the edges into its block: %s", describe(phi)));
+  }
+
+  /**
+   * Whether def comes before use on every path to it; with inclusive, def may also be use itself.
+   */
+  private static boolean dominates(ControlFlowGraph cfg, Map<Instruction, Integer> positions,
+      Instruction def, Instruction use, boolean inclusive) {
+    var defBlock = cfg.getBlock(def);
+    var useBlock = cfg.getBlock(use);
+    if (defBlock != useBlock)
+      return defBlock.dominates(useBlock);
+    int order = Integer.compare(positions.get(def), positions.get(use));
+    return order < 0 || inclusive && order == 0;
+  }
+}
@@ -15,6 +15,7 @@ public abstract class Instruction implements Formattable, java.io.Serializable {
   protected Variable mDestVar;
   protected List<Value> mOperands;
   protected Vector<Instruction> next;
+  private long mCount;
 
   protected Instruction(Variable destVar, List<Value> operands) {
     mDestVar = destVar;
@@ -30,6 +31,34 @@ public abstract class Instruction implements Formattable, java.io.Serializable {
 
   public abstract void accept(InstVisitor v);
 
+  /**
+   * Returns the variable written by this instruction, or null if the instruction does not define
+   * one.
+   */
+  public Variable getDestVar() {
+    return mDestVar;
+  }
+
+  /**
+   * Returns the operands read by this instruction.
+   */
+  public List<Value> getOperands() {
+    return mOperands;
+  }
+
+  /**
+   * Replaces the operand at index. Used by passes that rename values, e.g. SSA construction.
+   */
+  public void replaceOperand(int index, Value value) {
+    var operands = new java.util.ArrayList<>(mOperands);
+    operands.set(index, value);
+    mOperands = List.copyOf(operands);
+  }
+
+  public void setDestVar(Variable destVar) {
+    mDestVar = destVar;
+  }
+
   public Instruction getNext(int i) {
     if (i >= numNext())
       return null;
@@ -41,6 +70,25 @@ public abstract class Instruction implements Formattable, java.io.Serializable {
     return next.size();
   }
 
+  /**
+   * How often the instruction ran in the profile its function was compiled with, see
+   * {@link Function#isProfiled()}. Zero without a profile.
+   */
+  public long getCount() {
+    return mCount;
+  }
+
+  public void setCount(long count) {
+    mCount = count;
+  }
+
+  /**
+   * How often control went on to getNext(i) in the profile. Only jumps split their count.
+   */
+  public long getEdgeCount(int i) {
+    return mCount;
+  }
+
   public void setNext(int i, Instruction inst) {
     if (next.size() <= i)
       next.setSize(i + 1);
@@ -0,0 +1,136 @@
+package crux.ir;
+
+import crux.ir.insts.PhiInst;
+
+import java.util.*;
+
+/**
+ * Live variable analysis over the basic blocks of a {@link Function}. A variable is live at a
+ * point if some path from that point reads it before writing it.
+ * <p>
+ * Variables are numbered in the order they are first seen (arguments first), and the sets are
+ * kept as bitsets indexed by that number.
+ * <p>
+ * An operand of a {@link PhiInst} is not read in the phi's block but on the edge it comes in on, so
+ * it counts as live out of that predecessor only.
+ */
+public final class Liveness {
+  private final ControlFlowGraph mCFG;
+  private final List<Variable> mVariables = new ArrayList<>();
+  private final HashMap<Variable, Integer> mIndex = new HashMap<>();
+  private final BitSet[] mLiveIn;
+  private final BitSet[] mLiveOut;
+
+  public Liveness(Function f) {
+    mCFG = f.getCFG();
+    for (var arg : f.getArguments()) {
+      indexOf(arg);
+    }
+    var blocks = mCFG.getBlocks();
+    int n = blocks.size();
+    BitSet[] use = new BitSet[n];
+    BitSet[] def = new BitSet[n];
+    BitSet[] phiUse = new BitSet[n];
+    for (int i = 0; i < n; i++) {
+      phiUse[i] = new BitSet();
+    }
+    for (var block : blocks) {
+      var blockUse = new BitSet();
+      var blockDef = new BitSet();
+      for (var inst : block.getInstructions()) {
+        if (inst instanceof PhiInst) {
+          var phi = (PhiInst) inst;
+          var incoming = phi.getIncoming();
+          for (int i = 0; i < incoming.size(); i++) {
+            var pred = mCFG.getBlock(incoming.get(i));
+            var operand = phi.getOperands().get(i);
+            if (pred != null && operand instanceof Variable)
+              phiUse[pred.getId()].set(indexOf((Variable) operand));
+          }
+          blockDef.set(indexOf(phi.getDst()));
+          continue;
+        }
+        for (var operand : inst.getOperands()) {
+          if (operand instanceof Variable) {
+            int v = indexOf((Variable) operand);
+            if (!blockDef.get(v))
+              blockUse.set(v);
+          }
+        }
+        if (inst.getDestVar() != null)
+          blockDef.set(indexOf(inst.getDestVar()));
+      }
+      use[block.getId()] = blockUse;
+      def[block.getId()] = blockDef;
+    }
+
+    mLiveIn = new BitSet[n];
+    mLiveOut = new BitSet[n];
+    for (int i = 0; i < n; i++) {
+      mLiveIn[i] = new BitSet();
+      mLiveOut[i] = new BitSet();
+    }
+    // Walking in postorder makes most successors final before their predecessors are visited.
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = n - 1; i >= 0; i--) {
+        var block = blocks.get(i);
+        var out = (BitSet) phiUse[i].clone();
+        for (var succ : block.getSuccessors()) {
+          out.or(mLiveIn[succ.getId()]);
+        }
+        var in = (BitSet) out.clone();
+        in.andNot(def[i]);
+        in.or(use[i]);
+        if (!in.equals(mLiveIn[i])) {
+          mLiveIn[i] = in;
+          changed = true;
+        }
+        mLiveOut[i] = out;
+      }
+    }
+  }
+
+  private int indexOf(Variable v) {
+    var index = mIndex.get(v);
+    if (index == null) {
+      index = mVariables.size();
+      mIndex.put(v, index);
+      mVariables.add(v);
+    }
+    return index;
+  }
+
+  public ControlFlowGraph getCFG() {
+    return mCFG;
+  }
+
+  /**
+   * All variables of the function; position i is the variable with index i.
+   */
+  public List<Variable> getVariables() {
+    return Collections.unmodifiableList(mVariables);
+  }
+
+  /**
+   * Returns the bitset index of v, or -1 if v does not appear in the function.
+   */
+  public int getIndex(Variable v) {
+    var index = mIndex.get(v);
+    return index == null ? -1 : index;
+  }
+
+  public BitSet getLiveIn(BasicBlock block) {
+    return mLiveIn[block.getId()];
+  }
+
+  public BitSet getLiveOut(BasicBlock block) {
+    return mLiveOut[block.getId()];
+  }
+
+  public boolean isLiveOut(BasicBlock block, Variable v) {
+    int index = getIndex(v);
+    return index >= 0 && mLiveOut[block.getId()].get(index);
+  }
+}
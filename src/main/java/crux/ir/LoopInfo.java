@@ -0,0 +1,160 @@
+package crux.ir;
+
+import java.util.*;
+
+/**
+ * The natural loops of a {@link Function}. An edge from a block to one of its dominators is a back
+ * edge; the loop it closes consists of the dominator, which is the loop header, and every block that
+ * reaches the back edge without passing through the header. Back edges to the same header form a
+ * single loop.
+ * <p>
+ * Loops are either disjoint or nested. {@link #getLoops()} lists inner loops before the loops
+ * containing them.
+ */
+public final class LoopInfo {
+  /**
+   * One natural loop.
+   */
+  public static final class Loop {
+    private final BasicBlock mHeader;
+    private final Set<BasicBlock> mBlocks = new LinkedHashSet<>();
+    private final List<BasicBlock> mLatches = new ArrayList<>();
+    private Loop mParent;
+
+    Loop(BasicBlock header) {
+      mHeader = header;
+    }
+
+    public BasicBlock getHeader() {
+      return mHeader;
+    }
+
+    /**
+     * The blocks of the loop, including those of nested loops, in reverse postorder.
+     */
+    public Set<BasicBlock> getBlocks() {
+      return Collections.unmodifiableSet(mBlocks);
+    }
+
+    public boolean contains(BasicBlock block) {
+      return mBlocks.contains(block);
+    }
+
+    /**
+     * The blocks with a back edge to the header.
+     */
+    public List<BasicBlock> getLatches() {
+      return Collections.unmodifiableList(mLatches);
+    }
+
+    /**
+     * The predecessors of the header that lie outside the loop.
+     */
+    public List<BasicBlock> getEntries() {
+      List<BasicBlock> entries = new ArrayList<>();
+      for (var pred : mHeader.getPredecessors()) {
+        if (!mBlocks.contains(pred))
+          entries.add(pred);
+      }
+      return entries;
+    }
+
+    /**
+     * The innermost loop containing this one, or null.
+     */
+    public Loop getParent() {
+      return mParent;
+    }
+
+    /**
+     * 1 for an outermost loop, 2 for a loop nested in it and so on.
+     */
+    public int getDepth() {
+      int depth = 1;
+      for (var loop = mParent; loop != null; loop = loop.mParent) {
+        depth++;
+      }
+      return depth;
+    }
+
+    @Override
+    public String toString() {
+      return "loop " + mHeader + " " + mBlocks;
+    }
+  }
+
+  private final List<Loop> mLoops = new ArrayList<>();
+  private final HashMap<BasicBlock, Loop> mInnermost = new HashMap<>();
+
+  public LoopInfo(Function f) {
+    var cfg = f.getCFG();
+    HashMap<BasicBlock, Loop> byHeader = new LinkedHashMap<>();
+    for (var block : cfg.getBlocks()) {
+      for (var succ : block.getSuccessors()) {
+        if (!succ.dominates(block))
+          continue;
+        var loop = byHeader.computeIfAbsent(succ, Loop::new);
+        loop.mLatches.add(block);
+      }
+    }
+
+    for (var loop : byHeader.values()) {
+      HashSet<BasicBlock> body = new HashSet<>();
+      body.add(loop.mHeader);
+      Deque<BasicBlock> work = new ArrayDeque<>();
+      for (var latch : loop.mLatches) {
+        if (body.add(latch))
+          work.push(latch);
+      }
+      while (!work.isEmpty()) {
+        for (var pred : work.pop().getPredecessors()) {
+          if (body.add(pred))
+            work.push(pred);
+        }
+      }
+      for (var block : cfg.getBlocks()) {
+        if (body.contains(block))
+          loop.mBlocks.add(block);
+      }
+      mLoops.add(loop);
+    }
+
+    // A loop with fewer blocks cannot contain one with more, so smaller loops go first.
+    mLoops.sort(Comparator.comparingInt((Loop l) -> l.mBlocks.size())
+        .thenComparingInt(l -> l.mHeader.getId()));
+    for (int i = 0; i < mLoops.size(); i++) {
+      var inner = mLoops.get(i);
+      for (int j = i + 1; j < mLoops.size(); j++) {
+        if (mLoops.get(j).contains(inner.mHeader)) {
+          inner.mParent = mLoops.get(j);
+          break;
+        }
+      }
+      for (var block : inner.mBlocks) {
+        mInnermost.putIfAbsent(block, inner);
+      }
+    }
+  }
+
+  /**
+   * All loops, inner loops first.
+   */
+  public List<Loop> getLoops() {
+    return Collections.unmodifiableList(mLoops);
+  }
+
+  /**
+   * Returns the innermost loop containing block, or null if it is not in a loop.
+   */
+  public Loop getLoop(BasicBlock block) {
+    return mInnermost.get(block);
+  }
+
+  /**
+   * The number of loops around block, 0 outside of loops.
+   */
+  public int getDepth(BasicBlock block) {
+    var loop = mInnermost.get(block);
+    return loop == null ? 0 : loop.getDepth();
+  }
+}
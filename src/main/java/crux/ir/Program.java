@@ -1,17 +1,24 @@
 package crux.ir;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Iterator;
+import crux.ir.insts.CallInst;
+
+import java.util.*;
+import java.util.function.Supplier;
 
 
 /**
  * A program consists of a collection of functions and a collection of global variables.
+ * <p>
+ * A function can also be added as a loader that builds it the first time it is asked for, as
+ * {@link crux.format.IRFormat#map} does for the functions of a file.
  */
 public final class Program implements Formattable, java.io.Serializable {
   static final long serialVersionUID = 12022L;
   private List<Function> mFunctions;
   private List<GlobalDecl> mGlobalVars;
+  // The loaders of the functions not built yet, by their index in mFunctions, where they are null.
+  private transient Map<Integer, Supplier<Function>> mLoaders;
+  private transient Map<String, Integer> mFunctionIndex;
 
   private static final int PROGRAM_FORMAT_INDENT = 2;
 
@@ -29,15 +36,120 @@ public final class Program implements Formattable, java.io.Serializable {
   }
 
   public void addFunction(Function function) {
+    getFunctionIndex().putIfAbsent(function.getName(), mFunctions.size());
     mFunctions.add(function);
   }
 
+  /**
+   * Adds the function name, which loader builds when it is first needed.
+   */
+  public void addFunction(String name, Supplier<Function> loader) {
+    if (mLoaders == null)
+      mLoaders = new HashMap<>();
+    getFunctionIndex().putIfAbsent(name, mFunctions.size());
+    mLoaders.put(mFunctions.size(), loader);
+    mFunctions.add(null);
+  }
+
+  private Map<String, Integer> getFunctionIndex() {
+    // A program read with Java serialization starts without one.
+    if (mFunctionIndex == null) {
+      mFunctionIndex = new HashMap<>();
+      for (int i = 0; i < mFunctions.size(); i++) {
+        mFunctionIndex.putIfAbsent(mFunctions.get(i).getName(), i);
+      }
+    }
+    return mFunctionIndex;
+  }
+
+  private synchronized Function getFunction(int index) {
+    var f = mFunctions.get(index);
+    if (f == null) {
+      f = mLoaders.remove(index).get();
+      mFunctions.set(index, f);
+    }
+    return f;
+  }
+
+  /**
+   * Returns every function, building the ones that are not yet.
+   */
   public Iterator<Function> getFunctions() {
+    for (int i = 0; i < mFunctions.size(); i++) {
+      getFunction(i);
+    }
     return mFunctions.iterator();
   }
 
+  /**
+   * Returns the function called name, or null if there is none.
+   */
+  public Function getFunction(String name) {
+    var index = getFunctionIndex().get(name);
+    return index == null ? null : getFunction(index);
+  }
+
+  /**
+   * Returns main and the functions it calls directly or indirectly, in the order they were added,
+   * building only those. Without a main, all functions are returned.
+   */
+  public List<Function> getReachableFunctions() {
+    var main = getFunction("main");
+    if (main == null) {
+      List<Function> functions = new ArrayList<>();
+      getFunctions().forEachRemaining(functions::add);
+      return functions;
+    }
+    HashSet<Function> reachable = new HashSet<>();
+    Deque<Function> work = new ArrayDeque<>();
+    reachable.add(main);
+    work.push(main);
+    while (!work.isEmpty()) {
+      var f = work.pop();
+      if (f.getStart() == null)
+        continue;
+      for (var block : f.getCFG().getBlocks()) {
+        for (var inst : block.getInstructions()) {
+          if (!(inst instanceof CallInst))
+            continue;
+          // Calls to the runtime have no function.
+          var callee = getFunction(((CallInst) inst).getCallee().getName());
+          if (callee != null && reachable.add(callee))
+            work.push(callee);
+        }
+      }
+    }
+    List<Function> functions = new ArrayList<>();
+    for (var f : mFunctions) {
+      if (reachable.contains(f))
+        functions.add(f);
+    }
+    return functions;
+  }
+
+  /**
+   * Returns the functions to generate code for: all of them, except in a program that builds its
+   * functions on first use, where only the reachable ones are built and compiled.
+   */
+  public List<Function> getFunctionsToCompile() {
+    if (mLoaders != null)
+      return getReachableFunctions();
+    List<Function> functions = new ArrayList<>();
+    getFunctions().forEachRemaining(functions::add);
+    return functions;
+  }
+
   @Override
   public String format(java.util.function.Function<Value, String> valueFormatter) {
+    return format(valueFormatter, inst -> null);
+  }
+
+  /**
+   * Formats the program like format(valueFormatter), with the node attributes of
+   * {@link Function#format(java.util.function.Function, java.util.function.Function)}.
+   */
+  public String format(java.util.function.Function<Value, String> valueFormatter,
+      java.util.function.Function<Instruction, String> nodeAttributes) {
     var builder = new StringBuilder();
     builder.append("digraph Program {\n");
     // Styles
@@ -67,8 +179,9 @@ public final class Program implements Formattable, java.io.Serializable {
     }
 
     // Print functions
-    for (var function : mFunctions) {
-      builder.append("\n").append(function.format(valueFormatter)).append("\n");
+    for (var it = getFunctions(); it.hasNext();) {
+      var function = it.next();
+      builder.append("\n").append(function.format(valueFormatter, nodeAttributes)).append("\n");
     }
 
     builder.append("}");
@@ -0,0 +1,588 @@
+package crux.ir;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ir.insts.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A faster replacement for {@link Emulator}. Programs that keep their array indexes within bounds
+ * print the same output on both; an index outside of its global, which the visitor Emulator
+ * resolves to whatever memory lies there, stops the run here with an error instead. The
+ * {@link crux.backend.jvm.Jit} checks indexes the same way.
+ * <p>
+ * Before running, every function is lowered to a flat {@code int[]} of opcodes and operands. Each
+ * variable gets a numbered slot in a {@code long[]} frame (booleans are 0 or 1), and the globals
+ * are laid out in a single {@code long[]} sized from the GlobalDecls, so an address is a word index
+ * into it. An index outside of its global yields a negative address naming the global instead, and
+ * a load or store through it stops the run with an error. Phis become copies on the edges that lead
+ * to them, and nops disappear. The program then runs in one dispatch loop with an explicit call
+ * stack. Tail calls reuse the frame of the caller, so they do not grow that stack.
+ * <p>
+ * With an {@link ExecutionProfile}, the code also counts every instruction, function entry and
+ * true edge of a jump into the profile. Without one, none of that code is emitted.
+ */
+public final class ThreadedEmulator {
+  private static final int CONST = 0;
+  private static final int COPY = 1;
+  private static final int ADD = 2;
+  private static final int SUB = 3;
+  private static final int MUL = 4;
+  private static final int DIV = 5;
+  private static final int GE = 6;
+  private static final int GT = 7;
+  private static final int LE = 8;
+  private static final int LT = 9;
+  private static final int EQ = 10;
+  private static final int NE = 11;
+  private static final int NOT = 12;
+  private static final int ADDRESS = 13;
+  private static final int LOAD = 14;
+  private static final int STORE = 15;
+  private static final int BRANCH = 16;
+  private static final int GOTO = 17;
+  private static final int CALL = 18;
+  private static final int RETURN = 19;
+  private static final int PRINT_INT = 20;
+  private static final int PRINT_BOOL = 21;
+  private static final int PRINT_CHAR = 22;
+  private static final int PRINTLN = 23;
+  private static final int READ_INT = 24;
+  private static final int READ_CHAR = 25;
+  private static final int TAIL_CALL = 26;
+  private static final int COUNT = 27;
+  private static final int TAKEN = 28;
+
+  /**
+   * A function lowered to threaded code.
+   */
+  private static final class Code {
+    final String name;
+    int[] code;
+    long[] constants;
+    int numSlots;
+
+    Code(String name) {
+      this.name = name;
+    }
+  }
+
+  private final BufferedReader br;
+  private final PrintStream out;
+  private final long[] memory;
+  private final long[] initialized;
+  // The globals by their number in the ADDRESS opcode: where they start in memory, their size.
+  private final HashMap<Symbol, Integer> globalIndex = new HashMap<>();
+  private final List<GlobalDecl> globals = new ArrayList<>();
+  private final int[] globalOffsets;
+  private final int[] globalSizes;
+  private final HashMap<String, Integer> functionIndex = new HashMap<>();
+  private final List<Code> functions = new ArrayList<>();
+  private final ExecutionProfile profile;
+  private final long[] counts;
+  private final long[] taken;
+
+  public ThreadedEmulator(Program p, InputStream emulatorInput, OutputStream emulatorOutput) {
+    this(p, emulatorInput, emulatorOutput, null);
+  }
+
+  /**
+   * Runs p counting what it executes into profile, unless profile is null.
+   */
+  public ThreadedEmulator(Program p, InputStream emulatorInput, OutputStream emulatorOutput,
+      ExecutionProfile profile) {
+    this.profile = profile;
+    br = new BufferedReader(new InputStreamReader(emulatorInput));
+    out = new PrintStream(emulatorOutput);
+
+    for (Iterator<GlobalDecl> glob_it = p.getGlobals(); glob_it.hasNext();) {
+      GlobalDecl g = glob_it.next();
+      globalIndex.put(g.getSymbol(), globals.size());
+      globals.add(g);
+    }
+    globalOffsets = new int[globals.size()];
+    globalSizes = new int[globals.size()];
+    int size = 0;
+    for (int i = 0; i < globals.size(); i++) {
+      globalOffsets[i] = size;
+      globalSizes[i] = (int) globals.get(i).getNumElement().getValue();
+      size += globalSizes[i];
+    }
+    memory = new long[size];
+    initialized = new long[(size + 63) / 64];
+
+    List<Function> irFunctions = new ArrayList<>();
+    for (Iterator<Function> func_it = p.getFunctions(); func_it.hasNext();) {
+      Function f = func_it.next();
+      functionIndex.put(f.getName(), irFunctions.size());
+      irFunctions.add(f);
+    }
+    for (Function f : irFunctions) {
+      functions.add(new Lowering(f).lower());
+    }
+    counts = profile == null ? null : profile.getCounts();
+    taken = profile == null ? null : profile.getTakenCounts();
+  }
+
+  public void run() {
+    // One entry per active caller: its code, frame, return pc and the slot for the result.
+    List<Code> codeStack = new ArrayList<>();
+    List<long[]> frameStack = new ArrayList<>();
+    int[] pcStack = new int[16];
+    int[] dstStack = new int[16];
+
+    Code fn = functions.get(functionIndex.get("main"));
+    int[] code = fn.code;
+    long[] constants = fn.constants;
+    long[] frame = new long[fn.numSlots];
+    long[] args = new long[8];
+    int pc = 0;
+    while (true) {
+      switch (code[pc]) {
+        case CONST:
+          frame[code[pc + 1]] = constants[code[pc + 2]];
+          pc += 3;
+          break;
+        case COPY:
+          frame[code[pc + 1]] = frame[code[pc + 2]];
+          pc += 3;
+          break;
+        case ADD:
+          frame[code[pc + 1]] = frame[code[pc + 2]] + frame[code[pc + 3]];
+          pc += 4;
+          break;
+        case SUB:
+          frame[code[pc + 1]] = frame[code[pc + 2]] - frame[code[pc + 3]];
+          pc += 4;
+          break;
+        case MUL:
+          frame[code[pc + 1]] = frame[code[pc + 2]] * frame[code[pc + 3]];
+          pc += 4;
+          break;
+        case DIV:
+          frame[code[pc + 1]] = frame[code[pc + 2]] / frame[code[pc + 3]];
+          pc += 4;
+          break;
+        case GE:
+          frame[code[pc + 1]] = frame[code[pc + 2]] >= frame[code[pc + 3]] ? 1 : 0;
+          pc += 4;
+          break;
+        case GT:
+          frame[code[pc + 1]] = frame[code[pc + 2]] > frame[code[pc + 3]] ? 1 : 0;
+          pc += 4;
+          break;
+        case LE:
+          frame[code[pc + 1]] = frame[code[pc + 2]] <= frame[code[pc + 3]] ? 1 : 0;
+          pc += 4;
+          break;
+        case LT:
+          frame[code[pc + 1]] = frame[code[pc + 2]] < frame[code[pc + 3]] ? 1 : 0;
+          pc += 4;
+          break;
+        case EQ:
+          frame[code[pc + 1]] = frame[code[pc + 2]] == frame[code[pc + 3]] ? 1 : 0;
+          pc += 4;
+          break;
+        case NE:
+          frame[code[pc + 1]] = frame[code[pc + 2]] != frame[code[pc + 3]] ? 1 : 0;
+          pc += 4;
+          break;
+        case NOT:
+          frame[code[pc + 1]] = frame[code[pc + 2]] ^ 1;
+          pc += 3;
+          break;
+        case ADDRESS: {
+          // Computing an address cannot fail, since passes move it to where it may not be used.
+          int global = code[pc + 2];
+          long index = code[pc + 3] >= 0 ? frame[code[pc + 3]] : 0;
+          frame[code[pc + 1]] = index >= 0 && index < globalSizes[global]
+              ? globalOffsets[global] + index : -1 - global;
+          pc += 4;
+          break;
+        }
+        case LOAD: {
+          int address = checkAddress(frame[code[pc + 2]]);
+          long value = memory[address];
+          if ((initialized[address >>> 6] & (1L << address)) == 0) {
+            out.println("Reading from uninitialized memory");
+            value = 0;
+          }
+          frame[code[pc + 1]] = value;
+          pc += 3;
+          break;
+        }
+        case STORE: {
+          int address = checkAddress(frame[code[pc + 2]]);
+          memory[address] = frame[code[pc + 1]];
+          initialized[address >>> 6] |= 1L << address;
+          pc += 3;
+          break;
+        }
+        case BRANCH:
+          pc = frame[code[pc + 1]] != 0 ? code[pc + 2] : pc + 3;
+          break;
+        case GOTO:
+          pc = code[pc + 1];
+          break;
+        case CALL: {
+          Code callee = functions.get(code[pc + 1]);
+          int numArgs = code[pc + 3];
+          long[] calleeFrame = new long[callee.numSlots];
+          for (int i = 0; i < numArgs; i++) {
+            calleeFrame[i] = frame[code[pc + 4 + i]];
+          }
+          int depth = codeStack.size();
+          if (depth == pcStack.length) {
+            pcStack = Arrays.copyOf(pcStack, depth * 2);
+            dstStack = Arrays.copyOf(dstStack, depth * 2);
+          }
+          codeStack.add(fn);
+          frameStack.add(frame);
+          pcStack[depth] = pc + 4 + numArgs;
+          dstStack[depth] = code[pc + 2];
+          fn = callee;
+          code = fn.code;
+          constants = fn.constants;
+          frame = calleeFrame;
+          pc = 0;
+          break;
+        }
+        case TAIL_CALL: {
+          Code callee = functions.get(code[pc + 1]);
+          int numArgs = code[pc + 2];
+          if (numArgs > args.length)
+            args = new long[numArgs];
+          for (int i = 0; i < numArgs; i++) {
+            args[i] = frame[code[pc + 3 + i]];
+          }
+          if (frame.length < callee.numSlots)
+            frame = new long[callee.numSlots];
+          else
+            Arrays.fill(frame, 0);
+          System.arraycopy(args, 0, frame, 0, numArgs);
+          fn = callee;
+          code = fn.code;
+          constants = fn.constants;
+          pc = 0;
+          break;
+        }
+        case RETURN: {
+          long value = code[pc + 1] >= 0 ? frame[code[pc + 1]] : 0;
+          int depth = codeStack.size() - 1;
+          if (depth < 0)
+            return;
+          fn = codeStack.remove(depth);
+          frame = frameStack.remove(depth);
+          code = fn.code;
+          constants = fn.constants;
+          pc = pcStack[depth];
+          if (dstStack[depth] >= 0)
+            frame[dstStack[depth]] = value;
+          break;
+        }
+        case PRINT_INT:
+          out.print(frame[code[pc + 1]]);
+          pc += 2;
+          break;
+        case PRINT_BOOL:
+          out.print(frame[code[pc + 1]] != 0);
+          pc += 2;
+          break;
+        case PRINT_CHAR:
+          out.print((char) frame[code[pc + 1]]);
+          pc += 2;
+          break;
+        case PRINTLN:
+          out.println("");
+          pc += 1;
+          break;
+        case READ_INT:
+          try {
+            out.print("int?");
+            String line = br.readLine();
+            long value = Long.valueOf(line);
+            if (code[pc + 1] >= 0)
+              frame[code[pc + 1]] = value;
+          } catch (IOException e) {
+            throw new Error("Error in inputting Integer.");
+          }
+          pc += 2;
+          break;
+        case READ_CHAR:
+          try {
+            int value = br.read();
+            if (value == -1)
+              throw new Error("Reading past end of stream.");
+            if (code[pc + 1] >= 0)
+              frame[code[pc + 1]] = value;
+          } catch (IOException e) {
+            throw new Error("Error in inputting Integer.");
+          }
+          pc += 2;
+          break;
+        case COUNT:
+          counts[code[pc + 1]]++;
+          pc += 2;
+          break;
+        case TAKEN:
+          if (frame[code[pc + 1]] != 0)
+            taken[code[pc + 2]]++;
+          pc += 3;
+          break;
+        default:
+          throw new IllegalStateException("bad opcode " + code[pc] + " in " + fn.name);
+      }
+    }
+  }
+
+  /**
+   * Returns address as an index into memory, or stops the run if the index it was computed from was
+   * out of the bounds of its global.
+   */
+  private int checkAddress(long address) {
+    if (address < 0) {
+      int global = (int) (-1 - address);
+      throw new Error(String.format("Index out of bounds for %s of %d elements.",
+          globals.get(global).getSymbol().getName(), globalSizes[global]));
+    }
+    return (int) address;
+  }
+
+  /**
+   * Lays out the instructions of one function, following the false edge of jumps so that it falls
+   * through, and emits their code.
+   */
+  private final class Lowering {
+    private final Function f;
+    private final Code result;
+    private int[] code = new int[64];
+    private int size = 0;
+    private int numSlots = 0;
+    private final List<Long> constants = new ArrayList<>();
+    private final HashMap<Variable, Integer> slots = new HashMap<>();
+    private final HashMap<Instruction, Integer> positions = new HashMap<>();
+    /** True edges of branches: the position of the target operand, the branch and its target. */
+    private final Deque<Object[]> pendingEdges = new ArrayDeque<>();
+
+    Lowering(Function f) {
+      this.f = f;
+      result = new Code(f.getName());
+    }
+
+    Code lower() {
+      for (var arg : f.getArguments()) {
+        slot(arg);
+      }
+      // Jumps back to the start land after this, so it counts entries.
+      if (profile != null)
+        emit(COUNT, profile.getCounter(f));
+      emitChain(null, f.getStart());
+      while (!pendingEdges.isEmpty()) {
+        var edge = pendingEdges.pop();
+        int at = (int) edge[0];
+        // When profiling, the nops on the edge are counted on the way.
+        var target = profile == null ? skipNops((Instruction) edge[2]) : (Instruction) edge[2];
+        if (target != null && !(target instanceof PhiInst) && positions.containsKey(target)) {
+          code[at] = positions.get(target);
+        } else {
+          code[at] = size;
+          emitChain((Instruction) edge[1], (Instruction) edge[2]);
+        }
+      }
+
+      result.code = Arrays.copyOf(code, size);
+      result.constants = new long[constants.size()];
+      for (int i = 0; i < constants.size(); i++) {
+        result.constants[i] = constants.get(i);
+      }
+      result.numSlots = numSlots;
+      return result;
+    }
+
+    private int slot(Value v) {
+      return slots.computeIfAbsent((Variable) v, k -> numSlots++);
+    }
+
+    private void emit(int... words) {
+      while (size + words.length > code.length) {
+        code = Arrays.copyOf(code, code.length * 2);
+      }
+      for (int word : words) {
+        code[size++] = word;
+      }
+    }
+
+    private void emitMove(int dst, Value src) {
+      if (src instanceof IntegerConstant) {
+        constants.add(((IntegerConstant) src).getValue());
+        emit(CONST, dst, constants.size() - 1);
+      } else if (src instanceof BooleanConstant) {
+        constants.add(((BooleanConstant) src).getValue() ? 1L : 0L);
+        emit(CONST, dst, constants.size() - 1);
+      } else {
+        emit(COPY, dst, slot(src));
+      }
+    }
+
+    private Instruction skipNops(Instruction inst) {
+      HashSet<Instruction> seen = new HashSet<>();
+      while (inst instanceof NopInst && seen.add(inst)) {
+        inst = inst.getNext(0);
+      }
+      return inst;
+    }
+
+    /**
+     * Emits the copies for the phis starting at target when arriving from the instruction from.
+     */
+    private void emitPhiCopies(Instruction from, List<PhiInst> phis) {
+      if (phis.size() == 1) {
+        emitMove(slot(phis.get(0).getDst()), phis.get(0).getValueFrom(from));
+        return;
+      }
+      // All phis read before any of them writes, so go through fresh slots.
+      int first = numSlots;
+      numSlots += phis.size();
+      for (int i = 0; i < phis.size(); i++) {
+        emitMove(first + i, phis.get(i).getValueFrom(from));
+      }
+      for (int i = 0; i < phis.size(); i++) {
+        emit(COPY, slot(phis.get(i).getDst()), first + i);
+      }
+    }
+
+    /**
+     * Emits inst and what follows it until reaching code that is already laid out. from is the
+     * instruction control arrives from, which selects the phi operands.
+     */
+    private void emitChain(Instruction from, Instruction inst) {
+      HashSet<Instruction> nops = new HashSet<>();
+      while (true) {
+        if (inst instanceof NopInst) {
+          if (!nops.add(inst)) {
+            // A loop made only of nops.
+            emit(GOTO, size);
+            return;
+          }
+          count(inst);
+          from = inst;
+          inst = inst.getNext(0);
+          continue;
+        }
+        if (inst instanceof PhiInst) {
+          List<PhiInst> phis = new ArrayList<>();
+          for (; inst instanceof PhiInst; inst = inst.getNext(0)) {
+            phis.add((PhiInst) inst);
+            count(inst);
+          }
+          emitPhiCopies(from, phis);
+          from = phis.get(phis.size() - 1);
+          continue;
+        }
+        if (inst == null) {
+          emit(RETURN, -1);
+          return;
+        }
+        if (positions.containsKey(inst)) {
+          emit(GOTO, positions.get(inst));
+          return;
+        }
+        positions.put(inst, size);
+        count(inst);
+        if (inst instanceof ReturnInst) {
+          var value = ((ReturnInst) inst).getReturnValue();
+          emit(RETURN, value == null ? -1 : slot(value));
+          return;
+        }
+        if (inst instanceof JumpInst) {
+          if (profile != null)
+            emit(TAKEN, slot(((JumpInst) inst).getPredicate()), profile.getCounter(f, inst));
+          emit(BRANCH, slot(((JumpInst) inst).getPredicate()), 0);
+          pendingEdges.push(new Object[] {size - 1, inst, inst.getNext(1)});
+        } else if (inst instanceof CallInst && isTailCall((CallInst) inst)) {
+          var call = (CallInst) inst;
+          emit(TAIL_CALL, functionIndex.get(call.getCallee().getName()), call.getParams().size());
+          for (var param : call.getParams()) {
+            emit(slot(param));
+          }
+          return;
+        } else {
+          emitInstruction(inst);
+        }
+        from = inst;
+        inst = inst.getNext(0);
+      }
+    }
+
+    private void count(Instruction inst) {
+      if (profile != null)
+        emit(COUNT, profile.getCounter(f, inst));
+    }
+
+    private boolean isTailCall(CallInst call) {
+      return call.isTailCall() && functionIndex.containsKey(call.getCallee().getName());
+    }
+
+    private void emitInstruction(Instruction inst) {
+      if (inst instanceof CopyInst) {
+        var copy = (CopyInst) inst;
+        emitMove(slot(copy.getDstVar()), copy.getSrcValue());
+      } else if (inst instanceof BinaryOperator) {
+        var op = (BinaryOperator) inst;
+        int opcode = ADD + op.getOperator().ordinal();
+        emit(opcode, slot(op.getDst()), slot(op.getLeftOperand()), slot(op.getRightOperand()));
+      } else if (inst instanceof CompareInst) {
+        var cmp = (CompareInst) inst;
+        int opcode = GE + cmp.getPredicate().ordinal();
+        emit(opcode, slot(cmp.getDst()), slot(cmp.getLeftOperand()), slot(cmp.getRightOperand()));
+      } else if (inst instanceof UnaryNotInst) {
+        var not = (UnaryNotInst) inst;
+        emit(NOT, slot(not.getDst()), slot(not.getInner()));
+      } else if (inst instanceof AddressAt) {
+        var at = (AddressAt) inst;
+        int offset = at.getOffset() == null ? -1 : slot(at.getOffset());
+        emit(ADDRESS, slot(at.getDst()), globalIndex.get(at.getBase()), offset);
+      } else if (inst instanceof LoadInst) {
+        var load = (LoadInst) inst;
+        emit(LOAD, slot(load.getDst()), slot(load.getSrcAddress()));
+      } else if (inst instanceof StoreInst) {
+        var store = (StoreInst) inst;
+        emit(STORE, slot(store.getSrcValue()), slot(store.getDestAddress()));
+      } else if (inst instanceof CallInst) {
+        emitCall((CallInst) inst);
+      } else {
+        throw new IllegalStateException("cannot lower " + inst.getClass().getSimpleName());
+      }
+    }
+
+    private void emitCall(CallInst call) {
+      var params = call.getParams();
+      int dst = call.getDst() == null ? -1 : slot(call.getDst());
+      switch (call.getCallee().getName()) {
+        case "readInt":
+          emit(READ_INT, dst);
+          return;
+        case "readChar":
+          emit(READ_CHAR, dst);
+          return;
+        case "printBool":
+          emit(PRINT_BOOL, slot(params.get(0)));
+          return;
+        case "printInt":
+          emit(PRINT_INT, slot(params.get(0)));
+          return;
+        case "printChar":
+          emit(PRINT_CHAR, slot(params.get(0)));
+          return;
+        case "println":
+          emit(PRINTLN);
+          return;
+      }
+      emit(CALL, functionIndex.get(call.getCallee().getName()), dst, params.size());
+      for (var param : params) {
+        emit(slot(param));
+      }
+    }
+  }
+}
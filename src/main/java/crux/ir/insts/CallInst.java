@@ -59,6 +59,22 @@ public final class CallInst extends Instruction implements java.io.Serializable
     return (LocalVar) mDestVar;
   }
 
+  /**
+   * Returns true if nothing but nops lies between this call and a return of its result, or the end
+   * of the function when the call has no result. Such a call can reuse the frame of its caller.
+   */
+  public boolean isTailCall() {
+    var seen = new HashSet<Instruction>();
+    Instruction inst = getNext(0);
+    while (inst instanceof NopInst && seen.add(inst)) {
+      inst = inst.getNext(0);
+    }
+    if (inst == null)
+      return mDestVar == null;
+    return inst instanceof ReturnInst && mDestVar != null
+        && ((ReturnInst) inst).getReturnValue() == mDestVar;
+  }
+
   @Override
   public void accept(InstVisitor v) {
     v.visit(this);
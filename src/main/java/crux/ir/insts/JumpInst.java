@@ -26,11 +26,28 @@ import java.util.function.Function;
  */
 public final class JumpInst extends Instruction implements java.io.Serializable {
   static final long serialVersionUID = 12022L;
+  private long mTakenCount;
 
   public JumpInst(LocalVar predicate) {
     super(List.of(predicate));
   }
 
+  /**
+   * How often the jump went to its true successor in the profile, see {@link #getCount()}.
+   */
+  public long getTakenCount() {
+    return mTakenCount;
+  }
+
+  public void setTakenCount(long count) {
+    mTakenCount = count;
+  }
+
+  @Override
+  public long getEdgeCount(int i) {
+    return i == 1 ? mTakenCount : Math.max(0, getCount() - mTakenCount);
+  }
+
   public LocalVar getPredicate() {
     return (LocalVar) mOperands.get(0);
   }
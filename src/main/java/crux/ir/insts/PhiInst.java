@@ -0,0 +1,99 @@
+package crux.ir.insts;
+
+import crux.ir.Instruction;
+import crux.ir.LocalVar;
+import crux.ir.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Picks one of its operands depending on which edge control arrived on. Phis only exist while a
+ * function is in SSA form and are always grouped at the start of a basic block. All phis of a block
+ * read their operands before any of them writes its destination.
+ * <p>
+ * Every operand is paired with the instruction the incoming edge leaves from, i.e. the last
+ * instruction of the predecessor block.
+ * <p>
+ * Operation (pseudo-code):
+ *
+ * <pre>
+ * {@code
+ * destVar = incoming[previousInstruction]
+ * }
+ * </pre>
+ */
+public final class PhiInst extends Instruction implements java.io.Serializable {
+  static final long serialVersionUID = 12022L;
+  private List<Instruction> mIncoming;
+
+  public PhiInst(LocalVar destVar, List<Instruction> incoming, List<Value> values) {
+    super(destVar, values);
+    mIncoming = new ArrayList<>(incoming);
+  }
+
+  public LocalVar getDst() {
+    return (LocalVar) mDestVar;
+  }
+
+  /**
+   * The instructions the incoming edges leave from, parallel to the operands.
+   */
+  public List<Instruction> getIncoming() {
+    return List.copyOf(mIncoming);
+  }
+
+  /**
+   * Returns the value flowing in on the edge leaving from, or null if there is no such edge.
+   */
+  public Value getValueFrom(Instruction from) {
+    int index = mIncoming.indexOf(from);
+    return index < 0 ? null : mOperands.get(index);
+  }
+
+  public void setValueFrom(Instruction from, Value value) {
+    replaceOperand(mIncoming.indexOf(from), value);
+  }
+
+  /**
+   * Repoints the edge leaving from oldSource, e.g. after a pass moved the end of a predecessor.
+   */
+  public void replaceIncoming(Instruction oldSource, Instruction newSource) {
+    int index = mIncoming.indexOf(oldSource);
+    if (index >= 0)
+      mIncoming.set(index, newSource);
+  }
+
+  public void addIncoming(Instruction from, Value value) {
+    mIncoming.add(from);
+    var operands = new ArrayList<>(mOperands);
+    operands.add(value);
+    mOperands = List.copyOf(operands);
+  }
+
+  public void removeIncoming(Instruction from) {
+    int index = mIncoming.indexOf(from);
+    if (index < 0)
+      return;
+    mIncoming.remove(index);
+    var operands = new ArrayList<>(mOperands);
+    operands.remove(index);
+    mOperands = List.copyOf(operands);
+  }
+
+  @Override
+  public void accept(InstVisitor v) {
+    v.visit(this);
+  }
+
+  @Override
+  public String format(Function<Value, String> valueFormatter) {
+    var destVar = valueFormatter.apply(mDestVar);
+    List<String> values = new ArrayList<>();
+    for (var operand : mOperands) {
+      values.add(valueFormatter.apply(operand));
+    }
+    return String.format("%s = phi %s", destVar, String.join(", ", values));
+  }
+}
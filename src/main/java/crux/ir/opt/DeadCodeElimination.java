@@ -0,0 +1,208 @@
+package crux.ir.opt;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Removes instructions that have no effect.
+ * <ul>
+ * <li>Instructions without side effects whose result is not live, found with {@link Liveness}.</li>
+ * <li>Stores to a global that is stored to again on every path before it is read or a function is
+ * called.</li>
+ * <li>Nops, so chains of them collapse.</li>
+ * </ul>
+ * The steps are repeated until nothing changes, since removing one instruction can make the
+ * instructions feeding it dead. Works on functions in and out of SSA form.
+ */
+public final class DeadCodeElimination extends FunctionPass {
+  private int mNumRemoved = 0;
+
+  /**
+   * The number of instructions removed by all runs of this pass so far.
+   */
+  public int getNumRemoved() {
+    return mNumRemoved;
+  }
+
+  @Override
+  public Map<String, Integer> getStatistics() {
+    return Map.of("removed", mNumRemoved);
+  }
+
+  @Override
+  public void run(Program p, Function f) {
+    if (f.getStart() == null)
+      return;
+    int before = f.getCFG().getInstructionCount();
+    boolean changed = true;
+    while (changed) {
+      HashSet<Instruction> dead = new HashSet<>();
+      findDeadStores(f, dead);
+      findDeadInstructions(f, dead);
+      changed = removeInstructions(f, dead);
+    }
+    mNumRemoved += before - f.getCFG().getInstructionCount();
+  }
+
+  private static boolean isPure(Instruction inst) {
+    return inst instanceof CopyInst || inst instanceof BinaryOperator
+        || inst instanceof CompareInst || inst instanceof UnaryNotInst || inst instanceof AddressAt
+        || inst instanceof LoadInst || inst instanceof PhiInst;
+  }
+
+  private static void findDeadInstructions(Function f, Set<Instruction> dead) {
+    var liveness = new Liveness(f);
+    for (var block : liveness.getCFG().getBlocks()) {
+      var live = (BitSet) liveness.getLiveOut(block).clone();
+      var insts = block.getInstructions();
+      for (int i = insts.size() - 1; i >= 0; i--) {
+        var inst = insts.get(i);
+        if (inst instanceof NopInst || dead.contains(inst)) {
+          dead.add(inst);
+          continue;
+        }
+        var dst = inst.getDestVar();
+        if (dst != null) {
+          int index = liveness.getIndex(dst);
+          if (isPure(inst) && !live.get(index)) {
+            dead.add(inst);
+            continue;
+          }
+          live.clear(index);
+        }
+        // Phi operands are live out of the predecessors, not in this block.
+        if (inst instanceof PhiInst)
+          continue;
+        for (var operand : inst.getOperands()) {
+          if (operand instanceof Variable)
+            live.set(liveness.getIndex((Variable) operand));
+        }
+      }
+    }
+  }
+
+  /**
+   * A backward must-analysis of the global addresses that are stored to before they can be read.
+   * Addresses are compared by the global and the value of the offset, so a store is only known to
+   * be overwritten by a store through an AddressAt with the same base and offset.
+   */
+  private static void findDeadStores(Function f, Set<Instruction> dead) {
+    var cfg = f.getCFG();
+    var blocks = cfg.getBlocks();
+    var addresses = new AddressKeys(cfg);
+
+    List<Set<List<Object>>> in = new ArrayList<>(Collections.nCopies(blocks.size(), null));
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = blocks.size() - 1; i >= 0; i--) {
+        var block = blocks.get(i);
+        var set = overwrittenAtEnd(block, in);
+        transfer(block, set, addresses, null);
+        if (!set.equals(in.get(i))) {
+          in.set(i, set);
+          changed = true;
+        }
+      }
+    }
+    for (var block : blocks) {
+      transfer(block, overwrittenAtEnd(block, in), addresses, dead);
+    }
+  }
+
+  /**
+   * The intersection over the successors. Successors not computed yet count as empty, which is safe
+   * and only loses precision on loops. Globals stay observable after a return.
+   */
+  private static Set<List<Object>> overwrittenAtEnd(BasicBlock block, List<Set<List<Object>>> in) {
+    Set<List<Object>> out = null;
+    for (var succ : block.getSuccessors()) {
+      var succIn = in.get(succ.getId());
+      if (succIn == null)
+        return new HashSet<>();
+      if (out == null) {
+        out = new HashSet<>(succIn);
+      } else {
+        out.retainAll(succIn);
+      }
+    }
+    return out == null ? new HashSet<>() : out;
+  }
+
+  /**
+   * Walks block backwards from the addresses overwritten at its end. Stores found to be overwritten
+   * are added to dead if it is not null.
+   */
+  private static void transfer(BasicBlock block, Set<List<Object>> overwritten,
+      AddressKeys addresses, Set<Instruction> dead) {
+    var insts = block.getInstructions();
+    for (int i = insts.size() - 1; i >= 0; i--) {
+      var inst = insts.get(i);
+      if (inst instanceof StoreInst) {
+        var key = addresses.keyOf(((StoreInst) inst).getDestAddress());
+        if (key == null)
+          continue;
+        if (overwritten.contains(key)) {
+          if (dead != null)
+            dead.add(inst);
+        } else {
+          overwritten.add(key);
+        }
+      } else if (inst instanceof LoadInst) {
+        var key = addresses.keyOf(((LoadInst) inst).getSrcAddress());
+        // Another offset into the same global may hold the same value.
+        if (key == null)
+          overwritten.clear();
+        else
+          overwritten.removeIf(k -> k.get(0) == key.get(0));
+      } else if (inst instanceof CallInst) {
+        overwritten.clear();
+      }
+      var dst = inst.getDestVar();
+      if (dst instanceof LocalVar)
+        overwritten.removeIf(k -> k.get(1) == dst);
+    }
+  }
+
+  /**
+   * Identifies the global location an AddressVar points to.
+   */
+  private static final class AddressKeys {
+    private final HashMap<Variable, Instruction> mDefs = new HashMap<>();
+    private final HashSet<Variable> mRedefined = new HashSet<>();
+
+    AddressKeys(ControlFlowGraph cfg) {
+      for (var block : cfg.getBlocks()) {
+        for (var inst : block.getInstructions()) {
+          var dst = inst.getDestVar();
+          if (dst != null && mDefs.put(dst, inst) != null)
+            mRedefined.add(dst);
+        }
+      }
+    }
+
+    /**
+     * Returns (global, offset) where the offset is a constant, a variable or null, or returns null
+     * if the address is not known.
+     */
+    List<Object> keyOf(AddressVar address) {
+      if (mRedefined.contains(address) || !(mDefs.get(address) instanceof AddressAt))
+        return null;
+      var at = (AddressAt) mDefs.get(address);
+      Symbol base = at.getBase();
+      Object offset = at.getOffset();
+      if (offset != null) {
+        // A variable with several definitions may have changed since the address was taken.
+        if (mRedefined.contains(offset))
+          return null;
+        var def = mDefs.get(offset);
+        if (def instanceof CopyInst && ((CopyInst) def).getSrcValue() instanceof IntegerConstant)
+          offset = ((IntegerConstant) ((CopyInst) def).getSrcValue()).getValue();
+      }
+      return Arrays.asList(base, offset);
+    }
+  }
+}
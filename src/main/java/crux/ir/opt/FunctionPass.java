@@ -0,0 +1,207 @@
+package crux.ir.opt;
+
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * A transformation that is applied to every function of a program independently.
+ * <p>
+ * Besides the entry points, this class holds the helpers passes use to edit the instruction graph
+ * without breaking the links between instructions, the function start or the phis.
+ */
+public abstract class FunctionPass {
+  public void run(Program p) {
+    for (var it = p.getFunctions(); it.hasNext();) {
+      run(p, it.next());
+    }
+  }
+
+  /**
+   * Transforms f. The program is passed along for passes that need its constant pools.
+   */
+  public abstract void run(Program p, Function f);
+
+  /**
+   * Whether run(p, f) reads and writes nothing but f, so separate instances of the pass can work on
+   * different functions at the same time. Passes that look into other functions return false.
+   */
+  public boolean isLocal() {
+    return true;
+  }
+
+  /**
+   * Returns what the runs of this pass so far did as named counts, e.g. {@code removed=12}, in the
+   * order they should be reported. Passes that keep no counts return an empty map.
+   */
+  public Map<String, Integer> getStatistics() {
+    return Map.of();
+  }
+
+  /**
+   * Swaps every key of replacements for its value. The outgoing edges of a replacement may point at
+   * old instructions; they are mapped too. Phis that are left with an incoming edge that no longer
+   * exists lose that operand. A replacement without a profile count takes over the count of the
+   * instruction it replaces.
+   */
+  protected static void replaceInstructions(Function f, Map<Instruction, Instruction> replacements) {
+    if (replacements.isEmpty())
+      return;
+    for (var replacement : replacements.entrySet()) {
+      if (replacement.getValue().getCount() == 0)
+        replacement.getValue().setCount(replacement.getKey().getCount());
+    }
+    var cfg = f.getCFG();
+    for (var block : cfg.getBlocks()) {
+      for (var inst : block.getInstructions()) {
+        var current = replacements.getOrDefault(inst, inst);
+        for (int i = 0; i < current.numNext(); i++) {
+          var next = current.getNext(i);
+          if (next != null && replacements.containsKey(next))
+            current.setNext(i, replacements.get(next));
+        }
+        if (current instanceof PhiInst) {
+          for (var from : ((PhiInst) current).getIncoming()) {
+            if (replacements.containsKey(from))
+              ((PhiInst) current).replaceIncoming(from, replacements.get(from));
+          }
+        }
+      }
+    }
+    if (replacements.containsKey(f.getStart()))
+      f.setStart(replacements.get(f.getStart()));
+    f.invalidateCFG();
+    removeStaleIncoming(f);
+  }
+
+  /**
+   * Unlinks the given instructions, so their predecessors continue with whatever follows them. Only
+   * instructions with a single successor may be passed. An instruction that a phi names as its
+   * incoming edge, or that ends the function, cannot go: it becomes a nop instead, unless it is one
+   * already. Returns whether anything changed.
+   */
+  protected static boolean removeInstructions(Function f, Set<Instruction> dead) {
+    var cfg = f.getCFG();
+    HashSet<Instruction> removed = new HashSet<>();
+    HashMap<Instruction, Instruction> nops = new HashMap<>();
+    for (var inst : dead) {
+      var block = cfg.getBlock(inst);
+      if (block == null)
+        continue;
+      boolean pinned = inst.getNext(0) == null;
+      if (inst == block.getLast()) {
+        for (var succ : block.getSuccessors()) {
+          pinned |= succ.getFirst() instanceof PhiInst;
+        }
+      }
+      if (!pinned) {
+        removed.add(inst);
+      } else if (!(inst instanceof NopInst)) {
+        var nop = new NopInst();
+        nop.setNext(0, inst.getNext(0));
+        nops.put(inst, nop);
+      }
+    }
+    // A loop made only of removed instructions (e.g. an empty infinite loop) keeps one of them.
+    for (var inst : List.copyOf(removed)) {
+      HashSet<Instruction> seen = new HashSet<>();
+      for (var x = inst; x != null && removed.contains(x); x = x.getNext(0)) {
+        if (!seen.add(x)) {
+          removed.remove(x);
+          break;
+        }
+      }
+    }
+    // Phis must not end up at the start of the function, where they have no incoming edge.
+    if (removed.contains(f.getStart()) && skip(f.getStart(), removed) instanceof PhiInst)
+      removed.remove(f.getStart());
+    if (removed.isEmpty() && nops.isEmpty())
+      return false;
+
+    for (var block : cfg.getBlocks()) {
+      for (var inst : block.getInstructions()) {
+        for (int i = 0; i < inst.numNext(); i++) {
+          if (inst.getNext(i) != null)
+            inst.setNext(i, skip(inst.getNext(i), removed));
+        }
+      }
+    }
+    for (var nop : nops.values()) {
+      nop.setNext(0, skip(nop.getNext(0), removed));
+    }
+    f.setStart(skip(f.getStart(), removed));
+    f.invalidateCFG();
+    replaceInstructions(f, nops);
+    return true;
+  }
+
+  /**
+   * Places chain on the edges from the instruction from to target; the instructions of chain are
+   * linked here. Phis at target that named from as their incoming edge name the end of the chain
+   * instead. The chain runs as often as the edges did in the profile.
+   */
+  protected static void insertOnEdge(Function f, Instruction from, Instruction target,
+      List<Instruction> chain) {
+    long count = 0;
+    for (int i = 0; i < from.numNext(); i++) {
+      if (from.getNext(i) == target) {
+        count += from.getEdgeCount(i);
+        from.setNext(i, chain.get(0));
+      }
+    }
+    for (var inst : chain) {
+      inst.setCount(count);
+    }
+    for (int i = 0; i + 1 < chain.size(); i++) {
+      chain.get(i).setNext(0, chain.get(i + 1));
+    }
+    var last = chain.get(chain.size() - 1);
+    last.setNext(0, target);
+    for (var inst = target; inst instanceof PhiInst; inst = inst.getNext(0)) {
+      ((PhiInst) inst).replaceIncoming(from, last);
+    }
+    f.invalidateCFG();
+  }
+
+  private static Instruction skip(Instruction inst, Set<Instruction> removed) {
+    while (inst != null && removed.contains(inst)) {
+      inst = inst.getNext(0);
+    }
+    return inst;
+  }
+
+  /**
+   * Drops the phi operands whose edge has gone, e.g. because a branch was folded or its source
+   * became unreachable. A phi whose block was merged into its only predecessor is left inside a
+   * block and becomes a copy of the value from the instruction before it.
+   */
+  protected static void removeStaleIncoming(Function f) {
+    HashMap<Instruction, Instruction> copies = new HashMap<>();
+    for (var block : f.getCFG().getBlocks()) {
+      HashSet<Instruction> sources = new HashSet<>();
+      for (var pred : block.getPredecessors()) {
+        sources.add(pred.getLast());
+      }
+      boolean inside = false;
+      for (var inst : block.getInstructions()) {
+        if (!(inst instanceof PhiInst)) {
+          sources = new HashSet<>(Set.of(inst));
+          inside = true;
+          continue;
+        }
+        var phi = (PhiInst) inst;
+        for (var from : phi.getIncoming()) {
+          if (!sources.contains(from))
+            phi.removeIncoming(from);
+        }
+        if (inside && phi.getIncoming().size() == 1) {
+          var copy = new CopyInst(phi.getDst(), phi.getValueFrom(phi.getIncoming().get(0)));
+          copy.setNext(0, phi.getNext(0));
+          copies.put(phi, copy);
+        }
+      }
+    }
+    replaceInstructions(f, copies);
+  }
+}
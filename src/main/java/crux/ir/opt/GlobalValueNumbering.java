@@ -0,0 +1,232 @@
+package crux.ir.opt;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Dominator-based global value numbering.
+ * <p>
+ * The blocks are visited in a preorder walk of the dominator tree with a scoped table of the
+ * expressions computed so far, so an expression is looked up among the instructions that dominate
+ * it. An instruction that computes a value already in the table is removed and its result replaced
+ * by the earlier one everywhere. Hashed are binary operators (additions and multiplications in
+ * either operand order), compares, address computations, constant copies and loads; a copy of a
+ * variable is simply replaced by its source.
+ * <p>
+ * A load is only reused while memory has not changed: a store kills the loads from the same global,
+ * a call kills all of them, and so does entering a block that can be reached from more than one
+ * predecessor. A store makes the stored value available to later loads from its address. Functions
+ * not yet in SSA form are converted first.
+ */
+public final class GlobalValueNumbering extends FunctionPass {
+  private int mNumEliminated;
+  private int mNumLoadsEliminated;
+
+  /**
+   * The number of instructions removed so far, including loads.
+   */
+  public int getNumEliminated() {
+    return mNumEliminated;
+  }
+
+  /**
+   * The number of loads removed so far.
+   */
+  public int getNumLoadsEliminated() {
+    return mNumLoadsEliminated;
+  }
+
+  @Override
+  public Map<String, Integer> getStatistics() {
+    var statistics = new LinkedHashMap<String, Integer>();
+    statistics.put("eliminated", mNumEliminated);
+    statistics.put("loads", mNumLoadsEliminated);
+    return statistics;
+  }
+
+  /**
+   * The key of a load; the base tells which stores can change the loaded value.
+   */
+  private static final class LoadKey {
+    final Variable address;
+    final Symbol base;
+
+    LoadKey(Variable address, Symbol base) {
+      this.address = address;
+      this.base = base;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof LoadKey && ((LoadKey) o).address == address;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(address);
+    }
+  }
+
+  private HashMap<Variable, Variable> mLeader;
+  private HashMap<Object, Variable> mAvailable;
+  // (key, value it replaced) pairs, so a scope can restore the table when it is left.
+  private ArrayList<Object[]> mUndo;
+
+  @Override
+  public void run(Program p, Function f) {
+    if (f.getStart() == null)
+      return;
+    if (!f.isSSA())
+      new SSAConstruction().run(p, f);
+    mLeader = new HashMap<>();
+    mAvailable = new HashMap<>();
+    mUndo = new ArrayList<>();
+
+    var cfg = f.getCFG();
+    HashMap<Variable, Symbol> bases = new HashMap<>();
+    for (var block : cfg.getBlocks()) {
+      for (var inst : block.getInstructions()) {
+        if (inst instanceof AddressAt)
+          bases.put(((AddressAt) inst).getDst(), ((AddressAt) inst).getBase());
+      }
+    }
+
+    HashSet<Instruction> redundant = new HashSet<>();
+    // Each frame is a block to enter, or (when exiting) the size of the undo log to return to.
+    Deque<Object> work = new ArrayDeque<>();
+    work.push(cfg.getEntry());
+    while (!work.isEmpty()) {
+      var item = work.pop();
+      if (item instanceof Integer) {
+        undo((Integer) item);
+        continue;
+      }
+      var block = (BasicBlock) item;
+      work.push(mUndo.size());
+      if (block.getPredecessors().length > 1)
+        killLoads(null);
+      for (var inst : block.getInstructions()) {
+        number(inst, bases, redundant);
+      }
+      var children = cfg.getDominatorTreeChildren(block);
+      for (int i = children.size() - 1; i >= 0; i--) {
+        work.push(children.get(i));
+      }
+    }
+
+    if (redundant.isEmpty())
+      return;
+    for (var block : cfg.getBlocks()) {
+      for (var inst : block.getInstructions()) {
+        var operands = inst.getOperands();
+        for (int i = 0; i < operands.size(); i++) {
+          var leader = mLeader.get(operands.get(i));
+          if (leader != null)
+            inst.replaceOperand(i, leader);
+        }
+      }
+    }
+    removeInstructions(f, redundant);
+  }
+
+  private Variable leader(Value v) {
+    return mLeader.getOrDefault(v, (Variable) v);
+  }
+
+  private void number(Instruction inst, HashMap<Variable, Symbol> bases,
+      Set<Instruction> redundant) {
+    if (inst instanceof StoreInst) {
+      var store = (StoreInst) inst;
+      var address = leader(store.getDestAddress());
+      killLoads(bases.get(store.getDestAddress()));
+      put(new LoadKey(address, bases.get(store.getDestAddress())), leader(store.getSrcValue()));
+      return;
+    }
+    if (inst instanceof CallInst) {
+      killLoads(null);
+      return;
+    }
+    if (inst instanceof CopyInst && ((CopyInst) inst).getSrcValue() instanceof Variable) {
+      var copy = (CopyInst) inst;
+      mLeader.put(copy.getDstVar(), leader(copy.getSrcValue()));
+      redundant.add(inst);
+      mNumEliminated++;
+      return;
+    }
+
+    Object key = null;
+    Object swapped = null;
+    if (inst instanceof BinaryOperator) {
+      var op = (BinaryOperator) inst;
+      var left = leader(op.getLeftOperand());
+      var right = leader(op.getRightOperand());
+      key = List.of(op.getOperator(), left, right);
+      if (op.getOperator() == BinaryOperator.Op.Add || op.getOperator() == BinaryOperator.Op.Mul)
+        swapped = List.of(op.getOperator(), right, left);
+    } else if (inst instanceof CompareInst) {
+      var cmp = (CompareInst) inst;
+      key = List.of(cmp.getPredicate(), leader(cmp.getLeftOperand()),
+          leader(cmp.getRightOperand()));
+    } else if (inst instanceof AddressAt) {
+      var at = (AddressAt) inst;
+      key = at.getOffset() == null ? List.of(at.getBase())
+          : List.of(at.getBase(), leader(at.getOffset()));
+    } else if (inst instanceof CopyInst) {
+      var src = ((CopyInst) inst).getSrcValue();
+      if (src instanceof IntegerConstant)
+        key = List.of("int", ((IntegerConstant) src).getValue());
+      else if (src instanceof BooleanConstant)
+        key = List.of("bool", ((BooleanConstant) src).getValue());
+    } else if (inst instanceof LoadInst) {
+      var load = (LoadInst) inst;
+      key = new LoadKey(leader(load.getSrcAddress()), bases.get(load.getSrcAddress()));
+    }
+    if (key == null)
+      return;
+
+    var existing = mAvailable.get(key);
+    if (existing == null && swapped != null)
+      existing = mAvailable.get(swapped);
+    if (existing == null) {
+      put(key, inst.getDestVar());
+      return;
+    }
+    mLeader.put(inst.getDestVar(), existing);
+    redundant.add(inst);
+    mNumEliminated++;
+    if (inst instanceof LoadInst)
+      mNumLoadsEliminated++;
+  }
+
+  private void put(Object key, Variable value) {
+    mUndo.add(new Object[] {key, mAvailable.put(key, value)});
+  }
+
+  /**
+   * Forgets the loads from base, or all loads if base is null or a load's base is unknown.
+   */
+  private void killLoads(Symbol base) {
+    List<Object> killed = new ArrayList<>();
+    for (var key : mAvailable.keySet()) {
+      if (key instanceof LoadKey && (base == null || ((LoadKey) key).base == null
+          || ((LoadKey) key).base == base))
+        killed.add(key);
+    }
+    for (var key : killed) {
+      mUndo.add(new Object[] {key, mAvailable.remove(key)});
+    }
+  }
+
+  private void undo(int size) {
+    while (mUndo.size() > size) {
+      var entry = mUndo.remove(mUndo.size() - 1);
+      if (entry[1] == null)
+        mAvailable.remove(entry[0]);
+      else
+        mAvailable.put(entry[0], (Variable) entry[1]);
+    }
+  }
+}
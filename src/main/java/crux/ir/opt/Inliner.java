@@ -0,0 +1,302 @@
+package crux.ir.opt;
+
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Replaces calls to small functions with a copy of the callee's instructions.
+ * <p>
+ * The copy gets fresh variables of the caller, starts with copies of the arguments into them and
+ * continues with the instruction after the call wherever the callee would return; a return value
+ * becomes a copy into the call's destination. Calls that appear in an inlined body are considered
+ * in turn.
+ * <p>
+ * A callee is only inlined if it has at most {@code maxCalleeSize} instructions and the caller stays
+ * within {@code maxFunctionSize}. Functions that can reach themselves through the call graph are
+ * never inlined, so the pass terminates and recursion keeps its call. Functions in SSA form are
+ * left alone; run the inliner before {@link SSAConstruction}.
+ * <p>
+ * In a function with a profile the call sites are taken hottest first, so the size budget goes to
+ * them. Call sites that never ran are not inlined, and hot ones, with at least a
+ * {@code 1/HOT_CALL_FRACTION} share of the calls of the program, accept callees up to
+ * {@code HOT_CALLEE_FACTOR} times the usual size. The copied instructions get the callee's counts
+ * scaled to the share of its calls that came from the call site.
+ */
+public final class Inliner extends FunctionPass {
+  public static final int DEFAULT_MAX_CALLEE_SIZE = 40;
+  public static final int DEFAULT_MAX_FUNCTION_SIZE = 2000;
+  static final int HOT_CALL_FRACTION = 100;
+  static final int HOT_CALLEE_FACTOR = 4;
+
+  private final int mMaxCalleeSize;
+  private final int mMaxFunctionSize;
+  private HashMap<String, Function> mFunctions;
+  private HashSet<String> mRecursive;
+  private long mNumCalls;
+  private int mNumInlined;
+
+  public Inliner() {
+    this(DEFAULT_MAX_CALLEE_SIZE, DEFAULT_MAX_FUNCTION_SIZE);
+  }
+
+  public Inliner(int maxCalleeSize, int maxFunctionSize) {
+    mMaxCalleeSize = maxCalleeSize;
+    mMaxFunctionSize = maxFunctionSize;
+  }
+
+  /**
+   * The number of call sites replaced so far.
+   */
+  public int getNumInlined() {
+    return mNumInlined;
+  }
+
+  @Override
+  public Map<String, Integer> getStatistics() {
+    return Map.of("inlined", mNumInlined);
+  }
+
+  @Override
+  public boolean isLocal() {
+    return false;
+  }
+
+  @Override
+  public void run(Program p) {
+    mFunctions = null;
+    super.run(p);
+  }
+
+  @Override
+  public void run(Program p, Function f) {
+    if (mFunctions == null) {
+      mFunctions = new HashMap<>();
+      for (var it = p.getFunctions(); it.hasNext();) {
+        var g = it.next();
+        mFunctions.put(g.getName(), g);
+      }
+      mRecursive = findRecursive();
+      mNumCalls = 0;
+      for (var g : mFunctions.values()) {
+        for (var call : calls(g.getStart())) {
+          mNumCalls += call.getCount();
+        }
+      }
+    }
+    if (f.getStart() == null || f.isSSA())
+      return;
+    int size = size(f);
+    List<CallInst> work = new ArrayList<>(calls(f.getStart()));
+    while (!work.isEmpty()) {
+      if (f.isProfiled())
+        work.sort(Comparator.comparingLong(CallInst::getCount).reversed());
+      var call = work.remove(0);
+      var callee = mFunctions.get(call.getCallee().getName());
+      if (callee == null || callee.isSSA() || mRecursive.contains(callee.getName()))
+        continue;
+      int maxCalleeSize = mMaxCalleeSize;
+      if (f.isProfiled()) {
+        if (call.getCount() == 0)
+          continue;
+        if (call.getCount() * HOT_CALL_FRACTION >= mNumCalls)
+          maxCalleeSize *= HOT_CALLEE_FACTOR;
+      }
+      int calleeSize = size(callee);
+      if (calleeSize > maxCalleeSize || size + calleeSize > mMaxFunctionSize)
+        continue;
+      work.addAll(inline(f, call, callee));
+      size += calleeSize;
+      mNumInlined++;
+    }
+  }
+
+  /**
+   * Returns the instructions reachable from start. The links of a return are never followed.
+   */
+  private static List<Instruction> reachable(Instruction start) {
+    List<Instruction> order = new ArrayList<>();
+    HashSet<Instruction> seen = new HashSet<>();
+    Deque<Instruction> work = new ArrayDeque<>();
+    if (start != null) {
+      work.push(start);
+      seen.add(start);
+    }
+    while (!work.isEmpty()) {
+      var inst = work.pop();
+      order.add(inst);
+      if (inst instanceof ReturnInst)
+        continue;
+      for (int i = 0; i < inst.numNext(); i++) {
+        var next = inst.getNext(i);
+        if (next != null && seen.add(next))
+          work.push(next);
+      }
+    }
+    return order;
+  }
+
+  private static int size(Function f) {
+    return reachable(f.getStart()).size();
+  }
+
+  private static List<CallInst> calls(Instruction start) {
+    List<CallInst> calls = new ArrayList<>();
+    for (var inst : reachable(start)) {
+      if (inst instanceof CallInst)
+        calls.add((CallInst) inst);
+    }
+    return calls;
+  }
+
+  /**
+   * Returns the names of the functions that lie on a cycle of the call graph.
+   */
+  private HashSet<String> findRecursive() {
+    HashMap<String, Set<String>> callees = new HashMap<>();
+    for (var f : mFunctions.values()) {
+      Set<String> names = new HashSet<>();
+      for (var call : calls(f.getStart())) {
+        if (mFunctions.containsKey(call.getCallee().getName()))
+          names.add(call.getCallee().getName());
+      }
+      callees.put(f.getName(), names);
+    }
+    HashSet<String> recursive = new HashSet<>();
+    for (var name : callees.keySet()) {
+      HashSet<String> seen = new HashSet<>();
+      Deque<String> work = new ArrayDeque<>(callees.get(name));
+      while (!work.isEmpty()) {
+        var next = work.pop();
+        if (next.equals(name)) {
+          recursive.add(name);
+          break;
+        }
+        if (seen.add(next))
+          work.addAll(callees.get(next));
+      }
+    }
+    return recursive;
+  }
+
+  /**
+   * Splices a copy of callee in place of call and returns the calls in the copy.
+   */
+  private List<CallInst> inline(Function f, CallInst call, Function callee) {
+    HashMap<Variable, Variable> vars = new HashMap<>();
+    java.util.function.Function<Value, Value> map = v -> {
+      if (!(v instanceof Variable))
+        return v;
+      return vars.computeIfAbsent((Variable) v,
+          k -> k instanceof AddressVar ? f.getTempAddressVar(k.getType())
+              : f.getTempVar(k.getType()));
+    };
+
+    var continuation = call.getNext(0);
+    var body = reachable(callee.getStart());
+    HashMap<Instruction, Instruction> copies = new HashMap<>();
+    // The share of the callee's calls made here, to scale its counts by.
+    double share = callee.getEntryCount() == 0 ? 0
+        : Math.min(1, (double) call.getCount() / callee.getEntryCount());
+    for (var inst : body) {
+      var copy = copy(inst, call, map);
+      copy.setCount(Math.round(inst.getCount() * share));
+      if (inst instanceof JumpInst)
+        ((JumpInst) copy).setTakenCount(Math.round(((JumpInst) inst).getTakenCount() * share));
+      copies.put(inst, copy);
+    }
+    for (var inst : body) {
+      var copy = copies.get(inst);
+      if (inst instanceof ReturnInst || inst.numNext() == 0) {
+        copy.setNext(0, continuation);
+        continue;
+      }
+      for (int i = 0; i < inst.numNext(); i++) {
+        var next = inst.getNext(i);
+        copy.setNext(i, next == null ? continuation : copies.get(next));
+      }
+    }
+
+    Instruction head = body.isEmpty() ? continuation : copies.get(callee.getStart());
+    var params = call.getParams();
+    var args = callee.getArguments();
+    for (int i = args.size() - 1; i >= 0; i--) {
+      var argCopy = new CopyInst((LocalVar) map.apply(args.get(i)), params.get(i));
+      argCopy.setNext(0, head);
+      argCopy.setCount(call.getCount());
+      head = argCopy;
+    }
+    if (head == null || head == continuation) {
+      head = new NopInst();
+      head.setNext(0, continuation);
+    }
+    replaceInstructions(f, Map.of(call, head));
+    List<CallInst> calls = new ArrayList<>();
+    for (var inst : body) {
+      if (inst instanceof CallInst)
+        calls.add((CallInst) copies.get(inst));
+    }
+    return calls;
+  }
+
+  private static Instruction copy(Instruction inst, CallInst call,
+      java.util.function.Function<Value, Value> map) {
+    if (inst instanceof ReturnInst) {
+      if (call.getDst() == null)
+        return new NopInst();
+      return new CopyInst(call.getDst(), map.apply(((ReturnInst) inst).getReturnValue()));
+    }
+    if (inst instanceof CopyInst) {
+      var copy = (CopyInst) inst;
+      return new CopyInst((LocalVar) map.apply(copy.getDstVar()), map.apply(copy.getSrcValue()));
+    }
+    if (inst instanceof BinaryOperator) {
+      var op = (BinaryOperator) inst;
+      return new BinaryOperator(op.getOperator(), (LocalVar) map.apply(op.getDst()),
+          (LocalVar) map.apply(op.getLeftOperand()), (LocalVar) map.apply(op.getRightOperand()));
+    }
+    if (inst instanceof CompareInst) {
+      var cmp = (CompareInst) inst;
+      return new CompareInst((LocalVar) map.apply(cmp.getDst()), cmp.getPredicate(),
+          (LocalVar) map.apply(cmp.getLeftOperand()), (LocalVar) map.apply(cmp.getRightOperand()));
+    }
+    if (inst instanceof UnaryNotInst) {
+      var not = (UnaryNotInst) inst;
+      return new UnaryNotInst((LocalVar) map.apply(not.getDst()),
+          (LocalVar) map.apply(not.getInner()));
+    }
+    if (inst instanceof JumpInst)
+      return new JumpInst((LocalVar) map.apply(((JumpInst) inst).getPredicate()));
+    if (inst instanceof AddressAt) {
+      var at = (AddressAt) inst;
+      var dst = (AddressVar) map.apply(at.getDst());
+      if (at.getOffset() == null)
+        return new AddressAt(dst, at.getBase());
+      return new AddressAt(dst, at.getBase(), (LocalVar) map.apply(at.getOffset()));
+    }
+    if (inst instanceof LoadInst) {
+      var load = (LoadInst) inst;
+      return new LoadInst((LocalVar) map.apply(load.getDst()),
+          (AddressVar) map.apply(load.getSrcAddress()));
+    }
+    if (inst instanceof StoreInst) {
+      var store = (StoreInst) inst;
+      return new StoreInst((LocalVar) map.apply(store.getSrcValue()),
+          (AddressVar) map.apply(store.getDestAddress()));
+    }
+    if (inst instanceof CallInst) {
+      var inner = (CallInst) inst;
+      List<LocalVar> params = new ArrayList<>();
+      for (var param : inner.getParams()) {
+        params.add((LocalVar) map.apply(param));
+      }
+      if (inner.getDst() == null)
+        return new CallInst(inner.getCallee(), params);
+      return new CallInst((LocalVar) map.apply(inner.getDst()), inner.getCallee(), params);
+    }
+    if (inst instanceof NopInst)
+      return new NopInst();
+    throw new IllegalStateException("cannot inline " + inst.getClass().getSimpleName());
+  }
+}
@@ -0,0 +1,129 @@
+package crux.ir.opt;
+
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Loop-invariant code motion.
+ * <p>
+ * In SSA form an instruction whose operands are all constants or defined outside a loop computes
+ * the same value on every iteration. Such instructions are moved to a preheader, a run of
+ * instructions placed on the edge that enters the loop, if they cannot trap or have side effects:
+ * copies, compares, negations, additions, subtractions, multiplications and address computations.
+ * Divisions stay, since the loop might not have divided at all, and so do loads, which could
+ * observe a store in the loop.
+ * <p>
+ * Loops are handled inner loop first, so an instruction can move out of several loops. Only loops
+ * entered from a single block outside of them get a preheader. Functions not yet in SSA form are
+ * converted first.
+ */
+public final class LoopInvariantCodeMotion extends FunctionPass {
+  private int mNumHoisted;
+
+  /**
+   * The number of instructions moved out of a loop so far, counting every loop they leave.
+   */
+  public int getNumHoisted() {
+    return mNumHoisted;
+  }
+
+  @Override
+  public Map<String, Integer> getStatistics() {
+    return Map.of("hoisted", mNumHoisted);
+  }
+
+  @Override
+  public void run(Program p, Function f) {
+    if (f.getStart() == null)
+      return;
+    if (!f.isSSA())
+      new SSAConstruction().run(p, f);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (var loop : new LoopInfo(f).getLoops()) {
+        if (hoist(f, loop)) {
+          // The graph changed under the remaining loops.
+          changed = true;
+          break;
+        }
+      }
+    }
+  }
+
+  private static boolean isHoistable(Instruction inst) {
+    if (inst instanceof BinaryOperator)
+      return ((BinaryOperator) inst).getOperator() != BinaryOperator.Op.Div;
+    return inst instanceof CopyInst || inst instanceof CompareInst || inst instanceof UnaryNotInst
+        || inst instanceof AddressAt;
+  }
+
+  /**
+   * Returns the invariant instructions of loop, each after the ones it depends on.
+   */
+  private static List<Instruction> findInvariant(LoopInfo.Loop loop) {
+    HashSet<Variable> definedInLoop = new HashSet<>();
+    for (var block : loop.getBlocks()) {
+      for (var inst : block.getInstructions()) {
+        if (inst.getDestVar() != null)
+          definedInLoop.add(inst.getDestVar());
+      }
+    }
+    List<Instruction> invariant = new ArrayList<>();
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (var block : loop.getBlocks()) {
+        for (var inst : block.getInstructions()) {
+          if (!isHoistable(inst) || !definedInLoop.contains(inst.getDestVar()))
+            continue;
+          boolean operandsInvariant = true;
+          for (var operand : inst.getOperands()) {
+            operandsInvariant &= !definedInLoop.contains(operand);
+          }
+          if (operandsInvariant) {
+            invariant.add(inst);
+            definedInLoop.remove(inst.getDestVar());
+            changed = true;
+          }
+        }
+      }
+    }
+    return invariant;
+  }
+
+  /**
+   * An inner loop made only of invariant instructions never exits; it has nothing to hoist to.
+   */
+  private static boolean formsCycle(List<Instruction> invariant) {
+    var set = new HashSet<>(invariant);
+    for (var inst : invariant) {
+      HashSet<Instruction> seen = new HashSet<>();
+      for (var x = inst; set.contains(x); x = x.getNext(0)) {
+        if (!seen.add(x))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean hoist(Function f, LoopInfo.Loop loop) {
+    var entries = loop.getEntries();
+    if (entries.size() != 1)
+      return false;
+    var invariant = findInvariant(loop);
+    if (invariant.isEmpty() || formsCycle(invariant))
+      return false;
+
+    var from = entries.get(0).getLast();
+    var header = loop.getHeader().getFirst();
+    int edge = from.getNext(0) == header ? 0 : 1;
+    // Unlinking first lets the entering edge follow the header if its first instruction moves.
+    removeInstructions(f, new HashSet<>(invariant));
+    insertOnEdge(f, from, from.getNext(edge), invariant);
+    mNumHoisted += invariant.size();
+    return true;
+  }
+}
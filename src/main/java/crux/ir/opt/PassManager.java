@@ -0,0 +1,319 @@
+package crux.ir.opt;
+
+import crux.ir.*;
+
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * Runs a pipeline of {@link FunctionPass}es over a program, one function at a time, and records for
+ * every pass and function how long it took and how many instructions it added or removed.
+ * <p>
+ * Passes are known by the names in {@link #PASSES}, which also gives the order the optimization
+ * levels and the single-pass flags of the driver use. With verification on, the IR is checked with
+ * {@link IRVerifier} before the first pass and after each one, and the first problem found stops
+ * the compilation with an {@link IllegalStateException} naming the pass.
+ * <p>
+ * Every function gets its own instance of a pass for which {@link FunctionPass#isLocal()} holds,
+ * so with a pool the functions go through a run of such passes at the same time. A pass that looks
+ * at other functions, like the inliner, runs alone over all functions with a single instance.
+ */
+public final class PassManager {
+  /**
+   * The passes by name, in pipeline order.
+   */
+  public static final Map<String, Supplier<FunctionPass>> PASSES = createPasses();
+
+  private static Map<String, Supplier<FunctionPass>> createPasses() {
+    Map<String, Supplier<FunctionPass>> passes = new LinkedHashMap<>();
+    passes.put("inline", Inliner::new);
+    passes.put("ssa", SSAConstruction::new);
+    passes.put("sccp", SCCP::new);
+    passes.put("gvn", GlobalValueNumbering::new);
+    passes.put("licm", LoopInvariantCodeMotion::new);
+    passes.put("strength-reduce", StrengthReduction::new);
+    passes.put("dce", DeadCodeElimination::new);
+    return Collections.unmodifiableMap(passes);
+  }
+
+  /**
+   * What one pass did to one function.
+   */
+  public static final class Record {
+    private final String mPass;
+    private final String mFunction;
+    private final long mNanos;
+    private final int mBefore;
+    private final int mAfter;
+
+    Record(String pass, String function, long nanos, int before, int after) {
+      mPass = pass;
+      mFunction = function;
+      mNanos = nanos;
+      mBefore = before;
+      mAfter = after;
+    }
+
+    public String getPass() {
+      return mPass;
+    }
+
+    public String getFunction() {
+      return mFunction;
+    }
+
+    public long getNanos() {
+      return mNanos;
+    }
+
+    /**
+     * The number of reachable instructions before the pass ran.
+     */
+    public int getBefore() {
+      return mBefore;
+    }
+
+    public int getAfter() {
+      return mAfter;
+    }
+  }
+
+  private final List<String> mNames = new ArrayList<>();
+  private final List<Supplier<FunctionPass>> mPasses = new ArrayList<>();
+  // The instances that ran, per pass; local passes have one per function.
+  private final List<List<FunctionPass>> mInstances = new ArrayList<>();
+  private final List<Record> mRecords = new ArrayList<>();
+  private boolean mVerify = false;
+  private ForkJoinPool mPool;
+
+  /**
+   * Returns the passes run at an optimization level: none at 0, constant propagation and dead code
+   * elimination at 1, and everything at 2 or above.
+   */
+  public static List<String> getPipeline(int level) {
+    if (level <= 0)
+      return List.of();
+    if (level == 1)
+      return List.of("sccp", "dce");
+    return List.copyOf(PASSES.keySet());
+  }
+
+  /**
+   * Splits a comma separated list of pass names, such as "sccp,dce,gvn". Throws an
+   * IllegalArgumentException for an unknown name.
+   */
+  public static List<String> parsePipeline(String spec) {
+    List<String> names = new ArrayList<>();
+    for (var name : spec.split(",")) {
+      name = name.trim();
+      if (name.isEmpty())
+        continue;
+      if (!PASSES.containsKey(name))
+        throw new IllegalArgumentException(
+            String.format("unknown pass '%s'; known passes are %s", name, PASSES.keySet()));
+      names.add(name);
+    }
+    return names;
+  }
+
+  public void add(String name) {
+    var supplier = PASSES.get(name);
+    if (supplier == null)
+      throw new IllegalArgumentException(String.format("unknown pass '%s'", name));
+    add(name, supplier);
+  }
+
+  /**
+   * Adds a configured pass, e.g. an inliner with a different budget. The supplier is asked for an
+   * instance for every function the pass works on.
+   */
+  public void add(String name, Supplier<FunctionPass> pass) {
+    mNames.add(name);
+    mPasses.add(pass);
+  }
+
+  public boolean isEmpty() {
+    return mPasses.isEmpty();
+  }
+
+  public void setVerify(boolean verify) {
+    mVerify = verify;
+  }
+
+  /**
+   * Runs local passes on pool, one task per function. The result does not depend on the pool.
+   */
+  public void setPool(ForkJoinPool pool) {
+    mPool = pool;
+  }
+
+  /**
+   * One record per pass and function, in pipeline order and then in the order of the functions.
+   */
+  public List<Record> getRecords() {
+    return Collections.unmodifiableList(mRecords);
+  }
+
+  public void run(Program p) {
+    List<Function> functions = new ArrayList<>();
+    for (var it = p.getFunctions(); it.hasNext();) {
+      functions.add(it.next());
+    }
+    run(p, functions);
+  }
+
+  /**
+   * Runs the passes over some of the functions of p only.
+   */
+  public void run(Program p, List<Function> functions) {
+    List<Set<Variable>> known = new ArrayList<>();
+    if (mVerify) {
+      for (var f : functions) {
+        known.add(IRVerifier.getVariables(f));
+        verify(f, known.get(known.size() - 1), "lowering");
+      }
+    }
+
+    int n = mPasses.size();
+    Record[][] records = new Record[n][functions.size()];
+    FunctionPass[][] instances = new FunctionPass[n][functions.size()];
+    int i = 0;
+    while (i < n) {
+      var first = mPasses.get(i).get();
+      if (!first.isLocal()) {
+        for (int j = 0; j < functions.size(); j++) {
+          instances[i][j] = first;
+          records[i][j] = run(i, first, p, functions.get(j), mVerify ? known.get(j) : null);
+        }
+        i++;
+        continue;
+      }
+      int from = i;
+      int to = i + 1;
+      while (to < n && mPasses.get(to).get().isLocal()) {
+        to++;
+      }
+      int end = to;
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for (int j = 0; j < functions.size(); j++) {
+        int index = j;
+        tasks.add(() -> {
+          for (int k = from; k < end; k++) {
+            var pass = mPasses.get(k).get();
+            instances[k][index] = pass;
+            records[k][index] = run(k, pass, p, functions.get(index),
+                mVerify ? known.get(index) : null);
+          }
+          return null;
+        });
+      }
+      runAll(tasks);
+      i = to;
+    }
+
+    for (int k = 0; k < n; k++) {
+      mRecords.addAll(Arrays.asList(records[k]));
+      mInstances.add(new ArrayList<>(new LinkedHashSet<>(Arrays.asList(instances[k]))));
+    }
+  }
+
+  private Record run(int index, FunctionPass pass, Program p, Function f, Set<Variable> known) {
+    int before = size(f);
+    long start = System.nanoTime();
+    pass.run(p, f);
+    long nanos = System.nanoTime() - start;
+    if (known != null)
+      verify(f, known, mNames.get(index));
+    return new Record(mNames.get(index), f.getName(), nanos, before, size(f));
+  }
+
+  private void runAll(List<Callable<Void>> tasks) {
+    try {
+      if (mPool == null) {
+        for (var task : tasks) {
+          task.call();
+        }
+        return;
+      }
+      for (var future : mPool.invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new IllegalStateException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static int size(Function f) {
+    return f.getStart() == null ? 0 : f.getCFG().getInstructionCount();
+  }
+
+  private static void verify(Function f, Set<Variable> known, String after) {
+    var errors = IRVerifier.verify(f, known);
+    if (!errors.isEmpty())
+      throw new IllegalStateException(String.format("invalid IR in %s after %s:%n  %s",
+          f.getName(), after, String.join(System.lineSeparator() + "  ", errors)));
+  }
+
+  /**
+   * Prints one line per pass that keeps statistics, e.g. "dce: removed 12".
+   */
+  public void printStatistics(PrintStream out) {
+    for (int i = 0; i < mInstances.size(); i++) {
+      Map<String, Integer> statistics = new LinkedHashMap<>();
+      for (var pass : mInstances.get(i)) {
+        for (var entry : pass.getStatistics().entrySet()) {
+          statistics.merge(entry.getKey(), entry.getValue(), Integer::sum);
+        }
+      }
+      if (statistics.isEmpty())
+        continue;
+      var line = new StringBuilder(mNames.get(i)).append(':');
+      for (var entry : statistics.entrySet()) {
+        line.append(' ').append(entry.getKey()).append(' ').append(entry.getValue());
+      }
+      out.println(line);
+    }
+  }
+
+  /**
+   * Prints the time and instruction count change of every pass, followed by its functions.
+   */
+  public void printTimings(PrintStream out) {
+    out.printf("%-24s %10s %8s %8s%n", "pass / function", "ms", "insts", "delta");
+    long totalNanos = 0;
+    int record = 0;
+    for (int i = 0; i < mPasses.size(); i++) {
+      int functions = mRecords.size() / Math.max(mPasses.size(), 1);
+      var rows = mRecords.subList(record, record + functions);
+      record += functions;
+      long nanos = 0;
+      int after = 0;
+      int delta = 0;
+      for (var r : rows) {
+        nanos += r.getNanos();
+        after += r.getAfter();
+        delta += r.getAfter() - r.getBefore();
+      }
+      totalNanos += nanos;
+      out.printf("%-24s %10.3f %8d %+8d%n", mNames.get(i), nanos / 1e6, after, delta);
+      for (var r : rows) {
+        out.printf("  %-22s %10.3f %8d %+8d%n", r.getFunction(), r.getNanos() / 1e6, r.getAfter(),
+            r.getAfter() - r.getBefore());
+      }
+    }
+    out.printf("%-24s %10.3f%n", "total", totalNanos / 1e6);
+  }
+}
@@ -0,0 +1,286 @@
+package crux.ir.opt;
+
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Sparse conditional constant propagation (Wegman and Zadeck).
+ * <p>
+ * Every SSA variable starts out undefined and only moves down the lattice undefined, constant,
+ * overdefined. Blocks are only evaluated once an edge into them is known to execute, so constants
+ * that only hold because a branch is never taken are found as well.
+ * <p>
+ * Afterwards every instruction other than a phi whose result is constant becomes a copy of that
+ * constant, phi operands are replaced by constants where possible and branches on a constant
+ * predicate become a nop that continues with the taken side. The other side is left unreachable.
+ * Functions not yet in SSA form are converted first.
+ */
+public final class SCCP extends FunctionPass {
+  /**
+   * The lattice bottom. Undefined (top) is represented by a missing entry.
+   */
+  private static final Object OVERDEFINED = new Object();
+
+  private Program mProgram;
+  private ControlFlowGraph mCFG;
+  private HashMap<Variable, Object> mValues;
+  private HashMap<Variable, List<Instruction>> mUses;
+  private HashSet<Variable> mDefined;
+  private HashSet<Long> mExecutableEdges;
+  private boolean[] mVisited;
+  private Deque<BasicBlock[]> mFlowWork;
+  private Deque<Instruction> mSSAWork;
+
+  @Override
+  public void run(Program p, Function f) {
+    if (f.getStart() == null)
+      return;
+    if (!f.isSSA())
+      new SSAConstruction().run(p, f);
+    mProgram = p;
+    mCFG = f.getCFG();
+    mValues = new HashMap<>();
+    mUses = new HashMap<>();
+    mDefined = new HashSet<>();
+    mExecutableEdges = new HashSet<>();
+    mVisited = new boolean[mCFG.getBlocks().size()];
+    mFlowWork = new ArrayDeque<>();
+    mSSAWork = new ArrayDeque<>();
+
+    for (var block : mCFG.getBlocks()) {
+      for (var inst : block.getInstructions()) {
+        for (var operand : inst.getOperands()) {
+          if (operand instanceof Variable)
+            mUses.computeIfAbsent((Variable) operand, v -> new ArrayList<>()).add(inst);
+        }
+        if (inst.getDestVar() != null)
+          mDefined.add(inst.getDestVar());
+      }
+    }
+
+    mFlowWork.add(new BasicBlock[] {null, mCFG.getEntry()});
+    while (!mFlowWork.isEmpty() || !mSSAWork.isEmpty()) {
+      if (!mFlowWork.isEmpty()) {
+        var edge = mFlowWork.poll();
+        if (edge[0] != null && !mExecutableEdges.add(edgeKey(edge[0], edge[1])))
+          continue;
+        var block = edge[1];
+        if (mVisited[block.getId()]) {
+          // Only the phis can see the new edge.
+          for (var inst : block.getInstructions()) {
+            if (!(inst instanceof PhiInst))
+              break;
+            evaluate(inst);
+          }
+        } else {
+          mVisited[block.getId()] = true;
+          for (var inst : block.getInstructions()) {
+            evaluate(inst);
+          }
+        }
+      } else {
+        var inst = mSSAWork.poll();
+        if (mVisited[mCFG.getBlock(inst).getId()])
+          evaluate(inst);
+      }
+    }
+
+    rewrite(f);
+    mCFG = null;
+    mValues = null;
+    mUses = null;
+  }
+
+  private long edgeKey(BasicBlock from, BasicBlock to) {
+    return (long) from.getId() * mCFG.getBlocks().size() + to.getId();
+  }
+
+  private Object valueOf(Value v) {
+    if (v instanceof Constant)
+      return v;
+    // Arguments and variables that are read uninitialized could hold anything.
+    if (!mDefined.contains(v))
+      return OVERDEFINED;
+    return mValues.get(v);
+  }
+
+  private static Object meet(Object a, Object b) {
+    if (a == null)
+      return b;
+    if (b == null)
+      return a;
+    return a == b ? a : OVERDEFINED;
+  }
+
+  private void setValue(Variable v, Object value) {
+    if (value == null)
+      return;
+    var old = mValues.get(v);
+    var lowered = old == null || old == value ? value : OVERDEFINED;
+    if (lowered == old)
+      return;
+    mValues.put(v, lowered);
+    mSSAWork.addAll(mUses.getOrDefault(v, List.of()));
+  }
+
+  private void evaluate(Instruction inst) {
+    var block = mCFG.getBlock(inst);
+    if (inst instanceof PhiInst) {
+      var phi = (PhiInst) inst;
+      var incoming = phi.getIncoming();
+      Object value = null;
+      for (int i = 0; i < incoming.size(); i++) {
+        var pred = mCFG.getBlock(incoming.get(i));
+        if (pred != null && mExecutableEdges.contains(edgeKey(pred, block)))
+          value = meet(value, valueOf(phi.getOperands().get(i)));
+      }
+      setValue(phi.getDst(), value);
+    } else if (inst instanceof CopyInst) {
+      var copy = (CopyInst) inst;
+      setValue(copy.getDstVar(), valueOf(copy.getSrcValue()));
+    } else if (inst instanceof BinaryOperator) {
+      var op = (BinaryOperator) inst;
+      setValue(op.getDst(), fold(op.getOperator(), valueOf(op.getLeftOperand()),
+          valueOf(op.getRightOperand())));
+    } else if (inst instanceof CompareInst) {
+      var cmp = (CompareInst) inst;
+      setValue(cmp.getDst(), fold(cmp.getPredicate(), valueOf(cmp.getLeftOperand()),
+          valueOf(cmp.getRightOperand())));
+    } else if (inst instanceof UnaryNotInst) {
+      var not = (UnaryNotInst) inst;
+      var inner = valueOf(not.getInner());
+      if (inner instanceof BooleanConstant)
+        inner = BooleanConstant.get(mProgram, !((BooleanConstant) inner).getValue());
+      setValue(not.getDst(), inner);
+    } else if (inst.getDestVar() != null) {
+      // Loads, calls and addresses.
+      setValue(inst.getDestVar(), OVERDEFINED);
+    }
+
+    if (inst != block.getLast())
+      return;
+    var succs = block.getSuccessors();
+    if (inst instanceof JumpInst) {
+      var predicate = valueOf(((JumpInst) inst).getPredicate());
+      if (predicate == null)
+        return;
+      if (predicate instanceof BooleanConstant) {
+        addEdge(block, ((BooleanConstant) predicate).getValue() ? succs[1] : succs[0]);
+        return;
+      }
+    }
+    for (var succ : succs) {
+      addEdge(block, succ);
+    }
+  }
+
+  private void addEdge(BasicBlock from, BasicBlock to) {
+    if (!mExecutableEdges.contains(edgeKey(from, to)))
+      mFlowWork.add(new BasicBlock[] {from, to});
+  }
+
+  private Object fold(BinaryOperator.Op op, Object left, Object right) {
+    if (left == OVERDEFINED || right == OVERDEFINED)
+      return OVERDEFINED;
+    if (left == null || right == null)
+      return null;
+    long l = ((IntegerConstant) left).getValue();
+    long r = ((IntegerConstant) right).getValue();
+    switch (op) {
+      case Add:
+        return IntegerConstant.get(mProgram, l + r);
+      case Sub:
+        return IntegerConstant.get(mProgram, l - r);
+      case Mul:
+        return IntegerConstant.get(mProgram, l * r);
+      case Div:
+        // Leave the traps of idivq to run time.
+        if (r == 0 || (l == Long.MIN_VALUE && r == -1))
+          return OVERDEFINED;
+        return IntegerConstant.get(mProgram, l / r);
+    }
+    return OVERDEFINED;
+  }
+
+  private Object fold(CompareInst.Predicate predicate, Object left, Object right) {
+    if (left == OVERDEFINED || right == OVERDEFINED)
+      return OVERDEFINED;
+    if (left == null || right == null)
+      return null;
+    if (left instanceof BooleanConstant) {
+      boolean equal = left == right;
+      switch (predicate) {
+        case EQ:
+          return BooleanConstant.get(mProgram, equal);
+        case NE:
+          return BooleanConstant.get(mProgram, !equal);
+        default:
+          return OVERDEFINED;
+      }
+    }
+    long l = ((IntegerConstant) left).getValue();
+    long r = ((IntegerConstant) right).getValue();
+    boolean result = false;
+    switch (predicate) {
+      case GE:
+        result = l >= r;
+        break;
+      case GT:
+        result = l > r;
+        break;
+      case LE:
+        result = l <= r;
+        break;
+      case LT:
+        result = l < r;
+        break;
+      case EQ:
+        result = l == r;
+        break;
+      case NE:
+        result = l != r;
+        break;
+    }
+    return BooleanConstant.get(mProgram, result);
+  }
+
+  private void rewrite(Function f) {
+    HashMap<Instruction, Instruction> replacements = new HashMap<>();
+    for (var block : mCFG.getBlocks()) {
+      if (!mVisited[block.getId()])
+        continue;
+      for (var inst : block.getInstructions()) {
+        if (inst instanceof PhiInst) {
+          // A constant phi stays a phi of that constant, so the phis of a block stay together at
+          // its start; edges that do not execute can take any value.
+          var phi = (PhiInst) inst;
+          var constant = mValues.get(phi.getDst());
+          for (var from : phi.getIncoming()) {
+            var value = constant instanceof Constant ? constant : valueOf(phi.getValueFrom(from));
+            if (value instanceof Constant)
+              phi.setValueFrom(from, (Constant) value);
+          }
+          continue;
+        }
+        var dst = inst.getDestVar();
+        if (dst instanceof LocalVar && mValues.get(dst) instanceof Constant
+            && !(inst instanceof CopyInst && ((CopyInst) inst).getSrcValue() instanceof Constant)) {
+          var copy = new CopyInst((LocalVar) dst, (Constant) mValues.get(dst));
+          copy.setNext(0, inst.getNext(0));
+          replacements.put(inst, copy);
+        }
+        if (inst instanceof JumpInst) {
+          var predicate = valueOf(((JumpInst) inst).getPredicate());
+          if (predicate instanceof BooleanConstant) {
+            var nop = new NopInst();
+            nop.setNext(0, inst.getNext(((BooleanConstant) predicate).getValue() ? 1 : 0));
+            replacements.put(inst, nop);
+          }
+        }
+      }
+    }
+    replaceInstructions(f, replacements);
+  }
+}
@@ -0,0 +1,175 @@
+package crux.ir.opt;
+
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Puts a function into SSA form, following Cytron et al.
+ * <p>
+ * Phis for a variable are placed on the iterated dominance frontier of the blocks that define it,
+ * but only where the variable is live, so no dead phis are created. Renaming then walks the
+ * dominator tree and gives every definition a fresh LocalVar from {@link Function#getTempVar}.
+ * <p>
+ * A read that no definition reaches (an uninitialized local) keeps the original variable, which
+ * has no definition left after renaming. Arguments keep their names as well, so the function
+ * signature does not change.
+ */
+public final class SSAConstruction extends FunctionPass {
+  @Override
+  public void run(Program p, Function f) {
+    if (f.isSSA() || f.getStart() == null)
+      return;
+    // Phis need a predecessor for every incoming value, and the entry has an implicit one.
+    if (f.getCFG().getEntry().getPredecessors().length > 0) {
+      var entry = new NopInst();
+      entry.setNext(0, f.getStart());
+      entry.setCount(f.getEntryCount());
+      f.setStart(entry);
+    }
+
+    var cfg = f.getCFG();
+    var liveness = new Liveness(f);
+    var blocks = cfg.getBlocks();
+
+    // Where is every variable defined?
+    LinkedHashMap<LocalVar, List<BasicBlock>> defBlocks = new LinkedHashMap<>();
+    for (var arg : f.getArguments()) {
+      defBlocks.computeIfAbsent(arg, v -> new ArrayList<>()).add(cfg.getEntry());
+    }
+    for (var block : blocks) {
+      for (var inst : block.getInstructions()) {
+        if (inst.getDestVar() instanceof LocalVar) {
+          var sites = defBlocks.computeIfAbsent((LocalVar) inst.getDestVar(), v -> new ArrayList<>());
+          if (!sites.contains(block))
+            sites.add(block);
+        }
+      }
+    }
+
+    // Place phis on the iterated dominance frontiers.
+    List<List<PhiInst>> phis = new ArrayList<>();
+    for (int i = 0; i < blocks.size(); i++) {
+      phis.add(new ArrayList<>());
+    }
+    HashMap<PhiInst, LocalVar> phiVar = new HashMap<>();
+    for (var entry : defBlocks.entrySet()) {
+      var v = entry.getKey();
+      int index = liveness.getIndex(v);
+      boolean[] hasPhi = new boolean[blocks.size()];
+      boolean[] queued = new boolean[blocks.size()];
+      Deque<BasicBlock> worklist = new ArrayDeque<>(entry.getValue());
+      for (var b : entry.getValue()) {
+        queued[b.getId()] = true;
+      }
+      while (!worklist.isEmpty()) {
+        var b = worklist.pop();
+        for (var d : cfg.getDominanceFrontier(b)) {
+          if (hasPhi[d.getId()] || !liveness.getLiveIn(d).get(index))
+            continue;
+          hasPhi[d.getId()] = true;
+          List<Instruction> incoming = new ArrayList<>();
+          for (var pred : d.getPredecessors()) {
+            if (!incoming.contains(pred.getLast()))
+              incoming.add(pred.getLast());
+          }
+          List<Value> values = new ArrayList<>(Collections.nCopies(incoming.size(), v));
+          var phi = new PhiInst(v, incoming, values);
+          phis.get(d.getId()).add(phi);
+          phiVar.put(phi, v);
+          if (!queued[d.getId()]) {
+            queued[d.getId()] = true;
+            worklist.push(d);
+          }
+        }
+      }
+    }
+
+    rename(f, cfg, phis, phiVar);
+
+    // Link the phis in front of their blocks.
+    for (var block : blocks) {
+      var blockPhis = phis.get(block.getId());
+      if (blockPhis.isEmpty())
+        continue;
+      for (int i = 0; i + 1 < blockPhis.size(); i++) {
+        blockPhis.get(i).setNext(0, blockPhis.get(i + 1));
+      }
+      for (var phi : blockPhis) {
+        phi.setCount(block.getFirst().getCount());
+      }
+      blockPhis.get(blockPhis.size() - 1).setNext(0, block.getFirst());
+      for (var pred : block.getPredecessors()) {
+        var last = pred.getLast();
+        for (int i = 0; i < last.numNext(); i++) {
+          if (last.getNext(i) == block.getFirst())
+            last.setNext(i, blockPhis.get(0));
+        }
+      }
+    }
+
+    f.setSSA(true);
+    f.invalidateCFG();
+  }
+
+  /**
+   * Walks the dominator tree keeping a stack of current names per variable.
+   */
+  private static void rename(Function f, ControlFlowGraph cfg, List<List<PhiInst>> phis,
+      HashMap<PhiInst, LocalVar> phiVar) {
+    HashMap<LocalVar, Deque<LocalVar>> names = new HashMap<>();
+    // Each frame is a block to enter, or (when exiting) the variables it pushed.
+    Deque<Object> work = new ArrayDeque<>();
+    work.push(cfg.getEntry());
+    while (!work.isEmpty()) {
+      var item = work.pop();
+      if (item instanceof List) {
+        for (var v : (List<?>) item) {
+          names.get(v).pop();
+        }
+        continue;
+      }
+      var block = (BasicBlock) item;
+      List<LocalVar> pushed = new ArrayList<>();
+
+      for (var phi : phis.get(block.getId())) {
+        var v = phiVar.get(phi);
+        var name = f.getTempVar(v.getType());
+        phi.setDestVar(name);
+        names.computeIfAbsent(v, k -> new ArrayDeque<>()).push(name);
+        pushed.add(v);
+      }
+      for (var inst : block.getInstructions()) {
+        var operands = inst.getOperands();
+        for (int i = 0; i < operands.size(); i++) {
+          if (operands.get(i) instanceof LocalVar)
+            inst.replaceOperand(i, current(names, (LocalVar) operands.get(i)));
+        }
+        if (inst.getDestVar() instanceof LocalVar) {
+          var v = (LocalVar) inst.getDestVar();
+          var name = f.getTempVar(v.getType());
+          inst.setDestVar(name);
+          names.computeIfAbsent(v, k -> new ArrayDeque<>()).push(name);
+          pushed.add(v);
+        }
+      }
+      for (var succ : block.getSuccessors()) {
+        for (var phi : phis.get(succ.getId())) {
+          phi.setValueFrom(block.getLast(), current(names, phiVar.get(phi)));
+        }
+      }
+
+      work.push(pushed);
+      var children = cfg.getDominatorTreeChildren(block);
+      for (int i = children.size() - 1; i >= 0; i--) {
+        work.push(children.get(i));
+      }
+    }
+  }
+
+  private static LocalVar current(HashMap<LocalVar, Deque<LocalVar>> names, LocalVar v) {
+    var stack = names.get(v);
+    return stack == null || stack.isEmpty() ? v : stack.peek();
+  }
+}
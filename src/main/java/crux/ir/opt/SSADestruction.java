@@ -0,0 +1,83 @@
+package crux.ir.opt;
+
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Takes a function out of SSA form by replacing its phis with copies, so CodeGen never sees a phi.
+ * <p>
+ * Every phi {@code x = phi(v1, ..., vn)} gets a fresh temporary t. Each incoming edge is split with
+ * a copy {@code t = vi}, and the phi itself becomes {@code x = t}. Since the temporaries are only
+ * read after all of them are written, the phis of a block keep their parallel semantics (no lost
+ * copies or swapped values).
+ */
+public final class SSADestruction extends FunctionPass {
+  @Override
+  public void run(Program p, Function f) {
+    if (!f.isSSA())
+      return;
+    var cfg = f.getCFG();
+    for (var block : cfg.getBlocks()) {
+      List<PhiInst> phis = new ArrayList<>();
+      for (var inst : block.getInstructions()) {
+        if (!(inst instanceof PhiInst))
+          break;
+        phis.add((PhiInst) inst);
+      }
+      if (phis.isEmpty())
+        continue;
+
+      var lastPhi = phis.get(phis.size() - 1);
+      Instruction rest = lastPhi.getNext(0);
+      List<LocalVar> temps = new ArrayList<>();
+      for (var phi : phis) {
+        temps.add(f.getTempVar(phi.getDst().getType()));
+      }
+      List<LocalVar> dsts = new ArrayList<>();
+      for (var phi : phis) {
+        dsts.add(phi.getDst());
+      }
+      Instruction head = chain(dsts, temps, rest, lastPhi.getCount());
+
+      HashSet<Instruction> done = new HashSet<>();
+      for (var pred : block.getPredecessors()) {
+        var from = pred.getLast();
+        if (!done.add(from))
+          continue;
+        for (int i = 0; i < from.numNext(); i++) {
+          if (from.getNext(i) != phis.get(0))
+            continue;
+          List<Value> values = new ArrayList<>();
+          for (var phi : phis) {
+            var value = phi.getValueFrom(from);
+            if (value == null)
+              throw new IllegalStateException(
+                  String.format("phi in %s has no value for a predecessor", f.getName()));
+            values.add(value);
+          }
+          from.setNext(i, chain(temps, values, head, from.getEdgeCount(i)));
+        }
+      }
+    }
+    f.setSSA(false);
+    f.invalidateCFG();
+  }
+
+  /**
+   * Builds the copies dst[i] = src[i] in order, ending in next, and returns the first one. The
+   * copies get the given profile count.
+   */
+  private static Instruction chain(List<LocalVar> dsts, List<? extends Value> srcs,
+      Instruction next, long count) {
+    Instruction first = next;
+    for (int i = dsts.size() - 1; i >= 0; i--) {
+      var copy = new CopyInst(dsts.get(i), srcs.get(i));
+      copy.setNext(0, first);
+      copy.setCount(count);
+      first = copy;
+    }
+    return first;
+  }
+}
@@ -0,0 +1,159 @@
+package crux.ir.opt;
+
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Strength reduction of multiplications by induction variables.
+ * <p>
+ * A basic induction variable is a phi at a loop header that the single back edge feeds with the
+ * phi plus or minus a loop-invariant step. A product {@code j = i * c} of such a variable and a
+ * loop-invariant factor changes by {@code step * c} per iteration, so it is replaced by a new
+ * induction variable that starts at {@code init * c} and is incremented on the back edge. For an
+ * index like {@code i * n + k} into a row-major array this turns the multiplication in the loop into
+ * an addition. Both products are computed on the edge that enters the loop; if that edge is in an
+ * outer loop, the products there can be reduced again.
+ * <p>
+ * Arithmetic wraps around, so the rewrite is exact. Only loops with a single entering block and a
+ * single back edge are considered. Functions not yet in SSA form are converted first.
+ */
+public final class StrengthReduction extends FunctionPass {
+  private int mNumReduced;
+
+  /**
+   * The number of multiplications replaced so far.
+   */
+  public int getNumReduced() {
+    return mNumReduced;
+  }
+
+  @Override
+  public Map<String, Integer> getStatistics() {
+    return Map.of("reduced", mNumReduced);
+  }
+
+  @Override
+  public void run(Program p, Function f) {
+    if (f.getStart() == null)
+      return;
+    if (!f.isSSA())
+      new SSAConstruction().run(p, f);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (var loop : new LoopInfo(f).getLoops()) {
+        if (reduce(f, loop)) {
+          changed = true;
+          break;
+        }
+      }
+    }
+  }
+
+  private boolean reduce(Function f, LoopInfo.Loop loop) {
+    var entries = loop.getEntries();
+    var latches = loop.getLatches();
+    if (entries.size() != 1 || latches.size() != 1)
+      return false;
+    var enter = entries.get(0).getLast();
+    var back = latches.get(0).getLast();
+
+    HashMap<Variable, Instruction> definitions = new HashMap<>();
+    for (var block : loop.getBlocks()) {
+      for (var inst : block.getInstructions()) {
+        if (inst.getDestVar() != null)
+          definitions.put(inst.getDestVar(), inst);
+      }
+    }
+
+    // Find the basic induction variables: the phi, the operator and the step.
+    HashMap<Variable, BinaryOperator> updates = new HashMap<>();
+    HashMap<Variable, PhiInst> phis = new HashMap<>();
+    PhiInst lastPhi = null;
+    for (var inst : loop.getHeader().getInstructions()) {
+      if (!(inst instanceof PhiInst))
+        break;
+      var phi = (PhiInst) inst;
+      lastPhi = phi;
+      var update = definitions.get(phi.getValueFrom(back));
+      // Lowering assigns a new value through a copy.
+      for (int i = 0; i < definitions.size() && update instanceof CopyInst; i++) {
+        update = definitions.get(((CopyInst) update).getSrcValue());
+      }
+      if (!(update instanceof BinaryOperator) || phi.getValueFrom(enter) == null)
+        continue;
+      var op = (BinaryOperator) update;
+      var iv = phi.getDst();
+      boolean add = op.getOperator() == BinaryOperator.Op.Add;
+      boolean sub = op.getOperator() == BinaryOperator.Op.Sub;
+      if ((add || sub) && op.getLeftOperand() == iv
+          && !definitions.containsKey(op.getRightOperand())
+          || add && op.getRightOperand() == iv && !definitions.containsKey(op.getLeftOperand())) {
+        updates.put(iv, op);
+        phis.put(iv, phi);
+      }
+    }
+    if (updates.isEmpty())
+      return false;
+
+    for (var block : loop.getBlocks()) {
+      for (var inst : block.getInstructions()) {
+        if (!(inst instanceof BinaryOperator)
+            || ((BinaryOperator) inst).getOperator() != BinaryOperator.Op.Mul)
+          continue;
+        var mul = (BinaryOperator) inst;
+        LocalVar iv = mul.getLeftOperand();
+        LocalVar factor = mul.getRightOperand();
+        if (!updates.containsKey(iv)) {
+          iv = mul.getRightOperand();
+          factor = mul.getLeftOperand();
+        }
+        if (!updates.containsKey(iv) || definitions.containsKey(factor))
+          continue;
+        rewrite(f, loop, mul, iv, factor, phis.get(iv), updates.get(iv), lastPhi, enter, back);
+        mNumReduced++;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void rewrite(Function f, LoopInfo.Loop loop, BinaryOperator mul, LocalVar iv,
+      LocalVar factor, PhiInst phi, BinaryOperator update, PhiInst lastPhi, Instruction enter,
+      Instruction back) {
+    var type = mul.getDst().getType();
+    var step = update.getLeftOperand() == iv ? update.getRightOperand() : update.getLeftOperand();
+
+    List<Instruction> entering = new ArrayList<>();
+    var init = phi.getValueFrom(enter);
+    LocalVar initVar;
+    if (init instanceof LocalVar) {
+      initVar = (LocalVar) init;
+    } else {
+      initVar = f.getTempVar(type);
+      entering.add(new CopyInst(initVar, init));
+    }
+    var start = f.getTempVar(type);
+    var increment = f.getTempVar(type);
+    entering.add(new BinaryOperator(BinaryOperator.Op.Mul, start, initVar, factor));
+    entering.add(new BinaryOperator(BinaryOperator.Op.Mul, increment, step, factor));
+
+    var current = f.getTempVar(type);
+    var next = f.getTempVar(type);
+    var newPhi = new PhiInst(current, List.of(enter, back), List.of(start, next));
+    newPhi.setNext(0, lastPhi.getNext(0));
+    newPhi.setCount(lastPhi.getCount());
+    lastPhi.setNext(0, newPhi);
+
+    var header = loop.getHeader().getFirst();
+    insertOnEdge(f, enter, header, entering);
+    insertOnEdge(f, back, header,
+        List.of(new BinaryOperator(update.getOperator(), next, current, increment)));
+
+    var copy = new CopyInst(mul.getDst(), current);
+    copy.setNext(0, mul.getNext(0));
+    replaceInstructions(f, Map.of(mul, copy));
+  }
+}
@@ -1,8 +1,10 @@
 package crux.printing;
 
 import crux.ir.*;
+import crux.ir.insts.JumpInst;
 
 import java.io.PrintStream;
+import java.util.Locale;
 
 public final class IRPrinter {
   private final PrintStream mStdOut;
@@ -17,4 +19,29 @@ public final class IRPrinter {
     var text = program.format(mValueFormatter);
     mStdOut.print(text);
   }
+
+  /**
+   * Prints program with the counts of profile next to the instructions. Nodes are filled by how
+   * often they ran, on a log scale from white (never) over yellow to red (the hottest instruction),
+   * and jumps also show how often they took their true edge.
+   */
+  public void print(Program program, ExecutionProfile profile) {
+    long max = 1;
+    for (var inst : profile.getExecutedInstructions()) {
+      max = Math.max(max, profile.getCount(inst));
+    }
+    double scale = Math.log1p(max);
+    var text = program.format(mValueFormatter, inst -> {
+      long count = profile.getCount(inst);
+      var label = Long.toString(count);
+      if (inst instanceof JumpInst)
+        label += String.format(", %d true", profile.getTakenCount((JumpInst) inst));
+      if (count == 0)
+        return String.format("xlabel=\"%s\"", label);
+      double heat = Math.log1p(count) / scale;
+      return String.format(Locale.ROOT, "xlabel=\"%s\", fillcolor=\"%.3f %.3f 1.000\"", label,
+          0.17 * (1 - heat), 0.15 + 0.85 * heat);
+    });
+    mStdOut.print(text);
+  }
 }
@@ -0,0 +1,93 @@
+package crux.printing;
+
+import crux.ir.*;
+import crux.ir.insts.JumpInst;
+import crux.ir.insts.NopInst;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prints the hot spots of an {@link ExecutionProfile}: the functions by the instructions they ran,
+ * the call edges, the instructions other than nops and the jumps that ran most, each sorted hottest
+ * first.
+ */
+public final class ProfilePrinter {
+  public static final int DEFAULT_LIMIT = 20;
+
+  private final PrintStream mStdOut;
+  private final int mLimit;
+
+  public ProfilePrinter(PrintStream stdout) {
+    this(stdout, DEFAULT_LIMIT);
+  }
+
+  /**
+   * Prints at most limit instructions, jumps and call edges.
+   */
+  public ProfilePrinter(PrintStream stdout, int limit) {
+    mStdOut = stdout;
+    mLimit = limit;
+  }
+
+  public void print(ExecutionProfile profile) {
+    var formatter = new IRValueFormatter();
+    var instructionCounts = profile.getInstructionCounts();
+    long total = 0;
+    for (var count : instructionCounts.values()) {
+      total += count;
+    }
+    mStdOut.printf("profile: %d instructions run%n", total);
+
+    List<Function> functions = new ArrayList<>(profile.getFunctions());
+    functions.removeIf(f -> profile.getEntryCount(f) == 0);
+    functions.sort(Comparator.comparing(
+        (Function f) -> instructionCounts.getOrDefault(f, 0L)).reversed());
+    mStdOut.printf("%-24s %12s %14s %7s%n", "function", "calls", "instructions", "%");
+    for (var f : functions) {
+      long count = instructionCounts.getOrDefault(f, 0L);
+      mStdOut.printf("  %-22s %12d %14d %7.2f%n", f.getName(), profile.getEntryCount(f), count,
+          100.0 * count / Math.max(total, 1));
+    }
+
+    List<Object[]> edges = new ArrayList<>();
+    for (var caller : profile.getCallCounts().entrySet()) {
+      for (Map.Entry<String, Long> callee : caller.getValue().entrySet()) {
+        edges.add(new Object[] {caller.getKey().getName() + " -> " + callee.getKey(),
+            callee.getValue()});
+      }
+    }
+    edges.sort(Comparator.comparing((Object[] e) -> (Long) e[1]).reversed());
+    mStdOut.printf("%-39s %12s%n", "call edge", "calls");
+    for (var edge : edges.subList(0, Math.min(mLimit, edges.size()))) {
+      mStdOut.printf("  %-37s %12d%n", edge[0], edge[1]);
+    }
+
+    var executed = profile.getExecutedInstructions();
+    executed.sort(Comparator.comparing(profile::getCount).reversed());
+    // Nops do nothing, so only the dot file shows them.
+    List<Instruction> hot = new ArrayList<>(executed);
+    hot.removeIf(inst -> inst instanceof NopInst);
+    mStdOut.printf("%-24s %12s%n", "instruction", "count");
+    for (var inst : hot.subList(0, Math.min(mLimit, hot.size()))) {
+      mStdOut.printf("  %-22s %12d  %s%n", profile.getFunction(inst).getName(),
+          profile.getCount(inst), inst.format(formatter));
+    }
+
+    List<Instruction> jumps = new ArrayList<>();
+    for (var inst : executed) {
+      if (inst instanceof JumpInst)
+        jumps.add(inst);
+    }
+    mStdOut.printf("%-24s %12s %12s %12s %7s%n", "jump", "count", "true", "false", "true %");
+    for (var inst : jumps.subList(0, Math.min(mLimit, jumps.size()))) {
+      long count = profile.getCount(inst);
+      long taken = profile.getTakenCount((JumpInst) inst);
+      mStdOut.printf("  %-22s %12d %12d %12d %7.2f  %s%n", profile.getFunction(inst).getName(),
+          count, taken, count - taken, 100.0 * taken / count, inst.format(formatter));
+    }
+  }
+}
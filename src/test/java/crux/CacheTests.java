@@ -0,0 +1,181 @@
+package crux;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+final class CacheTests {
+  private static final String PROGRAM = String.join("\n",
+      "int helper(int x) {",
+      "  return x * 2;",
+      "}",
+      "void unused() {",
+      "  printInt(7);",
+      "}",
+      "void main() {",
+      "  printInt(helper(readInt()));",
+      "}");
+
+  private Path directory;
+  private Path cache;
+
+  @BeforeEach
+  void createDirectories() throws IOException {
+    directory = Files.createTempDirectory("crux-cache");
+    cache = directory.resolve("cache");
+  }
+
+  @AfterEach
+  void deleteDirectories() throws IOException {
+    TestCompiler.deleteDirectory(directory);
+  }
+
+  /**
+   * Runs the driver on PROGRAM with the cache and options, and returns what it reported about the
+   * cache in this run.
+   */
+  private String run(Consumer<Driver> options) {
+    var errStream = new ByteArrayOutputStream();
+    var errPrintStream = new PrintStream(errStream);
+    var driver = new Driver(new PrintStream(new ByteArrayOutputStream()), errPrintStream);
+    driver.setOutputDirectory(directory);
+    driver.setCacheDirectory(cache.toString());
+    driver.enableCacheStats();
+    options.accept(driver);
+    driver.setEmulatorInput(new ByteArrayInputStream("4\n".getBytes(StandardCharsets.UTF_8)));
+    driver.setInputStream(new ByteArrayInputStream(PROGRAM.getBytes(StandardCharsets.UTF_8)));
+    Assertions.assertEquals(State.Finished, driver.run(), errStream.toString());
+    errPrintStream.flush();
+    return errStream.toString().lines().findFirst().orElse("");
+  }
+
+  private String asm() throws IOException {
+    return Files.readString(directory.resolve("a.s"));
+  }
+
+  @Test
+  void secondCompilationHitsTheCache() throws Exception {
+    var expected = TestCompiler.compile(PROGRAM, driver -> driver.setOptimizationLevel(2));
+    Assertions.assertEquals("cache: 0 hits, 1 misses this run",
+        run(driver -> driver.setOptimizationLevel(2)));
+    Assertions.assertEquals(expected, asm());
+    Files.delete(directory.resolve("a.s"));
+    Assertions.assertEquals("cache: 1 hits, 0 misses this run",
+        run(driver -> driver.setOptimizationLevel(2)));
+    Assertions.assertEquals(expected, asm());
+
+    // Other passes give other results.
+    Assertions.assertEquals("cache: 0 hits, 1 misses this run",
+        run(driver -> driver.setOptimizationLevel(1)));
+  }
+
+  @Test
+  void cachedIRGivesTheSameAssembly() throws Exception {
+    // Running on the emulator stores the IR but no assembly.
+    Assertions.assertEquals("cache: 0 hits, 1 misses this run", run(Driver::enableEmulator));
+    Assertions.assertEquals("cache: 1 hits, 0 misses this run", run(driver -> {}));
+    // unused is not called, but is compiled as on a miss.
+    Assertions.assertTrue(asm().contains("\nunused:"), asm());
+    Assertions.assertEquals(TestCompiler.compile(PROGRAM, driver -> {}), asm());
+  }
+
+  /**
+   * Stores an entry of size bytes last used at time seconds.
+   */
+  private static void store(CompileCache compileCache, String key, int size, long time)
+      throws IOException {
+    compileCache.store(key, CompileCache.ASM, out -> out.write(new byte[size]));
+    Files.setLastModifiedTime(compileCache.find(key, CompileCache.ASM).getParent(),
+        FileTime.fromMillis(time * 1000));
+  }
+
+  @Test
+  void evictionRemovesTheEntriesUsedLeastRecently() throws Exception {
+    var compileCache = new CompileCache(cache, 2500);
+    store(compileCache, "a", 1000, 1);
+    store(compileCache, "b", 1000, 3);
+    store(compileCache, "c", 1000, 2);
+    compileCache.evict();
+
+    // c fits once a is gone.
+    Assertions.assertNull(compileCache.find("a", CompileCache.ASM));
+    Assertions.assertNotNull(compileCache.find("c", CompileCache.ASM));
+    Assertions.assertNotNull(compileCache.find("b", CompileCache.ASM));
+    try (var entries = Files.list(cache)) {
+      Assertions.assertEquals(List.of("b", "c"), entries.map(path -> path.getFileName().toString())
+          .sorted().collect(Collectors.toList()));
+    }
+
+    compileCache.recordHit();
+    compileCache.recordMiss();
+    Assertions.assertEquals(Map.of("hits", 1L, "misses", 1L, "evictions", 1L),
+        compileCache.updateStatistics());
+    // The totals add up across runs.
+    compileCache.recordMiss();
+    Assertions.assertEquals(Map.of("hits", 1L, "misses", 2L, "evictions", 1L),
+        compileCache.updateStatistics());
+  }
+
+  @Test
+  void concurrentCompilationsShareTheCache() throws Exception {
+    // The server compiles each request on a thread of its own, in one process.
+    int threads = 16;
+    var start = new CountDownLatch(1);
+    var pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Callable<String>> compilations = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        var output = Files.createDirectory(directory.resolve("out" + i));
+        compilations.add(() -> {
+          var errStream = new ByteArrayOutputStream();
+          var errPrintStream = new PrintStream(errStream, true);
+          var driver = new Driver(errPrintStream, errPrintStream);
+          driver.setOutputDirectory(output);
+          driver.setCacheDirectory(cache.toString());
+          driver.enableCacheStats();
+          driver.setOptimizationLevel(2);
+          driver.setInputStream(
+              new ByteArrayInputStream(PROGRAM.getBytes(StandardCharsets.UTF_8)));
+          start.await();
+          Assertions.assertEquals(State.Finished, driver.run(), errStream.toString());
+          return errStream.toString();
+        });
+      }
+      var results = new ArrayList<Future<String>>();
+      for (var compilation : compilations) {
+        results.add(pool.submit(compilation));
+      }
+      start.countDown();
+      for (var result : results) {
+        var err = result.get();
+        Assertions.assertTrue(err.startsWith("cache: "), err);
+        Assertions.assertFalse(err.contains("Exception"), err);
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    // No run lost its counts.
+    var totals = new CompileCache(cache, CompileCache.DEFAULT_MAX_BYTES).updateStatistics();
+    Assertions.assertEquals(threads, totals.get("hits") + totals.get("misses"), totals.toString());
+  }
+}
@@ -0,0 +1,337 @@
+package crux;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+final class CodeGenTests {
+  private static final List<String> CALLEE_SAVED = List.of("%rbx", "%r12", "%r13", "%r14", "%r15");
+
+  private static final String SUM = String.join("\n",
+      "int sum(int n) {",
+      "  int s;",
+      "  int i;",
+      "  s = 0;",
+      "  for (i = 0; i < n; i = i + 1) {",
+      "    s = s + i;",
+      "  }",
+      "  return s;",
+      "}",
+      "void main() {",
+      "  printInt(sum(10));",
+      "}");
+
+  /**
+   * Whether inst reads or writes a stack slot, other than to save or restore a callee-saved
+   * register.
+   */
+  private static boolean accessesStack(String inst) {
+    if (!inst.contains("(%rbp)"))
+      return false;
+    for (var register : CALLEE_SAVED) {
+      if (inst.matches("movq " + Pattern.quote(register) + ", -\\d+\\(%rbp\\)")
+          || inst.matches("movq -\\d+\\(%rbp\\), " + Pattern.quote(register)))
+        return false;
+    }
+    return true;
+  }
+
+  private static long count(List<String> insts, Predicate<String> test) {
+    return insts.stream().filter(test).count();
+  }
+
+  @Test
+  void registerAllocationKeepsLocalsOutOfMemory() throws Exception {
+    var allocated = TestCompiler.instructions(
+        TestCompiler.function(TestCompiler.compile(SUM, driver -> {}), "sum"));
+    var spilled = TestCompiler.instructions(TestCompiler.function(
+        TestCompiler.compile(SUM, Driver::disableRegisterAllocation), "sum"));
+
+    Assertions.assertEquals(0, count(allocated, CodeGenTests::accessesStack), allocated.toString());
+    Assertions.assertTrue(count(spilled, CodeGenTests::accessesStack) > 0, spilled.toString());
+  }
+
+  @Test
+  void registerAllocationSavesTheCalleeSavedRegistersItUses() throws Exception {
+    var asm = TestCompiler.compile(SUM, driver -> {});
+    for (var function : List.of("sum", "main")) {
+      var insts = TestCompiler.instructions(TestCompiler.function(asm, function));
+      long returns = count(insts, inst -> inst.equals("leave"));
+      for (var register : CALLEE_SAVED) {
+        if (count(insts, inst -> inst.contains(register)) == 0)
+          continue;
+        var save = Pattern.compile("movq " + Pattern.quote(register) + ", (-\\d+\\(%rbp\\))");
+        int saveIndex = -1;
+        for (int i = 0; i < insts.size(); i++) {
+          if (save.matcher(insts.get(i)).matches()) {
+            Assertions.assertEquals(-1, saveIndex, function + " saves " + register + " once");
+            saveIndex = i;
+          }
+        }
+        // The saves come right after enter.
+        Assertions.assertTrue(saveIndex > 0 && saveIndex <= CALLEE_SAVED.size(),
+            function + " saves " + register + " in its prologue: " + insts);
+        var slot = save.matcher(insts.get(saveIndex));
+        slot.matches();
+        var restore = "movq " + slot.group(1) + ", " + register;
+        Assertions.assertEquals(returns, count(insts, restore::equals),
+            function + " restores " + register + " before every return: " + insts);
+      }
+    }
+  }
+
+  @Test
+  void registerAllocationSpillsWhenRegistersRunOut() throws Exception {
+    // More values are live across the call than there are registers.
+    var declarations = new StringBuilder();
+    var definitions = new StringBuilder();
+    var sum = new StringBuilder("0");
+    for (int i = 0; i < 16; i++) {
+      declarations.append(String.format("  int v%d;%n", i));
+      definitions.append(String.format("  v%d = readInt() * %d;%n", i, i + 1));
+      sum.append(String.format(" + v%d", i));
+    }
+    var source = String.format("void main() {%n%s%s  printInt(1);%n  println();%n"
+        + "  printInt(%s);%n}%n", declarations, definitions, sum);
+    var input = "1\n2\n3\n4\n5\n6\n7\n8\n9\n10\n11\n12\n13\n14\n15\n16\n";
+
+    var allocated = TestCompiler.compile(source, driver -> {});
+    var main = TestCompiler.instructions(TestCompiler.function(allocated, "main"));
+    Assertions.assertTrue(count(main, CodeGenTests::accessesStack) > 0, "nothing was spilled");
+
+    var expected = TestCompiler.run(TestCompiler.compile(source, Driver::disableRegisterAllocation),
+        input);
+    Assertions.assertEquals(expected, TestCompiler.run(allocated, input));
+    Assertions.assertEquals(TestCompiler.emulate(source, input, driver -> {}), expected);
+  }
+
+  private static final String BRANCHES = String.join("\n",
+      "int a[10];",
+      "int pick(int x) {",
+      "  int r;",
+      "  if (x > 5) {",
+      "    r = x;",
+      "  } else {",
+      "    if (x > 2) {",
+      "      r = 2;",
+      "    } else {",
+      "      r = 0;",
+      "    }",
+      "  }",
+      "  return r;",
+      "}",
+      "void main() {",
+      "  int i;",
+      "  for (i = 0; i < 10; i = i + 1) {",
+      "    a[i] = pick(i);",
+      "    if (a[i] == 7) {",
+      "      break;",
+      "    }",
+      "  }",
+      "  printInt(a[3]);",
+      "  printInt(i);",
+      "}");
+
+  private static final Pattern MOVE = Pattern.compile("movq (\\S+), (\\S+)");
+
+  /**
+   * The windows of lines the peephole optimizer rewrites, as "i: description", where i is the
+   * index of the window's first line. Comments are not part of a window.
+   */
+  private static List<String> peepholeWindows(List<String> function) {
+    List<String> lines = new ArrayList<>();
+    for (var line : function) {
+      if (!line.startsWith("/*"))
+        lines.add(line);
+    }
+    List<String> windows = new ArrayList<>();
+    for (int i = 0; i < lines.size(); i++) {
+      var line = lines.get(i);
+      var move = MOVE.matcher(line);
+      if (move.matches() && move.group(1).equals(move.group(2)))
+        windows.add(i + ": self move " + line);
+      if (move.matches() && move.group(2).endsWith("(%rbp)") && i + 1 < lines.size()) {
+        var reload = MOVE.matcher(lines.get(i + 1));
+        if (reload.matches() && reload.group(1).equals(move.group(2)))
+          windows.add(i + ": reload of the stored " + move.group(2));
+      }
+      if (line.startsWith("jmp ") || line.equals("ret")) {
+        int j = i + 1;
+        while (j < lines.size() && lines.get(j).endsWith(":")) {
+          if (line.equals("jmp " + lines.get(j).replace(":", "")))
+            windows.add(i + ": jump to the next label " + line);
+          j++;
+        }
+        if (j == i + 1 && j < lines.size() && !lines.get(j).startsWith(".globl"))
+          windows.add(i + ": unreachable " + lines.get(j));
+      }
+      if (line.startsWith("j") && line.contains(" .L")) {
+        int j = lines.indexOf(line.substring(line.indexOf(' ') + 1) + ":") + 1;
+        while (j < lines.size() && lines.get(j).endsWith(":")) {
+          j++;
+        }
+        if (j < lines.size() && lines.get(j).startsWith("jmp "))
+          windows.add(i + ": jump to a jump " + line);
+      }
+    }
+    return windows;
+  }
+
+  @Test
+  void peepholeLeavesNoWindowItRewrites() throws Exception {
+    // Without register allocation every value goes through the stack, so stores are followed by
+    // reloads of the same slot.
+    var optimized = TestCompiler.compile(BRANCHES, Driver::disableRegisterAllocation);
+    var unoptimized = TestCompiler.compile(BRANCHES, driver -> {
+      driver.disableRegisterAllocation();
+      driver.disablePeephole();
+    });
+    int removed = 0;
+    for (var function : List.of("pick", "main")) {
+      var before = TestCompiler.function(unoptimized, function);
+      var after = TestCompiler.function(optimized, function);
+      Assertions.assertEquals(List.of(), peepholeWindows(after), function + ": " + after);
+      Assertions.assertFalse(peepholeWindows(before).isEmpty(), function + ": " + before);
+      removed += TestCompiler.instructions(before).size() - TestCompiler.instructions(after).size();
+    }
+    // Some rewrites replace a reload rather than drop it, but none adds instructions.
+    Assertions.assertTrue(removed > 0);
+    Assertions.assertEquals(TestCompiler.run(unoptimized, ""), TestCompiler.run(optimized, ""));
+    Assertions.assertEquals("27", TestCompiler.run(optimized, ""));
+  }
+
+  @Test
+  void peepholeForwardsAStoredImmediateToTheReload() throws Exception {
+    var optimized = TestCompiler.instructions(TestCompiler.function(
+        TestCompiler.compile(SUM, Driver::disableRegisterAllocation), "main"));
+    var unoptimized = TestCompiler.instructions(TestCompiler.function(
+        TestCompiler.compile(SUM, driver -> {
+          driver.disableRegisterAllocation();
+          driver.disablePeephole();
+        }), "main"));
+    // The argument 10 is stored to a slot and loaded from it into %rdi for the call.
+    Assertions.assertEquals(0, count(unoptimized, "movq $10, %rdi"::equals),
+        unoptimized.toString());
+    Assertions.assertEquals(1, count(optimized, "movq $10, %rdi"::equals), optimized.toString());
+  }
+
+  private static final String COMPARES = String.join("\n",
+      "void test(int x, int y) {",
+      "  if (x < y) { printInt(1); } else { printInt(0); }",
+      "  if (x <= y) { printInt(1); } else { printInt(0); }",
+      "  if (x > y) { printInt(1); } else { printInt(0); }",
+      "  if (x >= y) { printInt(1); } else { printInt(0); }",
+      "  if (x == y) { printInt(1); } else { printInt(0); }",
+      "  if (x != y) { printInt(1); }",
+      "  println();",
+      "}",
+      "void main() {",
+      "  bool less;",
+      "  test(readInt(), readInt());",
+      "  test(readInt(), readInt());",
+      "  test(readInt(), readInt());",
+      "  less = readInt() < 0;",
+      "  if (less) { printInt(2); }",
+      "  printBool(less);",
+      "}");
+
+  @Test
+  void compareAndJumpFuseIntoACmpAndAConditionalJump() throws Exception {
+    // The peephole optimizer fuses a materialized compare too; leave it out to see what
+    // instruction selection did.
+    var asm = TestCompiler.compile(COMPARES, Driver::disablePeephole);
+    var test = TestCompiler.instructions(TestCompiler.function(asm, "test"));
+    Assertions.assertEquals(0, count(test, inst -> inst.startsWith("cmov")), test.toString());
+    Assertions.assertEquals(0, count(test, inst -> inst.startsWith("cmpq $1,")), test.toString());
+    int branches = 0;
+    for (int i = 0; i < test.size(); i++) {
+      if (test.get(i).matches("j(?!mp)[a-z]+ .*")) {
+        Assertions.assertTrue(test.get(i - 1).startsWith("cmp "), test.toString());
+        branches++;
+      }
+    }
+    Assertions.assertEquals(6, branches, test.toString());
+
+    // less is printed as well as branched on, so its value is materialized.
+    var main = TestCompiler.instructions(TestCompiler.function(asm, "main"));
+    Assertions.assertEquals(1, count(main, inst -> inst.startsWith("cmovl ")), main.toString());
+
+    var input = "1\n2\n2\n2\n3\n2\n-1\n";
+    var expected = TestCompiler.emulate(COMPARES, input, driver -> {});
+    Assertions.assertEquals(
+        "int?int?110001\nint?int?01011\nint?int?001101\nint?2true", expected);
+    Assertions.assertEquals(expected, TestCompiler.run(asm, input));
+  }
+
+  @Test
+  void tailCallsJumpInsteadOfCalling() throws Exception {
+    var source = String.join("\n",
+        "int add(int a, int b) {",
+        "  return a + b;",
+        "}",
+        "int sum(int n, int acc) {",
+        "  if (n == 0) {",
+        "    return add(acc, 1);",
+        "  }",
+        "  return sum(n - 1, acc + n);",
+        "}",
+        "void main() {",
+        "  printInt(sum(readInt(), 0));",
+        "}");
+    var asm = TestCompiler.compile(source, driver -> {});
+    var sum = TestCompiler.function(asm, "sum");
+    var insts = TestCompiler.instructions(sum);
+    Assertions.assertEquals(0, count(insts, inst -> inst.startsWith("call")), insts.toString());
+
+    // The self call jumps back to after the prologue, which saves the callee-saved registers.
+    var loop = insts.stream().filter(inst -> inst.startsWith("jmp .Lsum.")).findFirst();
+    Assertions.assertTrue(loop.isPresent(), insts.toString());
+    int entry = sum.indexOf(loop.get().substring("jmp ".length()) + ":");
+    Assertions.assertTrue(entry > 0 && entry < sum.indexOf(loop.get()), sum.toString());
+    Assertions.assertTrue(sum.subList(entry, sum.size()).stream().noneMatch(
+        line -> line.startsWith("enter") || line.matches("movq %r(bx|1[2-5]), -\\d+\\(%rbp\\)")),
+        sum.toString());
+
+    // The call of add leaves this frame, so add returns straight to the caller of sum.
+    int jump = insts.indexOf("jmp add");
+    Assertions.assertTrue(jump > 0, insts.toString());
+    Assertions.assertEquals("leave", insts.get(jump - 1));
+
+    // Ten million frames would not fit on the stack.
+    Assertions.assertEquals("int?50000005000001", TestCompiler.run(asm, "10000000\n"));
+  }
+
+  @Test
+  void strengthReductionMovesImulqOutOfTheLoop() throws Exception {
+    var source = String.join("\n",
+        "int a[64];",
+        "void main() {",
+        "  int i;",
+        "  int n;",
+        "  n = readInt();",
+        "  for (i = 0; i < 8; i = i + 1) {",
+        "    a[i * n + 1] = i;",
+        "  }",
+        "  printInt(a[n + 1]);",
+        "}");
+    var reduced = TestCompiler.compile(source, driver -> driver.setOptimizationLevel(2));
+    var multiplied = TestCompiler.compile(source,
+        driver -> driver.setPasses("inline,ssa,sccp,gvn,licm,dce"));
+
+    // The loop starts at the first label of main; before it is the code that enters it.
+    Assertions.assertTrue(imulqAfterFirstLabel(TestCompiler.function(multiplied, "main")));
+    Assertions.assertFalse(imulqAfterFirstLabel(TestCompiler.function(reduced, "main")));
+    Assertions.assertEquals("int?1", TestCompiler.run(reduced, "3\n"));
+  }
+
+  private static boolean imulqAfterFirstLabel(List<String> lines) {
+    var firstLabel = lines.stream().filter(line -> line.endsWith(":")).findFirst();
+    Assertions.assertTrue(firstLabel.isPresent(), lines.toString());
+    return lines.subList(lines.indexOf(firstLabel.get()), lines.size()).stream()
+        .anyMatch(line -> line.startsWith("imulq"));
+  }
+}
@@ -6,8 +6,12 @@ import org.junit.jupiter.api.TestFactory;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.concurrent.ExecutorService;
@@ -25,7 +29,7 @@ final class CompilerStageTests {
    * all stages: private final String[] TEST_TO_RUN = {"stage1", "stage2", "stage3", "stage4",
    * "stage5"};
    */
-  private final String[] TEST_TO_RUN = {"stage5"};
+  private final String[] TEST_TO_RUN = {"stage1", "stage2", "stage3", "stage4", "stage5"};
 
   private boolean skipStage(String stageName) {
     return List.of(TEST_TO_RUN).stream().noneMatch(s -> s.toLowerCase().equals(stageName));
@@ -244,12 +248,15 @@ final class CompilerStageTests {
     return tests.stream().map(test -> dynamicTest(test.in, () -> {
       ExecutorService executor = Executors.newSingleThreadExecutor();
       Future<StringPair> future = executor.submit(new Callable<StringPair>() {
-        public StringPair call() throws IOException {
+        public StringPair call() throws IOException, InterruptedException {
           var loader = getClass().getClassLoader();
           var in = loader.getResourceAsStream(test.in);
           var input = loader.getResourceAsStream(test.input);
 
+          // a.s and the binary go to a directory of their own, not the working tree.
+          var outputDirectory = Files.createTempDirectory("crux-codegen");
           var driver = new Driver();
+          driver.setOutputDirectory(outputDirectory);
 
           if (!driver.hasSupportEndToEnd()) {
             driver.readIR(loader.getResourceAsStream(test.inputdeserial));
@@ -259,7 +266,10 @@ final class CompilerStageTests {
             driver.run();
           }
 
-          Process build = runtime.exec("gcc a.s src/runtime/runtime.c -o autotest.bin");
+          var asm = outputDirectory.resolve("a.s");
+          var binary = outputDirectory.resolve("autotest.bin");
+          Process build = runtime.exec(new String[] {"gcc", asm.toString(),
+              "src/runtime/runtime.c", "-o", binary.toString()});
           try {
             if (build.waitFor() != 0) {
               throw new Error("Assembling and linking failed");
@@ -267,7 +277,7 @@ final class CompilerStageTests {
           } catch (Exception e) {
             throw new Error("Assembling and linking failed");
           }
-          Process run = runtime.exec("./autotest.bin");
+          Process run = runtime.exec(new String[] {binary.toString()});
           OutputStream runinput = run.getOutputStream();
 
           int val;
@@ -280,6 +290,11 @@ final class CompilerStageTests {
           while ((val = inputStream.read()) != -1)
             sb.append((char) val);
 
+          run.waitFor();
+          Files.delete(binary);
+          Files.delete(asm);
+          Files.delete(outputDirectory);
+
           var actualOutput = sb.toString();
           var expectedOutput = readResourceToString(test.out);
           return new StringPair(expectedOutput, actualOutput);
@@ -300,6 +315,104 @@ final class CompilerStageTests {
     }));
   }
 
+  /**
+   * The passes, optimization levels and engines run on the IR programs. Each must print what the
+   * visitor Emulator prints for the unoptimized IR.
+   */
+  private static final Map<String, Consumer<Driver>> EMULATOR_CONFIGS = new LinkedHashMap<>();
+
+  static {
+    EMULATOR_CONFIGS.put("ssa", Driver::enableSSA);
+    EMULATOR_CONFIGS.put("sccp", Driver::enableSCCP);
+    EMULATOR_CONFIGS.put("dce", Driver::enableDCE);
+    EMULATOR_CONFIGS.put("threaded", driver -> {});
+    EMULATOR_CONFIGS.put("jit", Driver::enableJit);
+    EMULATOR_CONFIGS.put("inline", Driver::enableInline);
+    EMULATOR_CONFIGS.put("licm", Driver::enableLICM);
+    EMULATOR_CONFIGS.put("strength-reduce", Driver::enableStrengthReduction);
+    EMULATOR_CONFIGS.put("gvn", Driver::enableGVN);
+  }
+
+  /**
+   * Compiles every codegen program at -O2 one function at a time and four at a time, which must
+   * give the same a.s byte for byte.
+   */
+  @TestFactory
+  Stream<DynamicTest> parallelCodegen() throws IOException {
+    if (skipStage("stage5")) {
+      return Stream.empty();
+    }
+
+    return getTests("codegen").stream().map(test -> dynamicTest(test.in, () -> {
+      var source = readResourceToString(test.in);
+      var serial = TestCompiler.compile(source, driver -> driver.setOptimizationLevel(2));
+      var parallel = TestCompiler.compile(source, driver -> {
+        driver.setOptimizationLevel(2);
+        driver.setJobs(4);
+      });
+      Assertions.assertEquals(serial, parallel,
+          String.format("a.s for program %s depends on --jobs.", test.in));
+    }));
+  }
+
+  @TestFactory
+  Stream<DynamicTest> optimizeIR() throws IOException {
+    if (skipStage("stage4")) {
+      return Stream.empty();
+    }
+
+    var tests = getTests("ir");
+    return EMULATOR_CONFIGS.entrySet().stream().flatMap(config -> tests.stream()
+        .map(test -> dynamicTest(config.getKey() + " " + test.in, () -> assertSameOutput(
+            String.format("IR (%s) for program %s", config.getKey(), test.in), () -> {
+              var expectedOutput = emulate(test.in, test.input, Driver::enableVisitorEmulator);
+              var actualOutput = emulate(test.in, test.input, config.getValue());
+              return new StringPair(expectedOutput, actualOutput);
+            }))));
+  }
+
+  /**
+   * Runs the program with its input on an emulator after configuring the driver with options, and
+   * returns what it printed. Without options it runs on the ThreadedEmulator.
+   */
+  private String emulate(String program, String input, Consumer<Driver> options) {
+    var loader = getClass().getClassLoader();
+    var outStream = new ByteArrayOutputStream();
+    var outPrintStream = new PrintStream(outStream);
+    var driver = new Driver(outPrintStream, outPrintStream);
+    driver.enableEmulator();
+    driver.enableVerifyIR();
+    options.accept(driver);
+    driver.setEmulatorInput(loader.getResourceAsStream(input));
+    driver.setInputStream(loader.getResourceAsStream(program));
+    driver.run();
+    outPrintStream.flush();
+    return outStream.toString();
+  }
+
+  /**
+   * Runs test with the timeout the other tests have and checks that both of its outputs are the
+   * same; what names the outputs in the failure message.
+   */
+  private void assertSameOutput(String what, Callable<StringPair> test) throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<StringPair> future = executor.submit(test);
+    StringPair sp = null;
+    try {
+      sp = future.get(TIMEOUT, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+    } finally {
+      executor.shutdown();
+    }
+    if (sp == null) {
+      Assertions.fail(String.format("Timeout for %s.", what));
+    } else {
+      Assertions.assertEquals(sanitize(sp.a).trim(), sanitize(sp.b).trim(),
+          String.format("%s differs from the unoptimized output.", what));
+    }
+  }
+
   private List<InOut> getTests(String stageName) throws IOException {
     var loader = getClass().getClassLoader();
     var folder = String.format("crux/stages/%s", stageName);
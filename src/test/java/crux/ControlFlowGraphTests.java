@@ -0,0 +1,188 @@
+package crux;
+
+import crux.ir.BasicBlock;
+import crux.ir.ControlFlowGraph;
+import crux.ir.Function;
+import crux.ir.insts.CallInst;
+import crux.ir.insts.JumpInst;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+final class ControlFlowGraphTests {
+  private static final String DIAMOND = String.join("\n",
+      "void main() {",
+      "  int x;",
+      "  if (readInt() > 0) {",
+      "    x = 1;",
+      "  } else {",
+      "    x = 2;",
+      "  }",
+      "  printInt(x);",
+      "}");
+
+  private static final String LOOP = String.join("\n",
+      "void main() {",
+      "  int i;",
+      "  for (i = 0; i < 3; i = i + 1) {",
+      "    printInt(i);",
+      "  }",
+      "  println();",
+      "}");
+
+  /**
+   * Checks what holds for every CFG: the edges are numbered in reverse postorder except for back
+   * edges, the predecessor arrays mirror the successor arrays, every reachable instruction is in
+   * the block that holds it, and every block but the entry has an immediate dominator that
+   * dominates it.
+   */
+  private static void checkConsistent(Function f) {
+    var cfg = f.getCFG();
+    var blocks = cfg.getBlocks();
+    Assertions.assertSame(blocks.get(0), cfg.getEntry());
+    Assertions.assertSame(f.getStart(), cfg.getEntry().getFirst());
+    int instructions = 0;
+    for (int id = 0; id < blocks.size(); id++) {
+      var block = blocks.get(id);
+      Assertions.assertEquals(id, block.getId());
+      for (var inst : block.getInstructions()) {
+        Assertions.assertSame(block, cfg.getBlock(inst));
+        instructions++;
+      }
+      var insts = block.getInstructions();
+      for (int i = 0; i + 1 < insts.size(); i++) {
+        Assertions.assertEquals(List.of(insts.get(i + 1)),
+            ControlFlowGraph.successors(insts.get(i)));
+      }
+      Assertions.assertEquals(ControlFlowGraph.successors(block.getLast()),
+          Arrays.stream(block.getSuccessors()).map(BasicBlock::getFirst)
+              .collect(Collectors.toList()));
+      for (var succ : block.getSuccessors()) {
+        Assertions.assertTrue(Arrays.asList(succ.getPredecessors()).contains(block));
+        // Only an edge back to a block that dominates the source goes up in reverse postorder.
+        if (succ.getId() <= block.getId())
+          Assertions.assertTrue(succ.dominates(block), block + " -> " + succ);
+      }
+      for (var pred : block.getPredecessors()) {
+        Assertions.assertTrue(Arrays.asList(pred.getSuccessors()).contains(block));
+      }
+      Assertions.assertTrue(block.dominates(block));
+      var idom = block.getImmediateDominator();
+      if (block == cfg.getEntry()) {
+        Assertions.assertNull(idom);
+      } else {
+        Assertions.assertTrue(idom.getId() < block.getId());
+        Assertions.assertTrue(idom.dominates(block) && !block.dominates(idom));
+        Assertions.assertTrue(cfg.getDominatorTreeChildren(idom).contains(block));
+      }
+    }
+    Assertions.assertEquals(instructions, cfg.getInstructionCount());
+  }
+
+  @Test
+  void diamondJoinsAtTheImmediateDominatorsFrontier() {
+    var main = TestCompiler.lower(DIAMOND).getFunction("main");
+    checkConsistent(main);
+    var cfg = main.getCFG();
+    var blocks = cfg.getBlocks();
+    Assertions.assertEquals(4, blocks.size());
+
+    var entry = cfg.getEntry();
+    Assertions.assertTrue(entry.getLast() instanceof JumpInst);
+    var jump = entry.getLast();
+    var otherwise = cfg.getBlock(jump.getNext(0));
+    var then = cfg.getBlock(jump.getNext(1));
+    Assertions.assertArrayEquals(new BasicBlock[] {otherwise, then}, entry.getSuccessors());
+
+    // The join comes after both branches in reverse postorder.
+    var join = cfg.getBlock(TestCompiler.instructions(main, CallInst.class).get(1));
+    Assertions.assertEquals(3, join.getId());
+    Assertions.assertEquals(sorted(List.of(then, otherwise)),
+        Arrays.asList(join.getPredecessors()));
+    Assertions.assertEquals(0, join.getSuccessors().length);
+
+    for (var block : List.of(then, otherwise, join)) {
+      Assertions.assertSame(entry, block.getImmediateDominator());
+    }
+    Assertions.assertEquals(sorted(List.of(then, otherwise, join)),
+        sorted(cfg.getDominatorTreeChildren(entry)));
+    Assertions.assertFalse(then.dominates(join) || otherwise.dominates(join));
+    Assertions.assertFalse(then.dominates(otherwise) || otherwise.dominates(then));
+
+    Assertions.assertEquals(List.of(join), cfg.getDominanceFrontier(then));
+    Assertions.assertEquals(List.of(join), cfg.getDominanceFrontier(otherwise));
+    Assertions.assertEquals(List.of(), cfg.getDominanceFrontier(entry));
+    Assertions.assertEquals(List.of(), cfg.getDominanceFrontier(join));
+  }
+
+  @Test
+  void loopHeaderDominatesTheBodyAndIsInItsFrontier() {
+    var main = TestCompiler.lower(LOOP).getFunction("main");
+    checkConsistent(main);
+    var cfg = main.getCFG();
+    var entry = cfg.getEntry();
+
+    // The header holds the test, so it ends in the only jump.
+    var header = cfg.getBlock(TestCompiler.instructions(main, JumpInst.class).get(0));
+    var exit = cfg.getBlock(header.getLast().getNext(0));
+    var body = cfg.getBlock(header.getLast().getNext(1));
+    Assertions.assertEquals(2, header.getPredecessors().length);
+    Assertions.assertSame(entry, header.getImmediateDominator());
+    Assertions.assertSame(header, exit.getImmediateDominator());
+    Assertions.assertSame(header, body.getImmediateDominator());
+    Assertions.assertFalse(body.dominates(exit));
+
+    // The latch branches back to the header, which comes earlier in reverse postorder.
+    List<BasicBlock> latches = Arrays.stream(header.getPredecessors())
+        .filter(pred -> pred.getId() >= header.getId()).collect(Collectors.toList());
+    Assertions.assertEquals(1, latches.size());
+    var latch = latches.get(0);
+    Assertions.assertTrue(header.dominates(latch) && body.dominates(latch));
+
+    // The header is where the dominance of everything in the loop ends, itself included.
+    Assertions.assertEquals(List.of(header), cfg.getDominanceFrontier(header));
+    Assertions.assertEquals(List.of(header), cfg.getDominanceFrontier(body));
+    Assertions.assertEquals(List.of(header), cfg.getDominanceFrontier(latch));
+    Assertions.assertEquals(List.of(), cfg.getDominanceFrontier(entry));
+    Assertions.assertEquals(List.of(), cfg.getDominanceFrontier(exit));
+  }
+
+  @Test
+  void invalidatingTheCFGRebuildsItAfterARelink() {
+    var main = TestCompiler.lower(DIAMOND).getFunction("main");
+    var cfg = main.getCFG();
+    Assertions.assertSame(cfg, main.getCFG());
+
+    // Both sides of the jump go to the else branch, so the then branch is unreachable.
+    var jump = cfg.getEntry().getLast();
+    var then = cfg.getBlock(jump.getNext(1));
+    jump.setNext(1, jump.getNext(0));
+    Assertions.assertSame(cfg, main.getCFG());
+    main.invalidateCFG();
+    var rebuilt = main.getCFG();
+    Assertions.assertNotSame(cfg, rebuilt);
+    checkConsistent(main);
+
+    // The join now follows the else branch only, so the two make one block.
+    Assertions.assertEquals(2, rebuilt.getBlocks().size());
+    for (var inst : then.getInstructions()) {
+      Assertions.assertNull(rebuilt.getBlock(inst));
+    }
+    var otherwise = rebuilt.getBlock(jump.getNext(0));
+    Assertions.assertSame(otherwise,
+        rebuilt.getBlock(TestCompiler.instructions(main, CallInst.class).get(1)));
+    Assertions.assertArrayEquals(new BasicBlock[] {otherwise, otherwise},
+        rebuilt.getEntry().getSuccessors());
+    Assertions.assertArrayEquals(new BasicBlock[] {rebuilt.getEntry(), rebuilt.getEntry()},
+        otherwise.getPredecessors());
+    Assertions.assertSame(rebuilt.getEntry(), otherwise.getImmediateDominator());
+    Assertions.assertEquals(List.of(), rebuilt.getDominanceFrontier(otherwise));
+  }
+
+  private static List<BasicBlock> sorted(List<BasicBlock> blocks) {
+    return blocks.stream().sorted((a, b) -> a.getId() - b.getId()).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,87 @@
+package crux;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+final class EmulatorTests {
+  private static final String OUT_OF_BOUNDS = String.join("\n",
+      "int a[4];",
+      "int b[4];",
+      "void main() {",
+      "  int i;",
+      "  for (i = 0; i < 4; i = i + 1) {",
+      "    a[i] = i;",
+      "  }",
+      "  printInt(a[readInt()]);",
+      "}");
+
+  @Test
+  void threadedEmulatorReportsAnIndexOutOfBounds() {
+    Assertions.assertEquals("int?3", TestCompiler.emulate(OUT_OF_BOUNDS, "3\n", driver -> {}));
+    for (var index : new String[] {"4", "-1", "100000"}) {
+      var error = Assertions.assertThrows(Error.class,
+          () -> TestCompiler.emulate(OUT_OF_BOUNDS, index + "\n", driver -> {}));
+      Assertions.assertEquals("Index out of bounds for a of 4 elements.", error.getMessage());
+    }
+  }
+
+  @Test
+  void threadedEmulatorComputesAddressesOutOfBoundsWithoutUsingThem() {
+    // LICM hoists a[k] out of the loop, where it is computed even though the loop never runs.
+    var source = String.join("\n",
+        "int a[4];",
+        "void main() {",
+        "  int i;",
+        "  int k;",
+        "  k = readInt();",
+        "  for (i = 0; i < k - 10; i = i + 1) {",
+        "    a[k] = i;",
+        "  }",
+        "  printInt(k);",
+        "}");
+    Assertions.assertEquals("int?7", TestCompiler.emulate(source, "7\n", Driver::enableLICM));
+  }
+
+  @Test
+  void jitReportsAnIndexOutOfBounds() {
+    Assertions.assertEquals("int?3", TestCompiler.emulate(OUT_OF_BOUNDS, "3\n", Driver::enableJit));
+    var error = Assertions.assertThrows(Error.class,
+        () -> TestCompiler.emulate(OUT_OF_BOUNDS, "4\n", Driver::enableJit));
+    Assertions.assertEquals("Index out of bounds for a of 4 elements.", error.getMessage());
+  }
+
+  @Test
+  void jitRunsAFunctionTooLargeForAJvmMethod() {
+    // Every statement takes more than ten bytes of bytecode, beyond the 32 KiB a method can have.
+    var source = new StringBuilder("void main() {\n  int s;\n  s = readInt();\n");
+    for (int i = 0; i < 4000; i++) {
+      source.append(String.format("  s = s * 3 + %d;%n", i));
+    }
+    source.append("  printInt(s);\n}\n");
+    var expected = TestCompiler.emulate(source.toString(), "1\n", Driver::enableVisitorEmulator);
+    Assertions.assertEquals(expected,
+        TestCompiler.emulate(source.toString(), "1\n", Driver::enableJit));
+  }
+
+  private static final String TAIL_SUM = String.join("\n",
+      "int sum(int n, int acc) {",
+      "  if (n == 0) {",
+      "    return acc;",
+      "  }",
+      "  return sum(n - 1, acc + n);",
+      "}",
+      "void main() {",
+      "  printInt(sum(readInt(), 0));",
+      "}");
+
+  @Test
+  void threadedEmulatorRunsDeepTailRecursionInOneFrame() {
+    Assertions.assertEquals("int?50000005000000",
+        TestCompiler.emulate(TAIL_SUM, "10000000\n", driver -> {}));
+    // The visitor Emulator gives every call a context of its own, tail calls included.
+    Assertions.assertEquals("int?50005000",
+        TestCompiler.emulate(TAIL_SUM, "10000\n", Driver::enableVisitorEmulator));
+    Assertions.assertEquals("int?50005000",
+        TestCompiler.emulate(TAIL_SUM, "10000\n", driver -> {}));
+  }
+}
@@ -0,0 +1,267 @@
+package crux;
+
+import crux.ast.DeclarationList;
+import crux.format.ASTFormat;
+import crux.format.BinaryReader;
+import crux.format.BinaryWriter;
+import crux.format.IRFormat;
+import crux.ir.ASTLower;
+import crux.ir.Function;
+import crux.ir.Program;
+import crux.printing.ASTPrinter;
+import crux.printing.IRPrinter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+
+final class FormatTests {
+  private static final int NUM_PROGRAMS = 50;
+
+  private static String resource(String name) throws IOException {
+    try (var in = Objects.requireNonNull(
+        FormatTests.class.getClassLoader().getResourceAsStream(name), name)) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static InputStream resourceStream(String name) {
+    return Objects.requireNonNull(FormatTests.class.getClassLoader().getResourceAsStream(name),
+        name);
+  }
+
+  /**
+   * The codegen test programs, which use every kind of node and instruction between them.
+   */
+  private static List<String> programs() {
+    return IntStream.rangeClosed(1, NUM_PROGRAMS)
+        .mapToObj(i -> String.format("crux/stages/codegen/test%02d.crx", i))
+        .collect(Collectors.toList());
+  }
+
+  private static String print(DeclarationList ast) {
+    var outStream = new ByteArrayOutputStream();
+    var printer = new ASTPrinter(new PrintStream(outStream));
+    printer.enableTypes();
+    printer.print(ast);
+    return outStream.toString();
+  }
+
+  private static String print(Program p) {
+    var outStream = new ByteArrayOutputStream();
+    new IRPrinter(new PrintStream(outStream)).print(p);
+    return outStream.toString();
+  }
+
+  private static byte[] write(DeclarationList ast) throws IOException {
+    var bytes = new ByteArrayOutputStream();
+    ASTFormat.write(ast, bytes);
+    return bytes.toByteArray();
+  }
+
+  private static byte[] write(Program p) throws IOException {
+    var bytes = new ByteArrayOutputStream();
+    IRFormat.write(p, bytes);
+    return bytes.toByteArray();
+  }
+
+  @TestFactory
+  Stream<DynamicTest> astRoundTrips() {
+    return programs().stream().map(program -> dynamicTest(program, () -> {
+      var ast = TestCompiler.parse(resource(program));
+      var bytes = write(ast);
+      var read = ASTFormat.read(new ByteArrayInputStream(bytes));
+      Assertions.assertEquals(print(ast), print(read));
+      Assertions.assertArrayEquals(bytes, write(read));
+    }));
+  }
+
+  @TestFactory
+  Stream<DynamicTest> typedAstRoundTrips() {
+    // Lowering needs the type of every expression, so the IR shows that the types came back.
+    return programs().stream().map(program -> dynamicTest(program, () -> {
+      var ast = TestCompiler.check(TestCompiler.parse(resource(program)));
+      var bytes = write(ast);
+      var read = ASTFormat.read(new ByteArrayInputStream(bytes));
+      Assertions.assertEquals(print(new ASTLower().lower(ast)), print(new ASTLower().lower(read)));
+      Assertions.assertArrayEquals(bytes, write(read));
+    }));
+  }
+
+  @TestFactory
+  Stream<DynamicTest> irRoundTrips() {
+    return programs().stream().map(program -> dynamicTest(program, () -> {
+      var p = TestCompiler.lower(resource(program));
+      TestCompiler.optimize(p, "ssa");
+      var bytes = write(p);
+      var read = IRFormat.read(new ByteArrayInputStream(bytes));
+      Assertions.assertEquals(print(p), print(read));
+      Assertions.assertArrayEquals(bytes, write(read));
+    }));
+  }
+
+  @Test
+  void serializeWritesTheBinaryFormat() throws Exception {
+    var source = resource("crux/stages/codegen/test20.crx");
+    var directory = Files.createTempDirectory("crux-format");
+    try {
+      var asm = TestCompiler.compile(source, Driver::enableSerialize, directory);
+      for (var file : List.of("ast.ser", "typedast.ser", "ir.ser")) {
+        try (var in = new BufferedInputStream(Files.newInputStream(directory.resolve(file)))) {
+          Assertions.assertTrue(BinaryReader.hasMagic(in), file);
+        }
+      }
+
+      var fromIR = Files.createTempDirectory("crux-format");
+      try {
+        var errStream = new ByteArrayOutputStream();
+        var driver = new Driver(new PrintStream(errStream), new PrintStream(errStream));
+        driver.setOutputDirectory(fromIR);
+        driver.readIR(Files.newInputStream(directory.resolve("ir.ser")));
+        Assertions.assertEquals(State.Finished, driver.run(), errStream.toString());
+        Assertions.assertEquals(asm, Files.readString(fromIR.resolve("a.s")));
+      } finally {
+        TestCompiler.deleteDirectory(fromIR);
+      }
+    } finally {
+      TestCompiler.deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  void readerRejectsAnotherKindOrVersion() throws Exception {
+    var bytes = write(TestCompiler.lower(resource("crux/stages/codegen/test01.crx")));
+    var kind = Assertions.assertThrows(IOException.class,
+        () -> ASTFormat.read(new ByteArrayInputStream(bytes)));
+    Assertions.assertEquals("expected a file of kind 1, found 2", kind.getMessage());
+
+    // The kind and the version follow the magic bytes, as varints.
+    bytes[5]++;
+    var version = Assertions.assertThrows(IOException.class,
+        () -> IRFormat.read(new ByteArrayInputStream(bytes)));
+    Assertions.assertTrue(version.getMessage().startsWith("unsupported format version"),
+        version.getMessage());
+  }
+
+  /**
+   * The .ser files of the stage tests were written with Java serialization by the compiler this
+   * one descends from.
+   */
+  @TestFactory
+  Stream<DynamicTest> javaSerializedFilesAreStillRead() {
+    var tests = IntStream.rangeClosed(1, 10).mapToObj(i -> String.format("test%02d", i));
+    return tests.flatMap(test -> {
+      var typeCheck = dynamicTest("type-check/" + test, () -> {
+        var outStream = new ByteArrayOutputStream();
+        var driver = new Driver(new PrintStream(outStream), new PrintStream(outStream));
+        driver.enableTypeCheck();
+        driver.readAST(resourceStream("crux/stages/type-check/" + test + ".ser"));
+        driver.run();
+        Assertions.assertEquals(resource("crux/stages/type-check/" + test + ".out").trim(),
+            CompilerStageTests.sanitize(outStream.toString()).trim());
+      });
+      var ir = dynamicTest("ir/" + test, () -> {
+        var outStream = new ByteArrayOutputStream();
+        var driver = new Driver(new PrintStream(outStream), new PrintStream(outStream));
+        driver.enableEmulator();
+        driver.setEmulatorInput(resourceStream("crux/stages/ir/" + test + ".in"));
+        driver.readASTTYPE(resourceStream("crux/stages/ir/" + test + ".ser"));
+        driver.run();
+        Assertions.assertEquals(resource("crux/stages/ir/" + test + ".out").trim(),
+            CompilerStageTests.sanitize(outStream.toString()).trim());
+      });
+      var codegen = dynamicTest("codegen/" + test, () -> {
+        var directory = Files.createTempDirectory("crux-format");
+        try {
+          var driver = new Driver();
+          driver.setOutputDirectory(directory);
+          driver.readIR(resourceStream("crux/stages/codegen/" + test + ".ser"));
+          Assertions.assertEquals(State.Finished, driver.run());
+          var output = TestCompiler.run(Files.readString(directory.resolve("a.s")),
+              resource("crux/stages/codegen/" + test + ".in"));
+          Assertions.assertEquals(resource("crux/stages/codegen/" + test + ".out").trim(),
+              output.trim());
+        } finally {
+          TestCompiler.deleteDirectory(directory);
+        }
+      });
+      return Stream.of(typeCheck, ir, codegen);
+    });
+  }
+
+  @Test
+  void mappedIRBuildsOnlyTheReachableFunctions() throws Exception {
+    var p = TestCompiler.lower(String.join("\n",
+        "int helper(int x) {",
+        "  return x + 1;",
+        "}",
+        "void unused() {",
+        "  printInt(7);",
+        "}",
+        "void main() {",
+        "  printInt(helper(1));",
+        "}"));
+    var bytes = write(p);
+    // Without globals, the index of the functions comes right after the header.
+    var index = new BinaryReader(ByteBuffer.wrap(bytes), BinaryWriter.IR);
+    Assertions.assertEquals(0, index.readInt());
+    Assertions.assertEquals(3, index.readInt());
+    var names = new String[3];
+    var sizes = new int[3];
+    for (int i = 0; i < 3; i++) {
+      names[i] = index.readString();
+      sizes[i] = index.readInt();
+    }
+    Assertions.assertEquals(List.of("helper", "unused", "main"), List.of(names));
+    // The bodies follow the index in the same order.
+    int start = index.getPosition() + sizes[0];
+    int size = sizes[1];
+    // The body of unused becomes a varint that never ends, which fails to decode.
+    var corrupt = bytes.clone();
+    Arrays.fill(corrupt, start, start + size, (byte) 0xFF);
+
+    var directory = Files.createTempDirectory("crux-format");
+    try {
+      var file = directory.resolve("ir.bin");
+      Files.write(file, corrupt);
+      var mapped = IRFormat.map(file);
+      Assertions.assertEquals(List.of("helper", "main"), mapped.getReachableFunctions().stream()
+          .map(Function::getName).collect(Collectors.toList()));
+      var error = Assertions.assertThrows(UncheckedIOException.class,
+          () -> mapped.getFunction("unused"));
+      Assertions.assertEquals("cannot read function unused", error.getMessage());
+
+      // Code generation only asks for the reachable functions.
+      var errStream = new ByteArrayOutputStream();
+      var driver = new Driver(new PrintStream(errStream), new PrintStream(errStream));
+      driver.setOutputDirectory(directory);
+      driver.mapIR(file.toString());
+      Assertions.assertEquals(State.Finished, driver.run(), errStream.toString());
+      var asm = Files.readString(directory.resolve("a.s"));
+      Assertions.assertTrue(asm.contains("\nhelper:") && asm.contains("\nmain:"), asm);
+      Assertions.assertFalse(asm.contains("unused"), asm);
+      Assertions.assertEquals("2", TestCompiler.run(asm, ""));
+    } finally {
+      TestCompiler.deleteDirectory(directory);
+    }
+  }
+}
@@ -0,0 +1,510 @@
+package crux;
+
+import crux.ast.types.IntType;
+import crux.ir.BasicBlock;
+import crux.ir.Emulator;
+import crux.ir.Function;
+import crux.ir.Instruction;
+import crux.ir.IntegerConstant;
+import crux.ir.LocalVar;
+import crux.ir.LoopInfo;
+import crux.ir.Program;
+import crux.ir.Value;
+import crux.ir.Variable;
+import crux.ir.insts.AddressAt;
+import crux.ir.insts.BinaryOperator;
+import crux.ir.insts.CallInst;
+import crux.ir.insts.CopyInst;
+import crux.ir.insts.JumpInst;
+import crux.ir.insts.LoadInst;
+import crux.ir.insts.PhiInst;
+import crux.ir.insts.StoreInst;
+import crux.ir.opt.FunctionPass;
+import crux.ir.opt.Inliner;
+import crux.ir.opt.PassManager;
+import crux.ir.opt.SSADestruction;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+final class PassTests {
+  /**
+   * Runs p on the visitor Emulator with input and returns what it printed.
+   */
+  private static String emulate(Program p, String input) {
+    var outStream = new ByteArrayOutputStream();
+    new Emulator(p, new ByteArrayInputStream(input.getBytes()), outStream).run();
+    return outStream.toString();
+  }
+
+  private static final String JOIN = String.join("\n",
+      "void main() {",
+      "  int x;",
+      "  int y;",
+      "  if (readInt() > 0) {",
+      "    x = 1;",
+      "    y = 2;",
+      "  } else {",
+      "    x = 2;",
+      "    y = 3;",
+      "  }",
+      "  printInt(x);",
+      "}");
+
+  @Test
+  void ssaPlacesAPhiAtTheJoin() {
+    var p = TestCompiler.lower(JOIN);
+    TestCompiler.optimize(p, "ssa");
+    var main = p.getFunction("main");
+    Assertions.assertTrue(main.isSSA());
+
+    // y is dead after the if, so only x gets a phi.
+    var phis = TestCompiler.instructions(main, PhiInst.class);
+    Assertions.assertEquals(1, phis.size());
+    var phi = phis.get(0);
+    var join = main.getCFG().getBlock(phi);
+    Assertions.assertSame(phi, join.getFirst());
+    Assertions.assertEquals(2, join.getPredecessors().length);
+    var sources = Stream.of(join.getPredecessors()).map(BasicBlock::getLast)
+        .collect(Collectors.toSet());
+    Assertions.assertEquals(sources, new HashSet<>(phi.getIncoming()));
+
+    // Each operand is the renamed x of one branch, a copy of the constant assigned there.
+    var insts = TestCompiler.instructions(main);
+    var constants = new HashSet<Long>();
+    for (var operand : phi.getOperands()) {
+      var copy = (CopyInst) definition(insts, operand);
+      var constant = (CopyInst) definition(insts, copy.getSrcValue());
+      constants.add(((IntegerConstant) constant.getSrcValue()).getValue());
+    }
+    Assertions.assertEquals(Set.of(1L, 2L), constants);
+
+    Assertions.assertEquals(List.of(phi.getDst()), call(main, "printInt").getParams());
+  }
+
+  private static Instruction definition(List<Instruction> insts, Value v) {
+    Instruction def = null;
+    for (var inst : insts) {
+      if (inst.getDestVar() == v) {
+        Assertions.assertNull(def, v + " is defined twice");
+        def = inst;
+      }
+    }
+    Assertions.assertNotNull(def, v + " has no definition");
+    return def;
+  }
+
+  @Test
+  void ssaDefinesEveryVariableOnce() {
+    var p = TestCompiler.lower(String.join("\n",
+        "int a;",
+        "void main() {",
+        "  int s;",
+        "  s = 0;",
+        "  for (a = 0; a < 5; a = a + 1) {",
+        "    if (a > 2) {",
+        "      s = s + a;",
+        "    }",
+        "  }",
+        "  printInt(s);",
+        "}"));
+    TestCompiler.optimize(p, "ssa");
+    var defined = new HashSet<Variable>();
+    for (var inst : TestCompiler.instructions(p.getFunction("main"))) {
+      if (inst.getDestVar() != null)
+        Assertions.assertTrue(defined.add(inst.getDestVar()), inst.getDestVar() + " defined twice");
+    }
+    Assertions.assertFalse(
+        TestCompiler.instructions(p.getFunction("main"), PhiInst.class).isEmpty());
+  }
+
+  @Test
+  void ssaDestructionRemovesThePhis() {
+    var p = TestCompiler.lower(JOIN);
+    var before = List.of(emulate(p, "1"), emulate(p, "0"));
+    TestCompiler.optimize(p, "ssa");
+    new SSADestruction().run(p);
+
+    var main = p.getFunction("main");
+    Assertions.assertFalse(main.isSSA());
+    Assertions.assertEquals(List.of(), TestCompiler.instructions(main, PhiInst.class));
+    Assertions.assertEquals(before, List.of(emulate(p, "1"), emulate(p, "0")));
+  }
+
+  /**
+   * The call of callee in f; fails unless there is exactly one.
+   */
+  private static CallInst call(Function f, String callee) {
+    var calls = TestCompiler.instructions(f, CallInst.class).stream()
+        .filter(call -> call.getCallee().getName().equals(callee)).collect(Collectors.toList());
+    Assertions.assertEquals(1, calls.size(), "calls of " + callee);
+    return calls.get(0);
+  }
+
+  @Test
+  void sccpFoldsABranchOnAConstant() {
+    var p = TestCompiler.lower(String.join("\n",
+        "void main() {",
+        "  int x;",
+        "  int y;",
+        "  x = 1;",
+        "  if (x == 1) {",
+        "    y = 5;",
+        "  } else {",
+        "    y = readInt();",
+        "  }",
+        "  printInt(y * 2);",
+        "}"));
+    TestCompiler.optimize(p, "sccp");
+    var main = p.getFunction("main");
+
+    // The else side is unreachable, so y is 5 where it is printed.
+    Assertions.assertEquals(List.of(), TestCompiler.instructions(main, JumpInst.class));
+    Assertions.assertTrue(TestCompiler.instructions(main, CallInst.class).stream()
+        .noneMatch(call -> call.getCallee().getName().equals("readInt")));
+    var argument = call(main, "printInt").getParams().get(0);
+    var def = (CopyInst) definition(TestCompiler.instructions(main), argument);
+    Assertions.assertEquals(10, ((IntegerConstant) def.getSrcValue()).getValue());
+    Assertions.assertEquals("10", emulate(p, ""));
+  }
+
+  @Test
+  void sccpKeepsABranchOnInput() {
+    var p = TestCompiler.lower(String.join("\n",
+        "void main() {",
+        "  int y;",
+        "  y = 1;",
+        "  if (readInt() > 0) {",
+        "    y = 2;",
+        "  }",
+        "  printInt(y);",
+        "}"));
+    TestCompiler.optimize(p, "sccp");
+    var main = p.getFunction("main");
+    Assertions.assertEquals(1, TestCompiler.instructions(main, JumpInst.class).size());
+    Assertions.assertEquals(1, TestCompiler.instructions(main, PhiInst.class).size());
+  }
+
+  /**
+   * The constants f stores, in order; every stored value must be a copy of a constant.
+   */
+  private static List<Long> storedConstants(Function f) {
+    var insts = TestCompiler.instructions(f);
+    List<Long> values = new ArrayList<>();
+    for (var store : TestCompiler.instructions(f, StoreInst.class)) {
+      var def = (CopyInst) definition(insts, store.getSrcValue());
+      values.add(((IntegerConstant) def.getSrcValue()).getValue());
+    }
+    return values;
+  }
+
+  @Test
+  void dceRemovesDeadStoresAndValues() {
+    var p = TestCompiler.lower(String.join("\n",
+        "int g;",
+        "void show() {",
+        "  printInt(g);",
+        "}",
+        "void main() {",
+        "  int unused;",
+        "  unused = readInt() * 2;",
+        "  g = 1;",
+        "  g = 2;",
+        "  show();",
+        "  g = 3;",
+        "  show();",
+        "  g = 4;",
+        "}"));
+    var manager = TestCompiler.optimize(p, "dce");
+    var main = p.getFunction("main");
+
+    // g = 1 is overwritten before anything can read it. The stores before the calls are read by
+    // show, and the last one is visible after main returns.
+    Assertions.assertEquals(List.of(2L, 3L, 4L), storedConstants(main));
+    // The product is never used, but reading the input is a side effect.
+    Assertions.assertEquals(List.of(), TestCompiler.instructions(main, BinaryOperator.class));
+    call(main, "readInt");
+
+    int removed = 0;
+    for (var record : manager.getRecords()) {
+      removed += record.getBefore() - record.getAfter();
+    }
+    Assertions.assertTrue(removed > 0);
+    Assertions.assertEquals("dce: removed " + removed, TestCompiler.statistics(manager).trim());
+  }
+
+  private static final String CALLS = String.join("\n",
+      "int square(int x) {",
+      "  return x * x;",
+      "}",
+      "int fact(int n) {",
+      "  int r;",
+      "  r = 1;",
+      "  if (n > 1) {",
+      "    r = n * fact(n - 1);",
+      "  }",
+      "  return r;",
+      "}",
+      "void main() {",
+      "  printInt(square(readInt()) + square(3));",
+      "  printInt(fact(5));",
+      "}");
+
+  private static List<String> callees(Function f) {
+    return TestCompiler.instructions(f, CallInst.class).stream()
+        .map(call -> call.getCallee().getName()).collect(Collectors.toList());
+  }
+
+  @Test
+  void inlinerReplacesCallsOfSmallFunctions() {
+    var p = TestCompiler.lower(CALLS);
+    var expected = emulate(p, "4");
+    var manager = TestCompiler.optimize(p, "inline");
+
+    // fact calls itself, so its calls stay calls.
+    Assertions.assertEquals(List.of("readInt", "printInt", "fact", "printInt"),
+        callees(p.getFunction("main")));
+    Assertions.assertEquals(List.of("fact"), callees(p.getFunction("fact")));
+    Assertions.assertEquals("inline: inlined 2", TestCompiler.statistics(manager).trim());
+    Assertions.assertEquals(expected, emulate(p, "4"));
+    Assertions.assertEquals("int?25120", expected);
+  }
+
+  @Test
+  void inlinerKeepsCallsOverItsBudget() {
+    var p = TestCompiler.lower(CALLS);
+    var manager = new PassManager();
+    manager.add("inline", () -> new Inliner(2, Inliner.DEFAULT_MAX_FUNCTION_SIZE));
+    manager.setVerify(true);
+    manager.run(p);
+
+    Assertions.assertEquals(List.of("readInt", "square", "square", "printInt", "fact", "printInt"),
+        callees(p.getFunction("main")));
+    Assertions.assertEquals("inline: inlined 0", TestCompiler.statistics(manager).trim());
+  }
+
+  /**
+   * The depth of the loops around each instruction of f of the given type, in order.
+   */
+  private static List<Integer> loopDepths(Function f, Class<? extends Instruction> type) {
+    var loops = new LoopInfo(f);
+    return TestCompiler.instructions(f, type).stream()
+        .map(inst -> loops.getDepth(f.getCFG().getBlock(inst))).collect(Collectors.toList());
+  }
+
+  @Test
+  void licmHoistsAnInvariantAddressOutOfTheLoop() {
+    var p = TestCompiler.lower(String.join("\n",
+        "int a[8];",
+        "void main() {",
+        "  int i;",
+        "  int k;",
+        "  int s;",
+        "  k = readInt();",
+        "  s = 0;",
+        "  for (i = 0; i < 8; i = i + 1) {",
+        "    a[i] = 0;",
+        "  }",
+        "  for (i = 0; i < 8; i = i + 1) {",
+        "    a[i] = i;",
+        "    s = s + a[k] + k / 2;",
+        "  }",
+        "  printInt(s);",
+        "}"));
+    var expected = emulate(p, "3");
+    TestCompiler.optimize(p, "ssa");
+    var main = p.getFunction("main");
+    Assertions.assertEquals(List.of(1, 1, 1), loopDepths(main, AddressAt.class));
+
+    var manager = TestCompiler.optimize(p, "licm");
+    // The address of a[k] is computed once before the loop. The address of a[i] changes, the
+    // load could see the store to a[i], and k / 2 would divide even if the loop never ran.
+    Assertions.assertEquals(List.of(0, 1, 1), loopDepths(main, AddressAt.class).stream().sorted()
+        .collect(Collectors.toList()));
+    Assertions.assertEquals(List.of(1), loopDepths(main, LoadInst.class));
+    var loops = new LoopInfo(main);
+    Assertions.assertEquals(List.of(1), TestCompiler.instructions(main, BinaryOperator.class)
+        .stream().filter(op -> op.getOperator() == BinaryOperator.Op.Div)
+        .map(op -> loops.getDepth(main.getCFG().getBlock(op))).collect(Collectors.toList()));
+
+    var statistics = TestCompiler.statistics(manager).trim();
+    Assertions.assertTrue(statistics.matches("licm: hoisted [1-9]\\d*"), statistics);
+    Assertions.assertEquals(expected, emulate(p, "3"));
+    Assertions.assertEquals("int?23", expected);
+  }
+
+  @Test
+  void strengthReductionTurnsAProductInTheLoopIntoAnAddition() {
+    var p = TestCompiler.lower(String.join("\n",
+        "int a[64];",
+        "void main() {",
+        "  int i;",
+        "  int n;",
+        "  n = readInt();",
+        "  for (i = 0; i < 8; i = i + 1) {",
+        "    a[i * n + 1] = i;",
+        "  }",
+        "  printInt(a[n + 1]);",
+        "}"));
+    // As in the -O2 pipeline, GVN first replaces the copies lowering makes of i and n by the
+    // variables themselves and LICM moves the constant step out of the loop.
+    TestCompiler.optimize(p, "gvn", "licm");
+    var main = p.getFunction("main");
+    var before = TestCompiler.instructions(main, BinaryOperator.class).stream()
+        .filter(op -> op.getOperator() != BinaryOperator.Op.Mul).count();
+    Assertions.assertEquals(List.of(1), multiplications(main));
+
+    var manager = TestCompiler.optimize(p, "strength-reduce");
+    // i * 0 and 1 * n start the new induction variable and its step before the loop, where it is
+    // incremented by an addition instead.
+    Assertions.assertEquals(List.of(0, 0), multiplications(main));
+    Assertions.assertEquals(before + 1, TestCompiler.instructions(main, BinaryOperator.class)
+        .stream().filter(op -> op.getOperator() != BinaryOperator.Op.Mul).count());
+    Assertions.assertEquals("strength-reduce: reduced 1", TestCompiler.statistics(manager).trim());
+    Assertions.assertEquals("int?1", emulate(p, "3"));
+  }
+
+  /**
+   * The loop depths of the multiplications in f.
+   */
+  private static List<Integer> multiplications(Function f) {
+    var loops = new LoopInfo(f);
+    return TestCompiler.instructions(f, BinaryOperator.class).stream()
+        .filter(op -> op.getOperator() == BinaryOperator.Op.Mul)
+        .map(op -> loops.getDepth(f.getCFG().getBlock(op))).collect(Collectors.toList());
+  }
+
+  /**
+   * Runs GVN over a program that loads a[0] twice with between in between and returns how many
+   * loads main has left, checking that the program prints expected before and after and that the
+   * statistics count the eliminated loads.
+   */
+  private static int loadsAround(String between, String expected) {
+    var p = TestCompiler.lower(String.join("\n",
+        "int a[4];",
+        "int b[4];",
+        "void bump() {",
+        "  a[0] = a[0] + 1;",
+        "}",
+        "void main() {",
+        "  int x;",
+        "  int k;",
+        "  k = readInt();",
+        "  a[0] = 7;",
+        "  b[0] = 0;",
+        "  x = a[0];",
+        between,
+        "  printInt(x + a[0]);",
+        "}"));
+    Assertions.assertEquals(expected, emulate(p, "1"));
+    var manager = TestCompiler.optimize(p, "gvn");
+    Assertions.assertEquals(expected, emulate(p, "1"));
+
+    int loads = TestCompiler.instructions(p.getFunction("main"), LoadInst.class).size();
+    var statistics = TestCompiler.statistics(manager).trim();
+    Assertions.assertTrue(statistics.matches("gvn: eliminated \\d+ loads " + (2 - loads)),
+        statistics);
+    return loads;
+  }
+
+  @Test
+  void gvnReusesALoadFromUnchangedMemory() {
+    // a[0] = 7 makes the first load redundant as well.
+    Assertions.assertEquals(0, loadsAround("", "int?14"));
+    // A store to another global leaves a alone.
+    Assertions.assertEquals(0, loadsAround("  b[k] = 5;", "int?14"));
+  }
+
+  @Test
+  void gvnReloadsAfterAStoreOrACall() {
+    // The store might write a[0], and bump does.
+    Assertions.assertEquals(1, loadsAround("  a[k] = 5;", "int?14"));
+    Assertions.assertEquals(1, loadsAround("  bump();", "int?15"));
+  }
+
+  /**
+   * Runs passes and then a pass named "break" that applies breaker to main, with verification on,
+   * and returns the problems the verifier reported after it.
+   */
+  private static List<String> verifyBroken(Consumer<Function> breaker, String... passes) {
+    var p = TestCompiler.lower(JOIN);
+    var manager = new PassManager();
+    for (var pass : passes) {
+      manager.add(pass);
+    }
+    manager.add("break", () -> new FunctionPass() {
+      @Override
+      public void run(Program p, Function f) {
+        if (f.getName().equals("main")) {
+          breaker.accept(f);
+          f.invalidateCFG();
+        }
+      }
+    });
+    manager.setVerify(true);
+    var error = Assertions.assertThrows(IllegalStateException.class, () -> manager.run(p));
+    var lines = error.getMessage().lines().collect(Collectors.toList());
+    Assertions.assertEquals("invalid IR in main after break:", lines.get(0));
+    return lines.subList(1, lines.size()).stream().map(String::trim)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Puts inst at the start of f.
+   */
+  private static void prepend(Function f, Instruction inst) {
+    inst.setNext(0, f.getStart());
+    f.setStart(inst);
+  }
+
+  @Test
+  void verifierRejectsAJumpWithoutASuccessor() {
+    var errors = verifyBroken(f -> TestCompiler.instructions(f, JumpInst.class).get(0)
+        .setNext(0, null));
+    Assertions.assertEquals(1, errors.size(), errors.toString());
+    Assertions.assertTrue(errors.get(0).matches("jump without two successors: jump \\$t\\d+"),
+        errors.toString());
+  }
+
+  @Test
+  void verifierRejectsAReadOfAVariableNeverDefined() {
+    var errors = verifyBroken(f -> {
+      var undefined = f.getTempVar(new IntType());
+      prepend(f, new CopyInst(f.getTempVar(new IntType()), undefined));
+    });
+    Assertions.assertEquals(1, errors.size(), errors.toString());
+    Assertions.assertTrue(errors.get(0).matches(
+        "(\\$t\\d+) is read but never defined: \\$t\\d+ = \\1"), errors.toString());
+  }
+
+  @Test
+  void verifierRejectsAJumpOnANonBooleanValue() {
+    var errors = verifyBroken(f -> {
+      var x = TestCompiler.instructions(f, CopyInst.class).get(0).getDstVar();
+      TestCompiler.instructions(f, JumpInst.class).get(0).replaceOperand(0, x);
+    });
+    Assertions.assertEquals(1, errors.size(), errors.toString());
+    Assertions.assertTrue(errors.get(0).matches("jump on a non-boolean value: jump \\$t\\d+"),
+        errors.toString());
+  }
+
+  @Test
+  void verifierRejectsASecondDefinitionInSSAForm() {
+    var errors = verifyBroken(f -> {
+      var copy = TestCompiler.instructions(f, CopyInst.class).get(0);
+      prepend(f, new CopyInst(copy.getDstVar(), copy.getSrcValue()));
+    }, "ssa");
+    Assertions.assertFalse(errors.isEmpty());
+    Assertions.assertTrue(errors.get(0).matches(
+        "(\\$t\\d+) is defined more than once: \\1 = \\d+"), errors.toString());
+  }
+}
@@ -0,0 +1,278 @@
+package crux;
+
+import crux.format.ProfileFormat;
+import crux.ir.Program;
+import crux.ir.insts.JumpInst;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+final class ProfileTests {
+  private static final String PROGRAM = String.join("\n",
+      "int sq(int x) {",
+      "  return x * x;",
+      "}",
+      "void main() {",
+      "  int s;",
+      "  int i;",
+      "  s = 0;",
+      "  for (i = 0; i < 10; i = i + 1) {",
+      "    if (i < 7) {",
+      "      s = s + sq(i);",
+      "    }",
+      "    if (i > 100) {",
+      "      printInt(i);",
+      "    }",
+      "  }",
+      "  printInt(s);",
+      "}");
+
+  private Path directory;
+
+  @BeforeEach
+  void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("crux-profile");
+  }
+
+  @AfterEach
+  void deleteDirectory() throws IOException {
+    TestCompiler.deleteDirectory(directory);
+  }
+
+  /**
+   * Runs the driver on source with options and input in directory, and returns what it printed to
+   * its standard output in out[0] and to its standard error.
+   */
+  private String run(String source, String input, Consumer<Driver> options, String[] out) {
+    var outStream = new ByteArrayOutputStream();
+    var errStream = new ByteArrayOutputStream();
+    var outPrintStream = new PrintStream(outStream);
+    var errPrintStream = new PrintStream(errStream);
+    var driver = new Driver(outPrintStream, errPrintStream);
+    driver.setOutputDirectory(directory);
+    options.accept(driver);
+    driver.setEmulatorInput(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+    driver.setInputStream(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+    Assertions.assertEquals(State.Finished, driver.run(), errStream.toString());
+    outPrintStream.flush();
+    errPrintStream.flush();
+    out[0] = outStream.toString();
+    return errStream.toString();
+  }
+
+  /**
+   * The lines of report from the header that starts with section up to the next header.
+   */
+  private static List<String> section(String report, String section) {
+    var lines = Arrays.asList(report.split("\n"));
+    int start = 0;
+    while (!lines.get(start).startsWith(section + " ")) {
+      start++;
+    }
+    int end = start + 1;
+    while (end < lines.size() && lines.get(end).startsWith("  ")) {
+      end++;
+    }
+    return lines.subList(start + 1, end);
+  }
+
+  @Test
+  void profileEmulatorReportsTheHotSpots() throws Exception {
+    var out = new String[1];
+    var report = run(PROGRAM, "", Driver::enableProfileEmulator, out);
+    Assertions.assertEquals("91", out[0]);
+    Assertions.assertTrue(report.startsWith("profile: 302 instructions run\n"), report);
+    Assertions.assertEquals(List.of(
+        "  main                              1            267   88.41",
+        "  sq                                7             35   11.59"),
+        section(report, "function"));
+    Assertions.assertEquals(List.of(
+        "  main -> sq                                       7",
+        "  main -> printInt                                 1"),
+        section(report, "call edge"));
+    Assertions.assertEquals(List.of(
+        "  main                             11           10            1   90.91  jump $t5",
+        "  main                             10            7            3   70.00  jump $t7",
+        "  main                             10            0           10    0.00  jump $t11"),
+        section(report, "jump"));
+
+    // The hottest instructions other than nops come first, up to the limit.
+    var instructions = section(report, "instruction");
+    Assertions.assertEquals(20, instructions.size());
+    long previous = Long.MAX_VALUE;
+    for (var line : instructions) {
+      var fields = line.trim().split(" +", 3);
+      long count = Long.parseLong(fields[1]);
+      Assertions.assertTrue(count <= previous, line);
+      Assertions.assertNotEquals("nop", fields[2], line);
+      previous = count;
+    }
+    Assertions.assertEquals("  main                             11  $t4 = 10", instructions.get(0));
+  }
+
+  @Test
+  void profileEmulatorWritesTheCountsToTheDotFile() throws Exception {
+    run(PROGRAM, "", Driver::enableProfileEmulator, new String[1]);
+    var dot = Files.readString(directory.resolve("profile.dot"));
+    Assertions.assertTrue(dot.startsWith("digraph Program {"), dot);
+    // The hottest instruction is red, and jumps show how often they were taken.
+    Assertions.assertTrue(dot.contains(
+        "[label=\"jump $t5\", xlabel=\"11, 10 true\", fillcolor=\"0.000 1.000 1.000\"]"), dot);
+    Assertions.assertTrue(dot.contains("[label=\"$t1 = $t0 * $t0\", xlabel=\"7\", fillcolor="),
+        dot);
+    // Code that never ran is left white.
+    Assertions.assertTrue(dot.contains("[label=\"call Symbol(printInt:func(TypeList(int)):void) "
+        + "($t1)\", xlabel=\"0\"]"), dot);
+
+    // Nops count too, so the labels add up to the total of the report.
+    long total = 0;
+    var label = Pattern.compile("xlabel=\"(\\d+)").matcher(dot);
+    while (label.find()) {
+      total += Long.parseLong(label.group(1));
+    }
+    Assertions.assertEquals(302, total);
+  }
+
+  /**
+   * Saves the profile of PROGRAM to profile.txt in directory and returns its path.
+   */
+  private Path saveProfile() {
+    var profile = directory.resolve("profile.txt");
+    var out = new String[1];
+    Assertions.assertEquals("", run(PROGRAM, "", driver -> driver.setProfileOutput(
+        profile.toString()), out));
+    Assertions.assertEquals("91", out[0]);
+    return profile;
+  }
+
+  private static List<String> read(Program p, Path profile) throws IOException {
+    try (InputStream in = Files.newInputStream(profile)) {
+      return ProfileFormat.read(p, in);
+    }
+  }
+
+  @Test
+  void savedProfileIsAttachedToTheLoweredIR() throws Exception {
+    var profile = saveProfile();
+    Assertions.assertTrue(Files.readString(profile).startsWith("crux profile 1\n"));
+
+    var p = TestCompiler.lower(PROGRAM);
+    Assertions.assertEquals(List.of(), read(p, profile));
+    var sq = p.getFunction("sq");
+    var main = p.getFunction("main");
+    Assertions.assertTrue(sq.isProfiled() && main.isProfiled());
+    Assertions.assertEquals(7, sq.getEntryCount());
+    Assertions.assertEquals(1, main.getEntryCount());
+    // The counts are those of the report of the profile emulator.
+    long total = 0;
+    for (var f : List.of(sq, main)) {
+      for (var inst : TestCompiler.instructions(f)) {
+        total += inst.getCount();
+      }
+    }
+    Assertions.assertEquals(302, total);
+    var jumps = TestCompiler.instructions(main, JumpInst.class);
+    Assertions.assertEquals(List.of(11L, 10L, 10L),
+        List.of(jumps.get(0).getCount(), jumps.get(1).getCount(), jumps.get(2).getCount()));
+    Assertions.assertEquals(List.of(10L, 1L),
+        List.of(jumps.get(0).getEdgeCount(1), jumps.get(0).getEdgeCount(0)));
+    Assertions.assertEquals(List.of(0L, 10L),
+        List.of(jumps.get(2).getEdgeCount(1), jumps.get(2).getEdgeCount(0)));
+
+    // The optimized code that uses the profile gives the same output.
+    var asm = TestCompiler.compile(PROGRAM, driver -> {
+      driver.setOptimizationLevel(2);
+      driver.setProfileInput(profile.toString());
+    });
+    Assertions.assertEquals("91", TestCompiler.run(asm, ""));
+  }
+
+  @Test
+  void profileOfAChangedFunctionIsIgnored() throws Exception {
+    var profile = saveProfile();
+    var changed = PROGRAM.replace("return x * x;", "return x * x + 1;");
+
+    var p = TestCompiler.lower(changed);
+    Assertions.assertEquals(List.of("sq"), read(p, profile));
+    Assertions.assertFalse(p.getFunction("sq").isProfiled());
+    Assertions.assertTrue(
+        TestCompiler.instructions(p.getFunction("sq")).stream().allMatch(i -> i.getCount() == 0));
+    // The functions that did not change keep their counts.
+    Assertions.assertTrue(p.getFunction("main").isProfiled());
+
+    var out = new String[1];
+    var err = run(changed, "", driver -> {
+      driver.setOptimizationLevel(2);
+      driver.setProfileInput(profile.toString());
+    }, out);
+    Assertions.assertEquals(
+        "warning: the profile of sq does not match its code and is ignored\n", err);
+    Assertions.assertEquals("98",
+        TestCompiler.run(Files.readString(directory.resolve("a.s")), ""));
+  }
+
+  /**
+   * The instruction that follows the conditional jump after the compare with 95 in main.
+   */
+  private static String afterBranch(String asm) {
+    var insts = TestCompiler.instructions(TestCompiler.function(asm, "main"));
+    int compare = 0;
+    while (!insts.get(compare).startsWith("cmp $95,")) {
+      compare++;
+    }
+    Assertions.assertTrue(insts.get(compare + 1).startsWith("j"), insts.get(compare + 1));
+    return insts.get(compare + 2);
+  }
+
+  @Test
+  void profileLaysOutTheHotSideOfABranchNext() throws Exception {
+    var source = String.join("\n",
+        "void main() {",
+        "  int i;",
+        "  int s;",
+        "  s = 0;",
+        "  for (i = 0; i < 100; i = i + 1) {",
+        "    if (i < 95) {",
+        "      s = s + readInt();",
+        "    } else {",
+        "      printInt(i);",
+        "    }",
+        "  }",
+        "  printInt(s);",
+        "}");
+    var input = new StringBuilder();
+    for (int i = 1; i <= 95; i++) {
+      input.append(i).append('\n');
+    }
+    var profile = directory.resolve("profile.txt");
+    run(source, input.toString(), driver -> driver.setProfileOutput(profile.toString()),
+        new String[1]);
+
+    // Without a profile the false side, here the cold one, comes right after the jump.
+    var plain = TestCompiler.compile(source, driver -> driver.setOptimizationLevel(2));
+    Assertions.assertNotEquals("call readInt", afterBranch(plain), plain);
+    var profiled = TestCompiler.compile(source, driver -> {
+      driver.setOptimizationLevel(2);
+      driver.setProfileInput(profile.toString());
+    });
+    Assertions.assertEquals("call readInt", afterBranch(profiled), profiled);
+
+    var expected = "int?".repeat(95) + "9596979899" + 95 * 96 / 2;
+    Assertions.assertEquals(expected, TestCompiler.run(plain, input.toString()));
+    Assertions.assertEquals(expected, TestCompiler.run(profiled, input.toString()));
+  }
+}
@@ -0,0 +1,198 @@
+package crux;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class ServerTests {
+  private static final String PROGRAM = String.join("\n",
+      "void main() {",
+      "  printInt(readInt() * 2);",
+      "}");
+
+  private Path directory;
+  private Path socket;
+
+  @BeforeEach
+  void startServer() throws Exception {
+    directory = Files.createTempDirectory("crux-server");
+    socket = directory.resolve("socket");
+    Files.writeString(directory.resolve("test.crx"), PROGRAM);
+    start(socket);
+  }
+
+  @AfterEach
+  void deleteDirectory() throws IOException {
+    // The server thread stays blocked in accept until the tests end.
+    TestCompiler.deleteDirectory(directory);
+  }
+
+  /**
+   * Serves on socket in a thread of its own and waits until it accepts connections.
+   */
+  private static void start(Path socket) throws InterruptedException {
+    var server = new Thread(() -> {
+      try {
+        CompilerServer.serve(socket);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }, "crux-server");
+    server.setDaemon(true);
+    server.start();
+    for (int i = 0; i < 200; i++) {
+      try {
+        SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+        return;
+      } catch (IOException e) {
+        Thread.sleep(10);
+      }
+    }
+    Assertions.fail("the server does not accept connections");
+  }
+
+  /**
+   * What the server sent for one request: the standard output and error, the files and the exit
+   * status, and whether it asked for standard input.
+   */
+  private static final class Response {
+    final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+    final Map<String, String> files = new LinkedHashMap<>();
+    boolean askedForInput;
+    int status;
+  }
+
+  /**
+   * Sends a request for args to the server and answers its request for input with the frames of
+   * input, followed by the empty one.
+   */
+  private Response request(String[] input, String... args) throws IOException {
+    try (var channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+      channel.connect(UnixDomainSocketAddress.of(socket));
+      var frames = new CompilerServer.FrameOutput(channel);
+      var request = new ByteArrayOutputStream();
+      var data = new DataOutputStream(request);
+      data.writeUTF(directory.toString());
+      data.writeInt(args.length);
+      for (var arg : args) {
+        data.writeUTF(arg);
+      }
+      frames.write(CompilerServer.REQUEST, request.toByteArray());
+
+      var in = new DataInputStream(new BufferedInputStream(CompilerServer.input(channel)));
+      var response = new Response();
+      var tag = new int[1];
+      while (true) {
+        var bytes = CompilerServer.readFrame(in, tag);
+        switch (tag[0]) {
+          case CompilerServer.STDOUT:
+            response.stdout.write(bytes);
+            break;
+          case CompilerServer.STDERR:
+            response.stderr.write(bytes);
+            break;
+          case CompilerServer.STDIN:
+            Assertions.assertEquals(0, bytes.length);
+            Assertions.assertFalse(response.askedForInput, "asked for input twice");
+            response.askedForInput = true;
+            for (var frame : input) {
+              frames.write(CompilerServer.STDIN, frame.getBytes(StandardCharsets.UTF_8));
+            }
+            frames.write(CompilerServer.STDIN, new byte[0]);
+            break;
+          case CompilerServer.FILE: {
+            var file = new DataInputStream(new ByteArrayInputStream(bytes));
+            var name = file.readNBytes(file.readUnsignedShort());
+            response.files.put(new String(name, StandardCharsets.UTF_8),
+                new String(file.readAllBytes(), StandardCharsets.UTF_8));
+            break;
+          }
+          case CompilerServer.EXIT:
+            Assertions.assertEquals(4, bytes.length);
+            response.status = ByteBuffer.wrap(bytes).getInt();
+            return response;
+          default:
+            Assertions.fail("unexpected frame " + tag[0]);
+        }
+      }
+    }
+  }
+
+  @Test
+  void serverSendsTheAssemblyItWrote() throws Exception {
+    var response = request(new String[0], "test.crx");
+    Assertions.assertEquals(0, response.status, response.stderr.toString());
+    Assertions.assertFalse(response.askedForInput);
+    Assertions.assertEquals(Map.of("a.s", TestCompiler.compile(PROGRAM, driver -> {})),
+        response.files);
+    // The server writes a.s to a directory of its own, not to the one of the client.
+    Assertions.assertFalse(Files.exists(directory.resolve("a.s")));
+  }
+
+  @Test
+  void serverForwardsInputAndOutputOfTheEmulator() throws Exception {
+    var response = request(new String[] {"2", "1\n"}, "--emulator", "test.crx");
+    Assertions.assertEquals(0, response.status, response.stderr.toString());
+    Assertions.assertTrue(response.askedForInput);
+    Assertions.assertEquals("int?42", response.stdout.toString());
+  }
+
+  @Test
+  void serverReportsAFailedCompilationAndGoesOn() throws Exception {
+    Files.writeString(directory.resolve("bad.crx"), "void main() { x }");
+    var response = request(new String[0], "bad.crx");
+    Assertions.assertEquals(-1, response.status);
+    Assertions.assertTrue(response.stderr.toString().contains("no viable alternative"),
+        response.stderr.toString());
+    Assertions.assertEquals(0, request(new String[0], "test.crx").status);
+  }
+
+  @Test
+  void secondServerOnALiveSocketFails() throws Exception {
+    var error = Assertions.assertThrows(IOException.class, () -> CompilerServer.serve(socket));
+    Assertions.assertEquals("a server is already listening on " + socket, error.getMessage());
+  }
+
+  @Test
+  void serverReplacesTheSocketOfAServerThatIsGone() throws Exception {
+    var stale = directory.resolve("stale");
+    try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(stale));
+    }
+    Assertions.assertTrue(Files.exists(stale));
+    start(stale);
+    socket = stale;
+    Assertions.assertEquals(0, request(new String[0], "test.crx").status);
+  }
+
+  @Test
+  void compilationThatCannotWriteTheAssemblyFails() {
+    var errStream = new ByteArrayOutputStream();
+    var err = new PrintStream(errStream, true);
+    int status = Compiler.compile(new String[] {"test.crx"}, directory, System.in, err, err,
+        directory.resolve("missing"));
+    Assertions.assertEquals(-1, status);
+    Assertions.assertTrue(errStream.toString().startsWith("error: cannot write "),
+        errStream.toString());
+  }
+}
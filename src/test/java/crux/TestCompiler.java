@@ -0,0 +1,218 @@
+package crux;
+
+import crux.ast.DeclarationList;
+import crux.ast.ParseTreeLower;
+import crux.ast.types.TypeChecker;
+import crux.ir.ASTLower;
+import crux.ir.Function;
+import crux.ir.Instruction;
+import crux.ir.Program;
+import crux.ir.opt.PassManager;
+import crux.pt.CruxLexer;
+import crux.pt.CruxParser;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Runs the stages of the compiler on programs given as source text, for the tests that look at
+ * what a stage produced rather than only at what the program prints.
+ */
+final class TestCompiler {
+  private TestCompiler() {}
+
+  /**
+   * Parses source into an AST. Fails the test if there is a syntax error.
+   */
+  static DeclarationList parse(String source) {
+    var lexer = new CruxLexer(CharStreams.fromString(source));
+    var parser = new CruxParser(new CommonTokenStream(lexer));
+    var parseTree = parser.program();
+    Assertions.assertEquals(0, parser.getNumberOfSyntaxErrors(), "syntax errors");
+    var errStream = new ByteArrayOutputStream();
+    var parseTreeLower = new ParseTreeLower(new PrintStream(errStream));
+    var ast = parseTreeLower.lower(parseTree);
+    Assertions.assertFalse(parseTreeLower.hasEncounteredError(), errStream.toString());
+    return ast;
+  }
+
+  /**
+   * Type checks ast, which records the types in its nodes. Fails the test on a type error.
+   */
+  static DeclarationList check(DeclarationList ast) {
+    var typeChecker = new TypeChecker();
+    typeChecker.check(ast);
+    Assertions.assertEquals(List.of(), typeChecker.getErrors());
+    return ast;
+  }
+
+  /**
+   * Parses, type checks and lowers source to IR. Fails the test if any stage reports an error.
+   */
+  static Program lower(String source) {
+    return new ASTLower().lower(check(parse(source)));
+  }
+
+  /**
+   * Runs the passes in order over p with IR verification on and returns the manager, for its
+   * records.
+   */
+  static PassManager optimize(Program p, String... passes) {
+    var manager = new PassManager();
+    for (var pass : passes) {
+      manager.add(pass);
+    }
+    manager.setVerify(true);
+    manager.run(p);
+    return manager;
+  }
+
+  /**
+   * Prints what the passes of manager did, as with --pass-stats.
+   */
+  static String statistics(PassManager manager) {
+    var outStream = new ByteArrayOutputStream();
+    manager.printStatistics(new PrintStream(outStream));
+    return outStream.toString();
+  }
+
+  /**
+   * The reachable instructions of f, block after block.
+   */
+  static List<Instruction> instructions(Function f) {
+    List<Instruction> insts = new ArrayList<>();
+    for (var block : f.getCFG().getBlocks()) {
+      insts.addAll(block.getInstructions());
+    }
+    return insts;
+  }
+
+  static <T extends Instruction> List<T> instructions(Function f, Class<T> type) {
+    List<T> insts = new ArrayList<>();
+    for (var inst : instructions(f)) {
+      if (type.isInstance(inst))
+        insts.add(type.cast(inst));
+    }
+    return insts;
+  }
+
+  /**
+   * Compiles source with the driver configured by options in a directory of its own and returns
+   * the a.s it wrote.
+   */
+  static String compile(String source, Consumer<Driver> options) throws IOException {
+    var directory = Files.createTempDirectory("crux-test");
+    try {
+      return compile(source, options, directory);
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+
+  /**
+   * Compiles source like compile(source, options), leaving a.s in directory.
+   */
+  static String compile(String source, Consumer<Driver> options, Path directory)
+      throws IOException {
+    var errStream = new ByteArrayOutputStream();
+    var driver = new Driver(new PrintStream(errStream), new PrintStream(errStream));
+    driver.setOutputDirectory(directory);
+    options.accept(driver);
+    driver.setInputStream(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+    Assertions.assertEquals(State.Finished, driver.run(), errStream.toString());
+    return Files.readString(directory.resolve("a.s"));
+  }
+
+  /**
+   * Runs source with input on the emulator the options select and returns what it printed.
+   */
+  static String emulate(String source, String input, Consumer<Driver> options) {
+    var outStream = new ByteArrayOutputStream();
+    var outPrintStream = new PrintStream(outStream);
+    var driver = new Driver(outPrintStream, outPrintStream);
+    driver.enableEmulator();
+    options.accept(driver);
+    driver.setEmulatorInput(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+    driver.setInputStream(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+    driver.run();
+    outPrintStream.flush();
+    return outStream.toString();
+  }
+
+  /**
+   * Assembles and links asm with the runtime, runs it with input and returns what it printed.
+   */
+  static String run(String asm, String input) throws IOException, InterruptedException {
+    var directory = Files.createTempDirectory("crux-test");
+    try {
+      var asmFile = directory.resolve("a.s");
+      var binary = directory.resolve("a.out");
+      Files.writeString(asmFile, asm);
+      var build = new ProcessBuilder("gcc", asmFile.toString(), "src/runtime/runtime.c", "-o",
+          binary.toString()).redirectErrorStream(true).start();
+      var buildOutput = new String(build.getInputStream().readAllBytes());
+      Assertions.assertEquals(0, build.waitFor(), "Assembling and linking failed: " + buildOutput);
+      var run = new ProcessBuilder(binary.toString()).start();
+      try (var stdin = run.getOutputStream()) {
+        stdin.write(input.getBytes(StandardCharsets.UTF_8));
+      }
+      var output = new String(run.getInputStream().readAllBytes());
+      // main's return value is the exit status, so only a signal means the program crashed.
+      Assertions.assertTrue(run.waitFor() < 128, "the program crashed after printing " + output);
+      return output;
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+
+  /**
+   * The lines of asm from the label of function up to the next function.
+   */
+  static List<String> function(String asm, String function) {
+    List<String> lines = new ArrayList<>();
+    boolean inside = false;
+    for (var line : asm.split("\n")) {
+      if (line.equals(function + ":")) {
+        inside = true;
+        continue;
+      }
+      if (inside && line.trim().startsWith(".globl"))
+        break;
+      if (inside)
+        lines.add(line.trim());
+    }
+    Assertions.assertFalse(lines.isEmpty(), "no function " + function + " in a.s");
+    return lines;
+  }
+
+  /**
+   * The instructions among lines, without labels and comments.
+   */
+  static List<String> instructions(List<String> lines) {
+    List<String> insts = new ArrayList<>();
+    for (var line : lines) {
+      if (!line.isEmpty() && !line.endsWith(":") && !line.startsWith("/*"))
+        insts.add(line);
+    }
+    return insts;
+  }
+
+  static void deleteDirectory(Path directory) throws IOException {
+    try (var paths = Files.walk(directory)) {
+      for (var path : paths.sorted((a, b) -> b.compareTo(a)).toArray(Path[]::new)) {
+        Files.delete(path);
+      }
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package crux;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+final class TimeReportTests {
+  private static final String PROGRAM = "void main() { printInt(readInt()); }";
+  // void main ( ) { printInt ( readInt ( ) ) ; }
+  private static final long TOKENS = 14;
+
+  /**
+   * Compiles PROGRAM with the report enabled by options and returns what the driver printed to its
+   * standard error, along with a.s in asm[0].
+   */
+  private static String report(Consumer<Driver> options, String[] asm) throws Exception {
+    var directory = Files.createTempDirectory("crux-time");
+    try {
+      var errStream = new ByteArrayOutputStream();
+      var driver = new Driver(new PrintStream(new ByteArrayOutputStream()),
+          new PrintStream(errStream, true));
+      driver.setOutputDirectory(directory);
+      options.accept(driver);
+      driver.setEmulatorInput(new ByteArrayInputStream("1\n".getBytes(StandardCharsets.UTF_8)));
+      driver.setInputStream(new ByteArrayInputStream(PROGRAM.getBytes(StandardCharsets.UTF_8)));
+      Assertions.assertEquals(State.Finished, driver.run(), errStream.toString());
+      if (Files.exists(directory.resolve("a.s")))
+        asm[0] = Files.readString(directory.resolve("a.s"));
+      return errStream.toString();
+    } finally {
+      TestCompiler.deleteDirectory(directory);
+    }
+  }
+
+  private static long instructions() {
+    return TestCompiler.instructions(TestCompiler.lower(PROGRAM).getFunction("main")).size();
+  }
+
+  private static final Pattern STAGE =
+      Pattern.compile("(\\S+) +(\\d+\\.\\d{3}) +(\\d+\\.\\d{3}|-) +(\\d+|-)");
+  private static final Pattern COUNT = Pattern.compile("(\\S+) +(\\d+)");
+
+  @Test
+  void tableHasARowPerStageAndTheCounts() throws Exception {
+    var asm = new String[1];
+    var lines = report(driver -> driver.enableTimeReport(false), asm).split("\n");
+    Assertions.assertTrue(lines[0].matches("stage +wall ms +cpu ms +alloc KiB"), lines[0]);
+
+    List<String> stages = new ArrayList<>();
+    Map<String, Long> counts = new LinkedHashMap<>();
+    double wall = 0;
+    for (int i = 1; i < lines.length; i++) {
+      var stage = STAGE.matcher(lines[i]);
+      var count = COUNT.matcher(lines[i]);
+      if (stage.matches()) {
+        stages.add(stage.group(1));
+        if (!stage.group(1).equals("total"))
+          wall += Double.parseDouble(stage.group(2));
+        else
+          Assertions.assertEquals(wall, Double.parseDouble(stage.group(2)), 0.01);
+      } else {
+        Assertions.assertTrue(count.matches(), lines[i]);
+        counts.put(count.group(1), Long.parseLong(count.group(2)));
+      }
+    }
+    Assertions.assertEquals(List.of("parse", "ast", "typecheck", "ir", "codegen", "total"),
+        stages);
+    Assertions.assertEquals(Map.of("tokens", TOKENS, "ast-nodes", counts.get("ast-nodes"),
+        "ir-instructions", instructions(), "asm-lines", asm[0].lines().count()), counts);
+    Assertions.assertTrue(counts.get("ast-nodes") > 0);
+  }
+
+  @Test
+  void jsonHoldsTheSameStagesAndCounts() throws Exception {
+    var asm = new String[1];
+    var json = report(driver -> driver.enableTimeReport(true), asm).trim();
+    var stage = "\\{\"stage\": \"([a-z]+)\", \"wallNanos\": \\d+, \"cpuNanos\": -?\\d+, "
+        + "\"allocatedBytes\": -?\\d+\\}";
+    Assertions.assertTrue(json.matches(String.format("\\{\"stages\": \\[%s(, %s)*\\], "
+        + "\"counts\": \\{(\"[a-z-]+\": \\d+(, )?)*\\}\\}", stage, stage)), json);
+
+    List<String> stages = new ArrayList<>();
+    var matcher = Pattern.compile(stage).matcher(json);
+    while (matcher.find()) {
+      stages.add(matcher.group(1));
+    }
+    Assertions.assertEquals(List.of("parse", "ast", "typecheck", "ir", "codegen"), stages);
+    Assertions.assertTrue(json.endsWith(String.format("\"counts\": {\"tokens\": %d, \"ast-nodes\": "
+        + "%s, \"ir-instructions\": %d, \"asm-lines\": %d}}", TOKENS,
+        json.replaceAll(".*\"ast-nodes\": (\\d+).*", "$1"), instructions(),
+        asm[0].lines().count())), json);
+  }
+
+  @Test
+  void emulatorRunIsAStage() throws Exception {
+    var json = report(driver -> {
+      driver.enableEmulator();
+      driver.enableTimeReport(true);
+    }, new String[1]);
+    Assertions.assertTrue(json.contains("{\"stage\": \"emulator\""), json);
+    Assertions.assertFalse(json.contains("{\"stage\": \"codegen\""), json);
+  }
+}